@@ -7,16 +7,30 @@ import com.google.inject.Provides;
 import com.hubspot.dropwizard.guicier.DropwizardAwareModule;
 import com.typesafe.config.Config;
 import gov.cms.dpc.aggregation.engine.AggregationEngine;
+import gov.cms.dpc.aggregation.engine.CoverageCache;
+import gov.cms.dpc.aggregation.engine.MbiHashCache;
 import gov.cms.dpc.aggregation.engine.OperationsConfig;
+import gov.cms.dpc.bluebutton.client.BlueButtonClient;
+import gov.cms.dpc.bluebutton.client.BlueButtonResilience;
+import gov.cms.dpc.bluebutton.client.RateBudget;
 import gov.cms.dpc.common.annotations.ExportPath;
 import gov.cms.dpc.common.annotations.JobTimeout;
 import gov.cms.dpc.fhir.hapi.ContextUtils;
+import gov.cms.dpc.queue.IMbiHashStore;
+import gov.cms.dpc.queue.ITokenBucketStore;
 import gov.cms.dpc.queue.models.JobQueueBatch;
 
 import javax.inject.Singleton;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Optional;
 
 public class AggregationAppModule extends DropwizardAwareModule<DPCAggregationConfiguration> {
 
+    // The token bucket in the queue database that holds the BlueButton request budget
+    private static final String BLUEBUTTON_RATE_BUCKET = "bluebutton";
+
     AggregationAppModule() {
         // Not used
     }
@@ -64,12 +78,66 @@ public class AggregationAppModule extends DropwizardAwareModule<DPCAggregationCo
     OperationsConfig provideOperationsConfig() {
         final var config = getConfiguration();
 
-        return new OperationsConfig(
-                config.getResourcesPerFileCount(),
-                config.getExportPath(),
-                config.getRetryCount(),
-                config.getPollingFrequency()
-        );
+        return new OperationsConfig.Builder(config.getResourcesPerFileCount(), config.getExportPath())
+                .retryCount(config.getRetryCount())
+                .pollingFrequency(config.getPollingFrequency())
+                .workerSlots(config.getWorkerSlots())
+                .patientConcurrency(config.getPatientConcurrency())
+                .pagePrefetchDepth(config.getPagePrefetchDepth())
+                .maxInFlightPageRequests(config.getMaxInFlightPageRequests())
+                .exportCompression(config.getExportCompression())
+                .checkpointPatientInterval(config.getCheckpointPatientInterval())
+                .checkpointTimeInterval(config.getCheckpointTimeInterval())
+                .resourcePassThrough(config.isResourcePassThrough())
+                .build();
+    }
+
+    @Provides
+    @Singleton
+    MbiHashCache provideMbiHashCache(BlueButtonClient bbclient, IMbiHashStore store, MetricRegistry metricRegistry) {
+        final var config = getConfiguration();
+        return new MbiHashCache(bbclient, store, metricRegistry, config.getMbiHashCacheSize(), config.getMbiHashParallelism());
+    }
+
+    /**
+     * Provide the cache of Coverage across exports, empty when no cache path is configured
+     */
+    @Provides
+    @Singleton
+    Optional<CoverageCache> provideCoverageCache(BlueButtonClient bbclient, MetricRegistry metricRegistry) throws IOException {
+        final var config = getConfiguration();
+        if (config.getCoverageCachePath().isEmpty()) {
+            return Optional.empty();
+        }
+        return Optional.of(new CoverageCache(bbclient,
+                Path.of(config.getCoverageCachePath()),
+                Duration.ofSeconds(config.getCoverageCacheTTL()),
+                Duration.ofSeconds(config.getCoverageCacheMaxAge()),
+                config.getCoverageCacheMaxSize() * 1024 * 1024,
+                metricRegistry));
+    }
+
+    /**
+     * Provide the budget of requests to BlueButton, which is shared with the other aggregators through the queue
+     */
+    @Provides
+    @Singleton
+    RateBudget provideRateBudget(ITokenBucketStore store, MetricRegistry metricRegistry) {
+        final var config = getConfiguration().getBlueButtonConfiguration().getRateBudget();
+        if (config.getRequestsPerSecond() <= 0) {
+            return RateBudget.unlimited();
+        }
+        return new RateBudget(requested -> store.leaseTokens(BLUEBUTTON_RATE_BUCKET, requested, config.getBurst(), config.getRequestsPerSecond()), config, metricRegistry);
+    }
+
+    /**
+     * Provide the retries and circuit breaker of the requests to BlueButton, retrying each request up to the retry count
+     */
+    @Provides
+    @Singleton
+    BlueButtonResilience provideBlueButtonResilience(MetricRegistry metricRegistry) {
+        final var config = getConfiguration();
+        return new BlueButtonResilience(config.getRetryCount(), config.getBlueButtonConfiguration().getResilience(), metricRegistry);
     }
 
     @Provides
@@ -7,6 +7,7 @@ import gov.cms.dpc.bluebutton.config.BlueButtonBundleConfiguration;
 import gov.cms.dpc.common.hibernate.attribution.IDPCDatabase;
 import gov.cms.dpc.common.hibernate.queue.IDPCQueueDatabase;
 import gov.cms.dpc.queue.DPCQueueConfig;
+import gov.cms.dpc.queue.models.ExportCompression;
 import io.dropwizard.db.DataSourceFactory;
 import org.hibernate.validator.constraints.NotEmpty;
 
@@ -46,13 +47,74 @@ public class DPCAggregationConfiguration extends TypesafeConfiguration implement
     @Max(100000) // Keep files under a GB
     private int resourcesPerFileCount = 10000;
 
-    // How often in milliseconds to check the queue for new batches
+    // How often in milliseconds to check the queue for new batches, when the queue has not signalled any.
+    // New batches are normally signalled by the queue right away, so this is only a fallback.
     @Min(50)
-    private int pollingFrequency = 500;
+    private int pollingFrequency = 5000;
 
     @Min(1)
     private int jobTimeoutInSeconds = 5;
 
+    // The number of batches a single aggregation engine will claim and process at the same time
+    @Min(1)
+    @Max(64)
+    private int workerSlots = 1;
+
+    // The number of patients within a batch that will be fetched from BlueButton at the same time
+    @Min(1)
+    @Max(100)
+    private int patientConcurrency = 1;
+
+    // The number of bundle pages to request from BlueButton ahead of the page being written. Zero disables prefetching.
+    @Min(0)
+    @Max(10)
+    private int pagePrefetchDepth = 0;
+
+    // The max number of prefetched bundle page requests an aggregator will have in flight at the same time
+    @Min(1)
+    private int maxInFlightPageRequests = 50;
+
+    // The compression of newly written export files
+    @NotNull
+    private ExportCompression exportCompression = ExportCompression.NONE;
+
+    // The number of patients to write between saving the progress of a batch.
+    // OperationsConfig.Builder defaults to saving after every patient, for engines built without this configuration.
+    @Min(1)
+    private int checkpointPatientInterval = 25;
+
+    // The max number of seconds between saving the progress of a batch. Zero only saves by patient count.
+    @Min(0)
+    private int checkpointTimeInterval = 10;
+
+    // Write EOB and Coverage resources as the JSON returned by BlueButton, instead of parsing and re-encoding them
+    private boolean resourcePassThrough = false;
+
+    // The max number of MBI hashes each aggregator keeps in memory
+    @Min(1)
+    private int mbiHashCacheSize = 100000;
+
+    // The number of MBI hashes to compute at once when a batch is claimed
+    @Min(1)
+    private int mbiHashParallelism = 4;
+
+    // The directory of the Coverage cache shared by the aggregators, empty disables the cache.
+    // The cache holds PHI in plaintext, so the directory must only be accessible to the aggregators.
+    @NotNull
+    private String coverageCachePath = "";
+
+    // The seconds a cached Coverage is used before it is revalidated with BlueButton
+    @Min(1)
+    private long coverageCacheTTL = 86400;
+
+    // The seconds a cached Coverage is revalidated before it is fetched again, which picks up Coverage deleted in BlueButton
+    @Min(1)
+    private long coverageCacheMaxAge = 604800;
+
+    // The max size of the Coverage cache in MB
+    @Min(1)
+    private long coverageCacheMaxSize = 1024;
+
     @Override
     public DataSourceFactory getDatabase() {
         return this.database;
@@ -96,4 +158,60 @@ public class DPCAggregationConfiguration extends TypesafeConfiguration implement
     public int getJobTimeoutInSeconds() {
         return jobTimeoutInSeconds;
     }
+
+    public int getWorkerSlots() {
+        return workerSlots;
+    }
+
+    public int getPatientConcurrency() {
+        return patientConcurrency;
+    }
+
+    public int getPagePrefetchDepth() {
+        return pagePrefetchDepth;
+    }
+
+    public int getMaxInFlightPageRequests() {
+        return maxInFlightPageRequests;
+    }
+
+    public ExportCompression getExportCompression() {
+        return exportCompression;
+    }
+
+    public int getCheckpointPatientInterval() {
+        return checkpointPatientInterval;
+    }
+
+    public int getCheckpointTimeInterval() {
+        return checkpointTimeInterval;
+    }
+
+    public boolean isResourcePassThrough() {
+        return resourcePassThrough;
+    }
+
+    public int getMbiHashCacheSize() {
+        return mbiHashCacheSize;
+    }
+
+    public int getMbiHashParallelism() {
+        return mbiHashParallelism;
+    }
+
+    public String getCoverageCachePath() {
+        return coverageCachePath;
+    }
+
+    public long getCoverageCacheTTL() {
+        return coverageCacheTTL;
+    }
+
+    public long getCoverageCacheMaxAge() {
+        return coverageCacheMaxAge;
+    }
+
+    public long getCoverageCacheMaxSize() {
+        return coverageCacheMaxSize;
+    }
 }
@@ -7,16 +7,19 @@ import com.newrelic.api.agent.Trace;
 import gov.cms.dpc.bluebutton.client.BlueButtonClient;
 import gov.cms.dpc.common.utils.MetricMaker;
 import gov.cms.dpc.queue.IJobQueue;
+import gov.cms.dpc.queue.WorkSignal;
 import gov.cms.dpc.queue.annotations.AggregatorID;
+import gov.cms.dpc.queue.exceptions.JobQueueFailure;
 import gov.cms.dpc.queue.models.JobQueueBatch;
 import gov.cms.dpc.queue.models.JobQueueBatchFile;
 import io.reactivex.Flowable;
 import io.reactivex.Observable;
+import io.reactivex.Scheduler;
+import io.reactivex.Single;
 import io.reactivex.disposables.Disposable;
 import io.reactivex.exceptions.UndeliverableException;
 import io.reactivex.plugins.RxJavaPlugins;
-import org.bouncycastle.jcajce.provider.digest.SHA256;
-import org.hl7.fhir.dstu3.model.Resource;
+import io.reactivex.schedulers.Schedulers;
 import org.hl7.fhir.dstu3.model.ResourceType;
 import org.reactivestreams.Publisher;
 import org.slf4j.Logger;
@@ -24,11 +27,17 @@ import org.slf4j.LoggerFactory;
 
 import javax.inject.Inject;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
+import java.nio.file.Path;
+import java.time.Duration;
 import java.util.List;
 import java.util.Optional;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
@@ -42,18 +51,57 @@ import java.util.concurrent.atomic.AtomicInteger;
  * - It starts with an iteration of resource types in a job and produces a series of JobQueueBatchFile for that resource type
  * - Partial job batches are saved out and written along the way
  * - When the aggregator shuts down, a batch is paused and another aggregator can claim the batch to continue processing
+ * - When configured with multiple worker slots, each slot runs its own claim and process loop on a dedicated thread,
+ * sharing the BlueButton client, FHIR context and metrics of the engine
+ * - When configured with patient concurrency, the patients of a batch are fetched in parallel but written in order,
+ * so the patient index only advances past patients that are completely written
+ * - When configured with a page prefetch depth, the next pages of a bundle are requested ahead of writing, with the
+ * number of in-flight page requests capped across all the slots of the engine
+ * - The output files of a batch are kept open while the batch is processed, and are synced to disk before each checkpoint
+ * - The progress of a batch is checkpointed every few patients or seconds, as set by the checkpoint intervals of the config
+ * - When a batch is claimed, the MBIs of its remaining patients are hashed. The patients are resolved with batched
+ * searches a window at a time, ahead of the patients being fetched
+ * - While the circuit breaker on BlueButton is open, no batches are claimed. When the breaker opens in the middle of a
+ * batch, the batch goes back to its last checkpoint and is paused, so its patients are fetched again once BlueButton
+ * recovers rather than written as errors. An interrupt in the middle of a patient pauses the batch the same way
+ * - A claimed batch is leased to the engine, and the lease is renewed in the background while the batch is worked. The
+ * engine also reclaims the batches of aggregators whose leases have run out. A batch whose lease is lost to the queue is
+ * dropped after its current patient without saving anything more
+ * - A reclaimed batch is resumed from its last checkpoint like a paused batch, with its files truncated back to their
+ * checkpointed length
+ * - When configured with a Coverage cache, the Coverage of patients is read from the cache and only revalidated with
+ * BlueButton once its copy is older than the TTL
+ * - A claim loop claims its next batch as soon as it finishes one. When the queue is empty it waits for the queue to
+ * signal new batches, and only polls the queue again after the polling frequency as a fallback
  */
 public class AggregationEngine implements Runnable {
     private static final Logger logger = LoggerFactory.getLogger(AggregationEngine.class);
+    private static final long SLOT_SHUTDOWN_TIMEOUT_SECONDS = 30;
+    // The fewest patients to resolve with each batched search
+    private static final int MIN_RESOLVE_WINDOW = 10;
+    // The max number of resources to hold in memory before writing them to the current file
+    private static final int WRITE_CHUNK_SIZE = 100;
+    // The size of the direct buffer each open output file serializes resources into
+    private static final int WRITE_BUFFER_SIZE = 64 * 1024;
+    private static final int MAX_POOLED_WRITE_BUFFERS = 64;
 
     private final UUID aggregatorID;
     private final IJobQueue queue;
     private final BlueButtonClient bbclient;
+    private final MbiHashCache hashCache;
+    private final CoverageCache coverageCache;
     private final OperationsConfig operationsConfig;
     private final FhirContext fhirContext;
     private final Meter resourceMeter;
     private final Meter operationalOutcomeMeter;
+    private final Semaphore pageRequestPermits;
+    private final DirectBufferPool writeBufferPool;
+    private final LeaseKeeper leaseKeeper;
     private Disposable subscribe;
+    private ExecutorService slotExecutor;
+    private ExecutorService pollExecutor;
+    // The threads of the claim loops, which cannot wait on their own shutdown
+    private final Set<Thread> loopThreads = ConcurrentHashMap.newKeySet();
 
     /**
      * The initial value is set to true so when the aggregation instance starts up,
@@ -71,18 +119,56 @@ public class AggregationEngine implements Runnable {
      * @param metricRegistry   - {@link MetricRegistry} for metrics
      * @param operationsConfig - The {@link OperationsConfig} to use for writing the output files
      */
+    public AggregationEngine(UUID aggregatorID, BlueButtonClient bbclient, IJobQueue queue, FhirContext fhirContext, MetricRegistry metricRegistry, OperationsConfig operationsConfig) {
+        this(aggregatorID, bbclient, new MbiHashCache(bbclient, metricRegistry), queue, fhirContext, metricRegistry, operationsConfig);
+    }
+
+    /**
+     * Create an engine.
+     *
+     * @param aggregatorID     - The ID of the current working aggregator
+     * @param bbclient         - {@link BlueButtonClient } to use
+     * @param hashCache        - {@link MbiHashCache} to look up patients by MBI hash with
+     * @param queue            - {@link IJobQueue} that will direct the work done
+     * @param fhirContext      - {@link FhirContext} for DSTU3 resources
+     * @param metricRegistry   - {@link MetricRegistry} for metrics
+     * @param operationsConfig - The {@link OperationsConfig} to use for writing the output files
+     */
+    public AggregationEngine(UUID aggregatorID, BlueButtonClient bbclient, MbiHashCache hashCache, IJobQueue queue, FhirContext fhirContext, MetricRegistry metricRegistry, OperationsConfig operationsConfig) {
+        this(aggregatorID, bbclient, hashCache, Optional.empty(), queue, fhirContext, metricRegistry, operationsConfig);
+    }
+
+    /**
+     * Create an engine.
+     *
+     * @param aggregatorID     - The ID of the current working aggregator
+     * @param bbclient         - {@link BlueButtonClient } to use
+     * @param hashCache        - {@link MbiHashCache} to look up patients by MBI hash with
+     * @param coverageCache    - {@link CoverageCache} to fetch Coverage through, empty to always fetch it from BlueButton
+     * @param queue            - {@link IJobQueue} that will direct the work done
+     * @param fhirContext      - {@link FhirContext} for DSTU3 resources
+     * @param metricRegistry   - {@link MetricRegistry} for metrics
+     * @param operationsConfig - The {@link OperationsConfig} to use for writing the output files
+     */
     @Inject
-    public AggregationEngine(@AggregatorID UUID aggregatorID, BlueButtonClient bbclient, IJobQueue queue, FhirContext fhirContext, MetricRegistry metricRegistry, OperationsConfig operationsConfig) {
+    public AggregationEngine(@AggregatorID UUID aggregatorID, BlueButtonClient bbclient, MbiHashCache hashCache, Optional<CoverageCache> coverageCache, IJobQueue queue, FhirContext fhirContext, MetricRegistry metricRegistry, OperationsConfig operationsConfig) {
         this.aggregatorID = aggregatorID;
         this.queue = queue;
         this.bbclient = bbclient;
+        this.hashCache = hashCache;
+        this.coverageCache = coverageCache.orElse(null);
         this.fhirContext = fhirContext;
         this.operationsConfig = operationsConfig;
+        this.pageRequestPermits = new Semaphore(operationsConfig.getMaxInFlightPageRequests());
+        this.writeBufferPool = new DirectBufferPool(WRITE_BUFFER_SIZE, MAX_POOLED_WRITE_BUFFERS);
+        this.leaseKeeper = new LeaseKeeper(queue, aggregatorID, metricRegistry);
 
         // Metrics
         final var metricFactory = new MetricMaker(metricRegistry, AggregationEngine.class);
         resourceMeter = metricFactory.registerMeter("resourceFetched");
         operationalOutcomeMeter = metricFactory.registerMeter("operationalOutcomes");
+        metricFactory.registerCachedGauge("inFlightPageRequests",
+                () -> operationsConfig.getMaxInFlightPageRequests() - pageRequestPermits.availablePermits());
     }
 
     /**
@@ -91,11 +177,13 @@ public class AggregationEngine implements Runnable {
     @Override
     public void run() {
         // Run loop
-        logger.info("Starting aggregation engine with exportPath:\"{}\" resourcesPerFile:{} ",
+        logger.info("Starting aggregation engine with exportPath:\"{}\" resourcesPerFile:{} workerSlots:{} ",
                 operationsConfig.getExportPath(),
-                operationsConfig.getResourcesPerFileCount());
+                operationsConfig.getResourcesPerFileCount(),
+                operationsConfig.getWorkerSlots());
         setGlobalErrorHandler();
         queueRunning.set(true);
+        this.leaseKeeper.start();
         this.pollQueue();
     }
 
@@ -106,26 +194,48 @@ public class AggregationEngine implements Runnable {
         logger.info("Shutting down aggregation engine");
         queueRunning.set(false);
         this.subscribe.dispose();
+        // Wake the claim loops waiting on an empty queue, so they notice the shutdown
+        this.queue.getWorkSignal().signal();
+        if (this.pollExecutor != null) {
+            this.awaitLoopShutdown(this.pollExecutor);
+        }
+        if (this.slotExecutor != null) {
+            this.awaitLoopShutdown(this.slotExecutor);
+        }
+        this.leaseKeeper.stop();
     }
 
     public Boolean isRunning() {
         return queueRunning.get();
     }
 
+    /**
+     * @param job - the batch in flight
+     * @return whether the batch should go on to its next patient
+     */
+    private boolean canContinueBatch(JobQueueBatch job) {
+        return this.isRunning() && bbclient.isAvailable() && !leaseKeeper.isLost(job);
+    }
+
     /**
      * The main run-loop of the engine.
      */
     protected void pollQueue() {
-        this.subscribe = this.createQueueObserver()
-                .repeatWhen(completed -> {
-                    logger.debug(String.format("Configuring queue to poll every %d milliseconds", operationsConfig.getPollingFrequency()));
-                    return completed.delay(operationsConfig.getPollingFrequency(), TimeUnit.MILLISECONDS);
-                })
-                .doOnEach(item -> logger.trace("Processing item: " + item.toString()))
-                .doOnError(error -> logger.error("Unable to complete job.", error))
-                .retry()
-                .filter(Optional::isPresent)
-                .map(Optional::get)
+        final int workerSlots = operationsConfig.getWorkerSlots();
+        if (workerSlots > 1) {
+            this.pollQueueWithSlots(workerSlots);
+            return;
+        }
+
+        // Poll on a scheduler that does not interrupt on disposal, since interrupting a batch in flight would close its output files
+        this.pollExecutor = Executors.newSingleThreadExecutor(runnable -> {
+            final var thread = new Thread(runnable, "aggregation-poll");
+            thread.setDaemon(true);
+            loopThreads.add(thread);
+            return thread;
+        });
+        this.subscribe = this.createClaimLoop()
+                .subscribeOn(Schedulers.from(this.pollExecutor))
                 .subscribe(
                         this::processJobBatch,
                         this::onError,
@@ -133,6 +243,99 @@ public class AggregationEngine implements Runnable {
                 );
     }
 
+    /**
+     * Run multiple claim and process loops in parallel, each on its own slot thread.
+     * The slot threads are never interrupted by disposal, so a batch in flight always gets the chance to notice the shutdown and pause itself.
+     *
+     * @param workerSlots - the number of batches to work at the same time
+     */
+    private void pollQueueWithSlots(int workerSlots) {
+        final var slotCounter = new AtomicInteger();
+        this.slotExecutor = Executors.newFixedThreadPool(workerSlots, runnable -> {
+            final var thread = new Thread(runnable, String.format("aggregation-slot-%d", slotCounter.getAndIncrement()));
+            loopThreads.add(thread);
+            return thread;
+        });
+        final Scheduler slotScheduler = Schedulers.from(this.slotExecutor);
+
+        logger.debug("Starting {} worker slots", workerSlots);
+        this.subscribe = Observable.range(0, workerSlots)
+                .flatMap(slot -> this.createClaimLoop()
+                        .doOnNext(this::processJobBatch)
+                        .subscribeOn(slotScheduler))
+                .subscribe(
+                        batch -> logger.trace("Worker slot finished batch {}", batch.getBatchID()),
+                        this::onError,
+                        this::onCompleted
+                );
+    }
+
+    /**
+     * Creates a loop which repeatedly claims batches from the queue. The loop blocks the thread it is subscribed on while
+     * it waits for new batches.
+     *
+     * @return a never ending stream of claimed batches
+     */
+    private Observable<JobQueueBatch> createClaimLoop() {
+        final WorkSignal workSignal = this.queue.getWorkSignal();
+        logger.debug(String.format("Configuring queue to be polled every %d milliseconds when not signalled", operationsConfig.getPollingFrequency()));
+        return Observable.defer(() -> {
+                    // Take the signal before claiming, so a batch submitted while claiming is not missed
+                    final long seen = workSignal.current();
+                    return this.createQueueObserver()
+                            .doOnNext(claimed -> {
+                                if (claimed.isEmpty()) {
+                                    this.awaitWork(workSignal, seen);
+                                }
+                            });
+                })
+                .repeat()
+                .doOnEach(item -> logger.trace("Processing item: " + item.toString()))
+                .doOnError(error -> logger.error("Unable to complete job.", error))
+                .retry()
+                .filter(Optional::isPresent)
+                .map(Optional::get);
+    }
+
+    /**
+     * Wait for the queue to signal new batches, or for the polling frequency to pass
+     *
+     * @param workSignal - the {@link WorkSignal} of the queue
+     * @param seen       - the count of signals taken before the last claim
+     */
+    private void awaitWork(WorkSignal workSignal, long seen) {
+        if (!this.isRunning()) {
+            return;
+        }
+        try {
+            if (workSignal.await(seen, Duration.ofMillis(operationsConfig.getPollingFrequency()))) {
+                logger.trace("Signalled of new batches in the queue");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Wait for the claim loops to pause their in-flight batches, unless called from one of the loops itself
+     *
+     * @param executor - the executor running the claim loops
+     */
+    private void awaitLoopShutdown(ExecutorService executor) {
+        executor.shutdown();
+        if (loopThreads.contains(Thread.currentThread())) {
+            return;
+        }
+        try {
+            if (!executor.awaitTermination(SLOT_SHUTDOWN_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                logger.warn("Worker slots did not finish pausing their batches within {} seconds", SLOT_SHUTDOWN_TIMEOUT_SECONDS);
+            }
+        } catch (InterruptedException e) {
+            logger.warn("Interrupted while waiting for worker slots to shutdown", e);
+            Thread.currentThread().interrupt();
+        }
+    }
+
     protected void onError(Throwable error) {
         logger.error("Error processing queue. Exiting...", error);
         queueRunning.set(false);
@@ -149,6 +352,11 @@ public class AggregationEngine implements Runnable {
     private Observable<Optional<JobQueueBatch>> createQueueObserver() {
         // Create using fromCallable. This ensures that no events are omitted before a subscriber connects
         return Observable.fromCallable(() -> {
+            // A claimed batch would only be paused again while BlueButton is unavailable
+            if (!bbclient.isAvailable()) {
+                logger.debug("BlueButton is unavailable, not claiming a batch");
+                return Optional.empty();
+            }
             logger.trace("Polling queue for job...");
             return this.queue.claimBatch(this.aggregatorID);
         });
@@ -161,81 +369,289 @@ public class AggregationEngine implements Runnable {
      */
     @Trace
     protected void processJobBatch(JobQueueBatch job) {
+        leaseKeeper.hold(job);
         try {
             logger.info("Processing job {} batch {}, exporting to: {}.", job.getJobID(), job.getBatchID(), this.operationsConfig.getExportPath());
             logger.debug("Has {} attributed beneficiaries", job.getPatients().size());
 
-            Optional<String> nextPatientID = job.fetchNextPatient(aggregatorID);
-
-            // Stop processing when no patients or early shutdown
-            while (nextPatientID.isPresent()) {
-                this.processJobBatchPartial(job, nextPatientID.get());
-
-                // Check if the subscriber is still running before getting the next part of the batch
-                nextPatientID = this.isRunning() ? job.fetchNextPatient(aggregatorID) : Optional.empty();
+            final List<String> remainingPatients = getRemainingPatients(job);
+            precomputeHashes(job, remainingPatients);
+            // Each patient is resolved once per batch and shared by the fetchers of all the resource types
+            final var patientResolver = new PatientResolver(bbclient, hashCache, job.getJobID(), job.getBatchID(), job.getPatients(), getResolveWindow());
+            final var checkpointPolicy = new CheckpointPolicy(operationsConfig.getCheckpointPatientInterval(), operationsConfig.getCheckpointTimeInterval());
+            checkpointPolicy.saved(job.getProgress());
+            boolean stopped = false;
+            // The output files stay open while the batch is processed, and are closed before the batch is completed or paused
+            try (final var fileWriters = new BatchFileWriters(operationsConfig.getExportPath(), writeBufferPool, () -> leaseKeeper.isLost(job))) {
+                try {
+                    final int patientConcurrency = operationsConfig.getPatientConcurrency();
+                    if (patientConcurrency > 1) {
+                        this.processPatientsConcurrently(job, patientConcurrency, patientResolver, fileWriters, checkpointPolicy);
+                    } else {
+                        Optional<String> nextPatientID = job.fetchNextPatient(aggregatorID);
+
+                        // Stop processing when no patients, early shutdown or BlueButton is unavailable
+                        while (nextPatientID.isPresent()) {
+                            patientResolver.resolveAhead(job.getPatientIndex().orElseThrow());
+                            this.processJobBatchPartial(job, nextPatientID.get(), patientResolver, fileWriters, checkpointPolicy);
+
+                            // Check if the subscriber is still running before getting the next part of the batch
+                            nextPatientID = this.canContinueBatch(job) ? job.fetchNextPatient(aggregatorID) : Optional.empty();
+                        }
+                    }
+                } catch (RuntimeException error) {
+                    if (!ResourceFetcher.stopsBatch(error)) {
+                        throw error;
+                    }
+                    // BlueButton stopped taking calls, or the engine was interrupted, in the middle of a patient.
+                    // Go back to the last checkpoint, so the patients since are fetched again rather than written as errors
+                    logger.warn("STOPPED job {} batch {} in the middle of a patient, going back to its last checkpoint", job.getJobID(), job.getBatchID(), error);
+                    stopped = true;
+                }
+                if (leaseKeeper.isLost(job)) {
+                    // The files are resumed by the new owner of the batch from its last checkpoint
+                    fileWriters.discard();
+                } else if (stopped) {
+                    // The files are truncated back to the checkpoint when the batch is resumed
+                    fileWriters.discard();
+                    job.restoreProgress(aggregatorID, checkpointPolicy.getSavedProgress());
+                } else {
+                    // Sync the files before the final state of the batch is saved, which covers any patients written since the last checkpoint
+                    fileWriters.force();
+                }
             }
 
-            // Finish processing the batch
-            if (this.isRunning()) {
+            // Finish processing the batch, unless it was stopped before its last patient
+            if (leaseKeeper.isLost(job)) {
+                logger.warn("LOST job {} batch {}, its lease ran out and it was reclaimed", job.getJobID(), job.getBatchID());
+            } else if (!stopped && this.isRunning() && getRemainingPatients(job).isEmpty()) {
                 logger.info("COMPLETED job {} batch {}", job.getJobID(), job.getBatchID());
-                // Calculate metadata for the file (length and checksum)
+                // Finish the metadata for the files (length and checksum) from the digests computed while writing
                 calculateFileMetadata(job);
                 this.queue.completeBatch(job, aggregatorID);
             } else {
-                logger.info("PAUSED job {} batch {}", job.getJobID(), job.getBatchID());
+                logger.info("PAUSED job {} batch {}{}", job.getJobID(), job.getBatchID(), this.isRunning() ? ", BlueButton is unavailable" : "");
                 this.queue.pauseBatch(job, aggregatorID);
             }
         } catch (Exception error) {
+            if (leaseKeeper.isLost(job)) {
+                logger.warn("LOST job {} batch {}, its lease ran out and it was reclaimed", job.getJobID(), job.getBatchID(), error);
+                return;
+            }
             try {
                 logger.error("FAILED job {} batch {}", job.getJobID(), job.getBatchID(), error);
                 this.queue.failBatch(job, aggregatorID);
             } catch (Exception failedBatchException) {
-                logger.error("FAILED to mark job {} batch {} as failed. Batch will remain in the running state, and stuck job logic will retry this in 5 minutes...", job.getJobID(), job.getBatchID(), failedBatchException);
+                logger.error("FAILED to mark job {} batch {} as failed. Batch will remain in the running state, and will be reclaimed once its lease runs out...", job.getJobID(), job.getBatchID(), failedBatchException);
             }
+        } finally {
+            leaseKeeper.release(job);
         }
     }
 
+    /**
+     * Hash the MBIs of the patients still to be processed when the batch is claimed, so the patients are only looked up
+     * while fetching. A failure here is not fatal, the hashes are computed as each patient is fetched instead.
+     *
+     * @param job - the claimed batch
+     * @param patients - the MBIs of the patients still to be processed
+     */
+    private void precomputeHashes(JobQueueBatch job, List<String> patients) {
+        if (patients.isEmpty()) {
+            return;
+        }
+        try {
+            hashCache.precompute(patients);
+        } catch (Exception e) {
+            logger.warn("Job {}, batch {}: Failed to precompute MBI hashes", job.getJobID(), job.getBatchID(), e);
+        }
+    }
+
+    /**
+     * The patients of a batch are resolved a window at a time, so the lookups stay batched while only the patients near
+     * the ones being fetched are held. The window covers twice the patients fetched at once, so the next window is
+     * resolved while the current one is still being fetched.
+     */
+    private int getResolveWindow() {
+        return Math.max(MIN_RESOLVE_WINDOW, 2 * operationsConfig.getPatientConcurrency());
+    }
+
+    private static List<String> getRemainingPatients(JobQueueBatch job) {
+        final List<String> patients = job.getPatients();
+        final int nextIndex = job.getPatientIndex().orElse(-1) + 1;
+        return nextIndex < patients.size() ? patients.subList(nextIndex, patients.size()) : List.of();
+    }
+
     private void calculateFileMetadata(JobQueueBatch job) {
         job.getJobQueueBatchFiles()
                 .forEach(batchFile -> {
-                    final File file = new File(String.format("%s/%s.ndjson", this.operationsConfig.getExportPath(), batchFile.getFileName()));
+                    final Path path = Path.of(batchFile.formOutputFilePath(this.operationsConfig.getExportPath()));
                     try {
-                        final byte[] checksum = generateChecksum(file);
-                        batchFile.setChecksum(checksum);
+                        FileDigest.complete(batchFile, path);
                     } catch (IOException e) { // If we can't generate the checksum, that's a faulting error, just continue
                         logger.error("Unable to generate checksum for file {}", batchFile.getFileName());
                     }
-                    batchFile.setFileLength(file.length());
                 });
     }
 
     /**
      * Processes a partial of a job batch. Marks the partial as completed upon processing
      *
-     * @param job       - the job to process
-     * @param patientID - The current patient id processing
+     * @param job             - the job to process
+     * @param patientID       - The current patient id processing
+     * @param patientResolver - the patient resolver of the batch
+     * @param fileWriters     - the open output files of the batch
+     * @param checkpointPolicy - decides when the progress of the batch is saved
      */
-    private List<JobQueueBatchFile> processJobBatchPartial(JobQueueBatch job, String patientID) {
+    private List<JobQueueBatchFile> processJobBatchPartial(JobQueueBatch job, String patientID, PatientResolver patientResolver, BatchFileWriters fileWriters, CheckpointPolicy checkpointPolicy) {
+        // One resource type at a time, since the types share the OperationOutcome writer of the batch, which is not thread-safe
         final var results = Flowable.fromIterable(job.getResourceTypes())
-                .flatMap(resourceType -> completeResource(job, patientID, resourceType))
+                .concatMap(resourceType -> completeResource(job, patientID, resourceType, patientResolver, fileWriters))
                 .toList()
                 .blockingGet(); // Wait on the main thread until completion
-        this.queue.completePartialBatch(job, aggregatorID);
+        patientResolver.release(patientID);
+        patientWritten(job, fileWriters, checkpointPolicy);
         return results;
     }
 
+    /**
+     * Fetches the remaining patients of a job batch in parallel, while writing them out in patient order.
+     * Each patient is only checkpointed after all the patients before it have been written, which keeps the patient index a contiguous low-water mark.
+     *
+     * @param job                - the job to process
+     * @param patientConcurrency - the max number of patients to fetch at the same time
+     * @param patientResolver    - the patient resolver of the batch
+     * @param fileWriters        - the open output files of the batch
+     * @param checkpointPolicy   - decides when the progress of the batch is saved
+     */
+    private void processPatientsConcurrently(JobQueueBatch job, int patientConcurrency, PatientResolver patientResolver, BatchFileWriters fileWriters, CheckpointPolicy checkpointPolicy) {
+        final List<String> patients = job.getPatients();
+        final int startIndex = job.getPatientIndex().orElse(-1) + 1;
+
+        Flowable.range(startIndex, patients.size() - startIndex)
+                .doOnNext(patientResolver::resolveAhead)
+                .map(patients::get)
+                .concatMapEager(patientID -> fetchPatientResources(job, patientID, patientResolver).toFlowable().subscribeOn(Schedulers.io()), patientConcurrency, 1)
+                // Writing as part of the flow holds back the next emission, so no more than patientConcurrency patients are ever held in memory
+                .doOnNext(fetched -> this.writePatientResources(job, fetched, fileWriters, checkpointPolicy))
+                // Stop after the current patient if the engine is shutting down or BlueButton is unavailable
+                .takeUntil(fetched -> !this.canContinueBatch(job))
+                .ignoreElements()
+                .blockingAwait(); // Wait on the main thread until completion
+    }
+
+    /**
+     * Fetch all the requested resource types for a single patient
+     *
+     * @param job       - the job to fetch for
+     * @param patientID       - the patient to fetch
+     * @param patientResolver - the patient resolver of the batch
+     * @return the fetched resources for the patient
+     */
+    private Single<PatientResources> fetchPatientResources(JobQueueBatch job, String patientID, PatientResolver patientResolver) {
+        return Flowable.fromIterable(job.getResourceTypes())
+                .concatMapSingle(resourceType -> createFetcher(job, resourceType, patientResolver)
+                        .fetchResources(patientID)
+                        .toList())
+                .toList()
+                .doFinally(() -> patientResolver.release(patientID))
+                .map(resources -> new PatientResources(patientID, resources));
+    }
+
+    /**
+     * Write out the fetched resources of the next patient in the batch and mark the patient as processed
+     *
+     * @param job         - the job to process
+     * @param fetched     - the resources fetched for the next patient
+     * @param fileWriters - the open output files of the batch
+     * @param checkpointPolicy - decides when the progress of the batch is saved
+     */
+    private void writePatientResources(JobQueueBatch job, PatientResources fetched, BatchFileWriters fileWriters, CheckpointPolicy checkpointPolicy) {
+        final String patientID = job.fetchNextPatient(aggregatorID)
+                .orElseThrow(() -> new JobQueueFailure(job.getJobID(), job.getBatchID(), "Fetched more patients than are in the batch"));
+        if (!patientID.equals(fetched.patientID)) {
+            throw new JobQueueFailure(job.getJobID(), job.getBatchID(), "Fetched patients are out of order");
+        }
+
+        final var resourceTypes = job.getResourceTypes();
+        Flowable.range(0, resourceTypes.size())
+                .concatMap(index -> writeResource(job, resourceTypes.get(index), Flowable.fromIterable(fetched.resources.get(index)), fileWriters))
+                .toList()
+                .blockingGet();
+        patientWritten(job, fileWriters, checkpointPolicy);
+    }
+
+    /**
+     * Record that a patient has been completely written, and checkpoint the batch if one is due
+     *
+     * @param job              - the job being processed
+     * @param fileWriters      - the open output files of the batch
+     * @param checkpointPolicy - decides when the progress of the batch is saved
+     */
+    private void patientWritten(JobQueueBatch job, BatchFileWriters fileWriters, CheckpointPolicy checkpointPolicy) {
+        if (checkpointPolicy.patientWritten()) {
+            checkpointPartialBatch(job, fileWriters);
+            checkpointPolicy.checkpointed();
+            checkpointPolicy.saved(job.getProgress());
+        }
+    }
+
+    /**
+     * Sync the written resources to disk before saving the progress of the batch,
+     * so the saved file counts never run ahead of the files
+     *
+     * @param job         - the job being processed
+     * @param fileWriters - the open output files of the batch
+     */
+    private void checkpointPartialBatch(JobQueueBatch job, BatchFileWriters fileWriters) {
+        // The batch belongs to another aggregator now
+        if (leaseKeeper.isLost(job)) {
+            return;
+        }
+        try {
+            fileWriters.force();
+        } catch (IOException e) {
+            throw new JobQueueFailure(job.getJobID(), job.getBatchID(), "IO error syncing the output files", e);
+        }
+        this.queue.completePartialBatch(job, aggregatorID);
+    }
+
     /**
      * Fetch and write a specific resource type
      *
      * @param job          context
-     * @param resourceType to process
+     * @param resourceType    to process
+     * @param patientResolver the patient resolver of the batch
+     * @param fileWriters     the open output files of the batch
+     */
+    private Flowable<JobQueueBatchFile> completeResource(JobQueueBatch job, String patientID, ResourceType resourceType, PatientResolver patientResolver, BatchFileWriters fileWriters) {
+        final var fetcher = createFetcher(job, resourceType, patientResolver);
+        return writeResource(job, resourceType, fetcher.fetchResources(patientID), fileWriters);
+    }
+
+    /**
+     * Create a fetcher for a specific resource type, sharing the page request permits of the engine and the patient resolver of the batch
+     *
+     * @param job             context
+     * @param resourceType    to fetch
+     * @param patientResolver the patient resolver of the batch
+     * @return a new {@link ResourceFetcher}
+     */
+    private ResourceFetcher createFetcher(JobQueueBatch job, ResourceType resourceType, PatientResolver patientResolver) {
+        return new ResourceFetcher(bbclient, job.getJobID(), job.getBatchID(), resourceType, operationsConfig, pageRequestPermits, patientResolver, coverageCache);
+    }
+
+    /**
+     * Write the resources of a specific resource type, and any errors produced while fetching them
+     *
+     * @param job          context
+     * @param resourceType to write
+     * @param mixedFlow    of resources and {@link org.hl7.fhir.dstu3.model.OperationOutcome}s
+     * @param fileWriters  the open output files of the batch
      */
-    private Flowable<JobQueueBatchFile> completeResource(JobQueueBatch job, String patientID, ResourceType resourceType) {
+    private Flowable<JobQueueBatchFile> writeResource(JobQueueBatch job, ResourceType resourceType, Flowable<ExportResource> mixedFlow, BatchFileWriters fileWriters) {
         // Make this flow hot (ie. only called once) when multiple subscribers attach
-        final var fetcher = new ResourceFetcher(bbclient, job.getJobID(), job.getBatchID(), resourceType, operationsConfig);
-        final Flowable<Resource> mixedFlow = fetcher.fetchResources(patientID);
         final var connectableMixedFlow = mixedFlow.publish().autoConnect(2);
-
         // Batch the non-error resources into files
         final var resourceCount = new AtomicInteger();
         final var sequenceCount = new AtomicInteger();
@@ -243,7 +659,7 @@ public class AggregationEngine implements Runnable {
             resourceCount.set(file.getCount());
             sequenceCount.set(file.getSequence());
         });
-        final var writer = new ResourceWriter(fhirContext, job, resourceType, operationsConfig);
+        final var writer = new ResourceWriter(fhirContext, job, resourceType, operationsConfig, fileWriters);
         final Flowable<JobQueueBatchFile> resourceFlow = connectableMixedFlow.compose((upstream) -> bufferAndWrite(upstream, writer, resourceCount, sequenceCount, resourceMeter));
 
         // Batch the error resources into files
@@ -253,7 +669,7 @@ public class AggregationEngine implements Runnable {
             errorResourceCount.set(file.getCount());
             errorSequenceCount.set(file.getSequence());
         });
-        final var errorWriter = new ResourceWriter(fhirContext, job, ResourceType.OperationOutcome, operationsConfig);
+        final var errorWriter = new ResourceWriter(fhirContext, job, ResourceType.OperationOutcome, operationsConfig, fileWriters);
         final Flowable<JobQueueBatchFile> outcomeFlow = connectableMixedFlow.compose((upstream) -> bufferAndWrite(upstream, errorWriter, errorResourceCount, errorSequenceCount, operationalOutcomeMeter));
 
         // Merge the resultant flows
@@ -269,8 +685,8 @@ public class AggregationEngine implements Runnable {
      * @param meter         - a meter on the number of resources
      * @return a transformed flow
      */
-    private Publisher<JobQueueBatchFile> bufferAndWrite(Flowable<Resource> upstream, ResourceWriter writer, AtomicInteger resourceCount, AtomicInteger sequenceCount, Meter meter) {
-        final Flowable<Resource> filteredUpstream = upstream.filter(r -> r.getResourceType() == writer.getResourceType());
+    private Publisher<JobQueueBatchFile> bufferAndWrite(Flowable<ExportResource> upstream, ResourceWriter writer, AtomicInteger resourceCount, AtomicInteger sequenceCount, Meter meter) {
+        final Flowable<ExportResource> filteredUpstream = upstream.filter(r -> r.getResourceType() == writer.getResourceType());
         final var connectableMixedFlow = filteredUpstream.publish().autoConnect(2);
 
         var resourcesInCurrentFileCount = resourceCount.getAndSet(0);
@@ -291,11 +707,28 @@ public class AggregationEngine implements Runnable {
         return partialBatch.mergeWith(bufferedBatch);
     }
 
-    private Flowable<JobQueueBatchFile> writeResources(Flowable<Resource> upstream, ResourceWriter writer, AtomicInteger sequenceCount, Meter meter) {
+    /**
+     * Split the resources into files, and write each file out in chunks as the resources arrive.
+     * This avoids holding a whole file of resources in memory before writing.
+     *
+     * @param upstream      - the resources to write
+     * @param writer        - the writer to use
+     * @param sequenceCount - the sequence counter
+     * @param meter         - a meter on the number of resources
+     * @return a flow of the files written to, one per chunk
+     */
+    private Flowable<JobQueueBatchFile> writeResources(Flowable<ExportResource> upstream, ResourceWriter writer, AtomicInteger sequenceCount, Meter meter) {
+        final var resourcesPerFile = operationsConfig.getResourcesPerFileCount();
+        final var chunkSize = Math.min(resourcesPerFile, WRITE_CHUNK_SIZE);
         return upstream
-                .buffer(operationsConfig.getResourcesPerFileCount())
-                .doOnNext(outcomes -> meter.mark(outcomes.size()))
-                .map(batch -> writer.writeBatch(sequenceCount, batch));
+                .window(resourcesPerFile)
+                .concatMap(fileResources -> {
+                    final int sequence = sequenceCount.getAndIncrement();
+                    return fileResources
+                            .buffer(chunkSize)
+                            .doOnNext(outcomes -> meter.mark(outcomes.size()))
+                            .map(batch -> writer.writeBatch(sequence, batch));
+                });
     }
 
     /**
@@ -350,9 +783,20 @@ public class AggregationEngine implements Runnable {
         this.subscribe = subscribe;
     }
 
-    static byte[] generateChecksum(File file) throws IOException {
-        try (FileInputStream fileInputStream = new FileInputStream(file)) {
-            return new SHA256.Digest().digest(fileInputStream.readAllBytes());
+    /**
+     * The resources fetched for a single patient, in the order of the resource types of the batch
+     */
+    private static class PatientResources {
+        private final String patientID;
+        private final List<List<ExportResource>> resources;
+
+        PatientResources(String patientID, List<List<ExportResource>> resources) {
+            this.patientID = patientID;
+            this.resources = resources;
         }
     }
+
+    static byte[] generateChecksum(File file) throws IOException {
+        return FileDigest.hashFile(file.toPath()).finish();
+    }
 }
@@ -0,0 +1,145 @@
+package gov.cms.dpc.aggregation.engine;
+
+import gov.cms.dpc.queue.models.JobQueueBatchFile;
+import org.hl7.fhir.dstu3.model.ResourceType;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Holds the open {@link NDJSONFileWriter}s of a batch, one per resource type.
+ * <p>
+ * A file is kept open from its first write until the next sequence of the same resource type is started,
+ * or the batch stops being processed. {@link #flush()} and {@link #force()} are the points where the written
+ * resources are handed to the file system, and must be called before the progress of the batch is saved.
+ * Nothing more is written to the files once the batch is lost to another aggregator.
+ */
+class BatchFileWriters implements Closeable {
+    private final String exportPath;
+    private final DirectBufferPool bufferPool;
+    private final BooleanSupplier isLost;
+    private final Map<ResourceType, NDJSONFileWriter> writers;
+
+    /**
+     * Create the writers of a batch that is never lost to another aggregator
+     * @param exportPath - the directory to write the files to
+     * @param bufferPool - the pool to borrow write buffers from
+     */
+    BatchFileWriters(String exportPath, DirectBufferPool bufferPool) {
+        this(exportPath, bufferPool, () -> false);
+    }
+
+    /**
+     * Create the writers of a batch
+     * @param exportPath - the directory to write the files to
+     * @param bufferPool - the pool to borrow write buffers from
+     * @param isLost - true once the batch may belong to another aggregator, checked before every write to a file
+     */
+    BatchFileWriters(String exportPath, DirectBufferPool bufferPool, BooleanSupplier isLost) {
+        this.exportPath = exportPath;
+        this.bufferPool = bufferPool;
+        this.isLost = isLost;
+        this.writers = new EnumMap<>(ResourceType.class);
+    }
+
+    /**
+     * Get the writer of a file, opening it if it is not already open. Opening a new sequence closes the previous file of the resource type.
+     *
+     * @param file - the record of the file
+     * @param truncate - true if the file is being started, so that any content left by a previous attempt is dropped
+     * @return the open writer
+     * @throws IOException if a file cannot be opened or closed
+     */
+    synchronized NDJSONFileWriter open(JobQueueBatchFile file, boolean truncate) throws IOException {
+        final ResourceType resourceType = file.getResourceType();
+        final int sequence = file.getSequence();
+        final NDJSONFileWriter current = writers.get(resourceType);
+        if (current != null) {
+            if (current.getSequence() == sequence) {
+                return current;
+            }
+            writers.remove(resourceType);
+            current.close();
+        }
+
+        final var path = Path.of(file.formOutputFilePath(exportPath));
+        final var writer = new NDJSONFileWriter(path, file, truncate, bufferPool, isLost);
+        writers.put(resourceType, writer);
+        return writer;
+    }
+
+    /**
+     * Write the buffered content of all the open files
+     *
+     * @throws IOException if a write fails
+     */
+    synchronized void flush() throws IOException {
+        for (NDJSONFileWriter writer : writers.values()) {
+            writer.flush();
+        }
+    }
+
+    /**
+     * Write the buffered content of all the open files and sync them to the storage device
+     *
+     * @throws IOException if a write or sync fails
+     */
+    synchronized void force() throws IOException {
+        for (NDJSONFileWriter writer : writers.values()) {
+            writer.force();
+        }
+    }
+
+    /**
+     * Close all the open files without writing what is still buffered, for a batch that has been lost to another aggregator
+     *
+     * @throws IOException if a file fails to close
+     */
+    synchronized void discard() throws IOException {
+        IOException failure = null;
+        for (NDJSONFileWriter writer : writers.values()) {
+            try {
+                writer.discard();
+            } catch (IOException e) {
+                if (failure == null) {
+                    failure = e;
+                } else {
+                    failure.addSuppressed(e);
+                }
+            }
+        }
+        writers.clear();
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * Flush and close all the open files. The checksum state of each file is saved to its record.
+     *
+     * @throws IOException if a file fails to flush or close
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        IOException failure = null;
+        for (NDJSONFileWriter writer : writers.values()) {
+            try {
+                writer.close();
+            } catch (IOException e) {
+                if (failure == null) {
+                    failure = e;
+                } else {
+                    failure.addSuppressed(e);
+                }
+            }
+        }
+        writers.clear();
+        if (failure != null) {
+            throw failure;
+        }
+    }
+}
@@ -0,0 +1,80 @@
+package gov.cms.dpc.aggregation.engine;
+
+import gov.cms.dpc.queue.models.JobQueueBatch;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * Decides when the progress of a batch is saved to the queue.
+ * <p>
+ * A checkpoint is due once a number of patients have been written since the last one, or once an amount of time has
+ * passed since the last one, whichever comes first. Checkpoints are only taken between patients, so the time limit is
+ * checked as each patient finishes, rather than on a timer.
+ * The policy also holds the progress saved by the last checkpoint, which is what the batch goes back to if it has to stop
+ * in the middle of a patient.
+ * A policy tracks a single batch, and is not thread-safe.
+ */
+class CheckpointPolicy {
+
+    private final int patientInterval;
+    private final long timeIntervalNanos;
+    private final LongSupplier nanoClock;
+    private int pendingPatients;
+    private long lastCheckpoint;
+    private JobQueueBatch.Progress savedProgress;
+
+    /**
+     * Create the policy for a batch
+     *
+     * @param patientInterval - the number of patients to write between checkpoints
+     * @param timeIntervalSeconds - the max number of seconds between checkpoints, zero to only checkpoint by patient count
+     */
+    CheckpointPolicy(int patientInterval, int timeIntervalSeconds) {
+        this(patientInterval, timeIntervalSeconds, System::nanoTime);
+    }
+
+    CheckpointPolicy(int patientInterval, int timeIntervalSeconds, LongSupplier nanoClock) {
+        this.patientInterval = Math.max(patientInterval, 1);
+        this.timeIntervalNanos = TimeUnit.SECONDS.toNanos(timeIntervalSeconds);
+        this.nanoClock = nanoClock;
+        this.lastCheckpoint = nanoClock.getAsLong();
+    }
+
+    /**
+     * Record that a patient has been written
+     *
+     * @return true if a checkpoint is due
+     */
+    boolean patientWritten() {
+        pendingPatients++;
+        if (pendingPatients >= patientInterval) {
+            return true;
+        }
+        return timeIntervalNanos > 0 && nanoClock.getAsLong() - lastCheckpoint >= timeIntervalNanos;
+    }
+
+    /**
+     * Record that a checkpoint has been taken
+     */
+    void checkpointed() {
+        pendingPatients = 0;
+        lastCheckpoint = nanoClock.getAsLong();
+    }
+
+    /**
+     * Record the progress of the batch as saved in the queue, when the batch is claimed and at each checkpoint
+     *
+     * @param progress - the progress of the batch
+     */
+    void saved(JobQueueBatch.Progress progress) {
+        savedProgress = progress;
+    }
+
+    /**
+     * @return the progress of the batch as of the last checkpoint
+     */
+    JobQueueBatch.Progress getSavedProgress() {
+        return savedProgress;
+    }
+}
@@ -0,0 +1,343 @@
+package gov.cms.dpc.aggregation.engine;
+
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import gov.cms.dpc.bluebutton.client.BlueButtonClient;
+import gov.cms.dpc.bluebutton.client.RawBundle;
+import gov.cms.dpc.common.utils.MetricMaker;
+import org.hl7.fhir.dstu3.model.InstantType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Caches the Coverage of patients on disk, so repeat exports of the same patients mostly skip BlueButton.
+ * <p>
+ * Each patient has a file in the cache directory, named by its bene_id, which can be shared by the aggregators. The
+ * first line holds when the Coverage was last updated in BlueButton, when the copy was last validated and when it was
+ * fetched, all in epoch millis, and the other lines hold the raw JSON of the Coverage resources. A copy validated within
+ * the TTL is used as is. An older copy is revalidated by asking BlueButton for the Coverage updated since, with a
+ * _lastUpdated search, and is only fetched again if something changed. Files are replaced atomically, so a reader never
+ * sees a partial copy.
+ * <p>
+ * The last update is taken from BlueButton, from the resources or else the Bundle, so it never depends on the clock of
+ * the aggregator. A copy without either is fetched again on every revalidation. A Coverage deleted in BlueButton never
+ * shows up in a _lastUpdated search, so a copy is always fetched again once it is older than the max age.
+ * <p>
+ * When the files grow past the max size, the least recently used are deleted. Failures of the cache are logged and
+ * fall back to BlueButton, as the cache is only an optimization.
+ * <p>
+ * The files hold PHI in plaintext. The directory must only be accessible to the aggregators, as the export directory
+ * is, and must not be shared with anything else. Files are created readable by their owner only.
+ */
+public class CoverageCache {
+
+    private static final Logger logger = LoggerFactory.getLogger(CoverageCache.class);
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+    private static final Pattern SAFE_FILE_NAME = Pattern.compile("[A-Za-z0-9\\-]{1,64}");
+    private static final String FILE_SUFFIX = ".ndjson";
+    // Eviction deletes down to this share of the max size, so it does not run on every write
+    private static final double EVICTION_TARGET = 0.9;
+
+    private final BlueButtonClient bbclient;
+    private final Path directory;
+    private final Duration ttl;
+    private final Duration maxAge;
+    private final long maxBytes;
+    private final Clock clock;
+    private final AtomicLong approximateBytes;
+    private final Meter hitMeter;
+    private final Meter revalidatedMeter;
+    private final Meter missMeter;
+    private final Meter evictionMeter;
+
+    /**
+     * Create a cache
+     *
+     * @param bbclient       - {@link BlueButtonClient} to fetch and revalidate Coverage with
+     * @param directory      - the directory of the cache files
+     * @param ttl            - how long a copy is used before it is revalidated
+     * @param maxAge         - how long a copy is revalidated before it is fetched again, to pick up deleted Coverage
+     * @param maxBytes       - the max size of the cache files
+     * @param metricRegistry - {@link MetricRegistry} for metrics
+     * @throws IOException if the directory cannot be created
+     */
+    public CoverageCache(BlueButtonClient bbclient, Path directory, Duration ttl, Duration maxAge, long maxBytes, MetricRegistry metricRegistry) throws IOException {
+        this(bbclient, directory, ttl, maxAge, maxBytes, metricRegistry, Clock.systemUTC());
+    }
+
+    CoverageCache(BlueButtonClient bbclient, Path directory, Duration ttl, Duration maxAge, long maxBytes, MetricRegistry metricRegistry, Clock clock) throws IOException {
+        this.bbclient = bbclient;
+        this.directory = Files.createDirectories(directory);
+        this.ttl = ttl;
+        this.maxAge = maxAge;
+        this.maxBytes = maxBytes;
+        this.clock = clock;
+        this.approximateBytes = new AtomicLong(directorySize());
+
+        final var metricMaker = new MetricMaker(metricRegistry, CoverageCache.class);
+        this.hitMeter = metricMaker.registerMeter("hits");
+        this.revalidatedMeter = metricMaker.registerMeter("revalidated");
+        this.missMeter = metricMaker.registerMeter("misses");
+        this.evictionMeter = metricMaker.registerMeter("evictions");
+        metricMaker.registerCachedGauge("bytes", approximateBytes::get);
+    }
+
+    /**
+     * Get the Coverage of a patient, from the cache if the copy is still valid, otherwise from BlueButton
+     *
+     * @param beneId - the bene_id of the patient
+     * @return the raw JSON of the Coverage resources
+     */
+    public List<byte[]> getCoverage(String beneId) {
+        final Path path = directory.resolve(formFileName(beneId));
+        final Optional<Entry> cached = read(path);
+        if (cached.isPresent()) {
+            final Entry entry = cached.get();
+            final Instant now = clock.instant();
+            if (entry.validated.plus(ttl).isAfter(now)) {
+                hitMeter.mark();
+                touch(path, now);
+                return entry.resources;
+            }
+            if (entry.fetched.plus(maxAge).isAfter(now) && !entry.lastUpdated.equals(Instant.EPOCH)
+                    && !bbclient.requestRawCoverageUpdatedSince(beneId, entry.lastUpdated).hasEntry()) {
+                revalidatedMeter.mark();
+                write(path, new Entry(entry.lastUpdated, now, entry.fetched, entry.resources));
+                return entry.resources;
+            }
+        }
+
+        missMeter.mark();
+        final Instant fetched = clock.instant();
+        final RawBundle firstPage = bbclient.requestRawCoverageFromServer(beneId);
+        final List<byte[]> resources = fetchCoverage(firstPage);
+        // Without a last update from BlueButton, the copy cannot be revalidated, so it is marked to be fetched again
+        final Instant lastUpdated = findLastUpdated(resources)
+                .or(firstPage::getLastUpdated)
+                .orElse(Instant.EPOCH);
+        write(path, new Entry(lastUpdated, fetched, fetched, resources));
+        return resources;
+    }
+
+    private List<byte[]> fetchCoverage(RawBundle firstPage) {
+        final List<byte[]> resources = new ArrayList<>();
+        RawBundle bundle = firstPage;
+        bundle.getEntries().forEach(entry -> resources.add(entry.getJson()));
+        while (bundle.getNextLink().isPresent()) {
+            bundle = bbclient.requestNextRawBundleFromServer(bundle);
+            bundle.getEntries().forEach(entry -> resources.add(entry.getJson()));
+        }
+        return resources;
+    }
+
+    /**
+     * @return the latest meta.lastUpdated of the resources, empty if none of them have one
+     */
+    private static Optional<Instant> findLastUpdated(List<byte[]> resources) {
+        Instant latest = null;
+        for (byte[] json : resources) {
+            try {
+                final JsonNode lastUpdated = MAPPER.readTree(json).path("meta").path("lastUpdated");
+                if (lastUpdated.isTextual()) {
+                    final Instant updated = new InstantType(lastUpdated.asText()).getValue().toInstant();
+                    latest = latest == null || updated.isAfter(latest) ? updated : latest;
+                }
+            } catch (IOException | RuntimeException e) {
+                logger.warn("Unable to read the last update of a Coverage resource", e);
+            }
+        }
+        return Optional.ofNullable(latest);
+    }
+
+    private Optional<Entry> read(Path path) {
+        try (BufferedReader reader = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+            final String[] header = reader.readLine().split(" ");
+            final Instant lastUpdated = Instant.ofEpochMilli(Long.parseLong(header[0]));
+            final Instant validated = Instant.ofEpochMilli(Long.parseLong(header[1]));
+            // Copies cached before the fetch time was recorded are past the max age
+            final Instant fetched = header.length > 2 ? Instant.ofEpochMilli(Long.parseLong(header[2])) : Instant.EPOCH;
+            final List<byte[]> resources = reader.lines()
+                    .map(line -> line.getBytes(StandardCharsets.UTF_8))
+                    .collect(Collectors.toList());
+            return Optional.of(new Entry(lastUpdated, validated, fetched, resources));
+        } catch (NoSuchFileException e) {
+            return Optional.empty();
+        } catch (IOException | RuntimeException e) {
+            logger.warn("Unable to read cached Coverage from {}", path, e);
+            return Optional.empty();
+        }
+    }
+
+    private void write(Path path, Entry entry) {
+        Path temp = null;
+        try {
+            temp = Files.createTempFile(directory, path.getFileName().toString(), ".tmp");
+            try (BufferedWriter writer = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+                writer.write(entry.lastUpdated.toEpochMilli() + " " + entry.validated.toEpochMilli() + " " + entry.fetched.toEpochMilli());
+                writer.newLine();
+                for (byte[] json : entry.resources) {
+                    writer.write(new String(json, StandardCharsets.UTF_8));
+                    writer.newLine();
+                }
+            }
+            final long previous = Files.exists(path) ? Files.size(path) : 0;
+            final long size = Files.size(temp);
+            Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            touch(path, entry.validated);
+            if (approximateBytes.addAndGet(size - previous) > maxBytes) {
+                evict();
+            }
+        } catch (IOException | RuntimeException e) {
+            logger.warn("Unable to cache Coverage to {}", path, e);
+            deleteQuietly(temp);
+        }
+    }
+
+    /**
+     * Delete the least recently used files until the cache is back under its max size
+     */
+    synchronized void evict() {
+        final long target = (long) (maxBytes * EVICTION_TARGET);
+        try (Stream<Path> files = listCacheFiles()) {
+            final List<CachedFile> cachedFiles = files
+                    .map(CachedFile::of)
+                    .flatMap(Optional::stream)
+                    .sorted(Comparator.comparing((CachedFile file) -> file.lastUsed))
+                    .collect(Collectors.toList());
+            long total = cachedFiles.stream().mapToLong(file -> file.size).sum();
+            for (CachedFile file : cachedFiles) {
+                if (total <= target) {
+                    break;
+                }
+                if (deleteQuietly(file.path)) {
+                    total -= file.size;
+                    evictionMeter.mark();
+                }
+            }
+            approximateBytes.set(total);
+        } catch (IOException e) {
+            logger.warn("Unable to evict cached Coverage from {}", directory, e);
+        }
+    }
+
+    long getApproximateBytes() {
+        return approximateBytes.get();
+    }
+
+    /**
+     * Mark a file as used, for the eviction order
+     */
+    private static void touch(Path path, Instant now) {
+        try {
+            Files.setLastModifiedTime(path, FileTime.from(now));
+        } catch (IOException e) {
+            logger.debug("Unable to touch cached Coverage {}", path, e);
+        }
+    }
+
+    private long directorySize() throws IOException {
+        try (Stream<Path> files = listCacheFiles()) {
+            return files.map(CachedFile::of).flatMap(Optional::stream).mapToLong(file -> file.size).sum();
+        }
+    }
+
+    /**
+     * @return the cache files, without the temporary files still being written
+     */
+    private Stream<Path> listCacheFiles() throws IOException {
+        return Files.list(directory).filter(path -> path.getFileName().toString().endsWith(FILE_SUFFIX));
+    }
+
+    private static boolean deleteQuietly(Path path) {
+        if (path == null) {
+            return false;
+        }
+        try {
+            return Files.deleteIfExists(path);
+        } catch (IOException e) {
+            logger.warn("Unable to delete cached Coverage {}", path, e);
+            return false;
+        }
+    }
+
+    /**
+     * Name the file of a patient by its bene_id, or by a digest of it when the bene_id is not safe for a file name
+     */
+    static String formFileName(String beneId) {
+        if (SAFE_FILE_NAME.matcher(beneId).matches()) {
+            return beneId + FILE_SUFFIX;
+        }
+        try {
+            final byte[] digest = MessageDigest.getInstance("SHA-256").digest(beneId.getBytes(StandardCharsets.UTF_8));
+            final var name = new StringBuilder();
+            for (byte b : digest) {
+                name.append(String.format("%02x", b));
+            }
+            return name.append(FILE_SUFFIX).toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+
+    private static class Entry {
+        private final Instant lastUpdated;
+        private final Instant validated;
+        private final Instant fetched;
+        private final List<byte[]> resources;
+
+        Entry(Instant lastUpdated, Instant validated, Instant fetched, List<byte[]> resources) {
+            this.lastUpdated = lastUpdated;
+            this.validated = validated;
+            this.fetched = fetched;
+            this.resources = resources;
+        }
+    }
+
+    private static class CachedFile {
+        private final Path path;
+        private final long size;
+        private final FileTime lastUsed;
+
+        private CachedFile(Path path, long size, FileTime lastUsed) {
+            this.path = path;
+            this.size = size;
+            this.lastUsed = lastUsed;
+        }
+
+        /**
+         * @return the file, empty if it was deleted in the meantime
+         */
+        static Optional<CachedFile> of(Path path) {
+            try {
+                return Optional.of(new CachedFile(path, Files.size(path), Files.getLastModifiedTime(path)));
+            } catch (IOException e) {
+                return Optional.empty();
+            }
+        }
+    }
+}
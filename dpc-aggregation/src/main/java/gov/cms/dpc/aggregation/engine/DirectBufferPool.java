@@ -0,0 +1,55 @@
+package gov.cms.dpc.aggregation.engine;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A pool of equally sized direct {@link ByteBuffer}s, shared by the file writers of an engine.
+ * Direct buffers are expensive to allocate and are only reclaimed by the garbage collector, so they are reused across files.
+ */
+class DirectBufferPool {
+    private final int bufferSize;
+    private final int maxPooled;
+    private final Queue<ByteBuffer> pooled;
+    private final AtomicInteger pooledCount;
+
+    /**
+     * Create a pool
+     * @param bufferSize - the size in bytes of each buffer
+     * @param maxPooled - the max number of released buffers to hold on to
+     */
+    DirectBufferPool(int bufferSize, int maxPooled) {
+        this.bufferSize = bufferSize;
+        this.maxPooled = maxPooled;
+        this.pooled = new ConcurrentLinkedQueue<>();
+        this.pooledCount = new AtomicInteger();
+    }
+
+    /**
+     * @return a cleared buffer, either from the pool or newly allocated
+     */
+    ByteBuffer acquire() {
+        final ByteBuffer buffer = pooled.poll();
+        if (buffer == null) {
+            return ByteBuffer.allocateDirect(bufferSize);
+        }
+        pooledCount.decrementAndGet();
+        return buffer;
+    }
+
+    /**
+     * Return a buffer to the pool. The buffer must not be used after it is released.
+     *
+     * @param buffer - the buffer to release
+     */
+    void release(ByteBuffer buffer) {
+        buffer.clear();
+        if (pooledCount.incrementAndGet() <= maxPooled) {
+            pooled.offer(buffer);
+        } else {
+            pooledCount.decrementAndGet();
+        }
+    }
+}
@@ -0,0 +1,74 @@
+package gov.cms.dpc.aggregation.engine;
+
+import ca.uhn.fhir.parser.IParser;
+import org.hl7.fhir.dstu3.model.Resource;
+import org.hl7.fhir.dstu3.model.ResourceType;
+
+import java.io.IOException;
+import java.util.Optional;
+
+/**
+ * A resource fetched for an export file. Either a parsed HAPI model, or the raw JSON from BlueButton when the resource is passed through.
+ */
+class ExportResource {
+
+    private final ResourceType resourceType;
+    private final Resource resource;
+    private final byte[] json;
+
+    private ExportResource(ResourceType resourceType, Resource resource, byte[] json) {
+        this.resourceType = resourceType;
+        this.resource = resource;
+        this.json = json;
+    }
+
+    /**
+     * @param resource - a parsed resource
+     * @return the resource to export
+     */
+    static ExportResource parsed(Resource resource) {
+        return new ExportResource(resource.getResourceType(), resource, null);
+    }
+
+    /**
+     * @param resourceType - the type of the resource
+     * @param json - the compact JSON of the resource, without any line breaks
+     * @return the resource to export
+     */
+    static ExportResource raw(ResourceType resourceType, byte[] json) {
+        return new ExportResource(resourceType, null, json);
+    }
+
+    ResourceType getResourceType() {
+        return resourceType;
+    }
+
+    /**
+     * @return the parsed resource, empty if the resource is raw JSON
+     */
+    Optional<Resource> getResource() {
+        return Optional.ofNullable(resource);
+    }
+
+    /**
+     * @return the raw JSON of the resource, empty if the resource is parsed
+     */
+    Optional<byte[]> getJson() {
+        return Optional.ofNullable(json);
+    }
+
+    /**
+     * Write the resource as a line of an export file
+     *
+     * @param writer - the file to write to
+     * @param parser - the parser to serialize a parsed resource with
+     * @throws IOException if the write fails
+     */
+    void writeTo(NDJSONFileWriter writer, IParser parser) throws IOException {
+        if (json != null) {
+            writer.writeRaw(json);
+        } else {
+            writer.write(parser, resource);
+        }
+    }
+}
@@ -0,0 +1,167 @@
+package gov.cms.dpc.aggregation.engine;
+
+import gov.cms.dpc.queue.models.ExportCompression;
+import gov.cms.dpc.queue.models.JobQueueBatchFile;
+import org.bouncycastle.crypto.digests.SHA256Digest;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Tracks the SHA-256 digest and length of an export file as it is written.
+ * <p>
+ * The intermediate state of the digest is saved with the {@link JobQueueBatchFile}, so an aggregator that resumes a
+ * batch can continue hashing a file without re-reading it. Files without a saved state, or whose length does not match
+ * the saved state, are hashed from disk instead.
+ * Compressed files have two digests: one of the stored bytes and one of the uncompressed content.
+ */
+class FileDigest {
+    private static final Logger logger = LoggerFactory.getLogger(FileDigest.class);
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+    private final SHA256Digest digest;
+    private long length;
+
+    private FileDigest(SHA256Digest digest, long length) {
+        this.digest = digest;
+        this.length = length;
+    }
+
+    /**
+     * @return a digest for an empty file
+     */
+    static FileDigest start() {
+        return new FileDigest(new SHA256Digest(), 0);
+    }
+
+    /**
+     * Resume the digest of a file that already has content
+     *
+     * @param file - the file record, holding the saved digest state
+     * @param path - the path of the file
+     * @return the digest of the current content of the file
+     * @throws IOException if the file has to be re-read and cannot be
+     */
+    static FileDigest resume(JobQueueBatchFile file, Path path) throws IOException {
+        final long actualLength = Files.exists(path) ? Files.size(path) : 0;
+        if (file.getDigestState() != null && file.getFileLength() == actualLength) {
+            return new FileDigest(new SHA256Digest(file.getDigestState()), actualLength);
+        }
+
+        logger.warn("No saved digest for {} bytes of {}, hashing the file from disk", actualLength, file.getFileName());
+        return hashFile(path);
+    }
+
+    /**
+     * Resume the digest of the uncompressed content of a compressed file that already has content
+     *
+     * @param file - the file record, holding the saved digest state
+     * @param path - the path of the file
+     * @return the digest of the current uncompressed content of the file
+     * @throws IOException if the file has to be re-read and cannot be
+     */
+    static FileDigest resumeUncompressed(JobQueueBatchFile file, Path path) throws IOException {
+        final long actualLength = Files.exists(path) ? Files.size(path) : 0;
+        if (file.getUncompressedDigestState() != null && file.getFileLength() == actualLength) {
+            return new FileDigest(new SHA256Digest(file.getUncompressedDigestState()), file.getUncompressedLength());
+        }
+
+        logger.warn("No saved uncompressed digest for {}, decompressing the file from disk", file.getFileName());
+        if (actualLength == 0) {
+            return start();
+        }
+        try (InputStream input = file.getCompression().decompress(Files.newInputStream(path))) {
+            return hashStream(input);
+        }
+    }
+
+    /**
+     * Set the checksums and lengths of a completed file, from the saved digest states if there are any
+     *
+     * @param file - the file record to complete
+     * @param path - the path of the file
+     * @throws IOException if the file has to be re-read and cannot be
+     */
+    static void complete(JobQueueBatchFile file, Path path) throws IOException {
+        final FileDigest fileDigest = resume(file, path);
+        final FileDigest contentDigest = file.getCompression() == ExportCompression.NONE ? fileDigest : resumeUncompressed(file, path);
+        file.setChecksum(fileDigest.finish());
+        file.setFileLength(fileDigest.getLength());
+        file.setUncompressedChecksum(contentDigest.finish());
+        file.setUncompressedLength(contentDigest.getLength());
+    }
+
+    /**
+     * Hash the whole content of a file, reading it in chunks
+     *
+     * @param path - the path of the file
+     * @return the digest of the file
+     * @throws IOException if the file cannot be read
+     */
+    static FileDigest hashFile(Path path) throws IOException {
+        if (!Files.exists(path)) {
+            return start();
+        }
+        try (InputStream input = Files.newInputStream(path)) {
+            return hashStream(input);
+        }
+    }
+
+    private static FileDigest hashStream(InputStream input) throws IOException {
+        final FileDigest fileDigest = start();
+        final byte[] chunk = new byte[READ_BUFFER_SIZE];
+        int read;
+        while ((read = input.read(chunk)) != -1) {
+            fileDigest.update(chunk, 0, read);
+        }
+        return fileDigest;
+    }
+
+    void update(byte b) {
+        digest.update(b);
+        length++;
+    }
+
+    void update(byte[] bytes, int offset, int count) {
+        digest.update(bytes, offset, count);
+        length += count;
+    }
+
+    long getLength() {
+        return length;
+    }
+
+    /**
+     * Save the intermediate state of the digest and the length of the stored file to the file record
+     *
+     * @param file - the file record to update
+     */
+    void saveTo(JobQueueBatchFile file) {
+        file.setDigestState(digest.getEncodedState());
+        file.setFileLength(length);
+    }
+
+    /**
+     * Save the intermediate state of the digest and the length of the uncompressed content to the file record
+     *
+     * @param file - the file record to update
+     */
+    void saveUncompressedTo(JobQueueBatchFile file) {
+        file.setUncompressedDigestState(digest.getEncodedState());
+        file.setUncompressedLength(length);
+    }
+
+    /**
+     * @return the SHA-256 checksum of the content hashed so far. The digest can continue to be updated afterwards.
+     */
+    byte[] finish() {
+        final var copy = new SHA256Digest(digest);
+        final byte[] checksum = new byte[copy.getDigestSize()];
+        copy.doFinal(checksum, 0);
+        return checksum;
+    }
+}
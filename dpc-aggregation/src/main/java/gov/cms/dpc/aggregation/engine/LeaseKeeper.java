@@ -0,0 +1,155 @@
+package gov.cms.dpc.aggregation.engine;
+
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import gov.cms.dpc.common.utils.MetricMaker;
+import gov.cms.dpc.queue.IJobQueue;
+import gov.cms.dpc.queue.models.JobQueueBatch;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Duration;
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps the leases of an engine on the batches it is working, and reclaims the batches of other engines that have
+ * stopped renewing theirs.
+ * <p>
+ * The leases of the batches in flight are renewed three times per lease, so a single missed heartbeat does not lose a
+ * batch. A batch whose lease could not be renewed has been reclaimed for another aggregator, and is reported as lost so
+ * its processing stops without saving over the new owner. A batch whose lease has run out without a renewal, such as
+ * while the queue database is unreachable, is also reported as lost, since the batch may be reclaimed and resumed from
+ * its output files at any moment. A lease is treated as run out a sixth of a lease early, so that a write that checked
+ * the lease just before it ran out still lands well before the batch can be reclaimed. The lease held locally is taken
+ * on the aggregator's clock from before each renewal, so it never outlasts the lease the queue reclaims by.
+ * Expired batches are reclaimed twice per lease, off the claim path, so a crashed
+ * aggregator's batches are picked up again within seconds.
+ */
+class LeaseKeeper {
+
+    private static final Logger logger = LoggerFactory.getLogger(LeaseKeeper.class);
+
+    private final IJobQueue queue;
+    private final UUID aggregatorID;
+    private final Map<UUID, JobQueueBatch> heldBatches;
+    private final Set<UUID> lostBatches;
+    private final Meter renewedMeter;
+    private final Meter lostMeter;
+    private final Meter reclaimedMeter;
+    private final Duration safetyMargin;
+    private ScheduledExecutorService executor;
+
+    /**
+     * Create a keeper for an engine
+     *
+     * @param queue          - {@link IJobQueue} that holds the leases
+     * @param aggregatorID   - the ID of the engine's aggregator
+     * @param metricRegistry - {@link MetricRegistry} for metrics
+     */
+    LeaseKeeper(IJobQueue queue, UUID aggregatorID, MetricRegistry metricRegistry) {
+        this.queue = queue;
+        this.aggregatorID = aggregatorID;
+        this.heldBatches = new ConcurrentHashMap<>();
+        this.lostBatches = ConcurrentHashMap.newKeySet();
+        // Less than the lease left after a single missed heartbeat, so one missed renewal does not lose a batch
+        this.safetyMargin = queue.getLeaseDuration().dividedBy(6);
+
+        final var metricMaker = new MetricMaker(metricRegistry, LeaseKeeper.class);
+        this.renewedMeter = metricMaker.registerMeter("leasesRenewed");
+        this.lostMeter = metricMaker.registerMeter("leasesLost");
+        this.reclaimedMeter = metricMaker.registerMeter("batchesReclaimed");
+    }
+
+    /**
+     * Start renewing leases and reclaiming expired batches in the background
+     */
+    synchronized void start() {
+        if (executor != null) {
+            return;
+        }
+        final long leaseMillis = queue.getLeaseDuration().toMillis();
+        executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            final var thread = new Thread(runnable, "aggregation-lease");
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.scheduleWithFixedDelay(this::renewLeases, leaseMillis / 3, leaseMillis / 3, TimeUnit.MILLISECONDS);
+        executor.scheduleWithFixedDelay(this::reclaimExpiredBatches, 0, leaseMillis / 2, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stop the background work. The leases of the batches still held run out, unless the batches are paused.
+     */
+    synchronized void stop() {
+        if (executor != null) {
+            executor.shutdownNow();
+            executor = null;
+        }
+    }
+
+    /**
+     * Start renewing the lease on a claimed batch
+     *
+     * @param job - the claimed batch
+     */
+    void hold(JobQueueBatch job) {
+        lostBatches.remove(job.getBatchID());
+        heldBatches.put(job.getBatchID(), job);
+    }
+
+    /**
+     * Stop renewing the lease on a batch, once it is completed, paused or failed
+     *
+     * @param job - the batch to release
+     */
+    void release(JobQueueBatch job) {
+        heldBatches.remove(job.getBatchID());
+        lostBatches.remove(job.getBatchID());
+    }
+
+    /**
+     * @param job - a batch being worked
+     * @return true if the lease on the batch could not be renewed, or is about to run out
+     */
+    boolean isLost(JobQueueBatch job) {
+        return lostBatches.contains(job.getBatchID()) || job.isLeaseExpired(OffsetDateTime.now(ZoneOffset.UTC).plus(safetyMargin));
+    }
+
+    void renewLeases() {
+        heldBatches.values().forEach(job -> {
+            try {
+                if (queue.renewLease(job, aggregatorID)) {
+                    renewedMeter.mark();
+                    return;
+                }
+                logger.warn("Lost the lease on job {} batch {}, it has been reclaimed by the queue", job.getJobID(), job.getBatchID());
+                heldBatches.remove(job.getBatchID());
+                lostBatches.add(job.getBatchID());
+                lostMeter.mark();
+            } catch (Exception e) {
+                // The lease is still good until it runs out, so try again on the next heartbeat
+                logger.warn("Unable to renew the lease on job {} batch {}", job.getJobID(), job.getBatchID(), e);
+            }
+        });
+    }
+
+    void reclaimExpiredBatches() {
+        try {
+            final int reclaimed = queue.reclaimExpiredBatches();
+            if (reclaimed > 0) {
+                logger.info("Reclaimed {} batches with expired leases", reclaimed);
+                reclaimedMeter.mark(reclaimed);
+            }
+        } catch (Exception e) {
+            logger.warn("Unable to reclaim batches with expired leases", e);
+        }
+    }
+}
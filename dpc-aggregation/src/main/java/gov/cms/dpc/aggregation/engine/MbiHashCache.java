@@ -0,0 +1,194 @@
+package gov.cms.dpc.aggregation.engine;
+
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import gov.cms.dpc.bluebutton.client.BlueButtonClient;
+import gov.cms.dpc.common.utils.MetricMaker;
+import gov.cms.dpc.queue.IMbiHashStore;
+import gov.cms.dpc.queue.MemoryMbiHashStore;
+import io.reactivex.Flowable;
+import io.reactivex.schedulers.Schedulers;
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.security.GeneralSecurityException;
+import java.util.AbstractMap;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+/**
+ * Caches the hashes of MBIs, which are expensive to compute by design.
+ * <p>
+ * Hashes are looked up in a bounded in-memory cache, then in the {@link IMbiHashStore} shared by the aggregators, and
+ * are only computed when neither has them. Computed hashes are written back to both. The store is keyed by the
+ * {@link BlueButtonClient#getHashPepperVersion()}, so rotating the pepper leaves the old hashes unused, and each hash is
+ * stored under the {@link BlueButtonClient#keyMbi(String)} of its MBI rather than the MBI itself.
+ * Failures of the store are logged and fall back to computing the hash, as the store is only an optimization.
+ */
+public class MbiHashCache {
+
+    private static final Logger logger = LoggerFactory.getLogger(MbiHashCache.class);
+    static final int DEFAULT_MAX_SIZE = 100_000;
+    static final int DEFAULT_PARALLELISM = 4;
+
+    private final BlueButtonClient bbclient;
+    private final IMbiHashStore store;
+    private final Cache<String, String> memory;
+    private final int parallelism;
+    private final Meter memoryHitMeter;
+    private final Meter storeHitMeter;
+    private final Meter computedMeter;
+    private final Timer precomputeTimer;
+
+    /**
+     * Create a cache that only keeps hashes in memory, with the default settings
+     *
+     * @param bbclient       - {@link BlueButtonClient} to compute the hashes with
+     * @param metricRegistry - {@link MetricRegistry} for metrics
+     */
+    public MbiHashCache(BlueButtonClient bbclient, MetricRegistry metricRegistry) {
+        this(bbclient, new MemoryMbiHashStore(), metricRegistry, DEFAULT_MAX_SIZE, DEFAULT_PARALLELISM);
+    }
+
+    /**
+     * Create a cache
+     *
+     * @param bbclient       - {@link BlueButtonClient} to compute the hashes with
+     * @param store          - {@link IMbiHashStore} to persist the hashes to
+     * @param metricRegistry - {@link MetricRegistry} for metrics
+     * @param maxSize        - the max number of hashes to keep in memory
+     * @param parallelism    - the number of hashes to compute at once when precomputing a batch
+     */
+    public MbiHashCache(BlueButtonClient bbclient, IMbiHashStore store, MetricRegistry metricRegistry, int maxSize, int parallelism) {
+        this.bbclient = bbclient;
+        this.store = store;
+        this.memory = Caffeine.newBuilder()
+                .maximumSize(maxSize)
+                .build();
+        this.parallelism = Math.max(parallelism, 1);
+
+        final var metricMaker = new MetricMaker(metricRegistry, MbiHashCache.class);
+        this.memoryHitMeter = metricMaker.registerMeter("memoryHits");
+        this.storeHitMeter = metricMaker.registerMeter("storeHits");
+        this.computedMeter = metricMaker.registerMeter("computedHashes");
+        this.precomputeTimer = metricMaker.registerTimer("precompute");
+    }
+
+    /**
+     * Get the hash of an MBI
+     *
+     * @param mbi - the MBI to hash
+     * @return the hash
+     * @throws GeneralSecurityException if the hash cannot be computed
+     */
+    public String getHash(String mbi) throws GeneralSecurityException {
+        final String cached = memory.getIfPresent(mbi);
+        if (cached != null) {
+            memoryHitMeter.mark();
+            return cached;
+        }
+
+        final String version = bbclient.getHashPepperVersion();
+        final String stored = loadStored(version, List.of(mbi)).get(mbi);
+        if (stored != null) {
+            storeHitMeter.mark();
+            memory.put(mbi, stored);
+            return stored;
+        }
+
+        final String hash = compute(mbi);
+        if (isValid(hash)) {
+            memory.put(mbi, hash);
+            saveStored(version, Map.of(mbi, hash));
+        }
+        return hash;
+    }
+
+    /**
+     * Make sure the hashes of a batch of MBIs are cached, so fetching the patients only needs a lookup.
+     * Stored hashes are loaded in bulk, and the missing ones are computed in parallel.
+     *
+     * @param mbis - the MBIs to hash
+     */
+    public void precompute(Collection<String> mbis) {
+        try (var ignored = precomputeTimer.time()) {
+            final List<String> uncached = mbis.stream()
+                    .distinct()
+                    .filter(mbi -> memory.getIfPresent(mbi) == null)
+                    .collect(Collectors.toList());
+            if (uncached.isEmpty()) {
+                return;
+            }
+
+            final String version = bbclient.getHashPepperVersion();
+            final Map<String, String> stored = loadStored(version, uncached);
+            storeHitMeter.mark(stored.size());
+            memory.putAll(stored);
+
+            final Map<String, String> computed = Flowable.fromIterable(uncached)
+                    .filter(mbi -> !stored.containsKey(mbi))
+                    .parallel(parallelism)
+                    .runOn(Schedulers.computation())
+                    .map(mbi -> new AbstractMap.SimpleImmutableEntry<>(mbi, StringUtils.defaultString(compute(mbi))))
+                    .sequential()
+                    .filter(entry -> isValid(entry.getValue()))
+                    .toMap(Map.Entry::getKey, Map.Entry::getValue, HashMap::new)
+                    .blockingGet();
+            memory.putAll(computed);
+            saveStored(version, computed);
+            logger.debug("Precomputed {} MBI hashes, {} were already stored", computed.size(), stored.size());
+        }
+    }
+
+    private String compute(String mbi) throws GeneralSecurityException {
+        computedMeter.mark();
+        return bbclient.hashMbi(mbi);
+    }
+
+    /**
+     * @return the stored hashes by MBI
+     */
+    private Map<String, String> loadStored(String version, Collection<String> mbis) {
+        try {
+            final Map<String, String> mbisByKey = new HashMap<>();
+            for (String mbi : mbis) {
+                mbisByKey.put(bbclient.keyMbi(mbi), mbi);
+            }
+            final Map<String, String> hashes = new HashMap<>();
+            store.getHashes(version, mbisByKey.keySet()).forEach((key, hash) -> hashes.put(mbisByKey.get(key), hash));
+            return hashes;
+        } catch (Exception e) {
+            logger.warn("Failed to load stored MBI hashes", e);
+            return Map.of();
+        }
+    }
+
+    /**
+     * @param hashes - the hashes to store by MBI
+     */
+    private void saveStored(String version, Map<String, String> hashes) {
+        if (hashes.isEmpty()) {
+            return;
+        }
+        try {
+            final Map<String, String> hashesByKey = new HashMap<>();
+            for (Map.Entry<String, String> entry : hashes.entrySet()) {
+                hashesByKey.put(bbclient.keyMbi(entry.getKey()), entry.getValue());
+            }
+            store.putHashes(version, hashesByKey);
+        } catch (Exception e) {
+            logger.warn("Failed to store MBI hashes", e);
+        }
+    }
+
+    private static boolean isValid(String hash) {
+        return StringUtils.isNotBlank(hash);
+    }
+}
@@ -0,0 +1,293 @@
+package gov.cms.dpc.aggregation.engine;
+
+import ca.uhn.fhir.parser.IParser;
+import gov.cms.dpc.queue.models.ExportCompression;
+import gov.cms.dpc.queue.models.JobQueueBatchFile;
+import org.hl7.fhir.dstu3.model.Resource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.function.BooleanSupplier;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Writes NDJSON to a single export file through a {@link FileChannel} that stays open for the life of the file.
+ * <p>
+ * Resources are serialized straight into a pooled direct buffer, which is only written to the channel when it fills up
+ * or on an explicit {@link #flush()}. {@link #force()} additionally syncs the file to the storage device.
+ * The checksum and length of the file are computed as the bytes are serialized, and saved to the {@link JobQueueBatchFile} on every flush.
+ * <p>
+ * Compressed files are written as a series of gzip members, one per flush, so the file on disk is always a complete
+ * gzip file at a flush point and a resumed batch can append to it.
+ * A resumed file is first truncated back to the length saved with its last checkpoint, dropping whatever an aggregator
+ * that lost the batch wrote after it, as those patients are written again.
+ * So that an aggregator that has lost the batch cannot write into the file after the new owner has truncated it,
+ * ownership of the batch is checked before every write to the file, and not only between patients.
+ * A writer is not thread-safe.
+ */
+class NDJSONFileWriter implements Closeable {
+    private static final Logger logger = LoggerFactory.getLogger(NDJSONFileWriter.class);
+    private static final char DELIM = '\n';
+    private static final int DEFLATE_BUFFER_SIZE = 8 * 1024;
+
+    private final JobQueueBatchFile file;
+    private final ExportCompression compression;
+    // The digest of the bytes as stored on disk
+    private final FileDigest fileDigest;
+    // The digest of the uncompressed content. The same as the file digest when the file is not compressed.
+    private final FileDigest contentDigest;
+    private final FileChannel channel;
+    private final DirectBufferPool bufferPool;
+    private final ByteBuffer buffer;
+    private final OutputStream storedStream;
+    private final OutputStream contentStream;
+    private final Writer encoder;
+    private final BooleanSupplier isLost;
+    private GzipMemberOutputStream gzipMember;
+
+    /**
+     * Open a file for writing
+     * @param path - the path of the file
+     * @param file - the record of the file, which holds the compression and checksum state
+     * @param truncate - true to drop any existing content of the file, otherwise new content is appended
+     * @param bufferPool - the pool to borrow the write buffer from
+     * @param isLost - true once the batch of the file may belong to another aggregator, which stops any further writes
+     * @throws IOException if the file cannot be opened
+     */
+    NDJSONFileWriter(Path path, JobQueueBatchFile file, boolean truncate, DirectBufferPool bufferPool, BooleanSupplier isLost) throws IOException {
+        this.file = file;
+        this.isLost = isLost;
+        this.compression = file.getCompression();
+        if (!truncate) {
+            truncateToCheckpoint(path, file);
+        }
+        this.fileDigest = truncate ? FileDigest.start() : FileDigest.resume(file, path);
+        if (compression == ExportCompression.NONE) {
+            this.contentDigest = fileDigest;
+        } else {
+            this.contentDigest = truncate ? FileDigest.start() : FileDigest.resumeUncompressed(file, path);
+        }
+        this.channel = truncate
+                ? FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)
+                : FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        this.bufferPool = bufferPool;
+        this.buffer = bufferPool.acquire();
+        this.storedStream = new BufferOutputStream();
+        this.contentStream = new ContentOutputStream();
+        this.encoder = new OutputStreamWriter(contentStream, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Cut a file back to the length it had at the last checkpoint of its batch. Only done when the digest state of the
+     * file was saved with the checkpoint, so the checksum can continue from the same point.
+     *
+     * @param path - the path of the file
+     * @param file - the record of the file, as of the last checkpoint
+     * @throws IOException if the file cannot be truncated
+     */
+    static void truncateToCheckpoint(Path path, JobQueueBatchFile file) throws IOException {
+        if (file.getDigestState() == null || !Files.exists(path)) {
+            return;
+        }
+        final long length = Files.size(path);
+        if (length > file.getFileLength()) {
+            logger.info("Truncating {} from {} to {} bytes, its length at the last checkpoint", file.getFileName(), length, file.getFileLength());
+            try (FileChannel truncated = FileChannel.open(path, StandardOpenOption.WRITE)) {
+                truncated.truncate(file.getFileLength());
+            }
+        }
+    }
+
+    /**
+     * @return the sequence number of the file
+     */
+    int getSequence() {
+        return file.getSequence();
+    }
+
+    /**
+     * Serialize a resource as a single line of the file
+     *
+     * @param parser - the JSON parser to serialize with
+     * @param resource - the resource to write
+     * @throws IOException if the buffer cannot be written to the file
+     */
+    void write(IParser parser, Resource resource) throws IOException {
+        parser.encodeResourceToWriter(resource, encoder);
+        encoder.write(DELIM);
+    }
+
+    /**
+     * Write the JSON of a resource, as is, as a single line of the file
+     *
+     * @param json - the UTF-8 JSON of the resource, which must not have any line breaks
+     * @throws IOException if the buffer cannot be written to the file
+     */
+    void writeRaw(byte[] json) throws IOException {
+        // Pass on anything still held by the encoder, so the lines stay in order
+        encoder.flush();
+        contentStream.write(json, 0, json.length);
+        contentStream.write(DELIM);
+    }
+
+    /**
+     * Write everything serialized so far to the file
+     *
+     * @throws IOException if the write fails
+     */
+    void flush() throws IOException {
+        encoder.flush();
+        if (gzipMember != null) {
+            gzipMember.finishMember();
+            gzipMember = null;
+        }
+        drain();
+        fileDigest.saveTo(file);
+        if (contentDigest != fileDigest) {
+            contentDigest.saveUncompressedTo(file);
+        }
+    }
+
+    /**
+     * Write everything serialized so far to the file, and sync the file to the storage device
+     *
+     * @throws IOException if the write or sync fails
+     */
+    void force() throws IOException {
+        flush();
+        channel.force(false);
+    }
+
+    /**
+     * Close the file without writing what is still buffered, and return the write buffer to the pool.
+     * Used when the batch has been lost to another aggregator, which now owns the file.
+     *
+     * @throws IOException if the close fails
+     */
+    void discard() throws IOException {
+        try {
+            if (gzipMember != null) {
+                gzipMember.end();
+                gzipMember = null;
+            }
+            channel.close();
+        } finally {
+            bufferPool.release(buffer);
+        }
+    }
+
+    /**
+     * Flush and close the file, and return the write buffer to the pool
+     *
+     * @throws IOException if the flush or close fails
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            flush();
+        } finally {
+            if (gzipMember != null) {
+                gzipMember.end();
+            }
+            channel.close();
+            bufferPool.release(buffer);
+        }
+    }
+
+    private void drain() throws IOException {
+        // The new owner of a lost batch may already have truncated the file and be appending to it
+        if (isLost.getAsBoolean()) {
+            throw new IOException(String.format("Batch %s is no longer owned by this aggregator, not writing to %s", file.getBatchID(), file.getFileName()));
+        }
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    /**
+     * Takes the uncompressed content, and passes it on to be compressed or stored
+     */
+    private class ContentOutputStream extends OutputStream {
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) throws IOException {
+            if (contentDigest != fileDigest) {
+                contentDigest.update(bytes, offset, length);
+            }
+            if (compression == ExportCompression.GZIP) {
+                if (gzipMember == null) {
+                    gzipMember = new GzipMemberOutputStream(storedStream);
+                }
+                gzipMember.write(bytes, offset, length);
+            } else {
+                storedStream.write(bytes, offset, length);
+            }
+        }
+    }
+
+    /**
+     * Fills the direct buffer with the bytes to store, draining it to the channel whenever it is full
+     */
+    private class BufferOutputStream extends OutputStream {
+
+        @Override
+        public void write(int b) throws IOException {
+            if (!buffer.hasRemaining()) {
+                drain();
+            }
+            buffer.put((byte) b);
+            fileDigest.update((byte) b);
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) throws IOException {
+            fileDigest.update(bytes, offset, length);
+            while (length > 0) {
+                if (!buffer.hasRemaining()) {
+                    drain();
+                }
+                final int count = Math.min(length, buffer.remaining());
+                buffer.put(bytes, offset, count);
+                offset += count;
+                length -= count;
+            }
+        }
+    }
+
+    /**
+     * A single gzip member, which is finished without closing the underlying stream
+     */
+    private static class GzipMemberOutputStream extends GZIPOutputStream {
+
+        GzipMemberOutputStream(OutputStream out) throws IOException {
+            super(out, DEFLATE_BUFFER_SIZE);
+        }
+
+        void finishMember() throws IOException {
+            finish();
+            end();
+        }
+
+        void end() {
+            def.end();
+        }
+    }
+}
@@ -1,5 +1,7 @@
 package gov.cms.dpc.aggregation.engine;
 
+import gov.cms.dpc.queue.models.ExportCompression;
+
 /**
  * Holds configuration information for the operations of {@link gov.cms.dpc.aggregation.engine.AggregationEngine}.
  */
@@ -9,6 +11,29 @@ public class OperationsConfig {
     private int resourcesPerFileCount;
     private String exportPath;
     private int pollingFrequency;
+    private int workerSlots;
+    private int patientConcurrency;
+    private int pagePrefetchDepth;
+    private int maxInFlightPageRequests;
+    private ExportCompression exportCompression;
+    private int checkpointPatientInterval;
+    private int checkpointTimeInterval;
+    private boolean resourcePassThrough;
+
+    private OperationsConfig(Builder builder) {
+        this.retryCount = builder.retryCount;
+        this.resourcesPerFileCount = builder.resourcesPerFileCount;
+        this.exportPath = builder.exportPath;
+        this.pollingFrequency = builder.pollingFrequency;
+        this.workerSlots = builder.workerSlots;
+        this.patientConcurrency = builder.patientConcurrency;
+        this.pagePrefetchDepth = builder.pagePrefetchDepth;
+        this.maxInFlightPageRequests = builder.maxInFlightPageRequests;
+        this.exportCompression = builder.exportCompression;
+        this.checkpointPatientInterval = builder.checkpointPatientInterval;
+        this.checkpointTimeInterval = builder.checkpointTimeInterval;
+        this.resourcePassThrough = builder.resourcePassThrough;
+    }
 
     public OperationsConfig(
             int resourcesPerFileCount,
@@ -16,10 +41,7 @@ public class OperationsConfig {
             int retryCount,
             int pollingFrequency
     ) {
-        this.retryCount = retryCount;
-        this.resourcesPerFileCount = resourcesPerFileCount;
-        this.exportPath = exportPath;
-        this.pollingFrequency = pollingFrequency;
+        this(new Builder(resourcesPerFileCount, exportPath).retryCount(retryCount).pollingFrequency(pollingFrequency));
     }
 
     public OperationsConfig(
@@ -27,10 +49,7 @@ public class OperationsConfig {
             String exportPath,
             int pollingFrequency
     ) {
-        this.retryCount = 3;
-        this.resourcesPerFileCount = resourcesPerFileCount;
-        this.exportPath = exportPath;
-        this.pollingFrequency = pollingFrequency;
+        this(resourcesPerFileCount, exportPath, 3, pollingFrequency);
     }
 
     public int getRetryCount() {
@@ -48,4 +67,124 @@ public class OperationsConfig {
     public int getPollingFrequency() {
         return pollingFrequency;
     }
+
+    public int getWorkerSlots() {
+        return workerSlots;
+    }
+
+    public int getPatientConcurrency() {
+        return patientConcurrency;
+    }
+
+    public int getPagePrefetchDepth() {
+        return pagePrefetchDepth;
+    }
+
+    public int getMaxInFlightPageRequests() {
+        return maxInFlightPageRequests;
+    }
+
+    public ExportCompression getExportCompression() {
+        return exportCompression;
+    }
+
+    public int getCheckpointPatientInterval() {
+        return checkpointPatientInterval;
+    }
+
+    public int getCheckpointTimeInterval() {
+        return checkpointTimeInterval;
+    }
+
+    public boolean isResourcePassThrough() {
+        return resourcePassThrough;
+    }
+
+    /**
+     * Builds an {@link OperationsConfig}. Anything not set defaults to the simplest engine: a single worker slot fetching
+     * a single patient at a time without prefetching, uncompressed files, and a checkpoint after every patient.
+     * <p>
+     * These are not the defaults of {@link gov.cms.dpc.aggregation.DPCAggregationConfiguration}, which checkpoints every
+     * 25 patients or 10 seconds. The application sets every value from its configuration, so the defaults here only
+     * apply to engines built directly, such as in tests, where a checkpoint after every patient keeps progress exact.
+     */
+    public static class Builder {
+        private final int resourcesPerFileCount;
+        private final String exportPath;
+        private int retryCount = 3;
+        // Same as the configuration. New batches are signalled by the queue right away, so polling is only a fallback
+        private int pollingFrequency = 5000;
+        private int workerSlots = 1;
+        private int patientConcurrency = 1;
+        private int pagePrefetchDepth = 0;
+        private int maxInFlightPageRequests = 50;
+        private ExportCompression exportCompression = ExportCompression.NONE;
+        // Unlike the configuration (25 patients, 10 seconds), save after every patient and never by time
+        private int checkpointPatientInterval = 1;
+        private int checkpointTimeInterval = 0;
+        private boolean resourcePassThrough = false;
+
+        /**
+         * @param resourcesPerFileCount - the max number of resources in an output file
+         * @param exportPath            - the directory of the output files
+         */
+        public Builder(int resourcesPerFileCount, String exportPath) {
+            this.resourcesPerFileCount = resourcesPerFileCount;
+            this.exportPath = exportPath;
+        }
+
+        public Builder retryCount(int retryCount) {
+            this.retryCount = retryCount;
+            return this;
+        }
+
+        public Builder pollingFrequency(int pollingFrequency) {
+            this.pollingFrequency = pollingFrequency;
+            return this;
+        }
+
+        public Builder workerSlots(int workerSlots) {
+            this.workerSlots = workerSlots;
+            return this;
+        }
+
+        public Builder patientConcurrency(int patientConcurrency) {
+            this.patientConcurrency = patientConcurrency;
+            return this;
+        }
+
+        public Builder pagePrefetchDepth(int pagePrefetchDepth) {
+            this.pagePrefetchDepth = pagePrefetchDepth;
+            return this;
+        }
+
+        public Builder maxInFlightPageRequests(int maxInFlightPageRequests) {
+            this.maxInFlightPageRequests = maxInFlightPageRequests;
+            return this;
+        }
+
+        public Builder exportCompression(ExportCompression exportCompression) {
+            this.exportCompression = exportCompression;
+            return this;
+        }
+
+        public Builder checkpointPatientInterval(int checkpointPatientInterval) {
+            this.checkpointPatientInterval = checkpointPatientInterval;
+            return this;
+        }
+
+        public Builder checkpointTimeInterval(int checkpointTimeInterval) {
+            this.checkpointTimeInterval = checkpointTimeInterval;
+            return this;
+        }
+
+        public Builder resourcePassThrough(boolean resourcePassThrough) {
+            this.resourcePassThrough = resourcePassThrough;
+            return this;
+        }
+
+        public OperationsConfig build() {
+            return new OperationsConfig(this);
+        }
+    }
 }
@@ -0,0 +1,173 @@
+package gov.cms.dpc.aggregation.engine;
+
+import ca.uhn.fhir.rest.server.exceptions.ResourceNotFoundException;
+import com.codahale.metrics.MetricRegistry;
+import gov.cms.dpc.bluebutton.client.BlueButtonClient;
+import io.reactivex.Single;
+import org.hl7.fhir.dstu3.model.Bundle;
+import org.hl7.fhir.dstu3.model.Patient;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+/**
+ * Resolves the MBI of a patient to its BlueButton {@link Patient} resource once per batch.
+ * <p>
+ * The fetchers of the different resource types of a patient share the same resolution, so a patient is only looked up
+ * by MBI hash a single time. Failed lookups are shared as well, so every resource type reports the same error.
+ * <p>
+ * The patients of a batch are resolved with a few batched searches, a window at a time ahead of the patient being
+ * processed, so only about a window of resolved patients is held at once. Each occurrence of a patient in a window holds
+ * a reference to its resolution, which is dropped once the patient is released and no other occurrence is left.
+ */
+class PatientResolver {
+    private static final Logger logger = LoggerFactory.getLogger(PatientResolver.class);
+    private final BlueButtonClient blueButtonClient;
+    private final MbiHashCache hashCache;
+    private final UUID jobID;
+    private final UUID batchID;
+    private final Map<String, Single<Patient>> resolved;
+    private final Map<String, Integer> references;
+    private final List<String> patients;
+    private final int windowSize;
+    // One past the index of the last patient taken into a window, or -1 before the first window
+    private int resolvedUntil;
+
+    /**
+     * Create a resolver for a batch
+     * @param blueButtonClient - client to BlueButton to use
+     * @param jobID - the jobID for logging and reporting
+     * @param batchID - the batchID for logging and reporting
+     */
+    PatientResolver(BlueButtonClient blueButtonClient, UUID jobID, UUID batchID) {
+        this(blueButtonClient, new MbiHashCache(blueButtonClient, new MetricRegistry()), jobID, batchID, List.of(), 0);
+    }
+
+    /**
+     * Create a resolver for a batch
+     * @param blueButtonClient - client to BlueButton to use
+     * @param hashCache - the cache of MBI hashes to look patients up with
+     * @param jobID - the jobID for logging and reporting
+     * @param batchID - the batchID for logging and reporting
+     * @param patients - the MBIs of all the patients of the batch, in batch order
+     * @param windowSize - the number of patients to resolve ahead of the patient being processed
+     */
+    PatientResolver(BlueButtonClient blueButtonClient, MbiHashCache hashCache, UUID jobID, UUID batchID, List<String> patients, int windowSize) {
+        this.blueButtonClient = blueButtonClient;
+        this.hashCache = hashCache;
+        this.jobID = jobID;
+        this.batchID = batchID;
+        this.resolved = new ConcurrentHashMap<>();
+        this.references = new ConcurrentHashMap<>();
+        this.patients = patients;
+        this.windowSize = windowSize;
+        this.resolvedUntil = -1;
+    }
+
+    /**
+     * Get the {@link Patient} for an MBI, fetching it from BlueButton if it has not been resolved yet
+     *
+     * @param mbi of the patient
+     * @return the patient
+     * @throws ResourceNotFoundException if exactly one patient does not match the MBI
+     */
+    Patient resolve(String mbi) {
+        return resolved.computeIfAbsent(mbi, key -> Single.fromCallable(() -> fetchPatient(key)).cache())
+                .blockingGet();
+    }
+
+    /**
+     * Release one occurrence of a patient, once all of its resources have been fetched. The resolution is dropped when
+     * no other occurrence of the patient in the resolved windows is left to be processed.
+     *
+     * @param mbi of the patient
+     */
+    void release(String mbi) {
+        references.compute(mbi, (key, count) -> {
+            if (count == null || count <= 1) {
+                resolved.remove(key);
+                return null;
+            }
+            return count - 1;
+        });
+    }
+
+    /**
+     * Resolve the next window of patients once the patient being processed gets within half a window of the end of
+     * the patients resolved so far
+     *
+     * @param index - the index in the batch of the patient about to be processed
+     */
+    synchronized void resolveAhead(int index) {
+        if (resolvedUntil < 0) {
+            resolvedUntil = index;
+        }
+        final int end = Math.min(index + windowSize, patients.size());
+        if (index + windowSize / 2 < resolvedUntil || end <= resolvedUntil) {
+            return;
+        }
+        final List<String> window = patients.subList(resolvedUntil, end);
+        window.forEach(mbi -> references.merge(mbi, 1, Integer::sum));
+        resolvedUntil = end;
+        resolveAll(window);
+    }
+
+    /**
+     * Resolve the patients of many MBIs, with a few batched searches rather than a search per patient.
+     * Each MBI gets the same resolution as {@link #resolve(String)} would give it, so a MBI without exactly one match
+     * fails when it is resolved. If the batched search fails, the patients are left to be resolved one at a time.
+     *
+     * @param mbis of the patients
+     */
+    private void resolveAll(Collection<String> mbis) {
+        final Map<String, List<String>> mbisByHash = new HashMap<>();
+        try {
+            for (String mbi : mbis) {
+                if (!resolved.containsKey(mbi)) {
+                    mbisByHash.computeIfAbsent(hashCache.getHash(mbi), hash -> new ArrayList<>()).add(mbi);
+                }
+            }
+            if (mbisByHash.isEmpty()) {
+                return;
+            }
+
+            final Map<String, List<Patient>> patients = blueButtonClient.requestPatientsFromServerByMbiHashes(mbisByHash.keySet());
+            mbisByHash.forEach((hash, hashMbis) -> {
+                final List<Patient> matches = patients.getOrDefault(hash, List.of());
+                hashMbis.forEach(mbi -> resolved.putIfAbsent(mbi, Single.fromCallable(() -> matchPatient(matches.size(), () -> matches.get(0))).cache()));
+            });
+        } catch (Exception e) {
+            logger.warn("Job {}, batch {}: Failed to resolve {} patients in bulk, resolving them individually", jobID, batchID, mbisByHash.size(), e);
+        }
+    }
+
+    private Patient fetchPatient(String mbi) {
+        final Bundle patients;
+        try {
+            patients = blueButtonClient.requestPatientFromServerByMbiHash(hashCache.getHash(mbi));
+        } catch (GeneralSecurityException e) {
+            logger.error("Job {}, batch {}: Failed to retrieve Patient", jobID, batchID, e);
+            throw new ResourceNotFoundException("Failed to retrieve Patient");
+        }
+
+        return matchPatient(patients.getTotal(), () -> (Patient) patients.getEntryFirstRep().getResource());
+    }
+
+    private Patient matchPatient(int total, Supplier<Patient> patient) {
+        if (total == 1) {
+            return patient.get();
+        }
+
+        logger.error("Job {}, batch {}: Expected 1 Patient to match MBI but found {}", jobID, batchID, total);
+        throw new ResourceNotFoundException(String.format("Expected 1 Patient to match MBI but found %d", total));
+    }
+}
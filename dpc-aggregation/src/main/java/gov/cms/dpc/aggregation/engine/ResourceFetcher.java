@@ -4,18 +4,24 @@ import ca.uhn.fhir.parser.DataFormatException;
 import ca.uhn.fhir.rest.server.exceptions.BaseServerResponseException;
 import ca.uhn.fhir.rest.server.exceptions.ResourceNotFoundException;
 import gov.cms.dpc.bluebutton.client.BlueButtonClient;
+import gov.cms.dpc.bluebutton.client.RawBundle;
+import gov.cms.dpc.bluebutton.exceptions.BlueButtonInterruptedException;
 import gov.cms.dpc.fhir.DPCIdentifierSystem;
 import gov.cms.dpc.queue.exceptions.JobQueueFailure;
+import io.github.resilience4j.circuitbreaker.CallNotPermittedException;
+import io.reactivex.Emitter;
 import io.reactivex.Flowable;
+import io.reactivex.schedulers.Schedulers;
 import org.hl7.fhir.dstu3.model.*;
 import org.reactivestreams.Publisher;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.security.GeneralSecurityException;
-import java.util.ArrayList;
 import java.util.List;
+import java.util.Optional;
 import java.util.UUID;
+import java.util.concurrent.Semaphore;
+import java.util.stream.Collectors;
 
 /**
  * A resource fetcher will fetch resources of particular type from passed {@link BlueButtonClient}
@@ -26,6 +32,11 @@ class ResourceFetcher {
     private UUID jobID;
     private UUID batchID;
     private ResourceType resourceType;
+    private int pagePrefetchDepth;
+    private Semaphore pageRequestPermits;
+    private PatientResolver patientResolver;
+    private boolean resourcePassThrough;
+    private CoverageCache coverageCache;
 
     /**
      * Create a context for fetching FHIR resources
@@ -33,6 +44,7 @@ class ResourceFetcher {
      * @param jobID - the jobID for logging and reporting
      * @param batchID - the batchID for logging and reporting
      * @param resourceType - the resource type to fetch
+     * @param config - the operations config to use
      *
      */
     ResourceFetcher(BlueButtonClient blueButtonClient,
@@ -40,115 +52,207 @@ class ResourceFetcher {
                            UUID batchID,
                            ResourceType resourceType,
                     OperationsConfig config) {
+        this(blueButtonClient, jobID, batchID, resourceType, config,
+                new Semaphore(config.getMaxInFlightPageRequests()),
+                new PatientResolver(blueButtonClient, jobID, batchID), null);
+    }
+
+    /**
+     * Create a context for fetching FHIR resources
+     * @param blueButtonClient - client to BlueButton to use
+     * @param jobID - the jobID for logging and reporting
+     * @param batchID - the batchID for logging and reporting
+     * @param resourceType - the resource type to fetch
+     * @param config - the operations config to use
+     * @param pageRequestPermits - permits limiting the prefetched page requests in flight, shared by the fetchers of an engine
+     * @param patientResolver - resolver of patients by MBI, shared by the fetchers of a batch
+     * @param coverageCache - cache to fetch Coverage through, null to always fetch it from BlueButton
+     *
+     */
+    ResourceFetcher(BlueButtonClient blueButtonClient,
+                    UUID jobID,
+                    UUID batchID,
+                    ResourceType resourceType,
+                    OperationsConfig config,
+                    Semaphore pageRequestPermits,
+                    PatientResolver patientResolver,
+                    CoverageCache coverageCache) {
         this.blueButtonClient = blueButtonClient;
         this.jobID = jobID;
         this.batchID = batchID;
         this.resourceType = resourceType;
+        this.pagePrefetchDepth = config.getPagePrefetchDepth();
+        this.pageRequestPermits = pageRequestPermits;
+        this.patientResolver = patientResolver;
+        this.resourcePassThrough = config.isResourcePassThrough();
+        this.coverageCache = coverageCache;
     }
 
     /**
      * Fetch all the resources for a specific patient. If errors are encountered from BlueButton,
      * a OperationOutcome resource is used.
+     * <p>
+     * The resources are streamed page by page. The next page of a bundle is only requested from BlueButton once the
+     * resources of the current page have been consumed by the subscriber, unless a page prefetch depth is configured.
+     * With resource pass-through configured, EOB and Coverage resources are returned as the raw JSON from BlueButton.
+     * With a Coverage cache, Coverage resources are returned as the raw JSON held by the cache.
      *
      * @param mbi to use
      * @return a flow with all the resources for specific patient
      */
-    Flowable<Resource> fetchResources(String mbi) {
-        return Flowable.fromCallable(() -> {
+    Flowable<ExportResource> fetchResources(String mbi) {
+        return Flowable.defer(() -> {
             String fetchId = UUID.randomUUID().toString();
             logger.debug("Fetching first {} from BlueButton for {}", resourceType.toString(), fetchId);
-            final Resource firstFetched = fetchFirst(mbi);
-            if (ResourceType.Coverage.equals(resourceType) || ResourceType.ExplanationOfBenefit.equals(resourceType)) {
-                return fetchAllBundles((Bundle)firstFetched, fetchId);
-            } else {
+            final Patient patient = patientResolver.resolve(mbi);
+            if (ResourceType.Patient.equals(resourceType)) {
                 logger.debug("Done fetching {} for {}", resourceType.toString(), fetchId);
-                return List.of(firstFetched);
+                return Flowable.just(ExportResource.parsed(patient));
             }
+            return fetchAllPages(fetchFirstPage(patient), fetchId);
         })
-                .onErrorResumeNext((Throwable error) -> handleError(mbi, error))
-                .flatMap(Flowable::fromIterable);
+                .onErrorResumeNext((Throwable error) -> handleError(mbi, error));
     }
 
     /**
-     * Given a bundle, return a list of resources in the passed in bundle and all
-     * the resources from the next bundles.
+     * Given a page, return a flow of the resources in the passed in page and all
+     * the resources from the next pages. Next pages are fetched lazily, as the subscriber requests more resources.
      *
-     * @param firstBundle of resources. Included in the result list
-     * @return a list of all the resources in the first bundle and all next bundles
+     * @param firstPage of resources. Included in the result flow
+     * @return a flow of all the resources in the first page and all next pages
      */
-    private List<Resource> fetchAllBundles(Bundle firstBundle, String fetchId) {
-        final var resources = new ArrayList<Resource>();
-        addResources(resources, firstBundle);
-
-        // Loop until no more next bundles
-        var bundle = firstBundle;
-        while (bundle.getLink(Bundle.LINK_NEXT) != null) {
-            logger.debug("Fetching next bundle {} from BlueButton for {}", resourceType.toString(), fetchId);
-            bundle = blueButtonClient.requestNextBundleFromServer(bundle);
-            addResources(resources, bundle);
+    private Flowable<ExportResource> fetchAllPages(ResourcePage firstPage, String fetchId) {
+        if (pagePrefetchDepth > 0) {
+            return prefetchAllPages(firstPage, fetchId);
         }
+        return Flowable.generate(() -> new PageCursor(firstPage), (cursor, emitter) -> {
+            // Loop until a page with resources is found or there are no more next pages
+            while (!cursor.hasNextEntry()) {
+                if (!cursor.getPage().hasNextPage()) {
+                    logger.debug("Done fetching bundles {} for {}", resourceType.toString(), fetchId);
+                    emitter.onComplete();
+                    return cursor;
+                }
+                logger.debug("Fetching next bundle {} from BlueButton for {}", resourceType.toString(), fetchId);
+                cursor.nextPage(cursor.getPage().requestNextPage());
+            }
 
-        logger.debug("Done fetching bundles {} for {}", resourceType.toString(), fetchId);
-        return resources;
+            emitter.onNext(checkResourceType(cursor.nextEntry()));
+            return cursor;
+        });
+    }
+
+    /**
+     * Given a page, return a flow of the resources in the passed in page and all the resources from the next pages.
+     * Next pages are fetched on an IO thread as soon as the link to them is known, staying at most the prefetch depth
+     * pages ahead of the subscriber. Each page request holds one of the shared page request permits while in flight.
+     *
+     * @param firstPage of resources. Included in the result flow
+     * @return a flow of all the resources in the first page and all next pages
+     */
+    private Flowable<ExportResource> prefetchAllPages(ResourcePage firstPage, String fetchId) {
+        final Flowable<ResourcePage> pages = Flowable.generate(() -> Optional.<ResourcePage>empty(), (Optional<ResourcePage> previous, Emitter<ResourcePage> emitter) -> {
+            if (previous.isEmpty()) {
+                emitter.onNext(firstPage);
+                return Optional.of(firstPage);
+            }
+            final ResourcePage page = previous.get();
+            if (!page.hasNextPage()) {
+                logger.debug("Done fetching bundles {} for {}", resourceType.toString(), fetchId);
+                emitter.onComplete();
+                return previous;
+            }
+            logger.debug("Prefetching next bundle {} from BlueButton for {}", resourceType.toString(), fetchId);
+            final ResourcePage nextPage = requestNextPage(page);
+            emitter.onNext(nextPage);
+            return Optional.of(nextPage);
+        });
+
+        // The current page plus the prefetched pages. An error requesting a prefetched page is held until the pages
+        // before it are drained, so the output is the same as fetching the pages on demand.
+        return pages
+                .subscribeOn(Schedulers.io())
+                .concatMapDelayError(page -> Flowable.fromIterable(page.getEntries()), pagePrefetchDepth + 1, true)
+                .map(this::checkResourceType);
+    }
+
+    private ResourcePage requestNextPage(ResourcePage page) throws InterruptedException {
+        pageRequestPermits.acquire();
+        try {
+            return page.requestNextPage();
+        } finally {
+            pageRequestPermits.release();
+        }
     }
 
     /**
      * Turn an error into a flow.
      * @param mbi MBI
      * @param error the error
-     * @return a Flowable of list of resources
+     * @return a Flowable of resources
      */
-    private Publisher<List<Resource>> handleError(String mbi, Throwable error) {
+    private Publisher<ExportResource> handleError(String mbi, Throwable error) {
         if (error instanceof JobQueueFailure) {
             // JobQueueFailure is an internal error. Just pass it along as an error.
             return Flowable.error(error);
         }
+        if (stopsBatch(error)) {
+            // Not a problem with the patient, the batch is paused and the patient is fetched again later
+            return Flowable.error(error);
+        }
 
         // Other errors should be turned into OperationOutcome and just recorded.
         logger.error("Turning error into OperationOutcome. Error is: " + error);
         final var operationOutcome = formOperationOutcome(mbi, error);
-        return Flowable.just(List.of(operationOutcome));
+        return Flowable.just(ExportResource.parsed(operationOutcome));
+    }
+
+    /**
+     * Is the error one that stops the whole batch, rather than one recorded for the patient? These are the circuit breaker
+     * on BlueButton being open, and the fetching thread being interrupted.
+     *
+     * @param error the error
+     * @return true if the batch should be paused
+     */
+    static boolean stopsBatch(Throwable error) {
+        for (Throwable cause = error; cause != null; cause = cause.getCause()) {
+            if (cause instanceof CallNotPermittedException
+                    || cause instanceof BlueButtonInterruptedException
+                    || cause instanceof InterruptedException) {
+                return true;
+            }
+        }
+        return false;
     }
 
     /**
-     * Based on resourceType, fetch a resource or a bundle of resources.
+     * Based on resourceType, fetch the first page of resources. The patient is resolved once for all resource types,
+     * and its bene_id is used for the EOB and Coverage queries.
      *
-     * @param mbi of the resource to fetch
-     * @return either a single resource or the first bundle of resources
+     * @param patient whose resources to fetch
+     * @return the first page of resources
      */
-    private Resource fetchFirst(String mbi) {
-        Patient patient = fetchPatient(mbi);
+    private ResourcePage fetchFirstPage(Patient patient) {
+        final String beneId;
         switch (resourceType) {
-            case Patient:
-                return patient;
             case ExplanationOfBenefit:
-                String beneId = getBeneIdFromPatient(patient);
-                return blueButtonClient.requestEOBFromServer(beneId);
+                beneId = getBeneIdFromPatient(patient);
+                return resourcePassThrough
+                        ? new RawPage(blueButtonClient.requestRawEOBFromServer(beneId))
+                        : new BundlePage(blueButtonClient.requestEOBFromServer(beneId));
             case Coverage:
                 beneId = getBeneIdFromPatient(patient);
-                return blueButtonClient.requestCoverageFromServer(beneId);
+                if (coverageCache != null) {
+                    return new CachedPage(coverageCache.getCoverage(beneId));
+                }
+                return resourcePassThrough
+                        ? new RawPage(blueButtonClient.requestRawCoverageFromServer(beneId))
+                        : new BundlePage(blueButtonClient.requestCoverageFromServer(beneId));
             default:
                 throw new JobQueueFailure(jobID, batchID, "Unexpected resource type: " + resourceType.toString());
         }
     }
 
-    private Patient fetchPatient(String mbi) {
-        Bundle patients = null;
-        try {
-            patients = blueButtonClient.requestPatientFromServerByMbi(mbi);
-        } catch (GeneralSecurityException e) {
-            logger.error("Job {}, batch {}: Failed to retrieve Patient", jobID, batchID, e);
-            throw new ResourceNotFoundException("Failed to retrieve Patient");
-        }
-
-        if (patients.getTotal() == 1) {
-            return (Patient) patients.getEntryFirstRep().getResource();
-        }
-
-        logger.error("Job {}, batch {}: Expected 1 Patient to match MBI but found {}", jobID, batchID, patients.getTotal());
-        throw new ResourceNotFoundException(String.format("Expected 1 Patient to match MBI but found %d", patients.getTotal()));
-    }
-
     private String getBeneIdFromPatient(Patient patient) {
         return patient.getIdentifier().stream()
                 .filter(id -> DPCIdentifierSystem.BENE_ID.getSystem().equals(id.getSystem()))
@@ -161,19 +265,16 @@ class ResourceFetcher {
     }
 
     /**
-     * Add resources in a bundle to a list
+     * Verify that a resource from a bundle is of the type being fetched
      *
-     * @param resources - the list to add resources to
-     * @param bundle - the bundle to extract resources from
+     * @param resource - the resource to check
+     * @return the passed in resource
      */
-    private void addResources(ArrayList<Resource> resources, Bundle bundle) {
-        bundle.getEntry().forEach((entry) -> {
-            final var resource = entry.getResource();
-            if (resource.getResourceType() != resourceType) {
-                throw new DataFormatException(String.format("Unexpected resource type: got %s expected: %s", resource.getResourceType().toString(), resourceType.toString()));
-            }
-            resources.add(resource);
-        });
+    private ExportResource checkResourceType(ExportResource resource) {
+        if (resource.getResourceType() != resourceType) {
+            throw new DataFormatException(String.format("Unexpected resource type: got %s expected: %s", resource.getResourceType().toString(), resourceType.toString()));
+        }
+        return resource;
     }
 
     /**
@@ -202,4 +303,139 @@ class ResourceFetcher {
                 .setLocation(patientLocation);
         return outcome;
     }
+
+    /**
+     * A page of resources from BlueButton
+     */
+    private interface ResourcePage {
+
+        List<ExportResource> getEntries();
+
+        boolean hasNextPage();
+
+        ResourcePage requestNextPage();
+    }
+
+    /**
+     * A page of parsed resources
+     */
+    private class BundlePage implements ResourcePage {
+        private final Bundle bundle;
+
+        BundlePage(Bundle bundle) {
+            this.bundle = bundle;
+        }
+
+        @Override
+        public List<ExportResource> getEntries() {
+            return bundle.getEntry().stream()
+                    .map(entry -> ExportResource.parsed(entry.getResource()))
+                    .collect(Collectors.toList());
+        }
+
+        @Override
+        public boolean hasNextPage() {
+            return bundle.getLink(Bundle.LINK_NEXT) != null;
+        }
+
+        @Override
+        public ResourcePage requestNextPage() {
+            return new BundlePage(blueButtonClient.requestNextBundleFromServer(bundle));
+        }
+    }
+
+    /**
+     * A page of resources passed through as the JSON returned by BlueButton. Only the resource type of each resource is looked at.
+     */
+    private class RawPage implements ResourcePage {
+        private final RawBundle bundle;
+
+        RawPage(RawBundle bundle) {
+            this.bundle = bundle;
+        }
+
+        @Override
+        public List<ExportResource> getEntries() {
+            return bundle.getEntries().stream()
+                    .map(entry -> ExportResource.raw(toResourceType(entry.getResourceType()), entry.getJson()))
+                    .collect(Collectors.toList());
+        }
+
+        @Override
+        public boolean hasNextPage() {
+            return bundle.getNextLink().isPresent();
+        }
+
+        @Override
+        public ResourcePage requestNextPage() {
+            return new RawPage(blueButtonClient.requestNextRawBundleFromServer(bundle));
+        }
+
+        private ResourceType toResourceType(String name) {
+            try {
+                return ResourceType.valueOf(name);
+            } catch (IllegalArgumentException e) {
+                throw new DataFormatException(String.format("Unexpected resource type: got %s expected: %s", name, resourceType.toString()));
+            }
+        }
+    }
+
+    /**
+     * All the Coverage of a patient from the {@link CoverageCache}, as a single page
+     */
+    private static class CachedPage implements ResourcePage {
+        private final List<byte[]> resources;
+
+        CachedPage(List<byte[]> resources) {
+            this.resources = resources;
+        }
+
+        @Override
+        public List<ExportResource> getEntries() {
+            return resources.stream()
+                    .map(json -> ExportResource.raw(ResourceType.Coverage, json))
+                    .collect(Collectors.toList());
+        }
+
+        @Override
+        public boolean hasNextPage() {
+            return false;
+        }
+
+        @Override
+        public ResourcePage requestNextPage() {
+            throw new IllegalStateException("Cached Coverage has no next page");
+        }
+    }
+
+    /**
+     * Tracks the current page and the position within its entries. Only the current page is held on to.
+     */
+    private static class PageCursor {
+        private ResourcePage page;
+        private List<ExportResource> entries;
+        private int entryIndex;
+
+        PageCursor(ResourcePage page) {
+            nextPage(page);
+        }
+
+        ResourcePage getPage() {
+            return page;
+        }
+
+        boolean hasNextEntry() {
+            return entryIndex < entries.size();
+        }
+
+        ExportResource nextEntry() {
+            return entries.get(entryIndex++);
+        }
+
+        void nextPage(ResourcePage nextPage) {
+            this.page = nextPage;
+            this.entries = nextPage.getEntries();
+            this.entryIndex = 0;
+        }
+    }
 }
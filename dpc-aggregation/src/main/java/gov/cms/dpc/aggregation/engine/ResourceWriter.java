@@ -4,31 +4,25 @@ import ca.uhn.fhir.context.FhirContext;
 import gov.cms.dpc.queue.exceptions.JobQueueFailure;
 import gov.cms.dpc.queue.models.JobQueueBatch;
 import gov.cms.dpc.queue.models.JobQueueBatchFile;
-import org.hl7.fhir.dstu3.model.Resource;
 import org.hl7.fhir.dstu3.model.ResourceType;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.ByteArrayOutputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.OutputStream;
-import java.nio.charset.StandardCharsets;
 import java.util.List;
 import java.util.UUID;
-import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Writes files from batches of FHIR Resources
  */
 class ResourceWriter {
     private static final Logger logger = LoggerFactory.getLogger(ResourceWriter.class);
-    private static final char DELIM = '\n';
 
     private FhirContext fhirContext;
     private OperationsConfig config;
     private JobQueueBatch job;
     private ResourceType resourceType;
+    private BatchFileWriters fileWriters;
 
     /**
      * Form the full file name of an output file
@@ -47,15 +41,18 @@ class ResourceWriter {
      * @param config - config to use for the engine
      * @param job - the context for logging and reporting
      * @param resourceType - the resource type to fetch
+     * @param fileWriters - the open files of the batch
      */
     ResourceWriter(FhirContext fhirContext,
                     JobQueueBatch job,
                     ResourceType resourceType,
-                    OperationsConfig config) {
+                    OperationsConfig config,
+                    BatchFileWriters fileWriters) {
         this.fhirContext = fhirContext;
         this.config = config;
         this.job = job;
         this.resourceType = resourceType;
+        this.fileWriters = fileWriters;
     }
 
     /**
@@ -66,34 +63,30 @@ class ResourceWriter {
     }
 
     /**
-     * Write a batch of resources to a file.
+     * Write a batch of resources to a file. Appends to the file if resources have already been written to it.
+     * The resources are buffered by the open file, and only reach the file system once the file writers of the batch are flushed.
      *
+     * @param sequence is the sequence number of the file to write to
      * @param batch is the list of resources to write
-     * @param counter is general counter for batch number
      * @return The JobQueueBatchFile associated with this file
      */
-    JobQueueBatchFile writeBatch(AtomicInteger counter, List<Resource> batch) {
+    JobQueueBatchFile writeBatch(int sequence, List<ExportResource> batch) {
         try {
-            final var byteStream = new ByteArrayOutputStream();
-            final var sequence = counter.getAndIncrement();
             final var jsonParser = fhirContext.newJsonParser();
-            OutputStream writer = byteStream;
-            String outputPath = formOutputFilePath(config.getExportPath(), job.getBatchID(), resourceType, sequence);
             JobQueueBatchFile file = job.addJobQueueFile(resourceType, sequence, batch.size());
 
             boolean isStartOfFile = batch.size() == file.getCount();
-            Boolean shouldAppendToFile = !isStartOfFile;
+            if (isStartOfFile) {
+                // The compression of a file is fixed when it is started, and kept when the batch is resumed
+                file.setCompression(config.getExportCompression());
+            }
+            final var writer = fileWriters.open(file, isStartOfFile);
 
-            logger.debug("Start writing to {}", outputPath);
+            logger.debug("Start writing to {}", file.formOutputFilePath(config.getExportPath()));
             for (var resource: batch) {
-                final String str = jsonParser.encodeResourceToString(resource);
-                writer.write(str.getBytes(StandardCharsets.UTF_8));
-                writer.write(DELIM);
+                resource.writeTo(writer, jsonParser);
             }
-            writer.flush();
-            writer.close();
-            writeToFile(byteStream.toByteArray(), outputPath, shouldAppendToFile);
-            logger.debug("Finished writing to '{}'", outputPath);
+            logger.debug("Finished writing {} resources", batch.size());
 
             return file;
         } catch(IOException ex) {
@@ -104,22 +97,4 @@ class ResourceWriter {
             throw new JobQueueFailure(job.getJobID(), job.getBatchID(), "General failure consuming a resource", ex);
         }
     }
-
-    /**
-     * Write a array of bytes to a file. Name the file according to the supplied name
-     *
-     * @param bytes - Bytes to write
-     * @param fileName - The fileName to write too
-     * @param append - If the
-     * @throws IOException - If the write fails
-     */
-    private void writeToFile(byte[] bytes, String fileName, Boolean append) throws IOException {
-        if (bytes.length == 0) {
-            return;
-        }
-        try (final var outputFile = new FileOutputStream(fileName, append)) {
-            outputFile.write(bytes);
-            outputFile.flush();
-        }
-    }
 }
@@ -14,6 +14,8 @@ import gov.cms.dpc.queue.MemoryBatchQueue;
 import gov.cms.dpc.queue.exceptions.JobQueueFailure;
 import gov.cms.dpc.queue.models.JobQueueBatch;
 import gov.cms.dpc.testing.BufferedLoggerHandler;
+import io.github.resilience4j.circuitbreaker.CallNotPermittedException;
+import io.github.resilience4j.circuitbreaker.CircuitBreaker;
 import io.reactivex.disposables.Disposable;
 import org.hl7.fhir.dstu3.model.Patient;
 import org.hl7.fhir.dstu3.model.ResourceType;
@@ -29,9 +31,12 @@ import java.nio.file.Files;
 import java.nio.file.Path;
 import java.security.GeneralSecurityException;
 import java.util.*;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Collectors;
 
 import static org.junit.jupiter.api.Assertions.*;
 import static org.mockito.Mockito.*;
@@ -201,6 +206,142 @@ class AggregationEngineTest {
         assertFalse(Files.exists(Path.of(errorFilePath)), "expect no error file");
     }
 
+    /**
+     * Test that a patient is only looked up once per batch, no matter how many resource types are requested
+     */
+    @Test
+    void patientResolvedOnceTest() throws GeneralSecurityException {
+        final var orgID = UUID.randomUUID();
+
+        final var jobID = queue.createJob(
+                orgID,
+                TEST_PROVIDER_ID,
+                Collections.singletonList(MockBlueButtonClient.TEST_PATIENT_MBIS.get(0)),
+                JobQueueBatch.validResourceTypes
+        );
+
+        // Work the batch
+        queue.claimBatch(engine.getAggregatorID())
+                .ifPresent(engine::processJobBatch);
+
+        // Look at the result
+        final var completeJob = queue.getJobBatches(jobID).stream().findFirst().orElseThrow();
+        assertEquals(JobStatus.COMPLETED, completeJob.getStatus());
+        assertFalse(completeJob.getJobQueueFile(ResourceType.OperationOutcome).isPresent(), "expect no errors");
+        Mockito.verify(bbclient, times(1)).requestPatientsFromServerByMbiHashes(Set.of(MockBlueButtonClient.MBI_HASH_MAP.get(MockBlueButtonClient.TEST_PATIENT_MBIS.get(0))));
+        Mockito.verify(bbclient, never()).requestPatientFromServerByMbiHash(Mockito.anyString());
+    }
+
+    /**
+     * Test that the patients of a batch are resolved together, with mismatches reported per patient
+     */
+    @Test
+    void patientsResolvedInBulkTest() throws GeneralSecurityException {
+        final List<String> mbis = new ArrayList<>(MockBlueButtonClient.TEST_PATIENT_MBIS);
+        mbis.add(MockBlueButtonClient.MULTIPLE_RESULTS_MBI);
+        mbis.add("-1");
+
+        final var jobID = queue.createJob(
+                UUID.randomUUID(),
+                TEST_PROVIDER_ID,
+                mbis,
+                Collections.singletonList(ResourceType.Patient)
+        );
+
+        // Work the batch
+        queue.claimBatch(engine.getAggregatorID())
+                .ifPresent(engine::processJobBatch);
+
+        // All the patients are looked up in a single search
+        Mockito.verify(bbclient, times(1)).requestPatientsFromServerByMbiHashes(Mockito.anyCollection());
+        Mockito.verify(bbclient, never()).requestPatientFromServerByMbiHash(Mockito.anyString());
+
+        final var completeJob = queue.getJobBatches(jobID).stream().findFirst().orElseThrow();
+        assertAll(() -> assertEquals(JobStatus.COMPLETED, completeJob.getStatus()),
+                () -> assertEquals(2, completeJob.getJobQueueFile(ResourceType.Patient).orElseThrow().getCount(), "expected the 2 matched patients"),
+                () -> assertEquals(2, completeJob.getJobQueueFile(ResourceType.OperationOutcome).orElseThrow().getCount(), "expected an error for each mismatched patient"));
+    }
+
+    /**
+     * Test that the progress of a batch is only saved at the configured patient interval
+     */
+    @Test
+    void checkpointIntervalTest() {
+        final var checkpointConfig = new OperationsConfig.Builder(1000, exportPath).pollingFrequency(500).checkpointPatientInterval(2).build();
+        final var checkpointEngine = new AggregationEngine(aggregatorID, bbclient, queue, fhirContext, metricRegistry, checkpointConfig);
+        checkpointEngine.queueRunning.set(true);
+
+        final var jobID = queue.createJob(
+                UUID.randomUUID(),
+                TEST_PROVIDER_ID,
+                MockBlueButtonClient.TEST_PATIENT_WITH_BAD_IDS,
+                Collections.singletonList(ResourceType.Patient)
+        );
+
+        queue.claimBatch(checkpointEngine.getAggregatorID())
+                .ifPresent(checkpointEngine::processJobBatch);
+
+        // 5 patients, checkpointed after the 2nd and 4th, with the 5th saved by completing the batch
+        final var completeJob = queue.getJobBatches(jobID).stream().findFirst().orElseThrow();
+        assertEquals(JobStatus.COMPLETED, completeJob.getStatus());
+        verify(queue, times(2)).completePartialBatch(any(JobQueueBatch.class), any(UUID.class));
+    }
+
+    /**
+     * Test if the engine can work multiple batches at the same time when configured with worker slots
+     */
+    @Test
+    void multipleWorkerSlotsTest() throws InterruptedException {
+        final var orgID = UUID.randomUUID();
+        final var slotConfig = new OperationsConfig.Builder(1000, exportPath).pollingFrequency(50).workerSlots(2).build();
+        // Each slot waits in its first batch for the other slot to start one, which only happens if the slots run at the same time
+        final var bothSlotsStarted = new CountDownLatch(2);
+        final var concurrent = new AtomicBoolean();
+        final var slotEngine = new AggregationEngine(aggregatorID, bbclient, queue, fhirContext, metricRegistry, slotConfig) {
+            @Override
+            protected void processJobBatch(JobQueueBatch job) {
+                bothSlotsStarted.countDown();
+                try {
+                    if (bothSlotsStarted.await(5, TimeUnit.SECONDS)) {
+                        concurrent.set(true);
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                super.processJobBatch(job);
+            }
+        };
+
+        // Make a job for each of the test patients, so there are multiple batches to claim
+        final var jobIDs = MockBlueButtonClient.TEST_PATIENT_MBIS.stream()
+                .map(mbi -> queue.createJob(
+                        orgID,
+                        TEST_PROVIDER_ID,
+                        Collections.singletonList(mbi),
+                        JobQueueBatch.validResourceTypes))
+                .collect(Collectors.toList());
+
+        slotEngine.pollQueue();
+
+        // Wait for the slots to finish the batches
+        final var deadline = System.currentTimeMillis() + 10000;
+        while (queue.queueSize() > 0 || !allBatchesComplete(jobIDs)) {
+            assertTrue(System.currentTimeMillis() < deadline, "Worker slots should finish the batches");
+            Thread.sleep(100);
+        }
+        slotEngine.stop();
+        assertTrue(concurrent.get(), "Should work batches in two slots at the same time");
+
+        jobIDs.forEach(jobID -> {
+            final var completeJob = queue.getJobBatches(jobID).stream().findFirst().orElseThrow();
+            assertEquals(JobStatus.COMPLETED, completeJob.getStatus());
+            JobQueueBatch.validResourceTypes.forEach(resourceType -> {
+                var outputFilePath = ResourceWriter.formOutputFilePath(exportPath, completeJob.getBatchID(), resourceType, 0);
+                assertTrue(Files.exists(Path.of(outputFilePath)));
+            });
+        });
+    }
+
     /**
      * Test if the engine can handle a job with multiple output files and patients
      */
@@ -285,6 +426,72 @@ class AggregationEngineTest {
         });
     }
 
+    /**
+     * Test that a batch is paused, rather than failed or completed, while BlueButton is unavailable
+     */
+    @Test
+    void pauseJobWhenBlueButtonUnavailableTest() {
+        final var orgID = UUID.randomUUID();
+
+        final var jobID = queue.createJob(
+                orgID,
+                TEST_PROVIDER_ID,
+                new ArrayList<>(MockBlueButtonClient.MBI_BENE_ID_MAP.keySet()),
+                Collections.singletonList(ResourceType.Patient)
+        );
+
+        // The circuit breaker opens while the first patient is processed
+        doReturn(false).when(bbclient).isAvailable();
+        queue.claimBatch(engine.getAggregatorID())
+                .ifPresent(engine::processJobBatch);
+
+        final var batch = queue.getJobBatches(jobID).stream().findFirst().orElseThrow();
+        assertAll(
+                () -> assertTrue(engine.isRunning(), "Should keep the engine running"),
+                () -> assertEquals(JobStatus.QUEUED, batch.getStatus()),
+                () -> assertTrue(batch.getAggregatorID().isEmpty(), "Should release the batch"),
+                () -> assertEquals(0, batch.getPatientIndex().get(), "Has processed one patient before pausing")
+        );
+    }
+
+    /**
+     * Test that a batch goes back to its last checkpoint and is paused, rather than written as errors, when the circuit
+     * breaker on BlueButton opens in the middle of a patient
+     */
+    @Test
+    void pauseJobWhenCircuitBreakerOpensTest() {
+        final var orgID = UUID.randomUUID();
+
+        final var jobID = queue.createJob(
+                orgID,
+                TEST_PROVIDER_ID,
+                new ArrayList<>(MockBlueButtonClient.MBI_BENE_ID_MAP.keySet()),
+                List.of(ResourceType.Patient, ResourceType.ExplanationOfBenefit)
+        );
+
+        // The breaker opens after the first patient, while the EOBs of the second patient are fetched
+        final var circuitBreaker = CircuitBreaker.ofDefaults("bluebutton");
+        circuitBreaker.transitionToForcedOpenState();
+        final CallNotPermittedException notPermitted = assertThrows(CallNotPermittedException.class,
+                () -> circuitBreaker.executeSupplier(() -> null));
+        doCallRealMethod().doThrow(notPermitted).when(bbclient).requestEOBFromServer(anyString());
+
+        queue.claimBatch(engine.getAggregatorID())
+                .ifPresent(engine::processJobBatch);
+
+        final var batch = queue.getJobBatches(jobID).stream().findFirst().orElseThrow();
+        assertAll(
+                () -> assertTrue(engine.isRunning(), "Should keep the engine running"),
+                () -> assertEquals(JobStatus.QUEUED, batch.getStatus(), "Should pause the batch"),
+                () -> assertTrue(batch.getAggregatorID().isEmpty(), "Should release the batch"),
+                () -> assertEquals(0, batch.getPatientIndex().get(), "Should not advance past the patient that was stopped"),
+                () -> assertEquals(1, batch.getJobQueueFile(ResourceType.Patient).orElseThrow().getCount(), "Should drop the Patient of the patient that was stopped"),
+                () -> assertTrue(batch.getJobQueueFile(ResourceType.OperationOutcome).isEmpty(), "Should not write the stopped patient as an error")
+        );
+        verify(queue).pauseBatch(any(JobQueueBatch.class), eq(aggregatorID));
+        verify(queue, never()).failBatch(any(JobQueueBatch.class), any(UUID.class));
+    }
+
     /**
      * Test if the engine can handle appending to a batch file with multiple patients
      */
@@ -430,14 +637,14 @@ class AggregationEngineTest {
         assertAll(() -> assertTrue(queue.getJobBatches(jobID).stream().findFirst().isPresent()),
                 () -> assertEquals(JobStatus.COMPLETED, queue.getJobBatches(jobID).stream().findFirst().get().getStatus()));
 
-        // Check that the bad ID was called 3 times
-        ArgumentCaptor<String> idCaptor = ArgumentCaptor.forClass(String.class);
-        Mockito.verify(bbclient, atLeastOnce()).requestPatientFromServerByMbi(idCaptor.capture());
-        Mockito.verify(bbclient, atLeastOnce()).requestEOBFromServer(idCaptor.capture());
-        var values = idCaptor.getAllValues();
-        assertEquals(2,
-                values.stream().filter(value -> value.equals("-1")).count(),
-                "Should be 2 invalid ids, 2 method calls x 1 bad-id");
+        // Check that the bad ID was only looked up once, and shared by both resource types
+        ArgumentCaptor<Collection<String>> hashCaptor = ArgumentCaptor.forClass(Collection.class);
+        Mockito.verify(bbclient, atLeastOnce()).requestPatientsFromServerByMbiHashes(hashCaptor.capture());
+        Mockito.verify(bbclient, never()).requestPatientFromServerByMbiHash(Mockito.anyString());
+        final String badHash = bbclient.hashMbi("-1");
+        assertEquals(1,
+                hashCaptor.getAllValues().stream().flatMap(Collection::stream).filter(value -> value.equals(badHash)).count(),
+                "Should be 1 invalid id, 1 patient lookup x 1 bad-id");
 
         // Look at the result. It should have one error, but be successful otherwise.
         assertTrue(queue.getJobBatches(jobID).stream().findFirst().isPresent());
@@ -512,6 +719,12 @@ class AggregationEngineTest {
         Assert.assertFalse(healthCheck.check().isHealthy());
     }
 
+    private boolean allBatchesComplete(List<UUID> jobIDs) {
+        return jobIDs.stream()
+                .flatMap(jobID -> queue.getJobBatches(jobID).stream())
+                .allMatch(batch -> batch.getStatus() == JobStatus.COMPLETED);
+    }
+
     private void testWithThrowable(Throwable throwable) throws GeneralSecurityException {
         Mockito.reset(bbclient);
         // Override throwing an error on fetching a patient
@@ -536,9 +749,10 @@ class AggregationEngineTest {
                 () -> assertEquals(JobStatus.COMPLETED, queue.getJobBatches(jobID).stream().findFirst().get().getStatus()));
 
         // Check that the bad ID was called 3 times
-        ArgumentCaptor<String> idCaptor = ArgumentCaptor.forClass(String.class);
-        Mockito.verify(bbclient, atLeastOnce()).requestPatientFromServerByMbi(idCaptor.capture());
-        assertEquals(1, idCaptor.getAllValues().stream().filter(value -> value.equals("1")).count(), "Should have been called once to get the patient, but with errors instead");
+        ArgumentCaptor<Collection<String>> hashCaptor = ArgumentCaptor.forClass(Collection.class);
+        Mockito.verify(bbclient, atLeastOnce()).requestPatientsFromServerByMbiHashes(hashCaptor.capture());
+        final String badHash = bbclient.hashMbi("1");
+        assertEquals(1, hashCaptor.getAllValues().stream().flatMap(Collection::stream).filter(value -> value.equals(badHash)).count(), "Should have been called once to get the patient, but with errors instead");
 
         // Look at the result. It should have one error, but be successful otherwise.
         assertTrue(queue.getJobBatches(jobID).stream().findFirst().isPresent());
@@ -9,10 +9,12 @@ import gov.cms.dpc.fhir.hapi.ContextUtils;
 import gov.cms.dpc.queue.IJobQueue;
 import gov.cms.dpc.queue.JobStatus;
 import gov.cms.dpc.queue.MemoryBatchQueue;
+import gov.cms.dpc.queue.models.ExportCompression;
 import gov.cms.dpc.queue.models.JobQueueBatch;
 import gov.cms.dpc.queue.models.JobQueueBatchFile;
 import gov.cms.dpc.testing.BufferedLoggerHandler;
 import io.reactivex.disposables.Disposable;
+import org.bouncycastle.jcajce.provider.digest.SHA256;
 import org.hl7.fhir.dstu3.model.ResourceType;
 import org.junit.jupiter.api.BeforeAll;
 import org.junit.jupiter.api.BeforeEach;
@@ -21,6 +23,10 @@ import org.junit.jupiter.api.extension.ExtendWith;
 import org.mockito.Mockito;
 
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.Collections;
@@ -28,6 +34,7 @@ import java.util.Comparator;
 import java.util.List;
 import java.util.UUID;
 import java.util.stream.Collectors;
+import java.util.zip.GZIPInputStream;
 
 import static org.junit.jupiter.api.Assertions.*;
 import static org.mockito.Mockito.doReturn;
@@ -99,6 +106,47 @@ class BatchAggregationEngineTest {
         assertFalse(Files.exists(Path.of(errorFilePath)), "expect no error file");
     }
 
+    /**
+     * Test that a job written with gzip compression produces the same NDJSON content, with checksums of both forms
+     */
+    @Test
+    void compressedJobTest() throws IOException {
+        final var orgID = UUID.randomUUID();
+        final var jobID = queue.createJob(
+                orgID,
+                TEST_PROVIDER_ID,
+                MockBlueButtonClient.TEST_PATIENT_MBIS,
+                JobQueueBatch.validResourceTypes
+        );
+        final var compressedConfig = new OperationsConfig.Builder(10, exportPath).exportCompression(ExportCompression.GZIP).build();
+        final var compressedEngine = new AggregationEngine(aggregatorID, Mockito.spy(new MockBlueButtonClient(fhirContext)), queue, fhirContext, metricRegistry, compressedConfig);
+        compressedEngine.queueRunning.set(true);
+        compressedEngine.setSubscribe(subscribe);
+
+        queue.claimBatch(compressedEngine.getAggregatorID())
+                .ifPresent(compressedEngine::processJobBatch);
+
+        final var completeJob = queue.getJobBatches(jobID).stream().findFirst().orElseThrow();
+        assertEquals(JobStatus.COMPLETED, completeJob.getStatus());
+        assertFalse(completeJob.getJobQueueBatchFiles().isEmpty(), "Should have files");
+        for (JobQueueBatchFile batchFile : completeJob.getJobQueueBatchFiles()) {
+            final File file = new File(batchFile.formOutputFilePath(exportPath));
+            final byte[] content;
+            try (InputStream input = new GZIPInputStream(new FileInputStream(file))) {
+                content = input.readAllBytes();
+            }
+            final long lines = new String(content, StandardCharsets.UTF_8).lines().count();
+            assertAll(() -> assertEquals(ExportCompression.GZIP, batchFile.getCompression(), "Should be compressed"),
+                    () -> assertTrue(file.getName().endsWith(".ndjson.gz"), "Should have the gzip extension"),
+                    () -> assertEquals(batchFile.getCount(), lines, "Should have a line per resource"),
+                    () -> assertArrayEquals(AggregationEngine.generateChecksum(file), batchFile.getChecksum(), "Should have checksum of the stored file"),
+                    () -> assertEquals(file.length(), batchFile.getFileLength(), "Should have the stored file length"),
+                    () -> assertArrayEquals(new SHA256.Digest().digest(content), batchFile.getUncompressedChecksum(), "Should have checksum of the content"),
+                    () -> assertEquals(content.length, batchFile.getUncompressedLength(), "Should have the content length"),
+                    () -> assertTrue(batchFile.getFileLength() < batchFile.getUncompressedLength(), "Should be smaller than the content"));
+        }
+    }
+
     /**
      * Test if a engine can handle a simple job with one resource type, one test provider, and one patient.
      */
@@ -167,4 +215,59 @@ class BatchAggregationEngineTest {
         final var errorFilePath = ResourceWriter.formOutputFilePath(exportPath, completeJob.getBatchID(), ResourceType.OperationOutcome, 0);
         assertTrue(Files.exists(Path.of(errorFilePath)), "expect no error file");
     }
+
+    /**
+     * Test if a engine fetching patients concurrently writes the same files as a sequential engine
+     */
+    @Test
+    void concurrentPatientJobTest() throws IOException {
+        final var concurrentConfig = new OperationsConfig.Builder(10, exportPath).patientConcurrency(3).build();
+        final var concurrentEngine = new AggregationEngine(aggregatorID, Mockito.spy(new MockBlueButtonClient(fhirContext)), queue, fhirContext, metricRegistry, concurrentConfig);
+        concurrentEngine.queueRunning.set(true);
+
+        final var orgID = UUID.randomUUID();
+        final var resourceTypes = List.of(ResourceType.Patient, ResourceType.ExplanationOfBenefit);
+        final var sequentialJobID = queue.createJob(orgID, TEST_PROVIDER_ID, MockBlueButtonClient.TEST_PATIENT_WITH_BAD_IDS, resourceTypes);
+        queue.claimBatch(engine.getAggregatorID())
+                .ifPresent(engine::processJobBatch);
+        final var concurrentJobID = queue.createJob(orgID, TEST_PROVIDER_ID, MockBlueButtonClient.TEST_PATIENT_WITH_BAD_IDS, resourceTypes);
+        queue.claimBatch(concurrentEngine.getAggregatorID())
+                .ifPresent(concurrentEngine::processJobBatch);
+
+        // Look at the result
+        final var sequentialJob = queue.getJobBatches(sequentialJobID).stream().findFirst().orElseThrow();
+        final var concurrentJob = queue.getJobBatches(concurrentJobID).stream().findFirst().orElseThrow();
+        assertAll(() -> assertEquals(JobStatus.COMPLETED, concurrentJob.getStatus()),
+                () -> assertEquals(sequentialJob.getJobQueueBatchFiles().size(), concurrentJob.getJobQueueBatchFiles().size(), "Should have the same files"));
+
+        // The output should be identical, file by file
+        for (JobQueueBatchFile sequentialFile : sequentialJob.getJobQueueBatchFiles()) {
+            final var concurrentFile = concurrentJob.getJobQueueFile(JobQueueBatchFile.formOutputFileName(concurrentJob.getBatchID(), sequentialFile.getResourceType(), sequentialFile.getSequence())).orElseThrow();
+            final var sequentialPath = ResourceWriter.formOutputFilePath(exportPath, sequentialJob.getBatchID(), sequentialFile.getResourceType(), sequentialFile.getSequence());
+            final var concurrentPath = ResourceWriter.formOutputFilePath(exportPath, concurrentJob.getBatchID(), concurrentFile.getResourceType(), concurrentFile.getSequence());
+            assertEquals(sequentialFile.getCount(), concurrentFile.getCount(), "Should have the same count");
+            assertEquals(Files.readString(Path.of(sequentialPath)), Files.readString(Path.of(concurrentPath)), "Should have the same content");
+        }
+    }
+
+    /**
+     * Test if a engine fetching patients concurrently only checkpoints the patients it has written when paused
+     */
+    @Test
+    void concurrentPatientPauseTest() {
+        final var concurrentConfig = new OperationsConfig.Builder(10, exportPath).patientConcurrency(3).build();
+        final var concurrentEngine = new AggregationEngine(aggregatorID, Mockito.spy(new MockBlueButtonClient(fhirContext)), queue, fhirContext, metricRegistry, concurrentConfig);
+        concurrentEngine.setSubscribe(subscribe);
+
+        final var jobID = queue.createJob(UUID.randomUUID(), TEST_PROVIDER_ID, MockBlueButtonClient.TEST_PATIENT_WITH_BAD_IDS, List.of(ResourceType.Patient));
+
+        // Stop the engine before working the batch
+        concurrentEngine.stop();
+        queue.claimBatch(concurrentEngine.getAggregatorID())
+                .ifPresent(concurrentEngine::processJobBatch);
+
+        final var pausedJob = queue.getJobBatches(jobID).stream().findFirst().orElseThrow();
+        assertAll(() -> assertEquals(JobStatus.QUEUED, pausedJob.getStatus()),
+                () -> assertEquals(0, pausedJob.getPatientIndex().orElseThrow(), "Has processed one patient before pausing"));
+    }
 }
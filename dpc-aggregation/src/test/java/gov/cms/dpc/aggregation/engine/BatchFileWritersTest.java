@@ -0,0 +1,229 @@
+package gov.cms.dpc.aggregation.engine;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.IParser;
+import gov.cms.dpc.queue.models.ExportCompression;
+import gov.cms.dpc.queue.models.JobQueueBatchFile;
+import gov.cms.dpc.testing.BufferedLoggerHandler;
+import org.bouncycastle.jcajce.provider.digest.SHA256;
+import org.hl7.fhir.dstu3.model.Patient;
+import org.hl7.fhir.dstu3.model.ResourceType;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Collectors;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@ExtendWith(BufferedLoggerHandler.class)
+class BatchFileWritersTest {
+
+    private static final FhirContext fhirContext = FhirContext.forDstu3();
+    private IParser parser;
+    private UUID batchID;
+    private Map<Integer, JobQueueBatchFile> files;
+
+    @TempDir
+    Path exportPath;
+
+    @BeforeEach
+    void setupEach() {
+        parser = fhirContext.newJsonParser();
+        batchID = UUID.randomUUID();
+        files = new HashMap<>();
+    }
+
+    @Test
+    void testWritesOnFlush() throws IOException {
+        try (final var writers = new BatchFileWriters(exportPath.toString(), new DirectBufferPool(64 * 1024, 2))) {
+            final var writer = writers.open(file(ResourceType.Patient, 0), true);
+            writer.write(parser, createPatient("1"));
+            writer.write(parser, createPatient("2"));
+            assertEquals(0, Files.size(filePath(ResourceType.Patient, 0)), "Should not write before a flush");
+
+            writers.flush();
+            assertEquals(List.of("1", "2"), readPatientIDs(ResourceType.Patient, 0), "Should have written both patients");
+        }
+    }
+
+    @Test
+    void testResourcesLargerThanBuffer() throws IOException {
+        try (final var writers = new BatchFileWriters(exportPath.toString(), new DirectBufferPool(16, 2))) {
+            final var writer = writers.open(file(ResourceType.Patient, 0), true);
+            writer.write(parser, createPatient("1"));
+            writer.write(parser, createPatient("2"));
+            writers.force();
+            assertEquals(List.of("1", "2"), readPatientIDs(ResourceType.Patient, 0), "Should have written both patients");
+        }
+    }
+
+    @Test
+    void testNewSequenceClosesPreviousFile() throws IOException {
+        try (final var writers = new BatchFileWriters(exportPath.toString(), new DirectBufferPool(64 * 1024, 2))) {
+            writers.open(file(ResourceType.Patient, 0), true).write(parser, createPatient("1"));
+            assertSame(writers.open(file(ResourceType.Patient, 0), false), writers.open(file(ResourceType.Patient, 0), false), "Should reuse the open file");
+
+            writers.open(file(ResourceType.Patient, 1), true).write(parser, createPatient("2"));
+            assertEquals(List.of("1"), readPatientIDs(ResourceType.Patient, 0), "Should have closed the first file");
+        }
+        assertEquals(List.of("2"), readPatientIDs(ResourceType.Patient, 1), "Should flush the open file on close");
+    }
+
+    @Test
+    void testAppendAndTruncate() throws IOException {
+        final var bufferPool = new DirectBufferPool(64 * 1024, 2);
+        try (final var writers = new BatchFileWriters(exportPath.toString(), bufferPool)) {
+            writers.open(file(ResourceType.Patient, 0), true).write(parser, createPatient("1"));
+        }
+        try (final var writers = new BatchFileWriters(exportPath.toString(), bufferPool)) {
+            writers.open(file(ResourceType.Patient, 0), false).write(parser, createPatient("2"));
+        }
+        assertEquals(List.of("1", "2"), readPatientIDs(ResourceType.Patient, 0), "Should append to the existing file");
+
+        try (final var writers = new BatchFileWriters(exportPath.toString(), bufferPool)) {
+            writers.open(file(ResourceType.Patient, 0), true).write(parser, createPatient("3"));
+        }
+        assertEquals(List.of("3"), readPatientIDs(ResourceType.Patient, 0), "Should drop the existing content when starting the file");
+    }
+
+    @Test
+    void testChecksumTrackedAcrossAppends() throws IOException {
+        final var bufferPool = new DirectBufferPool(16, 2);
+        try (final var writers = new BatchFileWriters(exportPath.toString(), bufferPool)) {
+            writers.open(file(ResourceType.Patient, 0), true).write(parser, createPatient("1"));
+        }
+        final var record = file(ResourceType.Patient, 0);
+        assertNotNull(record.getDigestState(), "Should save the digest state on close");
+        assertEquals(Files.size(filePath(ResourceType.Patient, 0)), record.getFileLength(), "Should track the file length");
+
+        // Appending resumes from the saved digest state
+        try (final var writers = new BatchFileWriters(exportPath.toString(), bufferPool)) {
+            writers.open(record, false).write(parser, createPatient("2"));
+        }
+        FileDigest.complete(record, filePath(ResourceType.Patient, 0));
+        final var path = filePath(ResourceType.Patient, 0);
+        assertAll(() -> assertArrayEquals(AggregationEngine.generateChecksum(path.toFile()), record.getChecksum(), "Should have the checksum of the whole file"),
+                () -> assertEquals(Files.size(path), record.getFileLength(), "Should have the length of the whole file"));
+    }
+
+    @Test
+    void testResumeTruncatesToCheckpoint() throws IOException {
+        final var bufferPool = new DirectBufferPool(16, 2);
+        final var record = file(ResourceType.Patient, 0);
+        try (final var writers = new BatchFileWriters(exportPath.toString(), bufferPool)) {
+            writers.open(record, true).write(parser, createPatient("1"));
+        }
+        // The record as saved by the last checkpoint
+        final var checkpoint = new JobQueueBatchFile(record.getJobID(), batchID, ResourceType.Patient, 0, 1);
+        checkpoint.setFileLength(record.getFileLength());
+        checkpoint.setDigestState(record.getDigestState());
+
+        // Written by an aggregator that lost the batch before its next checkpoint
+        try (final var writers = new BatchFileWriters(exportPath.toString(), bufferPool)) {
+            writers.open(record, false).write(parser, createPatient("2"));
+        }
+
+        // The batch is resumed from the checkpoint
+        try (final var writers = new BatchFileWriters(exportPath.toString(), bufferPool)) {
+            writers.open(checkpoint, false).write(parser, createPatient("3"));
+        }
+        final var path = filePath(ResourceType.Patient, 0);
+        FileDigest.complete(checkpoint, path);
+        assertAll(() -> assertEquals(List.of("1", "3"), readPatientIDs(ResourceType.Patient, 0), "Should drop what was written after the checkpoint"),
+                () -> assertArrayEquals(AggregationEngine.generateChecksum(path.toFile()), checkpoint.getChecksum(), "Should continue the checksum from the checkpoint"));
+    }
+
+    @Test
+    void testDiscard() throws IOException {
+        final var writers = new BatchFileWriters(exportPath.toString(), new DirectBufferPool(64 * 1024, 2));
+        writers.open(file(ResourceType.Patient, 0), true).write(parser, createPatient("1"));
+        writers.discard();
+        writers.close();
+        assertEquals(0, Files.size(filePath(ResourceType.Patient, 0)), "Should not write what was still buffered");
+    }
+
+    @Test
+    void testLostBatchNotWritten() throws IOException {
+        final var lost = new AtomicBoolean();
+        final var writers = new BatchFileWriters(exportPath.toString(), new DirectBufferPool(16, 2), lost::get);
+        final var writer = writers.open(file(ResourceType.Patient, 0), true);
+        writer.write(parser, createPatient("1"));
+        writers.flush();
+        final long flushedLength = Files.size(filePath(ResourceType.Patient, 0));
+
+        // Another aggregator now owns the file, so not even a full buffer may be written to it
+        lost.set(true);
+        final byte[] json = parser.encodeResourceToString(createPatient("2")).getBytes(StandardCharsets.UTF_8);
+        assertThrows(IOException.class, () -> writer.writeRaw(json), "Should not write to the file of a lost batch");
+        writers.discard();
+        assertEquals(flushedLength, Files.size(filePath(ResourceType.Patient, 0)), "Should not have written after the batch was lost");
+    }
+
+    @Test
+    void testCompressedAppend() throws IOException {
+        final var bufferPool = new DirectBufferPool(16, 2);
+        final var record = file(ResourceType.Patient, 0);
+        record.setCompression(ExportCompression.GZIP);
+        try (final var writers = new BatchFileWriters(exportPath.toString(), bufferPool)) {
+            final var writer = writers.open(record, true);
+            writer.write(parser, createPatient("1"));
+            writers.flush();
+            writer.write(parser, createPatient("2"));
+        }
+        // A resumed batch appends another gzip member
+        try (final var writers = new BatchFileWriters(exportPath.toString(), bufferPool)) {
+            writers.open(record, false).write(parser, createPatient("3"));
+        }
+
+        final var path = Path.of(record.formOutputFilePath(exportPath.toString()));
+        final byte[] content;
+        try (InputStream input = new GZIPInputStream(Files.newInputStream(path))) {
+            content = input.readAllBytes();
+        }
+        final List<String> ids = new String(content, StandardCharsets.UTF_8).lines()
+                .map(line -> parser.parseResource(Patient.class, line).getIdElement().getIdPart())
+                .collect(Collectors.toList());
+        FileDigest.complete(record, path);
+        assertAll(() -> assertEquals(List.of("1", "2", "3"), ids, "Should have all the patients"),
+                () -> assertEquals(Files.size(path), record.getFileLength(), "Should have the stored length"),
+                () -> assertArrayEquals(AggregationEngine.generateChecksum(path.toFile()), record.getChecksum(), "Should have the checksum of the stored file"),
+                () -> assertEquals(content.length, record.getUncompressedLength(), "Should have the uncompressed length"),
+                () -> assertArrayEquals(new SHA256.Digest().digest(content), record.getUncompressedChecksum(), "Should have the checksum of the content"));
+    }
+
+    private JobQueueBatchFile file(ResourceType resourceType, int sequence) {
+        return files.computeIfAbsent(sequence, key -> new JobQueueBatchFile(UUID.randomUUID(), batchID, resourceType, sequence, 0));
+    }
+
+    private Patient createPatient(String id) {
+        final var patient = new Patient();
+        patient.setId(id);
+        patient.addName().setFamily("Patient-" + id);
+        return patient;
+    }
+
+    private Path filePath(ResourceType resourceType, int sequence) {
+        return Path.of(ResourceWriter.formOutputFilePath(exportPath.toString(), batchID, resourceType, sequence));
+    }
+
+    private List<String> readPatientIDs(ResourceType resourceType, int sequence) throws IOException {
+        final var parser = fhirContext.newJsonParser();
+        return Files.readAllLines(filePath(resourceType, sequence))
+                .stream()
+                .map(line -> parser.parseResource(Patient.class, line).getIdElement().getIdPart())
+                .collect(Collectors.toList());
+    }
+}
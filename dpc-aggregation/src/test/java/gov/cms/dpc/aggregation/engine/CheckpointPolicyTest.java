@@ -0,0 +1,39 @@
+package gov.cms.dpc.aggregation.engine;
+
+import gov.cms.dpc.testing.BufferedLoggerHandler;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+@ExtendWith(BufferedLoggerHandler.class)
+class CheckpointPolicyTest {
+
+    @Test
+    void testPatientInterval() {
+        final var policy = new CheckpointPolicy(3, 0, () -> 0L);
+
+        assertFalse(policy.patientWritten(), "Should not checkpoint after 1 patient");
+        assertFalse(policy.patientWritten(), "Should not checkpoint after 2 patients");
+        assertTrue(policy.patientWritten(), "Should checkpoint after 3 patients");
+        policy.checkpointed();
+        assertFalse(policy.patientWritten(), "Should restart the count after a checkpoint");
+    }
+
+    @Test
+    void testTimeInterval() {
+        final var clock = new AtomicLong();
+        final var policy = new CheckpointPolicy(100, 5, clock::get);
+
+        clock.addAndGet(TimeUnit.SECONDS.toNanos(4));
+        assertFalse(policy.patientWritten(), "Should not checkpoint before the interval");
+        clock.addAndGet(TimeUnit.SECONDS.toNanos(1));
+        assertTrue(policy.patientWritten(), "Should checkpoint once the interval has passed");
+        policy.checkpointed();
+        assertFalse(policy.patientWritten(), "Should restart the interval after a checkpoint");
+    }
+}
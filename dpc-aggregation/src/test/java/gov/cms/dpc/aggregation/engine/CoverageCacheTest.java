@@ -0,0 +1,173 @@
+package gov.cms.dpc.aggregation.engine;
+
+import ca.uhn.fhir.context.FhirContext;
+import com.codahale.metrics.MetricRegistry;
+import gov.cms.dpc.bluebutton.client.BlueButtonClient;
+import gov.cms.dpc.bluebutton.client.MockBlueButtonClient;
+import gov.cms.dpc.bluebutton.client.RawBundle;
+import gov.cms.dpc.testing.BufferedLoggerHandler;
+import org.hl7.fhir.dstu3.model.Bundle;
+import org.hl7.fhir.dstu3.model.Coverage;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.junit.jupiter.api.io.TempDir;
+import org.mockito.Mockito;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Date;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+
+@ExtendWith(BufferedLoggerHandler.class)
+class CoverageCacheTest {
+
+    private static final FhirContext fhirContext = FhirContext.forDstu3();
+    private static final String BENE_ID = MockBlueButtonClient.MBI_BENE_ID_MAP.get(MockBlueButtonClient.TEST_PATIENT_MBIS.get(0));
+    private static final String OTHER_BENE_ID = MockBlueButtonClient.MBI_BENE_ID_MAP.get(MockBlueButtonClient.TEST_PATIENT_MBIS.get(1));
+    private static final Duration TTL = Duration.ofHours(1);
+    private static final Duration MAX_AGE = Duration.ofDays(1);
+
+    @TempDir
+    Path directory;
+    private BlueButtonClient bbclient;
+    private Clock clock;
+    private MetricRegistry metricRegistry;
+
+    @BeforeEach
+    void setupEach() {
+        bbclient = Mockito.spy(new MockBlueButtonClient(fhirContext));
+        clock = Mockito.mock(Clock.class);
+        Mockito.when(clock.instant()).thenReturn(Instant.parse("2020-06-01T00:00:00Z"));
+        metricRegistry = new MetricRegistry();
+    }
+
+    @Test
+    void testMissThenHit() throws IOException {
+        final var cache = createCache(Long.MAX_VALUE);
+
+        final List<byte[]> fetched = cache.getCoverage(BENE_ID);
+        final List<byte[]> cached = cache.getCoverage(BENE_ID);
+        assertAll(() -> assertFalse(fetched.isEmpty(), "Should have the Coverage of the patient"),
+                () -> assertEquals(fetched.size(), cached.size(), "Should read back the same Coverage"),
+                () -> assertArrayEquals(fetched.get(0), cached.get(0)),
+                () -> assertEquals(1, getMeter("misses")),
+                () -> assertEquals(1, getMeter("hits")));
+        Mockito.verify(bbclient, times(1)).requestRawCoverageFromServer(BENE_ID);
+        Mockito.verify(bbclient, never()).requestRawCoverageUpdatedSince(anyString(), any(Instant.class));
+    }
+
+    @Test
+    void testRevalidatedAfterTTL() throws IOException {
+        final var cache = createCache(Long.MAX_VALUE);
+        final List<byte[]> fetched = cache.getCoverage(BENE_ID);
+
+        advance(TTL.plusSeconds(1));
+        assertEquals(fetched.size(), cache.getCoverage(BENE_ID).size());
+        assertEquals(1, getMeter("revalidated"));
+        Mockito.verify(bbclient, times(1)).requestRawCoverageUpdatedSince(anyString(), any(Instant.class));
+
+        // Revalidating restarts the TTL
+        cache.getCoverage(BENE_ID);
+        assertEquals(1, getMeter("hits"));
+        Mockito.verify(bbclient, times(1)).requestRawCoverageFromServer(BENE_ID);
+    }
+
+    @Test
+    void testRefetchedWhenChanged() throws IOException {
+        final var cache = createCache(Long.MAX_VALUE);
+        cache.getCoverage(BENE_ID);
+
+        Mockito.doReturn(bbclient.requestRawCoverageFromServer(BENE_ID)).when(bbclient).requestRawCoverageUpdatedSince(anyString(), any(Instant.class));
+        advance(TTL.plusSeconds(1));
+        cache.getCoverage(BENE_ID);
+        assertAll(() -> assertEquals(2, getMeter("misses"), "Should fetch the changed Coverage again"),
+                () -> assertEquals(0, getMeter("revalidated")));
+    }
+
+    @Test
+    void testRefetchedAfterMaxAge() throws IOException {
+        final var cache = createCache(Long.MAX_VALUE);
+        cache.getCoverage(BENE_ID);
+
+        // Revalidating does not extend the max age, since a deleted Coverage is never found by the revalidation
+        advance(TTL.plusSeconds(1));
+        cache.getCoverage(BENE_ID);
+        advance(MAX_AGE);
+        cache.getCoverage(BENE_ID);
+        assertAll(() -> assertEquals(1, getMeter("revalidated")),
+                () -> assertEquals(2, getMeter("misses"), "Should fetch the Coverage again past the max age"));
+        Mockito.verify(bbclient, times(1)).requestRawCoverageUpdatedSince(anyString(), any(Instant.class));
+    }
+
+    @Test
+    void testRevalidatedByServerTime() throws IOException {
+        // Without a last update on the resources, the last update of the Bundle is used
+        final var bundle = new Bundle();
+        bundle.getMeta().setLastUpdated(Date.from(Instant.parse("2020-05-01T00:00:00Z")));
+        bundle.addEntry().setResource(new Coverage().setStatus(Coverage.CoverageStatus.ACTIVE).setId("coverage"));
+        Mockito.doReturn(RawBundle.fromBundle(bundle, fhirContext.newJsonParser())).when(bbclient).requestRawCoverageFromServer(BENE_ID);
+        final var cache = createCache(Long.MAX_VALUE);
+        cache.getCoverage(BENE_ID);
+
+        advance(TTL.plusSeconds(1));
+        cache.getCoverage(BENE_ID);
+        Mockito.verify(bbclient).requestRawCoverageUpdatedSince(BENE_ID, Instant.parse("2020-05-01T00:00:00Z"));
+
+        // Without any last update from BlueButton, the copy cannot be revalidated
+        bundle.getMeta().setLastUpdated(null);
+        Mockito.doReturn(RawBundle.fromBundle(bundle, fhirContext.newJsonParser())).when(bbclient).requestRawCoverageFromServer(OTHER_BENE_ID);
+        cache.getCoverage(OTHER_BENE_ID);
+        advance(TTL.plusSeconds(1));
+        cache.getCoverage(OTHER_BENE_ID);
+        assertEquals(3, getMeter("misses"), "Should fetch the Coverage without a last update again");
+        Mockito.verify(bbclient, never()).requestRawCoverageUpdatedSince(Mockito.eq(OTHER_BENE_ID), any(Instant.class));
+    }
+
+    @Test
+    void testLeastRecentlyUsedEvicted() throws IOException {
+        final var cache = createCache(Long.MAX_VALUE);
+        cache.getCoverage(BENE_ID);
+        final long firstSize = cache.getApproximateBytes();
+        advance(Duration.ofMinutes(1));
+        cache.getCoverage(OTHER_BENE_ID);
+        final long totalSize = cache.getApproximateBytes();
+
+        final var smallerCache = createCache(totalSize - 1);
+        smallerCache.evict();
+        assertAll(() -> assertFalse(Files.exists(directory.resolve(CoverageCache.formFileName(BENE_ID))), "Should evict the least recently used"),
+                () -> assertTrue(Files.exists(directory.resolve(CoverageCache.formFileName(OTHER_BENE_ID)))),
+                () -> assertEquals(totalSize - firstSize, smallerCache.getApproximateBytes()));
+    }
+
+    @Test
+    void testFileNames() {
+        assertEquals("-20140000008325.ndjson", CoverageCache.formFileName("-20140000008325"));
+        final String digested = CoverageCache.formFileName("../bene id");
+        assertAll(() -> assertTrue(digested.matches("[0-9a-f]{64}\\.ndjson"), "Should digest a bene_id unsafe for a file name"),
+                () -> assertEquals(digested, CoverageCache.formFileName("../bene id")));
+    }
+
+    private CoverageCache createCache(long maxBytes) throws IOException {
+        return new CoverageCache(bbclient, directory, TTL, MAX_AGE, maxBytes, metricRegistry, clock);
+    }
+
+    private void advance(Duration duration) {
+        final Instant now = clock.instant();
+        Mockito.when(clock.instant()).thenReturn(now.plus(duration));
+    }
+
+    private long getMeter(String name) {
+        return metricRegistry.meter(MetricRegistry.name(CoverageCache.class, name)).getCount();
+    }
+}
@@ -0,0 +1,83 @@
+package gov.cms.dpc.aggregation.engine;
+
+import com.codahale.metrics.MetricRegistry;
+import gov.cms.dpc.queue.JobStatus;
+import gov.cms.dpc.queue.MemoryBatchQueue;
+import gov.cms.dpc.queue.models.JobQueueBatch;
+import gov.cms.dpc.testing.BufferedLoggerHandler;
+import org.hl7.fhir.dstu3.model.ResourceType;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@ExtendWith(BufferedLoggerHandler.class)
+class LeaseKeeperTest {
+
+    private final UUID aggregatorID = UUID.randomUUID();
+    private MemoryBatchQueue queue;
+    private LeaseKeeper leaseKeeper;
+
+    @BeforeEach
+    void setupEach() {
+        queue = new MemoryBatchQueue(10);
+        leaseKeeper = new LeaseKeeper(queue, aggregatorID, new MetricRegistry());
+        queue.createJob(UUID.randomUUID(), "1", List.of("1", "2"), List.of(ResourceType.Patient));
+    }
+
+    @Test
+    void testHeldLeaseRenewed() {
+        final JobQueueBatch job = queue.claimBatch(aggregatorID).orElseThrow();
+        final OffsetDateTime claimedLease = job.getLeaseExpiry().orElseThrow();
+        leaseKeeper.hold(job);
+
+        leaseKeeper.renewLeases();
+        assertAll(() -> assertFalse(job.getLeaseExpiry().orElseThrow().isBefore(claimedLease), "Should extend the lease"),
+                () -> assertFalse(leaseKeeper.isLost(job)));
+    }
+
+    @Test
+    void testReclaimedLeaseLost() {
+        final JobQueueBatch job = queue.claimBatch(aggregatorID).orElseThrow();
+        leaseKeeper.hold(job);
+
+        // Another aggregator reclaims the batch after the lease runs out
+        job.renewLease(aggregatorID, OffsetDateTime.now(ZoneOffset.UTC).minusSeconds(1));
+        new LeaseKeeper(queue, UUID.randomUUID(), new MetricRegistry()).reclaimExpiredBatches();
+        assertEquals(JobStatus.QUEUED, job.getStatus());
+
+        leaseKeeper.renewLeases();
+        assertTrue(leaseKeeper.isLost(job), "Should report the lease as lost");
+
+        leaseKeeper.release(job);
+        assertFalse(leaseKeeper.isLost(job));
+    }
+
+    @Test
+    void testLeaseAboutToRunOutLost() {
+        final JobQueueBatch job = queue.claimBatch(aggregatorID).orElseThrow();
+        leaseKeeper.hold(job);
+
+        // The lease has not run out yet, but a write that starts now could land after it has
+        job.renewLease(aggregatorID, OffsetDateTime.now(ZoneOffset.UTC).plusSeconds(1));
+        assertTrue(leaseKeeper.isLost(job), "Should report a lease about to run out as lost");
+    }
+
+    @Test
+    void testReleasedLeaseNotRenewed() {
+        final JobQueueBatch job = queue.claimBatch(aggregatorID).orElseThrow();
+        leaseKeeper.hold(job);
+        leaseKeeper.release(job);
+        queue.pauseBatch(job, aggregatorID);
+
+        leaseKeeper.renewLeases();
+        assertAll(() -> assertTrue(job.getLeaseExpiry().isEmpty(), "Should not lease a released batch"),
+                () -> assertFalse(leaseKeeper.isLost(job)));
+    }
+}
@@ -0,0 +1,94 @@
+package gov.cms.dpc.aggregation.engine;
+
+import ca.uhn.fhir.context.FhirContext;
+import com.codahale.metrics.MetricRegistry;
+import gov.cms.dpc.bluebutton.client.BlueButtonClient;
+import gov.cms.dpc.bluebutton.client.MockBlueButtonClient;
+import gov.cms.dpc.queue.IMbiHashStore;
+import gov.cms.dpc.queue.MemoryMbiHashStore;
+import gov.cms.dpc.testing.BufferedLoggerHandler;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mockito;
+
+import java.security.GeneralSecurityException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+
+@ExtendWith(BufferedLoggerHandler.class)
+class MbiHashCacheTest {
+
+    private static final String MBI = MockBlueButtonClient.TEST_PATIENT_MBIS.get(0);
+    private static final String HASH = MockBlueButtonClient.MBI_HASH_MAP.get(MBI);
+
+    private BlueButtonClient bbclient;
+    private IMbiHashStore store;
+    private MbiHashCache cache;
+
+    @BeforeEach
+    void setupEach() {
+        bbclient = Mockito.spy(new MockBlueButtonClient(FhirContext.forDstu3()));
+        store = Mockito.spy(new MemoryMbiHashStore());
+        cache = new MbiHashCache(bbclient, store, new MetricRegistry(), 10, 2);
+    }
+
+    @Test
+    void testHashComputedOnce() throws GeneralSecurityException {
+        assertEquals(HASH, cache.getHash(MBI), "Should compute the hash");
+        assertEquals(HASH, cache.getHash(MBI), "Should cache the hash");
+
+        Mockito.verify(bbclient, times(1)).hashMbi(MBI);
+        assertEquals(Map.of(key(MBI), HASH), store.getHashes(MockBlueButtonClient.HASH_PEPPER_VERSION, List.of(key(MBI))), "Should store the hash by the key of the MBI");
+    }
+
+    @Test
+    void testHashLoadedFromStore() throws GeneralSecurityException {
+        store.putHashes(MockBlueButtonClient.HASH_PEPPER_VERSION, Map.of(key(MBI), HASH));
+
+        assertEquals(HASH, cache.getHash(MBI), "Should load the stored hash");
+        Mockito.verify(bbclient, never()).hashMbi(anyString());
+    }
+
+    @Test
+    void testStoreKeyedByPepperVersion() throws GeneralSecurityException {
+        store.putHashes("old-pepper", Map.of(key(MBI), "stale"));
+
+        assertEquals(HASH, cache.getHash(MBI), "Should not use hashes of another pepper");
+        Mockito.verify(bbclient, times(1)).hashMbi(MBI);
+    }
+
+    @Test
+    void testStoreFailureFallsBack() throws GeneralSecurityException {
+        Mockito.doThrow(new IllegalStateException("Store is down")).when(store).getHashes(anyString(), Mockito.anyCollection());
+        Mockito.doThrow(new IllegalStateException("Store is down")).when(store).putHashes(anyString(), Mockito.anyMap());
+
+        assertEquals(HASH, cache.getHash(MBI), "Should compute the hash without the store");
+    }
+
+    @Test
+    void testPrecompute() throws GeneralSecurityException {
+        cache.precompute(MockBlueButtonClient.TEST_PATIENT_MBIS);
+
+        final Map<String, String> keyedHashes = new HashMap<>();
+        for (String mbi : MockBlueButtonClient.TEST_PATIENT_MBIS) {
+            keyedHashes.put(key(mbi), MockBlueButtonClient.MBI_HASH_MAP.get(mbi));
+        }
+        Mockito.verify(store, times(1)).getHashes(MockBlueButtonClient.HASH_PEPPER_VERSION, keyedHashes.keySet());
+        Mockito.verify(store, times(1)).putHashes(MockBlueButtonClient.HASH_PEPPER_VERSION, keyedHashes);
+        for (String mbi : MockBlueButtonClient.TEST_PATIENT_MBIS) {
+            assertEquals(MockBlueButtonClient.MBI_HASH_MAP.get(mbi), cache.getHash(mbi), "Should have precomputed the hash");
+            Mockito.verify(bbclient, times(1)).hashMbi(mbi);
+        }
+    }
+
+    private String key(String mbi) throws GeneralSecurityException {
+        return bbclient.keyMbi(mbi);
+    }
+}
@@ -0,0 +1,69 @@
+package gov.cms.dpc.aggregation.engine;
+
+import ca.uhn.fhir.context.FhirContext;
+import com.codahale.metrics.MetricRegistry;
+import gov.cms.dpc.bluebutton.client.BlueButtonClient;
+import gov.cms.dpc.bluebutton.client.MockBlueButtonClient;
+import gov.cms.dpc.testing.BufferedLoggerHandler;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mockito;
+
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+
+import static org.mockito.ArgumentMatchers.anyCollection;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+
+@ExtendWith(BufferedLoggerHandler.class)
+class PatientResolverTest {
+
+    private static final String MBI_A = MockBlueButtonClient.TEST_PATIENT_MBIS.get(0);
+    private static final String MBI_B = MockBlueButtonClient.TEST_PATIENT_MBIS.get(1);
+
+    private BlueButtonClient bbclient;
+    private MbiHashCache hashCache;
+
+    @BeforeEach
+    void setupEach() {
+        bbclient = Mockito.spy(new MockBlueButtonClient(FhirContext.forDstu3()));
+        hashCache = new MbiHashCache(bbclient, new MetricRegistry());
+    }
+
+    @Test
+    void testResolvesOnlyTheWindow() {
+        final var resolver = new PatientResolver(bbclient, hashCache, UUID.randomUUID(), UUID.randomUUID(), List.of(MBI_A, MBI_B), 1);
+
+        resolver.resolveAhead(0);
+        Mockito.verify(bbclient, times(1)).requestPatientsFromServerByMbiHashes(Set.of(MockBlueButtonClient.MBI_HASH_MAP.get(MBI_A)));
+
+        resolver.resolve(MBI_A);
+        resolver.release(MBI_A);
+        resolver.resolveAhead(1);
+        Mockito.verify(bbclient, times(1)).requestPatientsFromServerByMbiHashes(Set.of(MockBlueButtonClient.MBI_HASH_MAP.get(MBI_B)));
+        resolver.resolve(MBI_B);
+        Mockito.verify(bbclient, never()).requestPatientFromServerByMbiHash(anyString());
+    }
+
+    @Test
+    void testDuplicatePatientsShareResolution() {
+        final var patients = List.of(MBI_A, MBI_B, MBI_A, MBI_B, MBI_A, MBI_B);
+        final var resolver = new PatientResolver(bbclient, hashCache, UUID.randomUUID(), UUID.randomUUID(), patients, 4);
+
+        for (int index = 0; index < patients.size(); index++) {
+            resolver.resolveAhead(index);
+            resolver.resolve(patients.get(index));
+            resolver.release(patients.get(index));
+        }
+        Mockito.verify(bbclient, times(1)).requestPatientsFromServerByMbiHashes(anyCollection());
+        Mockito.verify(bbclient, never()).requestPatientFromServerByMbiHash(anyString());
+
+        // Once every occurrence is released, the resolution is dropped
+        resolver.resolve(MBI_A);
+        Mockito.verify(bbclient, times(1)).requestPatientFromServerByMbiHash(anyString());
+    }
+}
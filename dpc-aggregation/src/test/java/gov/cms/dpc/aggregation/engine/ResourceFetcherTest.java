@@ -0,0 +1,166 @@
+package gov.cms.dpc.aggregation.engine;
+
+import ca.uhn.fhir.context.FhirContext;
+import gov.cms.dpc.bluebutton.client.BlueButtonClient;
+import gov.cms.dpc.bluebutton.client.MockBlueButtonClient;
+import gov.cms.dpc.bluebutton.client.RawBundle;
+import gov.cms.dpc.fhir.hapi.ContextUtils;
+import gov.cms.dpc.queue.models.JobQueueBatch;
+import gov.cms.dpc.testing.BufferedLoggerHandler;
+import io.reactivex.subscribers.TestSubscriber;
+import org.hl7.fhir.dstu3.model.Bundle;
+import org.hl7.fhir.dstu3.model.ResourceType;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mockito;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.Semaphore;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+
+@ExtendWith(BufferedLoggerHandler.class)
+class ResourceFetcherTest {
+
+    static private FhirContext fhirContext = FhirContext.forDstu3();
+    private BlueButtonClient bbclient;
+    private ResourceFetcher fetcher;
+
+    @BeforeAll
+    static void setupAll() {
+        ContextUtils.prefetchResourceModels(fhirContext, JobQueueBatch.validResourceTypes);
+    }
+
+    @BeforeEach
+    void setupEach() {
+        bbclient = Mockito.spy(new MockBlueButtonClient(fhirContext));
+        fetcher = new ResourceFetcher(bbclient, UUID.randomUUID(), UUID.randomUUID(), ResourceType.ExplanationOfBenefit, new OperationsConfig(10, "/tmp", 3));
+    }
+
+    /**
+     * Test that the next bundle is only requested once the first bundle has been consumed
+     */
+    @Test
+    void testNextBundleFetchedOnDemand() {
+        final List<ExportResource> firstResources = fetcher.fetchResources(MockBlueButtonClient.TEST_PATIENT_MBIS.get(0))
+                .take(5)
+                .toList()
+                .blockingGet();
+
+        assertEquals(5, firstResources.size(), "Should have the requested resources");
+        Mockito.verify(bbclient, never()).requestNextBundleFromServer(any(Bundle.class));
+    }
+
+    /**
+     * Test that all the bundles are fetched when fully consumed
+     */
+    @Test
+    void testAllBundlesFetched() {
+        final List<ExportResource> resources = fetcher.fetchResources(MockBlueButtonClient.TEST_PATIENT_MBIS.get(0))
+                .toList()
+                .blockingGet();
+
+        assertAll(() -> assertEquals(32, resources.size(), "Should have all the resources"),
+                () -> assertTrue(resources.stream().allMatch(resource -> resource.getResourceType() == ResourceType.ExplanationOfBenefit), "Should only have EOBs"));
+        Mockito.verify(bbclient, times(3)).requestNextBundleFromServer(any(Bundle.class));
+    }
+
+    /**
+     * Test that with prefetching enabled, the next bundle is requested before the first bundle has been consumed
+     */
+    @Test
+    void testNextBundlePrefetched() {
+        final var prefetcher = new ResourceFetcher(bbclient, UUID.randomUUID(), UUID.randomUUID(), ResourceType.ExplanationOfBenefit, new OperationsConfig.Builder(10, "/tmp").pagePrefetchDepth(1).maxInFlightPageRequests(10).build());
+        final TestSubscriber<ExportResource> subscriber = prefetcher.fetchResources(MockBlueButtonClient.TEST_PATIENT_MBIS.get(0)).test(1);
+
+        subscriber.awaitCount(1);
+        // Only a single page is fetched ahead of the page being consumed
+        Mockito.verify(bbclient, Mockito.after(500).times(1)).requestNextBundleFromServer(any(Bundle.class));
+        subscriber.cancel();
+    }
+
+    /**
+     * Test that prefetching returns the same resources, in the same order, as fetching on demand
+     */
+    @Test
+    void testPrefetchedBundlesMatch() {
+        final var prefetcher = new ResourceFetcher(bbclient, UUID.randomUUID(), UUID.randomUUID(), ResourceType.ExplanationOfBenefit, new OperationsConfig.Builder(10, "/tmp").pagePrefetchDepth(2).maxInFlightPageRequests(10).build());
+        final String mbi = MockBlueButtonClient.TEST_PATIENT_MBIS.get(0);
+        final List<String> expected = fetcher.fetchResources(mbi).map(resource -> resource.getResource().orElseThrow().getId()).toList().blockingGet();
+        final List<String> prefetched = prefetcher.fetchResources(mbi).map(resource -> resource.getResource().orElseThrow().getId()).toList().blockingGet();
+
+        assertEquals(32, prefetched.size(), "Should have all the resources");
+        assertEquals(expected, prefetched, "Should have the resources in the same order");
+    }
+
+    /**
+     * Test that pass-through returns the same resources as parsing, as raw JSON
+     */
+    @Test
+    void testPassThroughMatchesParsed() {
+        final var passThroughFetcher = new ResourceFetcher(bbclient, UUID.randomUUID(), UUID.randomUUID(), ResourceType.ExplanationOfBenefit, new OperationsConfig.Builder(10, "/tmp").maxInFlightPageRequests(10).resourcePassThrough(true).build());
+        final String mbi = MockBlueButtonClient.TEST_PATIENT_MBIS.get(0);
+        final var parser = fhirContext.newJsonParser();
+        final List<String> expected = fetcher.fetchResources(mbi).map(resource -> parser.encodeResourceToString(resource.getResource().orElseThrow())).toList().blockingGet();
+        Mockito.clearInvocations(bbclient);
+        final List<ExportResource> passedThrough = passThroughFetcher.fetchResources(mbi).toList().blockingGet();
+
+        assertAll(() -> assertEquals(32, passedThrough.size(), "Should have all the resources"),
+                () -> assertTrue(passedThrough.stream().allMatch(resource -> resource.getResource().isEmpty()), "Should not parse the resources"),
+                () -> assertTrue(passedThrough.stream().allMatch(resource -> resource.getResourceType() == ResourceType.ExplanationOfBenefit), "Should only have EOBs"));
+        // The raw resources are read back to compare them, as the JSON may order fields differently
+        final List<String> actual = passedThrough.stream()
+                .map(resource -> parser.encodeResourceToString(parser.parseResource(new String(resource.getJson().orElseThrow(), StandardCharsets.UTF_8))))
+                .collect(Collectors.toList());
+        assertEquals(expected, actual, "Should have the same resources in the same order");
+        Mockito.verify(bbclient, times(3)).requestNextRawBundleFromServer(any(RawBundle.class));
+        Mockito.verify(bbclient, never()).requestNextBundleFromServer(any(Bundle.class));
+    }
+
+    /**
+     * Test that when a next bundle fails, prefetching returns the same resources and OperationOutcome as fetching on demand
+     */
+    @Test
+    void testPrefetchedBundleErrorMatches() {
+        Mockito.doThrow(new IllegalStateException("Page 2 failed")).when(bbclient).requestNextBundleFromServer(any(Bundle.class));
+        final var prefetcher = new ResourceFetcher(bbclient, UUID.randomUUID(), UUID.randomUUID(), ResourceType.ExplanationOfBenefit, new OperationsConfig.Builder(10, "/tmp").pagePrefetchDepth(2).maxInFlightPageRequests(10).build());
+        final String mbi = MockBlueButtonClient.TEST_PATIENT_MBIS.get(0);
+
+        final List<String> expected = fetcher.fetchResources(mbi).map(this::describe).toList().blockingGet();
+        final List<String> prefetched = prefetcher.fetchResources(mbi).map(this::describe).toList().blockingGet();
+
+        assertEquals(ResourceType.OperationOutcome.toString(), expected.get(expected.size() - 1), "Should end with the error");
+        assertTrue(expected.size() > 1, "Should have the resources of the first page");
+        assertEquals(expected, prefetched, "Should have the resources of the first page, then the error");
+    }
+
+    /**
+     * Test that prefetched page requests wait for a permit from the shared cap
+     */
+    @Test
+    void testPrefetchWaitsForPermit() {
+        final var permits = new Semaphore(0);
+        final var prefetcher = new ResourceFetcher(bbclient, UUID.randomUUID(), UUID.randomUUID(), ResourceType.ExplanationOfBenefit, new OperationsConfig.Builder(10, "/tmp").pagePrefetchDepth(1).maxInFlightPageRequests(1).build(), permits, new PatientResolver(bbclient, UUID.randomUUID(), UUID.randomUUID()), null);
+        final TestSubscriber<ExportResource> subscriber = prefetcher.fetchResources(MockBlueButtonClient.TEST_PATIENT_MBIS.get(0)).test(1);
+
+        subscriber.awaitCount(1);
+        Mockito.verify(bbclient, Mockito.after(300).never()).requestNextBundleFromServer(any(Bundle.class));
+        permits.release();
+        Mockito.verify(bbclient, Mockito.timeout(1000).times(1)).requestNextBundleFromServer(any(Bundle.class));
+        subscriber.cancel();
+    }
+
+    private String describe(ExportResource resource) {
+        return resource.getResourceType() == ResourceType.OperationOutcome
+                ? ResourceType.OperationOutcome.toString()
+                : resource.getResource().orElseThrow().getId();
+    }
+}
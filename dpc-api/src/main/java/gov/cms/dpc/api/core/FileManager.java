@@ -2,6 +2,7 @@ package gov.cms.dpc.api.core;
 
 import gov.cms.dpc.common.annotations.ExportPath;
 import gov.cms.dpc.queue.IJobQueue;
+import gov.cms.dpc.queue.models.ExportCompression;
 import gov.cms.dpc.queue.models.JobQueueBatch;
 import gov.cms.dpc.queue.models.JobQueueBatchFile;
 import org.bouncycastle.util.encoders.Hex;
@@ -37,13 +38,18 @@ public class FileManager {
         final JobQueueBatch jobQueueBatch = this.jobQueue.getBatch(batchFile.getBatchID())
                 .orElseThrow(() -> new WebApplicationException("Cannot export job for file", Response.Status.NOT_FOUND));
 
-        final java.nio.file.Path path = Paths.get(String.format("%s/%s.ndjson", fileLocation, batchFile.getFileName()));
+        final java.nio.file.Path path = Paths.get(batchFile.formOutputFilePath(fileLocation));
         logger.debug("Streaming file {}", path.toString());
-        return new FilePointer(Hex.toHexString(batchFile.getChecksum()),
+        final String checksum = Hex.toHexString(batchFile.getChecksum());
+        final boolean compressed = batchFile.getCompression() != ExportCompression.NONE;
+        return new FilePointer(checksum,
                 batchFile.getFileLength(),
                 batchFile.getJobID(),
                 jobQueueBatch.getStartTime().orElseThrow(() -> new IllegalStateException("Cannot find start time of completed job")),
-                new File(path.toString()));
+                new File(path.toString()),
+                batchFile.getCompression(),
+                compressed ? Hex.toHexString(batchFile.getUncompressedChecksum()) : checksum,
+                compressed ? batchFile.getUncompressedLength() : batchFile.getFileLength());
     }
 
     public static class FilePointer {
@@ -53,13 +59,35 @@ public class FileManager {
         private final UUID jobID;
         private final OffsetDateTime creationTime;
         private final File file;
+        private final ExportCompression compression;
+        private final String uncompressedChecksum;
+        private final long uncompressedFileSize;
 
         public FilePointer(String checksum, long fileSize, UUID jobID, OffsetDateTime creationTime, File file) {
+            this(checksum, fileSize, jobID, creationTime, file, ExportCompression.NONE, checksum, fileSize);
+        }
+
+        /**
+         * A pointer to a stored file, which may be compressed
+         *
+         * @param checksum             - checksum of the file as stored
+         * @param fileSize             - size of the file as stored
+         * @param jobID                - the job which created the file
+         * @param creationTime         - when the file was created
+         * @param file                 - the stored file
+         * @param compression          - the compression of the stored file
+         * @param uncompressedChecksum - checksum of the uncompressed NDJSON
+         * @param uncompressedFileSize - size of the uncompressed NDJSON
+         */
+        public FilePointer(String checksum, long fileSize, UUID jobID, OffsetDateTime creationTime, File file, ExportCompression compression, String uncompressedChecksum, long uncompressedFileSize) {
             this.checksum = checksum;
             this.fileSize = fileSize;
             this.jobID = jobID;
             this.creationTime = creationTime;
             this.file = file;
+            this.compression = compression;
+            this.uncompressedChecksum = uncompressedChecksum;
+            this.uncompressedFileSize = uncompressedFileSize;
         }
 
         public String getChecksum() {
@@ -81,5 +109,17 @@ public class FileManager {
         public File getFile() {
             return file;
         }
+
+        public ExportCompression getCompression() {
+            return compression;
+        }
+
+        public String getUncompressedChecksum() {
+            return uncompressedChecksum;
+        }
+
+        public long getUncompressedFileSize() {
+            return uncompressedFileSize;
+        }
     }
 }
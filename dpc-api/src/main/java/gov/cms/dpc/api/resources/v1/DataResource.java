@@ -40,6 +40,7 @@ public class DataResource extends AbstractDataResource {
     private static final Logger logger = LoggerFactory.getLogger(DataResource.class);
     private static final int CHUNK_SIZE = 1024 * 1024; // Return a maximum of 1MB chunks, but we can modify this later if we need to
     private static final String ACCEPTED_RANGE_VALUE = "bytes";
+    private static final String NO_RANGES_VALUE = "none";
 
     private final FileManager manager;
 
@@ -58,7 +59,8 @@ public class DataResource extends AbstractDataResource {
                     @ResponseHeader(name = HttpHeaders.ETAG, description = "SHA256 checksum of file"),
                     @ResponseHeader(name = HttpHeaders.CONTENT_LENGTH, description = "size of file (in bytes)"),
                     @ResponseHeader(name = HttpHeaders.LAST_MODIFIED, description = "creation timestamp of file (in miliseconds since Unix epoch)"),
-                    @ResponseHeader(name = HttpHeaders.ACCEPT_RANGES, description = "Accepted HTTP range request (bytes only)")
+                    @ResponseHeader(name = HttpHeaders.CONTENT_ENCODING, description = "compression of the file, when the file is compressed and the client accepts the compression"),
+                    @ResponseHeader(name = HttpHeaders.ACCEPT_RANGES, description = "Accepted HTTP range request (bytes only), or none when a compressed file is decompressed for the client")
             }),
             @ApiResponse(code = HttpStatus.NOT_MODIFIED_304, message = "No newer files available"),
             @ApiResponse(code = HttpStatus.UNAUTHORIZED_401, message = "Not authorized to download file"),
@@ -72,20 +74,24 @@ public class DataResource extends AbstractDataResource {
                                    @HeaderParam(HttpHeaders.IF_MODIFIED_SINCE)
                                    @ApiParam(value = "Download file only if provided timestamp (miliseconds since Unix Epoch) is older than file creation timestamp", example = "1575394136")
                                            Optional<String> modifiedHeader,
+                                   @HeaderParam(HttpHeaders.ACCEPT_ENCODING)
+                                   @ApiParam(value = "Return the file in its stored compression (e.g. gzip), if the file is compressed")
+                                           Optional<String> acceptEncoding,
                                    @PathParam("fileID")
                                    @ApiParam(required = true, value = "NDJSON file name", example = "728b270d-d7de-4143-82fe-d3ccd92cebe4-1-coverage.ndjson")
                                            String fileID) {
         final FileManager.FilePointer filePointer = this.manager.getFile(organizationPrincipal.getID(), fileID);
+        final FileRepresentation representation = new FileRepresentation(filePointer, acceptEncoding);
 
-        if (returnCachedValue(filePointer, fileChecksum, modifiedHeader)) {
+        if (returnCachedValue(representation, fileChecksum, modifiedHeader)) {
             return Response.status(Response.Status.NOT_MODIFIED).build();
         }
 
-        return Response.ok()
-                .header(HttpHeaders.ETAG, filePointer.getChecksum())
-                .header(HttpHeaders.CONTENT_LENGTH, filePointer.getFileSize())
+        return representation.addEncodingHeaders(Response.ok())
+                .header(HttpHeaders.ETAG, representation.getChecksum())
+                .header(HttpHeaders.CONTENT_LENGTH, representation.getSize())
                 .header(HttpHeaders.LAST_MODIFIED, filePointer.getCreationTime().toInstant().toEpochMilli())
-                .header(HttpHeaders.ACCEPT_RANGES, ACCEPTED_RANGE_VALUE)
+                .header(HttpHeaders.ACCEPT_RANGES, representation.acceptsRanges() ? ACCEPTED_RANGE_VALUE : NO_RANGES_VALUE)
                 .build();
     }
 
@@ -102,7 +108,8 @@ public class DataResource extends AbstractDataResource {
             @ApiResponse(code = HttpStatus.OK_200, message = "File of newline-delimited JSON FHIR objects", responseHeaders = {
                     @ResponseHeader(name = HttpHeaders.ETAG, description = "SHA256 checksum of file"),
                     @ResponseHeader(name = HttpHeaders.CONTENT_LENGTH, description = "size of file (in bytes)"),
-                    @ResponseHeader(name = HttpHeaders.LAST_MODIFIED, description = "creation timestamp of file (in miliseconds since Unix epoch)")
+                    @ResponseHeader(name = HttpHeaders.LAST_MODIFIED, description = "creation timestamp of file (in miliseconds since Unix epoch)"),
+                    @ResponseHeader(name = HttpHeaders.CONTENT_ENCODING, description = "compression of the file, when the file is compressed and the client accepts the compression")
             }),
             @ApiResponse(code = HttpStatus.PARTIAL_CONTENT_206, message = "Returning a partial byte range of file", responseHeaders = {
                     @ResponseHeader(name = HttpHeaders.ACCEPT_RANGES, description = "Accepted HTTP range request (bytes only)"),
@@ -123,25 +130,30 @@ public class DataResource extends AbstractDataResource {
                                        @HeaderParam(HttpHeaders.IF_MODIFIED_SINCE)
                                        @ApiParam(value = "Download file only if provided timestamp (miliseconds since Unix Epoch) is older than file creation timestamp", example = "1575394136")
                                                Optional<String> modifiedHeader,
+                                       @HeaderParam(HttpHeaders.ACCEPT_ENCODING)
+                                       @ApiParam(value = "Return the file in its stored compression (e.g. gzip), if the file is compressed")
+                                               Optional<String> acceptEncoding,
                                        @PathParam("fileID")
                                        @ApiParam(required = true, value = "NDJSON file name", example = "728b270d-d7de-4143-82fe-d3ccd92cebe4-1-coverage.ndjson")
                                                String fileID) {
 
         final FileManager.FilePointer filePointer = this.manager.getFile(organizationPrincipal.getID(), fileID);
+        final FileRepresentation representation = new FileRepresentation(filePointer, acceptEncoding);
 
         // If we're provided a file checksum, verify it matches, if so, return a 304
-        if (returnCachedValue(filePointer, fileChecksum, modifiedHeader)) {
+        if (returnCachedValue(representation, fileChecksum, modifiedHeader)) {
             return Response.status(Response.Status.NOT_MODIFIED).build();
         }
 
         final Response response;
 
         // Process the range request and return a partial stream, but only if they request bytes, ignore everything else
-        if (rangeHeader != null) {
-            response = buildRangedRequest(fileID, filePointer.getFile(), rangeHeader);
+        // A file that is decompressed on the fly can't be seeked into, so its ranges are ignored and the whole file is returned
+        if (rangeHeader != null && representation.acceptsRanges()) {
+            response = buildRangedRequest(fileID, representation, rangeHeader);
         } else {
             // Return a non-ranged streamed response if the requester doesn't actually send the range header, or if we don't understand the range unit
-            response = buildDefaultResponse(fileID, filePointer);
+            response = buildDefaultResponse(fileID, representation);
         }
 
         // Set the cache control headers to make sure the file isn't retained in transit
@@ -154,27 +166,26 @@ public class DataResource extends AbstractDataResource {
                 .build();
     }
 
-    private Response buildDefaultResponse(String fileID, FileManager.FilePointer filePointer) {
+    private Response buildDefaultResponse(String fileID, FileRepresentation representation) {
         final StreamingOutput fileStream = outputStream -> {
-            try (FileInputStream fileInputStream = new FileInputStream(filePointer.getFile())) {
+            try (InputStream inputStream = representation.open()) {
                 // Use the IOUtils copy method, which internally buffers the files
-                IOUtils.copy(fileInputStream, outputStream);
+                IOUtils.copy(inputStream, outputStream);
             } catch (FileNotFoundException e) {
                 throw new WebApplicationException(String.format("Unable to open file `%s`.`.", fileID), e, Response.Status.INTERNAL_SERVER_ERROR);
             }
             outputStream.flush();
         };
 
-        return Response
-                .status(Response.Status.OK)
+        return representation.addEncodingHeaders(Response.status(Response.Status.OK))
                 .entity(fileStream)
-                .header(HttpHeaders.ETAG, filePointer.getChecksum())
-                .header(HttpHeaders.CONTENT_LENGTH, filePointer.getFileSize())
-                .header(HttpHeaders.LAST_MODIFIED, filePointer.getCreationTime().toInstant().toEpochMilli())
+                .header(HttpHeaders.ETAG, representation.getChecksum())
+                .header(HttpHeaders.CONTENT_LENGTH, representation.getSize())
+                .header(HttpHeaders.LAST_MODIFIED, representation.getCreationTime().toInstant().toEpochMilli())
                 .build();
     }
 
-    private Response buildRangedRequest(String fileID, File file, RangeHeader range) {
+    private Response buildRangedRequest(String fileID, FileRepresentation representation, RangeHeader range) {
         if (!range.getUnit().equals(ACCEPTED_RANGE_VALUE)) {
             throw new WebApplicationException("Only `bytes` are acceptable as ranges", Response.Status.REQUESTED_RANGE_NOT_SATISFIABLE);
         }
@@ -187,6 +198,11 @@ public class DataResource extends AbstractDataResource {
             throw new WebApplicationException("Range end cannot be before begin", Response.Status.REQUESTED_RANGE_NOT_SATISFIABLE);
         }
 
+        final File file = representation.getFile();
+        if (rangeStart >= file.length()) {
+            throw new WebApplicationException("Range start is past the end of the file", Response.Status.REQUESTED_RANGE_NOT_SATISFIABLE);
+        }
+
         RandomAccessFile randomAccessFile = null;
         try {
             randomAccessFile = new RandomAccessFile(file, "r");
@@ -207,8 +223,7 @@ public class DataResource extends AbstractDataResource {
         final PartialFileStreamer fileStreamer = new PartialFileStreamer((int) len, randomAccessFile);
 
         final String responseRange = String.format("bytes %d-%d/%d", rangeStart, rangeEnd, file.length());
-        return Response
-                .status(Response.Status.PARTIAL_CONTENT)
+        return representation.addEncodingHeaders(Response.status(Response.Status.PARTIAL_CONTENT))
                 .entity(fileStreamer)
                 .header(HttpHeaders.ACCEPT_RANGES, ACCEPTED_RANGE_VALUE)
                 .header(HttpHeaders.CONTENT_RANGE, responseRange)
@@ -218,9 +233,9 @@ public class DataResource extends AbstractDataResource {
     }
 
     @SuppressWarnings("OptionalUsedAsFieldOrParameterType")
-    private boolean returnCachedValue(FileManager.FilePointer filePointer, Optional<String> checksum, Optional<String> modifiedSince) {
+    private boolean returnCachedValue(FileRepresentation representation, Optional<String> checksum, Optional<String> modifiedSince) {
         // If we're provided a file checksum, verify it matches, if so, return a 304
-        if (checksum.isPresent() && checksum.get().equals(filePointer.getChecksum())) {
+        if (checksum.isPresent() && checksum.get().equals(representation.getChecksum())) {
             return true;
         }
 
@@ -234,11 +249,115 @@ public class DataResource extends AbstractDataResource {
                 return false;
             }
             // Verify that the creation timestamp is not after the value of the modified header
-            return !filePointer.getCreationTime().truncatedTo(ChronoUnit.MILLIS).isAfter(modifiedValue.truncatedTo(ChronoUnit.MILLIS));
+            return !representation.getCreationTime().truncatedTo(ChronoUnit.MILLIS).isAfter(modifiedValue.truncatedTo(ChronoUnit.MILLIS));
         }
         return false;
     }
 
+    /**
+     * Check whether an Accept-Encoding header allows the given content coding
+     *
+     * @param acceptEncoding - the value of the Accept-Encoding header, if there is one
+     * @param encoding - the content coding to check for (e.g. gzip)
+     * @return true if the coding is accepted, either by name or through a wildcard, with a non-zero quality value
+     */
+    @SuppressWarnings("OptionalUsedAsFieldOrParameterType")
+    static boolean acceptsEncoding(Optional<String> acceptEncoding, String encoding) {
+        if (acceptEncoding.isEmpty()) {
+            return false;
+        }
+        Boolean wildcard = null;
+        for (final String value : acceptEncoding.get().split(",")) {
+            final String[] parts = value.split(";");
+            final String coding = parts[0].trim();
+            boolean accepted = true;
+            for (int i = 1; i < parts.length; i++) {
+                final String parameter = parts[i].trim();
+                if (parameter.startsWith("q=")) {
+                    try {
+                        accepted = Double.parseDouble(parameter.substring(2)) > 0;
+                    } catch (NumberFormatException e) {
+                        accepted = false;
+                    }
+                }
+            }
+            if (coding.equalsIgnoreCase(encoding)) {
+                // An explicit entry for the coding takes precedence over the wildcard
+                return accepted;
+            }
+            if (coding.equals("*")) {
+                wildcard = accepted;
+            }
+        }
+        return wildcard != null && wildcard;
+    }
+
+    /**
+     * The form a file is sent in.
+     * Compressed files are sent as stored, with a Content-Encoding header, to clients that accept the compression,
+     * and decompressed on the fly for every other client. The checksum and size describe the bytes that are sent.
+     */
+    private static class FileRepresentation {
+
+        private final FileManager.FilePointer filePointer;
+        private final boolean decompress;
+
+        @SuppressWarnings("OptionalUsedAsFieldOrParameterType")
+        FileRepresentation(FileManager.FilePointer filePointer, Optional<String> acceptEncoding) {
+            this.filePointer = filePointer;
+            this.decompress = filePointer.getCompression()
+                    .getContentEncoding()
+                    .map(encoding -> !acceptsEncoding(acceptEncoding, encoding))
+                    .orElse(false);
+        }
+
+        String getChecksum() {
+            return decompress ? filePointer.getUncompressedChecksum() : filePointer.getChecksum();
+        }
+
+        long getSize() {
+            return decompress ? filePointer.getUncompressedFileSize() : filePointer.getFileSize();
+        }
+
+        /**
+         * @return whether byte ranges can be served, which they can only be from the stored file
+         */
+        boolean acceptsRanges() {
+            return !decompress;
+        }
+
+        File getFile() {
+            return filePointer.getFile();
+        }
+
+        OffsetDateTime getCreationTime() {
+            return filePointer.getCreationTime();
+        }
+
+        InputStream open() throws IOException {
+            final InputStream stored = new FileInputStream(filePointer.getFile());
+            if (!decompress) {
+                return stored;
+            }
+            try {
+                return filePointer.getCompression().decompress(new BufferedInputStream(stored));
+            } catch (IOException e) {
+                stored.close();
+                throw e;
+            }
+        }
+
+        Response.ResponseBuilder addEncodingHeaders(Response.ResponseBuilder builder) {
+            final Optional<String> contentEncoding = filePointer.getCompression().getContentEncoding();
+            // The response depends on the Accept-Encoding header whenever the file is compressed
+            contentEncoding.ifPresent(encoding -> builder.header(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING));
+            if (!decompress) {
+                contentEncoding.ifPresent(encoding -> builder.header(HttpHeaders.CONTENT_ENCODING, encoding));
+            }
+            return builder;
+        }
+    }
+
     private static class PartialFileStreamer implements StreamingOutput {
 
         private int length;
@@ -255,6 +374,9 @@ public class DataResource extends AbstractDataResource {
             try {
                 while (length != 0) {
                     int read = raf.read(buf, 0, Math.min(buf.length, length));
+                    if (read == -1) {
+                        break;
+                    }
                     outputStream.write(buf, 0, read);
                     length -= read;
                 }
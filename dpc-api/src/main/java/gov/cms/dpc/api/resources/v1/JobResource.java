@@ -10,6 +10,7 @@ import gov.cms.dpc.fhir.FHIRExtractors;
 import gov.cms.dpc.queue.IJobQueue;
 import gov.cms.dpc.queue.JobStatus;
 import gov.cms.dpc.queue.exceptions.JobQueueFailure;
+import gov.cms.dpc.queue.models.ExportCompression;
 import gov.cms.dpc.queue.models.JobQueueBatch;
 import gov.cms.dpc.queue.models.JobQueueBatchFile;
 import io.dropwizard.auth.Auth;
@@ -177,7 +178,9 @@ public class JobResource extends AbstractJobResource {
     }
 
     List<JobCompletionModel.OutputEntryExtension> buildExtension(JobQueueBatchFile batchFile) {
-        final byte[] byteChecksum = batchFile.getChecksum();
+        // Describe the NDJSON content, which is what is served to clients that don't accept the compressed form
+        final boolean compressed = batchFile.getCompression() != ExportCompression.NONE;
+        final byte[] byteChecksum = compressed ? batchFile.getUncompressedChecksum() : batchFile.getChecksum();
         final String stringChecksum;
         if (byteChecksum == null) {
             stringChecksum = "";
@@ -185,7 +188,7 @@ public class JobResource extends AbstractJobResource {
             stringChecksum = Hex.toHexString(byteChecksum);
         }
         String formattedChecksum = String.format("%s:%s", "sha256", stringChecksum);
-        long fileLength = batchFile.getFileLength();
+        long fileLength = compressed ? batchFile.getUncompressedLength() : batchFile.getFileLength();
         return List.of(new JobCompletionModel.OutputEntryExtension(JobCompletionModel.CHECKSUM_URL, formattedChecksum),
                 new JobCompletionModel.OutputEntryExtension(JobCompletionModel.FILE_LENGTH_URL, fileLength));
     }
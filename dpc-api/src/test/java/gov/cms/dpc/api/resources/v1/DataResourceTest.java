@@ -10,6 +10,7 @@ import gov.cms.dpc.api.converters.ChecksumConverterProvider;
 import gov.cms.dpc.api.converters.HttpRangeHeaderParamConverterProvider;
 import gov.cms.dpc.api.core.FileManager;
 import gov.cms.dpc.fhir.dropwizard.filters.StreamingContentSizeFilter;
+import gov.cms.dpc.queue.models.ExportCompression;
 import gov.cms.dpc.testing.BufferedLoggerHandler;
 import io.dropwizard.auth.AuthFilter;
 import io.dropwizard.auth.AuthValueFactoryProvider;
@@ -37,10 +38,13 @@ import java.nio.charset.StandardCharsets;
 import java.time.LocalDate;
 import java.time.OffsetDateTime;
 import java.time.ZoneOffset;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 import java.util.Random;
 import java.util.UUID;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
 
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -170,6 +174,15 @@ class DataResourceTest {
 
         assertEquals(Response.Status.REQUESTED_RANGE_NOT_SATISFIABLE.getStatusCode(), response.getStatus());
         assertEquals("{\"code\":416,\"message\":\"Range end cannot be before begin\"}", response.readEntity(String.class), "Should have correct status code");
+
+        // Request a range past the end of the file
+        response = RESOURCE.target("/v1/Data/test.ndjson")
+                .request()
+                .header(org.apache.http.HttpHeaders.RANGE, String.format("bytes=%d-%d", length, length + 10))
+                .get();
+
+        assertEquals(Response.Status.REQUESTED_RANGE_NOT_SATISFIABLE.getStatusCode(), response.getStatus());
+        assertEquals("{\"code\":416,\"message\":\"Range start is past the end of the file\"}", response.readEntity(String.class), "Should have correct status code");
     }
 
     @Test
@@ -190,6 +203,78 @@ class DataResourceTest {
                 () -> assertEquals("{\"code\":416,\"message\":\"Only `bytes` are acceptable as ranges\"}", response.readEntity(String.class), "Should have correct error message"));
     }
 
+    @Test
+    void testCompressedFile() throws IOException {
+        final File tempPath = FileUtils.getTempDirectory();
+        final File file = File.createTempFile("test", ".ndjson.gz", tempPath);
+        final String content = "This is a compressed test";
+        try (OutputStream stream = new GZIPOutputStream(new FileOutputStream(file))) {
+            stream.write(content.getBytes(StandardCharsets.UTF_8));
+        }
+
+        Mockito.when(manager.getFile(Mockito.any(), Mockito.anyString())).thenReturn(new FileManager.FilePointer("stored", file.length(), UUID.randomUUID(), OffsetDateTime.now(ZoneOffset.UTC), file,
+                ExportCompression.GZIP, "uncompressed", content.length()));
+
+        // Clients that accept gzip get the file as stored
+        Response response = RESOURCE.target("/v1/Data/test.ndjson")
+                .request()
+                .header(HttpHeaders.ACCEPT_ENCODING, "deflate, gzip;q=0.5")
+                .get();
+
+        final byte[] stored = IOUtils.toByteArray(response.readEntity(InputStream.class));
+        final Response gzipResponse = response;
+        assertAll(() -> assertEquals(HttpStatus.OK_200, gzipResponse.getStatus(), "Should have ok status"),
+                () -> assertEquals("gzip", gzipResponse.getHeaderString(HttpHeaders.CONTENT_ENCODING), "Should be gzip encoded"),
+                () -> assertEquals(HttpHeaders.ACCEPT_ENCODING, gzipResponse.getHeaderString(HttpHeaders.VARY), "Should vary by encoding"),
+                () -> assertEquals("stored", gzipResponse.getHeaderString(HttpHeaders.ETAG), "Should have stored checksum"),
+                () -> assertEquals(file.length(), stored.length, "Should have stored bytes"),
+                () -> assertEquals(content, IOUtils.toString(new GZIPInputStream(new ByteArrayInputStream(stored)), StandardCharsets.UTF_8), "Should decompress to content"));
+
+        // Everyone else gets the NDJSON
+        response = RESOURCE.target("/v1/Data/test.ndjson")
+                .request()
+                .header(HttpHeaders.ACCEPT_ENCODING, "gzip;q=0, *")
+                .get();
+
+        final String decoded = response.readEntity(String.class);
+        final Response plainResponse = response;
+        assertAll(() -> assertEquals(HttpStatus.OK_200, plainResponse.getStatus(), "Should have ok status"),
+                () -> assertNull(plainResponse.getHeaderString(HttpHeaders.CONTENT_ENCODING), "Should not be encoded"),
+                () -> assertEquals("uncompressed", plainResponse.getHeaderString(HttpHeaders.ETAG), "Should have uncompressed checksum"),
+                () -> assertEquals(content, decoded, "Should have decompressed content"));
+
+        // Ranges are served from the stored file
+        response = RESOURCE.target("/v1/Data/test.ndjson")
+                .request()
+                .header(HttpHeaders.ACCEPT_ENCODING, "gzip")
+                .header(org.apache.http.HttpHeaders.RANGE, "bytes=0-2")
+                .get();
+
+        final byte[] range = IOUtils.toByteArray(response.readEntity(InputStream.class));
+        final Response rangeResponse = response;
+        assertAll(() -> assertEquals(HttpStatus.PARTIAL_CONTENT_206, rangeResponse.getStatus(), "Should have partial status"),
+                () -> assertEquals("gzip", rangeResponse.getHeaderString(HttpHeaders.CONTENT_ENCODING), "Should be gzip encoded"),
+                () -> assertEquals(String.format("bytes 0-2/%d", file.length()), rangeResponse.getHeaderString(org.apache.http.HttpHeaders.CONTENT_RANGE), "Should have stored range"),
+                () -> assertArrayEquals(Arrays.copyOf(stored, 2), range, "Should have the range of the stored file"));
+
+        // A decompressed file can't be seeked into, so the range is ignored
+        response = RESOURCE.target("/v1/Data/test.ndjson")
+                .request()
+                .header(org.apache.http.HttpHeaders.RANGE, "bytes=5-7")
+                .get();
+
+        final String ignoredRange = response.readEntity(String.class);
+        final Response ignoredRangeResponse = response;
+        assertAll(() -> assertEquals(HttpStatus.OK_200, ignoredRangeResponse.getStatus(), "Should have ok status"),
+                () -> assertNull(ignoredRangeResponse.getHeaderString(org.apache.http.HttpHeaders.CONTENT_RANGE), "Should not have a range"),
+                () -> assertEquals(content, ignoredRange, "Should have the whole content"));
+
+        response = RESOURCE.target("/v1/Data/test.ndjson")
+                .request()
+                .head();
+        assertEquals("none", response.getHeaderString(org.apache.http.HttpHeaders.ACCEPT_RANGES), "Should not accept ranges of the decompressed file");
+    }
+
     @Nested
     @DisplayName("Test Cache Header responses")
     class CacheHeaderTests {
@@ -6,22 +6,38 @@ import com.codahale.metrics.MetricRegistry;
 import com.google.inject.Binder;
 import com.google.inject.Provides;
 import com.hubspot.dropwizard.guicier.DropwizardAwareModule;
+import gov.cms.dpc.bluebutton.client.AsyncBlueButtonClient;
+import gov.cms.dpc.bluebutton.client.AsyncBlueButtonClientImpl;
 import gov.cms.dpc.bluebutton.client.BlueButtonClient;
 import gov.cms.dpc.bluebutton.client.BlueButtonClientImpl;
+import gov.cms.dpc.bluebutton.client.BlueButtonResilience;
+import gov.cms.dpc.bluebutton.client.ConcurrencyLimiter;
+import gov.cms.dpc.bluebutton.client.RateBudget;
+import gov.cms.dpc.bluebutton.client.RequestHedger;
 import gov.cms.dpc.bluebutton.config.BBClientConfiguration;
 import gov.cms.dpc.bluebutton.config.BlueButtonBundleConfiguration;
 import gov.cms.dpc.bluebutton.exceptions.BlueButtonClientSetupException;
 import gov.cms.dpc.bluebutton.health.BlueButtonHealthCheck;
+import gov.cms.dpc.common.utils.MetricMaker;
 import io.dropwizard.Configuration;
 import org.apache.http.client.HttpClient;
 import org.apache.http.client.config.RequestConfig;
+import org.apache.http.config.RegistryBuilder;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.conn.socket.ConnectionSocketFactory;
+import org.apache.http.conn.socket.PlainConnectionSocketFactory;
+import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
 import org.apache.http.conn.ssl.TrustSelfSignedStrategy;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
 import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
 import org.apache.http.ssl.SSLContexts;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javax.inject.Singleton;
 import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSessionContext;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
@@ -30,6 +46,9 @@ import java.nio.file.Paths;
 import java.security.*;
 import java.security.cert.CertificateException;
 import java.util.MissingResourceException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Guice module for building and injecting the {@link BlueButtonClient}.
@@ -62,8 +81,52 @@ public class BlueButtonClientModule<T extends Configuration & BlueButtonBundleCo
     }
 
     @Provides
-    public BlueButtonClient provideBlueButtonClient(IGenericClient fhirRestClient, MetricRegistry registry) {
-        return new BlueButtonClientImpl(fhirRestClient, this.bbClientConfiguration, registry);
+    public BlueButtonClient provideBlueButtonClient(IGenericClient fhirRestClient, MetricRegistry registry, ConcurrencyLimiter limiter, RateBudget rateBudget, BlueButtonResilience resilience, RequestHedger hedger) {
+        return new BlueButtonClientImpl(fhirRestClient, this.bbClientConfiguration, registry, limiter, rateBudget, resilience, hedger);
+    }
+
+    /**
+     * Provide the limit on concurrent requests to BlueButton, which is shared by every client of the process
+     *
+     * @param registry - {@link MetricRegistry} for the limit metrics
+     * @return the shared {@link ConcurrencyLimiter}
+     */
+    @Provides
+    @Singleton
+    public ConcurrencyLimiter provideConcurrencyLimiter(MetricRegistry registry) {
+        return new ConcurrencyLimiter(this.bbClientConfiguration.getConcurrencyLimit(), registry);
+    }
+
+    /**
+     * Provide the hedging of slow requests to BlueButton, which is shared by every client of the process so its budget covers them all
+     *
+     * @param registry - {@link MetricRegistry} for the hedging metrics
+     * @return the shared {@link RequestHedger}
+     */
+    @Provides
+    @Singleton
+    public RequestHedger provideRequestHedger(MetricRegistry registry) {
+        return new RequestHedger(this.bbClientConfiguration.getHedging(), registry);
+    }
+
+    /**
+     * Provide the async client, which makes its requests through a {@link BlueButtonClient} on a pool of its own.
+     * The pool has a thread for each request the {@link ConcurrencyLimiter} could ever let through, so the other
+     * requests wait in its queue without holding a thread.
+     *
+     * @param client - the client to make the requests with
+     * @return the shared {@link AsyncBlueButtonClient}
+     */
+    @Provides
+    @Singleton
+    public AsyncBlueButtonClient provideAsyncBlueButtonClient(BlueButtonClient client) {
+        final var threadCounter = new AtomicInteger();
+        final var executor = Executors.newFixedThreadPool(this.bbClientConfiguration.getConcurrencyLimit().getMaxLimit(), runnable -> {
+            final var thread = new Thread(runnable, String.format("bluebutton-async-%d", threadCounter.getAndIncrement()));
+            thread.setDaemon(true);
+            return thread;
+        });
+        return new AsyncBlueButtonClientImpl(client, executor);
     }
 
     @Provides
@@ -89,8 +152,9 @@ public class BlueButtonClientModule<T extends Configuration & BlueButtonBundleCo
     }
 
     @Provides
-    public HttpClient provideHttpClient(KeyStore keyStore) {
-        return buildMutualTlsClient(keyStore, this.bbClientConfiguration.getKeystore().getDefaultPassword().toCharArray());
+    @Singleton
+    public HttpClient provideHttpClient(KeyStore keyStore, MetricRegistry registry) {
+        return buildMutualTlsClient(keyStore, this.bbClientConfiguration.getKeystore().getDefaultPassword().toCharArray(), registry);
     }
 
     /**
@@ -129,9 +193,54 @@ public class BlueButtonClientModule<T extends Configuration & BlueButtonBundleCo
      *
      * @param keyStore     {@link KeyStore} containing, at a minimum, the client tls certificate and private key
      * @param keyStorePass password for keystore (default: "changeit")
+     * @param registry     {@link MetricRegistry} to register the connection pool gauges with
      * @return {@link HttpClient} compatible with HAPI FHIR TLS client
      */
-    private HttpClient buildMutualTlsClient(KeyStore keyStore, char[] keyStorePass) {
+    private HttpClient buildMutualTlsClient(KeyStore keyStore, char[] keyStorePass, MetricRegistry registry) {
+        final SSLContext sslContext = buildSSLContext(keyStore, keyStorePass);
+        final BBClientConfiguration.ConnectionPoolConfiguration poolConfig = this.bbClientConfiguration.getConnectionPool();
+
+        final PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager(RegistryBuilder.<ConnectionSocketFactory>create()
+                .register("http", PlainConnectionSocketFactory.getSocketFactory())
+                .register("https", new SSLConnectionSocketFactory(sslContext))
+                .build());
+        connectionManager.setMaxTotal(poolConfig.getMaxTotal());
+        connectionManager.setDefaultMaxPerRoute(poolConfig.getMaxPerRoute());
+        connectionManager.setValidateAfterInactivity(poolConfig.getValidateAfterInactivity());
+        registerPoolGauges(connectionManager, registry);
+
+        // Configure the socket timeout for the connection, incl. ssl tunneling
+        final BBClientConfiguration.TimeoutConfiguration timeouts = this.bbClientConfiguration.getTimeouts();
+        RequestConfig requestConfig = RequestConfig.custom()
+                .setConnectTimeout(timeouts.getConnectionTimeout())
+                .setConnectionRequestTimeout(timeouts.getRequestTimeout())
+                .setSocketTimeout(timeouts.getSocketTimeout())
+                .build();
+
+        final ConnectionKeepAliveStrategy keepAliveStrategy = (response, context) -> {
+            final long keepAlive = DefaultConnectionKeepAliveStrategy.INSTANCE.getKeepAliveDuration(response, context);
+            return keepAlive > 0 ? keepAlive : poolConfig.getKeepAlive();
+        };
+
+        return HttpClients.custom()
+                .setDefaultRequestConfig(requestConfig)
+                .setConnectionManager(connectionManager)
+                .setKeepAliveStrategy(keepAliveStrategy)
+                .evictExpiredConnections()
+                .evictIdleConnections(poolConfig.getIdleTimeout(), TimeUnit.MILLISECONDS)
+                // Connections authenticated with the client cert are otherwise tagged with its principal, and never handed to a request without it
+                .disableConnectionState()
+                .build();
+    }
+
+    /**
+     * Helper function to build the {@link SSLContext} for authenticating with the Blue Button server using a client TLS certificate
+     *
+     * @param keyStore     {@link KeyStore} containing, at a minimum, the client tls certificate and private key
+     * @param keyStorePass password for keystore (default: "changeit")
+     * @return {@link SSLContext} which keeps TLS sessions for resumption
+     */
+    private SSLContext buildSSLContext(KeyStore keyStore, char[] keyStorePass) {
         final SSLContext sslContext;
 
         try {
@@ -146,17 +255,25 @@ public class BlueButtonClientModule<T extends Configuration & BlueButtonBundleCo
             throw new BlueButtonClientSetupException(ex.getMessage(), ex);
         }
 
-        // Configure the socket timeout for the connection, incl. ssl tunneling
-        final BBClientConfiguration.TimeoutConfiguration timeouts = this.bbClientConfiguration.getTimeouts();
-        RequestConfig requestConfig = RequestConfig.custom()
-                .setConnectTimeout(timeouts.getConnectionTimeout())
-                .setConnectionRequestTimeout(timeouts.getRequestTimeout())
-                .setSocketTimeout(timeouts.getSocketTimeout())
-                .build();
+        final BBClientConfiguration.ConnectionPoolConfiguration poolConfig = this.bbClientConfiguration.getConnectionPool();
+        // Keep TLS sessions around, so new connections to BlueButton resume a session instead of paying for a full handshake
+        final SSLSessionContext sessionContext = sslContext.getClientSessionContext();
+        sessionContext.setSessionCacheSize(poolConfig.getSslSessionCacheSize());
+        sessionContext.setSessionTimeout(poolConfig.getSslSessionTimeout());
+        return sslContext;
+    }
 
-        return HttpClients.custom()
-                .setDefaultRequestConfig(requestConfig)
-                .setSSLContext(sslContext)
-                .build();
+    /**
+     * Register gauges for the number of leased, pending and available connections of the pool
+     *
+     * @param connectionManager - the pool to report on
+     * @param registry          - the registry to register the gauges with
+     */
+    private static void registerPoolGauges(PoolingHttpClientConnectionManager connectionManager, MetricRegistry registry) {
+        final var metricMaker = new MetricMaker(registry, BlueButtonClientImpl.class);
+        metricMaker.registerCachedGauge("connectionPool.leased", () -> connectionManager.getTotalStats().getLeased());
+        metricMaker.registerCachedGauge("connectionPool.pending", () -> connectionManager.getTotalStats().getPending());
+        metricMaker.registerCachedGauge("connectionPool.available", () -> connectionManager.getTotalStats().getAvailable());
+        metricMaker.registerCachedGauge("connectionPool.max", () -> connectionManager.getTotalStats().getMax());
     }
 }
@@ -0,0 +1,76 @@
+package gov.cms.dpc.bluebutton.client;
+
+import io.reactivex.Flowable;
+import io.reactivex.Single;
+import org.hl7.fhir.dstu3.model.Bundle;
+import org.hl7.fhir.dstu3.model.Patient;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+/**
+ * Asynchronous variant of the {@link BlueButtonClient}.
+ * The requests do not hold the caller's thread, and complete their futures once the response has been read.
+ * Failures complete the future exceptionally, with the same exceptions the {@link BlueButtonClient} throws.
+ */
+public interface AsyncBlueButtonClient {
+
+    CompletableFuture<Patient> requestPatientFromServerAsync(String beneId);
+
+    CompletableFuture<Bundle> requestPatientFromServerByMbiHashAsync(String mbiHash);
+
+    CompletableFuture<Bundle> requestEOBFromServerAsync(String beneId);
+
+    CompletableFuture<Bundle> requestCoverageFromServerAsync(String beneId);
+
+    CompletableFuture<Bundle> requestNextBundleFromServerAsync(Bundle bundle);
+
+    CompletableFuture<RawBundle> requestRawEOBFromServerAsync(String beneId);
+
+    CompletableFuture<RawBundle> requestRawCoverageFromServerAsync(String beneId);
+
+    CompletableFuture<RawBundle> requestNextRawBundleFromServerAsync(RawBundle bundle);
+
+    /**
+     * Stream a Bundle and all of its next pages. A next page is only requested once the page before it has been emitted to the subscriber.
+     *
+     * @param firstPage - the request for the first page
+     * @return a flow of the pages, in order
+     */
+    default Flowable<Bundle> requestAllPagesAsync(CompletableFuture<Bundle> firstPage) {
+        return streamPages(firstPage, bundle -> bundle.getLink(Bundle.LINK_NEXT) != null, this::requestNextBundleFromServerAsync);
+    }
+
+    /**
+     * Stream a raw Bundle and all of its next pages. A next page is only requested once the page before it has been emitted to the subscriber.
+     *
+     * @param firstPage - the request for the first page
+     * @return a flow of the pages, in order
+     */
+    default Flowable<RawBundle> requestAllRawPagesAsync(CompletableFuture<RawBundle> firstPage) {
+        return streamPages(firstPage, bundle -> bundle.getNextLink().isPresent(), this::requestNextRawBundleFromServerAsync);
+    }
+
+    private static <B> Flowable<B> streamPages(CompletableFuture<B> page, Predicate<B> hasNextPage, Function<B, CompletableFuture<B>> requestNextPage) {
+        return toSingle(page)
+                .toFlowable()
+                .concatMap(bundle -> hasNextPage.test(bundle)
+                        ? Flowable.just(bundle).concatWith(Flowable.defer(() -> streamPages(requestNextPage.apply(bundle), hasNextPage, requestNextPage)))
+                        : Flowable.just(bundle));
+    }
+
+    /**
+     * Adapt a future without blocking on it, unlike {@link Single#fromFuture}
+     */
+    private static <T> Single<T> toSingle(CompletableFuture<T> future) {
+        return Single.create(emitter -> future.whenComplete((value, error) -> {
+            if (error == null) {
+                emitter.onSuccess(value);
+            } else {
+                emitter.onError(error instanceof CompletionException && error.getCause() != null ? error.getCause() : error);
+            }
+        }));
+    }
+}
@@ -0,0 +1,71 @@
+package gov.cms.dpc.bluebutton.client;
+
+import org.hl7.fhir.dstu3.model.Bundle;
+import org.hl7.fhir.dstu3.model.Patient;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+
+/**
+ * Makes the requests of a {@link BlueButtonClient} on an executor.
+ * <p>
+ * Each request goes through the same path as a blocking request, so it takes a token of the {@link RateBudget} and a
+ * slot of the {@link ConcurrencyLimiter}, and is retried, hedged and stopped by the circuit breaker like any other.
+ * Requests over the limit wait in the queue of the executor rather than on the thread of the caller.
+ */
+public class AsyncBlueButtonClientImpl implements AsyncBlueButtonClient {
+
+    private final BlueButtonClient client;
+    private final Executor executor;
+
+    /**
+     * Create an async client
+     *
+     * @param client   - the client to make the requests with
+     * @param executor - the executor to make the requests on
+     */
+    public AsyncBlueButtonClientImpl(BlueButtonClient client, Executor executor) {
+        this.client = client;
+        this.executor = executor;
+    }
+
+    @Override
+    public CompletableFuture<Patient> requestPatientFromServerAsync(String beneId) {
+        return CompletableFuture.supplyAsync(() -> client.requestPatientFromServer(beneId), executor);
+    }
+
+    @Override
+    public CompletableFuture<Bundle> requestPatientFromServerByMbiHashAsync(String mbiHash) {
+        return CompletableFuture.supplyAsync(() -> client.requestPatientFromServerByMbiHash(mbiHash), executor);
+    }
+
+    @Override
+    public CompletableFuture<Bundle> requestEOBFromServerAsync(String beneId) {
+        return CompletableFuture.supplyAsync(() -> client.requestEOBFromServer(beneId), executor);
+    }
+
+    @Override
+    public CompletableFuture<Bundle> requestCoverageFromServerAsync(String beneId) {
+        return CompletableFuture.supplyAsync(() -> client.requestCoverageFromServer(beneId), executor);
+    }
+
+    @Override
+    public CompletableFuture<Bundle> requestNextBundleFromServerAsync(Bundle bundle) {
+        return CompletableFuture.supplyAsync(() -> client.requestNextBundleFromServer(bundle), executor);
+    }
+
+    @Override
+    public CompletableFuture<RawBundle> requestRawEOBFromServerAsync(String beneId) {
+        return CompletableFuture.supplyAsync(() -> client.requestRawEOBFromServer(beneId), executor);
+    }
+
+    @Override
+    public CompletableFuture<RawBundle> requestRawCoverageFromServerAsync(String beneId) {
+        return CompletableFuture.supplyAsync(() -> client.requestRawCoverageFromServer(beneId), executor);
+    }
+
+    @Override
+    public CompletableFuture<RawBundle> requestNextRawBundleFromServerAsync(RawBundle bundle) {
+        return CompletableFuture.supplyAsync(() -> client.requestNextRawBundleFromServer(bundle), executor);
+    }
+}
@@ -7,6 +7,10 @@ import org.hl7.fhir.dstu3.model.CapabilityStatement;
 import org.hl7.fhir.dstu3.model.Patient;
 
 import java.security.GeneralSecurityException;
+import java.time.Instant;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
 
 
 public interface BlueButtonClient {
@@ -17,14 +21,63 @@ public interface BlueButtonClient {
 
     Bundle requestPatientFromServerByMbiHash(String mbiHash) throws ResourceNotFoundException;
 
+    /**
+     * Look up the patients of many hashed MBIs, searching for several hashes in each request
+     *
+     * @param mbiHashes - the hashed MBIs to look up
+     * @return the matching patients of each hash. Every hash is a key, with no patients if none matched.
+     */
+    Map<String, List<Patient>> requestPatientsFromServerByMbiHashes(Collection<String> mbiHashes) throws ResourceNotFoundException;
+
     Bundle requestEOBFromServer(String beneId) throws ResourceNotFoundException;
 
     Bundle requestCoverageFromServer(String beneId) throws ResourceNotFoundException;
 
     Bundle requestNextBundleFromServer(Bundle bundle) throws ResourceNotFoundException;
 
+    RawBundle requestRawEOBFromServer(String beneId) throws ResourceNotFoundException;
+
+    RawBundle requestRawCoverageFromServer(String beneId) throws ResourceNotFoundException;
+
+    /**
+     * Look up the Coverage of a patient that has changed since a point in time, to revalidate a cached copy of it
+     *
+     * @param beneId - the bene_id of the patient
+     * @param since - the last time the cached copy was updated in BlueButton
+     * @return the Coverage updated after that time, as raw JSON. An empty bundle when nothing has changed.
+     */
+    RawBundle requestRawCoverageUpdatedSince(String beneId, Instant since);
+
+    RawBundle requestNextRawBundleFromServer(RawBundle bundle) throws ResourceNotFoundException;
+
     CapabilityStatement requestCapabilityStatement() throws ResourceNotFoundException;
 
     String hashMbi(String mbi) throws GeneralSecurityException;
+
+    /**
+     * A cheap keyed digest of an MBI, for storing the hash of an MBI without storing the MBI itself.
+     * Unlike {@link #hashMbi(String)}, it is not sent to BlueButton.
+     *
+     * @param mbi - the MBI to digest
+     * @return the hex digest of the MBI, keyed by the hash pepper
+     * @throws GeneralSecurityException if the digest cannot be computed
+     */
+    String keyMbi(String mbi) throws GeneralSecurityException;
+
+    /**
+     * Identifies the pepper and iteration count used by {@link #hashMbi(String)}, without revealing the pepper itself.
+     * Hashes computed under one version are not valid under another, so stored hashes should be keyed by it.
+     *
+     * @return a short, stable identifier of the hash parameters
+     */
+    String getHashPepperVersion();
+
+    /**
+     * Whether BlueButton is currently accepting requests. While it is not, requests fail without being sent,
+     * so callers should hold off on new work rather than fail it.
+     *
+     * @return false while the circuit breaker on BlueButton requests is open
+     */
+    boolean isAvailable();
 }
 
@@ -1,18 +1,31 @@
 package gov.cms.dpc.bluebutton.client;
 
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.rest.api.Constants;
+import ca.uhn.fhir.rest.api.EncodingEnum;
+import ca.uhn.fhir.rest.api.RequestTypeEnum;
 import ca.uhn.fhir.rest.client.api.IGenericClient;
+import ca.uhn.fhir.rest.client.api.IHttpClient;
+import ca.uhn.fhir.rest.client.api.IHttpRequest;
+import ca.uhn.fhir.rest.client.api.IHttpResponse;
+import ca.uhn.fhir.rest.client.exceptions.FhirClientConnectionException;
 import ca.uhn.fhir.rest.gclient.ICriterion;
 import ca.uhn.fhir.rest.gclient.IParam;
 import ca.uhn.fhir.rest.gclient.IQuery;
 import ca.uhn.fhir.rest.gclient.TokenClientParam;
+import ca.uhn.fhir.rest.server.exceptions.BaseServerResponseException;
 import ca.uhn.fhir.rest.server.exceptions.ResourceNotFoundException;
 import com.codahale.metrics.Meter;
 import com.codahale.metrics.MetricRegistry;
 import com.codahale.metrics.Timer;
 import gov.cms.dpc.bluebutton.config.BBClientConfiguration;
+import gov.cms.dpc.bluebutton.exceptions.BlueButtonInterruptedException;
 import gov.cms.dpc.common.utils.MetricMaker;
 import gov.cms.dpc.fhir.DPCIdentifierSystem;
 import org.apache.commons.lang3.StringUtils;
+import org.apache.http.NameValuePair;
+import org.apache.http.client.utils.URLEncodedUtils;
+import org.apache.http.message.BasicNameValuePair;
 import org.bouncycastle.util.encoders.Hex;
 import org.hl7.fhir.dstu3.model.*;
 import org.hl7.fhir.instance.model.api.IBaseBundle;
@@ -20,12 +33,20 @@ import org.hl7.fhir.instance.model.api.IBaseResource;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javax.crypto.Mac;
 import javax.crypto.SecretKey;
 import javax.crypto.SecretKeyFactory;
 import javax.crypto.spec.PBEKeySpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.security.spec.KeySpec;
+import java.time.Instant;
 import java.util.*;
 import java.util.function.Supplier;
 
@@ -37,7 +58,8 @@ public class BlueButtonClientImpl implements BlueButtonClient {
     private static final String REQUEST_COVERAGE_METRIC = "requestCoverage";
     private static final String REQUEST_NEXT_METRIC = "requestNextBundle";
     private static final String REQUEST_CAPABILITIES_METRIC = "requestCapabilities";
-    private static final List<String> REQUEST_METRICS = List.of(REQUEST_PATIENT_METRIC, REQUEST_EOB_METRIC, REQUEST_COVERAGE_METRIC, REQUEST_NEXT_METRIC, REQUEST_CAPABILITIES_METRIC);
+    private static final String REQUEST_PATIENTS_METRIC = "requestPatients";
+    private static final List<String> REQUEST_METRICS = List.of(REQUEST_PATIENT_METRIC, REQUEST_PATIENTS_METRIC, REQUEST_EOB_METRIC, REQUEST_COVERAGE_METRIC, REQUEST_NEXT_METRIC, REQUEST_CAPABILITIES_METRIC);
 
     private static final Logger logger = LoggerFactory.getLogger(BlueButtonClientImpl.class);
 
@@ -45,17 +67,45 @@ public class BlueButtonClientImpl implements BlueButtonClient {
     private BBClientConfiguration config;
     private Map<String, Timer> timers;
     private Map<String, Meter> exceptionMeters;
+    private ConcurrencyLimiter limiter;
+    private RateBudget rateBudget;
+    private BlueButtonResilience resilience;
+    private RequestHedger hedger;
     private static final String HASH_ALGORITHM = "PBKDF2WithHmacSHA256";
+    private static final String MBI_KEY_ALGORITHM = "HmacSHA256";
+    // Creating a SecretKeyFactory means a provider lookup, so each thread keeps its own rather than creating one per hash
+    private static final ThreadLocal<SecretKeyFactory> keyFactories = new ThreadLocal<>();
     private byte[] bfdHashPepper;
     private int bfdHashIter;
+    private String hashPepperVersion;
 
     private static String formBeneficiaryID(String fromPatientID) {
         return "Patient/" + fromPatientID;
     }
 
     public BlueButtonClientImpl(IGenericClient client, BBClientConfiguration config, MetricRegistry metricRegistry) {
+        this(client, config, metricRegistry, new ConcurrencyLimiter(config.getConcurrencyLimit(), metricRegistry), RateBudget.unlimited(),
+                new BlueButtonResilience(0, config.getResilience(), metricRegistry), new RequestHedger(config.getHedging(), metricRegistry));
+    }
+
+    /**
+     * Create a client whose requests share a {@link ConcurrencyLimiter}, a {@link RateBudget}, a {@link BlueButtonResilience} and a {@link RequestHedger}
+     *
+     * @param client - the FHIR client for BlueButton
+     * @param config - the client configuration
+     * @param metricRegistry - {@link MetricRegistry} for metrics
+     * @param limiter - the limit on the concurrent requests to BlueButton, shared by the clients of an aggregator
+     * @param rateBudget - the budget of requests to BlueButton, shared by all the aggregators
+     * @param resilience - the retries and circuit breaker of the requests to BlueButton, shared by the clients of an aggregator
+     * @param hedger - the hedging of slow requests to BlueButton, shared by the clients of an aggregator
+     */
+    public BlueButtonClientImpl(IGenericClient client, BBClientConfiguration config, MetricRegistry metricRegistry, ConcurrencyLimiter limiter, RateBudget rateBudget, BlueButtonResilience resilience, RequestHedger hedger) {
         this.client = client;
         this.config = config;
+        this.limiter = limiter;
+        this.rateBudget = rateBudget;
+        this.resilience = resilience;
+        this.hedger = hedger;
         final var metricMaker = new MetricMaker(metricRegistry, BlueButtonClientImpl.class);
         this.exceptionMeters = metricMaker.registerMeters(REQUEST_METRICS);
         this.timers = metricMaker.registerTimers(REQUEST_METRICS);
@@ -64,6 +114,7 @@ public class BlueButtonClientImpl implements BlueButtonClient {
         if (config.getBfdHashPepper() != null) {
             bfdHashPepper = Hex.decode(config.getBfdHashPepper());
         }
+        hashPepperVersion = formHashPepperVersion(bfdHashPepper, bfdHashIter);
     }
 
     /**
@@ -112,6 +163,40 @@ public class BlueButtonClientImpl implements BlueButtonClient {
                 .execute());
     }
 
+    /**
+     * Queries Blue Button server for the patients of many hashed MBIs.
+     * The hashes are searched for in chunks, as a single identifier search with the hashes OR'ed together, and the
+     * patients are mapped back to their hash by their MBI hash identifier.
+     *
+     * @param mbiHashes The hashed MBIs
+     * @return The matching patients of each hash, empty for hashes without a match
+     */
+    @Override
+    public Map<String, List<Patient>> requestPatientsFromServerByMbiHashes(Collection<String> mbiHashes) throws ResourceNotFoundException {
+        final Map<String, List<Patient>> patients = new HashMap<>();
+        mbiHashes.forEach(hash -> patients.put(hash, new ArrayList<>()));
+
+        final List<String> hashes = new ArrayList<>(patients.keySet());
+        final int chunkSize = config.getMbiHashesPerRequest();
+        for (int start = 0; start < hashes.size(); start += chunkSize) {
+            final List<String> chunk = hashes.subList(start, Math.min(start + chunkSize, hashes.size()));
+            logger.debug("Attempting to fetch {} patients by MBI hash from baseURL: {}", chunk.size(), client.getServerBase());
+            Bundle bundle = instrumentCall(REQUEST_PATIENTS_METRIC, () -> client
+                    .search()
+                    .forResource(Patient.class)
+                    .where(Patient.IDENTIFIER.exactly().systemAndValues(DPCIdentifierSystem.MBI_HASH.getSystem(), chunk))
+                    .count(config.getResourcesCount())
+                    .returnBundle(Bundle.class)
+                    .execute());
+            addPatientsByMbiHash(bundle, patients);
+            while (bundle.getLink(Bundle.LINK_NEXT) != null) {
+                bundle = requestNextBundleFromServer(bundle);
+                addPatientsByMbiHash(bundle, patients);
+            }
+        }
+        return patients;
+    }
+
     /**
      * Queries Blue Button server for Explanations of Benefit associated with a given patient
      *
@@ -183,6 +268,68 @@ public class BlueButtonClientImpl implements BlueButtonClient {
         });
     }
 
+    /**
+     * Queries Blue Button server for Explanations of Benefit associated with a given patient, as raw JSON.
+     * Has the same edge cases as {@link #requestEOBFromServer(String)}.
+     *
+     * @param patientID The requested patient's ID
+     * @return {@link RawBundle} Containing the JSON of a number (possibly 0) of {@link ExplanationOfBenefit} resources
+     * @throws ResourceNotFoundException when the requested patient does not exist
+     */
+    @Override
+    public RawBundle requestRawEOBFromServer(String patientID) throws ResourceNotFoundException {
+        logger.debug("Attempting to fetch raw EOBs for patient ID {} from baseURL: {}", patientID, client.getServerBase());
+        final String url = formSearchURL(ExplanationOfBenefit.class.getSimpleName(),
+                List.of(new BasicNameValuePair(ExplanationOfBenefit.SP_PATIENT, patientID),
+                        new BasicNameValuePair("excludeSAMHSA", "true")));
+
+        return instrumentCall(REQUEST_EOB_METRIC, () -> fetchRawBundle(url, patientID));
+    }
+
+    /**
+     * Queries Blue Button server for Coverage associated with a given patient, as raw JSON.
+     * Has the same edge cases as {@link #requestCoverageFromServer(String)}.
+     *
+     * @param patientID The requested patient's ID
+     * @return {@link RawBundle} Containing the JSON of a number (possibly 0) of {@link Coverage} resources
+     * @throws ResourceNotFoundException when the requested patient does not exist
+     */
+    @Override
+    public RawBundle requestRawCoverageFromServer(String patientID) throws ResourceNotFoundException {
+        logger.debug("Attempting to fetch raw Coverage for patient ID {} from baseURL: {}", patientID, client.getServerBase());
+        final String url = formSearchURL(Coverage.class.getSimpleName(),
+                List.of(new BasicNameValuePair(Coverage.SP_BENEFICIARY, formBeneficiaryID(patientID))));
+
+        return instrumentCall(REQUEST_COVERAGE_METRIC, () -> fetchRawBundle(url, patientID));
+    }
+
+    /**
+     * Queries Blue Button server for the Coverage of a patient updated after a point in time, as raw JSON.
+     * Unlike {@link #requestRawCoverageFromServer(String)}, an empty bundle is expected, and means nothing has changed.
+     *
+     * @param patientID The requested patient's ID
+     * @param since The last time the caller's copy of the Coverage was updated
+     * @return {@link RawBundle} Containing the JSON of the {@link Coverage} resources updated since, possibly none
+     */
+    @Override
+    public RawBundle requestRawCoverageUpdatedSince(String patientID, Instant since) {
+        logger.debug("Attempting to revalidate Coverage for patient ID {} from baseURL: {}", patientID, client.getServerBase());
+        final String url = formSearchURL(Coverage.class.getSimpleName(),
+                List.of(new BasicNameValuePair(Coverage.SP_BENEFICIARY, formBeneficiaryID(patientID)),
+                        new BasicNameValuePair(Constants.PARAM_LASTUPDATED, "gt" + new InstantType(Date.from(since)).getValueAsString())));
+
+        return instrumentCall(REQUEST_COVERAGE_METRIC, () -> executeRawRequest(url));
+    }
+
+    @Override
+    public RawBundle requestNextRawBundleFromServer(RawBundle bundle) throws ResourceNotFoundException {
+        return instrumentCall(REQUEST_NEXT_METRIC, () -> {
+            final var nextURL = bundle.getNextLink().orElseThrow(() -> new IllegalArgumentException("Bundle does not have a next link"));
+            logger.debug("Attempting to fetch next raw bundle from url: {}", nextURL);
+            return executeRawRequest(nextURL);
+        });
+    }
+
     @Override
     public CapabilityStatement requestCapabilityStatement() throws ResourceNotFoundException {
         return instrumentCall(REQUEST_CAPABILITIES_METRIC, () -> client
@@ -198,17 +345,84 @@ public class BlueButtonClientImpl implements BlueButtonClient {
             return "";
         }
 
-        final SecretKeyFactory instance;
+        KeySpec keySpec = new PBEKeySpec(mbi.toCharArray(), bfdHashPepper, bfdHashIter, 256);
+        SecretKey secretKey = getKeyFactory().generateSecret(keySpec);
+        return Hex.toHexString(secretKey.getEncoded());
+    }
+
+    @Override
+    public String keyMbi(String mbi) throws GeneralSecurityException {
+        final byte[] value = mbi.getBytes(StandardCharsets.UTF_8);
+        // Without a pepper there is nothing to key the digest with
+        if (bfdHashPepper == null || bfdHashPepper.length == 0) {
+            return Hex.toHexString(MessageDigest.getInstance("SHA-256").digest(value));
+        }
+        final Mac mac = Mac.getInstance(MBI_KEY_ALGORITHM);
+        mac.init(new SecretKeySpec(bfdHashPepper, MBI_KEY_ALGORITHM));
+        return Hex.toHexString(mac.doFinal(value));
+    }
+
+    /**
+     * Add the patients of a search bundle to the patients of their MBI hash. Patients that do not carry one of the
+     * searched hashes are ignored.
+     */
+    private static void addPatientsByMbiHash(Bundle bundle, Map<String, List<Patient>> patients) {
+        bundle.getEntry().stream()
+                .map(Bundle.BundleEntryComponent::getResource)
+                .filter(Patient.class::isInstance)
+                .map(Patient.class::cast)
+                .forEach(patient -> patient.getIdentifier().stream()
+                        .filter(identifier -> DPCIdentifierSystem.MBI_HASH.getSystem().equals(identifier.getSystem()))
+                        .map(Identifier::getValue)
+                        .distinct()
+                        .map(patients::get)
+                        .filter(Objects::nonNull)
+                        .forEach(matches -> matches.add(patient)));
+    }
+
+    @Override
+    public String getHashPepperVersion() {
+        return hashPepperVersion;
+    }
+
+    @Override
+    public boolean isAvailable() {
+        return resilience.isAvailable();
+    }
+
+    private static SecretKeyFactory getKeyFactory() throws GeneralSecurityException {
+        SecretKeyFactory instance = keyFactories.get();
+        if (instance == null) {
+            try {
+                instance = SecretKeyFactory.getInstance(HASH_ALGORITHM);
+            } catch (NoSuchAlgorithmException e) {
+                logger.error("Secret key factory could not be created due to invalid algorithm: {}", HASH_ALGORITHM);
+                throw new GeneralSecurityException(e);
+            }
+            keyFactories.set(instance);
+        }
+        return instance;
+    }
+
+    /**
+     * Derive an identifier for the hash parameters, from a digest of the pepper and iteration count.
+     * The digest is truncated, so the identifier can be stored alongside hashes without exposing the pepper.
+     *
+     * @param pepper - the hash pepper, may be null
+     * @param iterations - the hash iteration count
+     * @return the hex identifier
+     */
+    static String formHashPepperVersion(byte[] pepper, int iterations) {
         try {
-            instance = SecretKeyFactory.getInstance(HASH_ALGORITHM);
+            final MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            if (pepper != null) {
+                digest.update(pepper);
+            }
+            digest.update(ByteBuffer.allocate(Integer.BYTES).putInt(iterations).array());
+            return Hex.toHexString(Arrays.copyOf(digest.digest(), 8));
         } catch (NoSuchAlgorithmException e) {
-            logger.error("Secret key factory could not be created due to invalid algorithm: {}", HASH_ALGORITHM);
-            throw new GeneralSecurityException(e);
+            throw new IllegalStateException("SHA-256 is not available", e);
         }
-
-        KeySpec keySpec = new PBEKeySpec(mbi.toCharArray(), bfdHashPepper, bfdHashIter, 256);
-        SecretKey secretKey = instance.generateSecret(keySpec);
-        return Hex.toHexString(secretKey.getEncoded());
     }
 
     /**
@@ -241,6 +455,85 @@ public class BlueButtonClientImpl implements BlueButtonClient {
         return bundle;
     }
 
+    /**
+     * Form the URL of a search against the Blue Button server, limited in size by resourcesPerRequest
+     *
+     * @param resourceName - the name of the FHIR Resource to search for
+     * @param parameters - the search parameters
+     * @return the search URL
+     */
+    private String formSearchURL(String resourceName, List<NameValuePair> parameters) {
+        final List<NameValuePair> query = new ArrayList<>(parameters);
+        query.add(new BasicNameValuePair(Constants.PARAM_COUNT, String.valueOf(config.getResourcesCount())));
+        return formURL(client.getServerBase(), resourceName, query);
+    }
+
+    /**
+     * Form the URL of a request against the Blue Button server
+     *
+     * @param serverBase - the base URL of the server
+     * @param path - the path of the request, relative to the base URL
+     * @param parameters - the query parameters, may be empty
+     * @return the URL
+     */
+    private static String formURL(String serverBase, String path, List<NameValuePair> parameters) {
+        final String url = StringUtils.appendIfMissing(serverBase, "/") + path;
+        return parameters.isEmpty() ? url : url + "?" + URLEncodedUtils.format(parameters, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Read the first page of a FHIR Bundle from BlueButton as raw JSON
+     *
+     * @param url - the search URL
+     * @param patientID - id of patient
+     * @return the raw Bundle
+     */
+    private RawBundle fetchRawBundle(String url, String patientID) {
+        final RawBundle bundle = executeRawRequest(url);
+
+        // Case where patientID does not exist at all
+        if (!bundle.hasEntry()) {
+            throw new ResourceNotFoundException("No patient found with ID: " + patientID);
+        }
+        return bundle;
+    }
+
+    /**
+     * Request a Bundle as JSON, through the same HTTP client as the FHIR client, and read it without parsing the resources.
+     * A server that answers in another format has the Bundle parsed and re-encoded instead.
+     *
+     * @param url - the URL of the Bundle
+     * @return the raw Bundle
+     */
+    private RawBundle executeRawRequest(String url) {
+        final FhirContext fhirContext = client.getFhirContext();
+        final IHttpClient httpClient = fhirContext.getRestfulClientFactory()
+                .getHttpClient(new StringBuilder(url), null, null, RequestTypeEnum.GET, Collections.emptyList());
+        final IHttpRequest request = httpClient.createGetRequest(fhirContext, EncodingEnum.JSON);
+
+        IHttpResponse response = null;
+        try {
+            response = request.execute();
+            if (response.getStatus() < 200 || response.getStatus() >= 300) {
+                throw BaseServerResponseException.newInstance(response.getStatus(), response.getStatusInfo());
+            }
+            final EncodingEnum encoding = EncodingEnum.forContentType(response.getMimeType());
+            try (InputStream body = response.readEntity()) {
+                if (encoding == null || encoding == EncodingEnum.JSON) {
+                    return RawBundle.read(body);
+                }
+                final Bundle bundle = encoding.newParser(fhirContext).parseResource(Bundle.class, body);
+                return RawBundle.fromBundle(bundle, fhirContext.newJsonParser());
+            }
+        } catch (IOException e) {
+            throw new FhirClientConnectionException(e);
+        } finally {
+            if (response != null) {
+                response.close();
+            }
+        }
+    }
+
     /**
      * Instrument a call to Blue Button.
      *
@@ -250,15 +543,31 @@ public class BlueButtonClientImpl implements BlueButtonClient {
      * @return the value returned by the supplier (i.e. call)
      */
     private <T> T instrumentCall(String metricName, Supplier<T> supplier) {
-        final var timerContext = timers.get(metricName).time();
+        // Each attempt goes through the circuit breaker, and takes its own token and slot, so a retry waits its turn.
+        // A hedge of a slow attempt does too, and the attempt only fails if both copies fail.
+        return resilience.call(() -> hedger.call(metricName, timers.get(metricName), () -> attemptCall(metricName, supplier)));
+    }
+
+    private <T> T attemptCall(String metricName, Supplier<T> supplier) {
+        // A request takes a token of the budget before it waits for a slot, so a slot is not held while the budget is spent
         try {
-            return supplier.get();
-        } catch(Exception ex) {
-            final var exceptionMeter = exceptionMeters.get(metricName);
-            exceptionMeter.mark();
-            throw ex;
-        } finally {
-            timerContext.stop();
+            rateBudget.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new BlueButtonInterruptedException("Interrupted while waiting for the BlueButton request budget", e);
         }
+        // The request waits for a slot of the limiter before it is timed, so the timers only measure BlueButton
+        return limiter.call(() -> {
+            final var timerContext = timers.get(metricName).time();
+            try {
+                return supplier.get();
+            } catch(Exception ex) {
+                final var exceptionMeter = exceptionMeters.get(metricName);
+                exceptionMeter.mark();
+                throw ex;
+            } finally {
+                timerContext.stop();
+            }
+        });
     }
 }
@@ -0,0 +1,106 @@
+package gov.cms.dpc.bluebutton.client;
+
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import gov.cms.dpc.bluebutton.config.BBClientConfiguration;
+import gov.cms.dpc.bluebutton.exceptions.BlueButtonInterruptedException;
+import gov.cms.dpc.common.utils.MetricMaker;
+import io.github.resilience4j.circuitbreaker.CircuitBreaker;
+import io.github.resilience4j.circuitbreaker.CircuitBreakerConfig;
+import io.github.resilience4j.core.IntervalFunction;
+import io.github.resilience4j.retry.Retry;
+import io.github.resilience4j.retry.RetryConfig;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Duration;
+import java.util.function.Supplier;
+
+/**
+ * Retries and circuit breaking for requests to BlueButton.
+ * <p>
+ * A request that fails because BlueButton is overloaded or unreachable (see {@link ConcurrencyLimiter}) is retried,
+ * waiting an exponentially growing, randomized interval between attempts so that the aggregators do not retry in step.
+ * Other failures, such as a missing patient, and interrupts of the caller are not retried.
+ * <p>
+ * Every attempt goes through a circuit breaker. When too many of the recent attempts have failed, the breaker opens,
+ * and requests fail straight away with a {@link io.github.resilience4j.circuitbreaker.CallNotPermittedException}
+ * instead of adding to the load. After the open duration the breaker lets a few trial requests through, and closes
+ * again if they succeed. Callers can check {@link #isAvailable()} to stop work while the breaker is open.
+ */
+public class BlueButtonResilience {
+
+    private static final Logger logger = LoggerFactory.getLogger(BlueButtonResilience.class);
+    private static final String NAME = "bluebutton";
+
+    private final Retry retry;
+    private final CircuitBreaker circuitBreaker;
+
+    /**
+     * Create the retry and circuit breaker
+     *
+     * @param retryCount     - the number of times a failed request is retried
+     * @param config         - the backoff and breaker settings
+     * @param metricRegistry - {@link MetricRegistry} for metrics
+     */
+    public BlueButtonResilience(int retryCount, BBClientConfiguration.ResilienceConfiguration config, MetricRegistry metricRegistry) {
+        final RetryConfig retryConfig = RetryConfig.custom()
+                .maxAttempts(retryCount + 1)
+                .intervalFunction(IntervalFunction.ofExponentialRandomBackoff(config.getRetryInitialInterval(), config.getRetryMultiplier(), config.getRetryRandomization()))
+                .retryOnException(ConcurrencyLimiter::isOverload)
+                .build();
+        this.retry = Retry.of(NAME, retryConfig);
+
+        final CircuitBreakerConfig breakerConfig = CircuitBreakerConfig.custom()
+                .failureRateThreshold(config.getFailureRateThreshold())
+                .slidingWindowSize(config.getSlidingWindowSize())
+                .minimumNumberOfCalls(config.getMinimumNumberOfCalls())
+                .waitDurationInOpenState(Duration.ofMillis(config.getOpenDuration()))
+                .permittedNumberOfCallsInHalfOpenState(config.getHalfOpenCalls())
+                // Nothing calls BlueButton while the breaker is open, so it has to move to half open on its own
+                .automaticTransitionFromOpenToHalfOpenEnabled(true)
+                .recordException(ConcurrencyLimiter::isOverload)
+                // An interrupt is the aggregator shutting down, not BlueButton failing, so it counts as neither a failure nor a success
+                .ignoreExceptions(BlueButtonInterruptedException.class)
+                .build();
+        this.circuitBreaker = CircuitBreaker.of(NAME, breakerConfig);
+
+        final var metricMaker = new MetricMaker(metricRegistry, BlueButtonResilience.class);
+        final Meter retryMeter = metricMaker.registerMeter("retries");
+        final Meter exhaustedMeter = metricMaker.registerMeter("retriesExhausted");
+        final Meter rejectedMeter = metricMaker.registerMeter("notPermitted");
+        metricMaker.registerCachedGauge("circuitBreakerState", () -> circuitBreaker.getState().name());
+        metricMaker.registerCachedGauge("failureRate", () -> circuitBreaker.getMetrics().getFailureRate());
+
+        retry.getEventPublisher()
+                .onRetry(event -> retryMeter.mark())
+                .onError(event -> exhaustedMeter.mark());
+        circuitBreaker.getEventPublisher()
+                .onCallNotPermitted(event -> rejectedMeter.mark())
+                .onStateTransition(event -> logger.warn("BlueButton circuit breaker moved from {} to {}",
+                        event.getStateTransition().getFromState(), event.getStateTransition().getToState()));
+    }
+
+    /**
+     * Make a request, retrying it while it fails from overload and the circuit breaker allows it
+     *
+     * @param request - one attempt at the request
+     * @param <T>     - the result of the request
+     * @return the result of the request
+     */
+    public <T> T call(Supplier<T> request) {
+        return Retry.decorateSupplier(retry, CircuitBreaker.decorateSupplier(circuitBreaker, request)).get();
+    }
+
+    /**
+     * @return whether BlueButton is accepting requests, which is false while the circuit breaker is open
+     */
+    public boolean isAvailable() {
+        final CircuitBreaker.State state = circuitBreaker.getState();
+        return state != CircuitBreaker.State.OPEN && state != CircuitBreaker.State.FORCED_OPEN;
+    }
+
+    CircuitBreaker getCircuitBreaker() {
+        return circuitBreaker;
+    }
+}
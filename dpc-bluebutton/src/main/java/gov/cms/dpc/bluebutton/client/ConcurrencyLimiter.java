@@ -0,0 +1,197 @@
+package gov.cms.dpc.bluebutton.client;
+
+import ca.uhn.fhir.rest.client.exceptions.FhirClientConnectionException;
+import ca.uhn.fhir.rest.server.exceptions.BaseServerResponseException;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import gov.cms.dpc.bluebutton.config.BBClientConfiguration;
+import gov.cms.dpc.bluebutton.exceptions.BlueButtonInterruptedException;
+import gov.cms.dpc.common.utils.MetricMaker;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+
+/**
+ * Limits the number of concurrent requests to BlueButton, adapting the limit to how well BlueButton is coping.
+ * <p>
+ * The limit follows AIMD (additive increase, multiplicative decrease). Each request that completes within the latency
+ * threshold, while the limit is in use, raises the limit by 1/limit, so a full window of good requests raises it by one.
+ * A request that is throttled (429), fails on the server (5xx), cannot connect or times out, or is slower than the
+ * threshold, is an overload and multiplies the limit by the backoff ratio. Other failures, such as a missing patient,
+ * and interrupts of the caller leave the limit as is. The limit stays between the floor and the ceiling of the
+ * configuration. Requests over the limit wait for a slot, and the time they wait is reported as the queueing delay.
+ */
+public class ConcurrencyLimiter {
+
+    enum Outcome {
+        SUCCESS,
+        OVERLOAD,
+        IGNORE
+    }
+
+    private static final int HTTP_TOO_MANY_REQUESTS = 429;
+    private static final int HTTP_SERVER_ERROR = 500;
+
+    private final int minLimit;
+    private final int maxLimit;
+    private final long latencyThresholdNanos;
+    private final double backoffRatio;
+    private final LongSupplier nanoClock;
+    private final ReentrantLock lock;
+    private final Condition slotAvailable;
+    private final Timer queueDelayTimer;
+    private final Meter overloadMeter;
+    private double limit;
+    private int inFlight;
+
+    /**
+     * Create a limiter
+     *
+     * @param config         - the floor, ceiling and tuning of the limit
+     * @param metricRegistry - {@link MetricRegistry} for metrics
+     */
+    public ConcurrencyLimiter(BBClientConfiguration.ConcurrencyLimitConfiguration config, MetricRegistry metricRegistry) {
+        this(config, metricRegistry, System::nanoTime);
+    }
+
+    ConcurrencyLimiter(BBClientConfiguration.ConcurrencyLimitConfiguration config, MetricRegistry metricRegistry, LongSupplier nanoClock) {
+        this.minLimit = config.getMinLimit();
+        this.maxLimit = Math.max(config.getMaxLimit(), minLimit);
+        this.latencyThresholdNanos = TimeUnit.MILLISECONDS.toNanos(config.getLatencyThreshold());
+        this.backoffRatio = config.getBackoffRatio();
+        this.nanoClock = nanoClock;
+        this.lock = new ReentrantLock();
+        this.slotAvailable = lock.newCondition();
+        this.limit = Math.min(Math.max(config.getInitialLimit(), minLimit), maxLimit);
+
+        final var metricMaker = new MetricMaker(metricRegistry, ConcurrencyLimiter.class);
+        this.queueDelayTimer = metricMaker.registerTimer("queueDelay");
+        this.overloadMeter = metricMaker.registerMeter("overloads");
+        metricMaker.registerCachedGauge("limit", this::getLimit);
+        metricMaker.registerCachedGauge("inFlight", this::getInFlight);
+    }
+
+    /**
+     * Make a request once a slot is free, and adjust the limit by how the request went
+     *
+     * @param request - the request to make
+     * @param <T>     - the result of the request
+     * @return the result of the request
+     * @throws BlueButtonInterruptedException if interrupted while waiting for a slot
+     */
+    public <T> T call(Supplier<T> request) {
+        final long started;
+        try {
+            started = acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new BlueButtonInterruptedException("Interrupted while waiting to make a request to BlueButton", e);
+        }
+
+        Outcome outcome = Outcome.IGNORE;
+        try {
+            final T result = request.get();
+            outcome = Outcome.SUCCESS;
+            return result;
+        } catch (RuntimeException e) {
+            outcome = classify(e);
+            throw e;
+        } finally {
+            release(started, outcome);
+        }
+    }
+
+    /**
+     * @return the current number of requests allowed in flight
+     */
+    public int getLimit() {
+        lock.lock();
+        try {
+            return (int) limit;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the current number of requests in flight
+     */
+    public int getInFlight() {
+        lock.lock();
+        try {
+            return inFlight;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Wait for a free slot and take it
+     *
+     * @return the time the slot was taken, in nanos of the clock
+     * @throws InterruptedException if interrupted while waiting
+     */
+    long acquire() throws InterruptedException {
+        final long waitStarted = nanoClock.getAsLong();
+        lock.lockInterruptibly();
+        try {
+            while (inFlight >= (int) limit) {
+                slotAvailable.await();
+            }
+            inFlight++;
+        } finally {
+            lock.unlock();
+        }
+        final long acquired = nanoClock.getAsLong();
+        queueDelayTimer.update(acquired - waitStarted, TimeUnit.NANOSECONDS);
+        return acquired;
+    }
+
+    /**
+     * Give back a slot, and adjust the limit by the outcome of its request
+     *
+     * @param acquired - the time the slot was taken, from {@link #acquire()}
+     * @param outcome  - how the request went
+     */
+    void release(long acquired, Outcome outcome) {
+        final boolean tooSlow = nanoClock.getAsLong() - acquired > latencyThresholdNanos;
+        lock.lock();
+        try {
+            // Only grow the limit when it is actually in use, otherwise an idle aggregator would drift to the ceiling
+            final boolean limitInUse = inFlight >= limit / 2;
+            inFlight--;
+            if (outcome == Outcome.OVERLOAD || (outcome == Outcome.SUCCESS && tooSlow)) {
+                limit = Math.max(minLimit, limit * backoffRatio);
+                overloadMeter.mark();
+            } else if (outcome == Outcome.SUCCESS && limitInUse) {
+                limit = Math.min(maxLimit, limit + 1 / limit);
+            }
+            slotAvailable.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    static Outcome classify(RuntimeException e) {
+        return isOverload(e) ? Outcome.OVERLOAD : Outcome.IGNORE;
+    }
+
+    /**
+     * @param e - the failure of a request
+     * @return whether the failure is BlueButton throttling (429), failing on the server (5xx) or not answering in time
+     */
+    static boolean isOverload(Throwable e) {
+        if (e instanceof FhirClientConnectionException) {
+            return true;
+        }
+        if (e instanceof BaseServerResponseException) {
+            final int status = ((BaseServerResponseException) e).getStatusCode();
+            return status == HTTP_TOO_MANY_REQUESTS || status >= HTTP_SERVER_ERROR;
+        }
+        return false;
+    }
+}
@@ -9,17 +9,26 @@ import org.apache.http.client.utils.URLEncodedUtils;
 import org.hl7.fhir.dstu3.model.Bundle;
 import org.hl7.fhir.dstu3.model.CapabilityStatement;
 import org.hl7.fhir.dstu3.model.Patient;
+import org.bouncycastle.util.encoders.Hex;
 import org.hl7.fhir.instance.model.api.IBaseResource;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.URI;
 import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
 import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 
-public class MockBlueButtonClient implements BlueButtonClient {
+public class MockBlueButtonClient implements BlueButtonClient, AsyncBlueButtonClient {
 
     private static final String SAMPLE_EOB_PATH_PREFIX = "bb-test-data/eob/";
     private static final String SAMPLE_PATIENT_PATH_PREFIX = "bb-test-data/patient/";
@@ -36,12 +45,15 @@ public class MockBlueButtonClient implements BlueButtonClient {
     );
     public static final List<String> TEST_PATIENT_WITH_BAD_IDS = List.of("-1", "-2", TEST_PATIENT_MBIS.get(0), TEST_PATIENT_MBIS.get(1), "-3");
     public static final String MULTIPLE_RESULTS_MBI = "0SW4N00AA00";
+    public static final String MULTIPLE_RESULTS_MBI_HASH = "a1e3f6b7b4e2b1f9e1e4b1b6a1e1b1c1d6e1a1b1f1e1c1a1b1e1f1a1c1b1e1d1";
+    public static final String HASH_PEPPER_VERSION = "mock";
+    public static final String UNKNOWN_MBI_HASH_PREFIX = "unknown-";
 
-    private final IParser parser;
+    private final FhirContext fhirContext;
 
     public MockBlueButtonClient(FhirContext fhirContext) {
         fhirContext.setPerformanceOptions(PerformanceOptionsEnum.DEFERRED_MODEL_SCANNING);
-        parser = fhirContext.newXmlParser();
+        this.fhirContext = fhirContext;
     }
 
     @Override
@@ -68,8 +80,12 @@ public class MockBlueButtonClient implements BlueButtonClient {
 
     @Override
     public Bundle requestPatientFromServerByMbiHash(String mbiHash) throws ResourceNotFoundException {
-        String mbi = MBI_HASH_MAP.values().stream()
-                .filter(h -> h.equals(mbiHash))
+        if (MULTIPLE_RESULTS_MBI_HASH.equals(mbiHash)) {
+            return requestPatientFromServerByMbi(MULTIPLE_RESULTS_MBI);
+        }
+        String mbi = MBI_HASH_MAP.entrySet().stream()
+                .filter(e -> e.getValue().equals(mbiHash))
+                .map(Map.Entry::getKey)
                 .findFirst()
                 .orElse("");
         Patient p = loadOne(Patient.class, SAMPLE_PATIENT_PATH_PREFIX, MBI_BENE_ID_MAP.get(mbi));
@@ -79,6 +95,25 @@ public class MockBlueButtonClient implements BlueButtonClient {
         return b;
     }
 
+    @Override
+    public Map<String, List<Patient>> requestPatientsFromServerByMbiHashes(Collection<String> mbiHashes) throws ResourceNotFoundException {
+        final Map<String, List<Patient>> patients = new HashMap<>();
+        for (String mbiHash : mbiHashes) {
+            final List<Patient> matches = new ArrayList<>();
+            if (MULTIPLE_RESULTS_MBI_HASH.equals(mbiHash)) {
+                matches.add(new Patient());
+                matches.add(new Patient());
+            } else {
+                MBI_HASH_MAP.entrySet().stream()
+                        .filter(e -> e.getValue().equals(mbiHash))
+                        .findFirst()
+                        .ifPresent(e -> matches.add(loadOne(Patient.class, SAMPLE_PATIENT_PATH_PREFIX, MBI_BENE_ID_MAP.get(e.getKey()))));
+            }
+            patients.put(mbiHash, matches);
+        }
+        return patients;
+    }
+
     @Override
     public Bundle requestEOBFromServer(String beneId) throws ResourceNotFoundException {
         return loadBundle(SAMPLE_EOB_PATH_PREFIX, beneId);
@@ -91,8 +126,72 @@ public class MockBlueButtonClient implements BlueButtonClient {
 
     @Override
     public Bundle requestNextBundleFromServer(Bundle bundle) throws ResourceNotFoundException {
+        return loadNextBundle(bundle.getLink(Bundle.LINK_NEXT).getUrl());
+    }
+
+    @Override
+    public RawBundle requestRawEOBFromServer(String beneId) throws ResourceNotFoundException {
+        return toRawBundle(requestEOBFromServer(beneId));
+    }
+
+    @Override
+    public RawBundle requestRawCoverageFromServer(String beneId) throws ResourceNotFoundException {
+        return toRawBundle(requestCoverageFromServer(beneId));
+    }
+
+    @Override
+    public RawBundle requestRawCoverageUpdatedSince(String beneId, Instant since) {
+        // The test data never changes
+        return new RawBundle(List.of(), null);
+    }
+
+    @Override
+    public RawBundle requestNextRawBundleFromServer(RawBundle bundle) throws ResourceNotFoundException {
+        return toRawBundle(loadNextBundle(bundle.getNextLink().orElseThrow()));
+    }
+
+    @Override
+    public CompletableFuture<Patient> requestPatientFromServerAsync(String beneId) {
+        return CompletableFuture.supplyAsync(() -> requestPatientFromServer(beneId));
+    }
+
+    @Override
+    public CompletableFuture<Bundle> requestPatientFromServerByMbiHashAsync(String mbiHash) {
+        return CompletableFuture.supplyAsync(() -> requestPatientFromServerByMbiHash(mbiHash));
+    }
+
+    @Override
+    public CompletableFuture<Bundle> requestEOBFromServerAsync(String beneId) {
+        return CompletableFuture.supplyAsync(() -> requestEOBFromServer(beneId));
+    }
+
+    @Override
+    public CompletableFuture<Bundle> requestCoverageFromServerAsync(String beneId) {
+        return CompletableFuture.supplyAsync(() -> requestCoverageFromServer(beneId));
+    }
+
+    @Override
+    public CompletableFuture<Bundle> requestNextBundleFromServerAsync(Bundle bundle) {
+        return CompletableFuture.supplyAsync(() -> requestNextBundleFromServer(bundle));
+    }
+
+    @Override
+    public CompletableFuture<RawBundle> requestRawEOBFromServerAsync(String beneId) {
+        return CompletableFuture.supplyAsync(() -> requestRawEOBFromServer(beneId));
+    }
+
+    @Override
+    public CompletableFuture<RawBundle> requestRawCoverageFromServerAsync(String beneId) {
+        return CompletableFuture.supplyAsync(() -> requestRawCoverageFromServer(beneId));
+    }
+
+    @Override
+    public CompletableFuture<RawBundle> requestNextRawBundleFromServerAsync(RawBundle bundle) {
+        return CompletableFuture.supplyAsync(() -> requestNextRawBundleFromServer(bundle));
+    }
+
+    private Bundle loadNextBundle(String nextLink) {
         // This is code is very specific to the bb-test-data directory and its contents
-        final var nextLink = bundle.getLink(Bundle.LINK_NEXT).getUrl();
         final var nextUrl = URI.create(nextLink);
         final var params = URLEncodedUtils.parse(nextUrl.getQuery(), Charset.forName("UTF-8"));
         final var patient = params.stream().filter(pair -> pair.getName().equals("patient")).findFirst().orElseThrow().getValue();
@@ -100,7 +199,7 @@ public class MockBlueButtonClient implements BlueButtonClient {
         var path = SAMPLE_EOB_PATH_PREFIX + patient + "_" + startIndex + ".xml";
 
         try(InputStream sampleData = MockBlueButtonClient.class.getClassLoader().getResourceAsStream(path)) {
-            return parser.parseResource(Bundle.class, sampleData);
+            return newParser().parseResource(Bundle.class, sampleData);
         } catch(IOException ex) {
             throw new ResourceNotFoundException("Missing next bundle");
         }
@@ -114,7 +213,41 @@ public class MockBlueButtonClient implements BlueButtonClient {
 
     @Override
     public String hashMbi(String mbi) throws GeneralSecurityException {
-        return MBI_HASH_MAP.get(mbi);
+        if (MULTIPLE_RESULTS_MBI.equals(mbi)) {
+            return MULTIPLE_RESULTS_MBI_HASH;
+        }
+        // Unknown MBIs still hash to a stable value, which does not match any patient
+        return MBI_HASH_MAP.getOrDefault(mbi, UNKNOWN_MBI_HASH_PREFIX + mbi);
+    }
+
+    @Override
+    public String keyMbi(String mbi) throws GeneralSecurityException {
+        return Hex.toHexString(MessageDigest.getInstance("SHA-256").digest(mbi.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    @Override
+    public String getHashPepperVersion() {
+        return HASH_PEPPER_VERSION;
+    }
+
+    @Override
+    public boolean isAvailable() {
+        return true;
+    }
+
+    /**
+     * Encode a sample Bundle as JSON and read it back with the streaming reader, as the real client does with a response
+     *
+     * @param bundle - the sample Bundle
+     * @return the raw Bundle
+     */
+    private RawBundle toRawBundle(Bundle bundle) {
+        final byte[] json = fhirContext.newJsonParser().encodeResourceToString(bundle).getBytes(StandardCharsets.UTF_8);
+        try {
+            return RawBundle.read(new ByteArrayInputStream(json));
+        } catch (IOException ex) {
+            throw new IllegalStateException("Unable to read an in-memory Bundle", ex);
+        }
     }
 
     /**
@@ -126,7 +259,7 @@ public class MockBlueButtonClient implements BlueButtonClient {
      */
     private Bundle loadBundle(String pathPrefix, String beneId) {
         try(InputStream sampleData = loadResource(pathPrefix, beneId)) {
-            return parser.parseResource(Bundle.class, sampleData);
+            return newParser().parseResource(Bundle.class, sampleData);
         } catch(IOException ex) {
             throw formNoPatientException(beneId);
         }
@@ -141,7 +274,7 @@ public class MockBlueButtonClient implements BlueButtonClient {
      */
     private <T extends IBaseResource> T loadOne(Class<T> resourceClass, String pathPrefix, String patientID) {
         try(InputStream sampleData = loadResource(pathPrefix, patientID)) {
-            return parser.parseResource(resourceClass, sampleData);
+            return newParser().parseResource(resourceClass, sampleData);
         } catch(IOException ex) {
             throw formNoPatientException(patientID);
         }
@@ -162,6 +295,15 @@ public class MockBlueButtonClient implements BlueButtonClient {
         return MockBlueButtonClient.class.getClassLoader().getResourceAsStream(path);
     }
 
+    /**
+     * Create a new parser for each request. Parsers are not thread-safe, and the client may be called from multiple threads.
+     *
+     * @return a new XML parser
+     */
+    private IParser newParser() {
+        return fhirContext.newXmlParser();
+    }
+
     private ResourceNotFoundException formNoPatientException(String patientID) {
         return new ResourceNotFoundException("No patient found with ID: " + patientID);
     }
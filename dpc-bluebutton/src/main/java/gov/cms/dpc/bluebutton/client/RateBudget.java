@@ -0,0 +1,139 @@
+package gov.cms.dpc.bluebutton.client;
+
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import gov.cms.dpc.bluebutton.config.BBClientConfiguration;
+import gov.cms.dpc.common.utils.MetricMaker;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.LongSupplier;
+
+/**
+ * Spends a request budget for BlueButton that is shared by all the aggregators.
+ * <p>
+ * Every request takes a token. Tokens are leased in chunks from a {@link TokenSource}, such as a token bucket in the
+ * queue database, so the shared budget is only consulted every few requests. Leased tokens expire after a short time,
+ * so an aggregator that goes quiet does not hold on to budget the others could use. When the budget is spent, requests
+ * wait and lease again, rather than going over it. That includes when the source fails.
+ */
+public class RateBudget {
+
+    private static final Logger logger = LoggerFactory.getLogger(RateBudget.class);
+
+    /**
+     * The shared budget that tokens are leased from
+     */
+    @FunctionalInterface
+    public interface TokenSource {
+
+        /**
+         * @param requested - the number of tokens wanted
+         * @return the number of tokens granted, between zero and the number requested
+         */
+        int lease(int requested);
+    }
+
+    private final TokenSource source;
+    private final int leaseSize;
+    private final long leaseTimeoutNanos;
+    private final long retryIntervalMillis;
+    private final LongSupplier nanoClock;
+    private final ReentrantLock lock;
+    private final Timer waitTimer;
+    private final Meter leaseMeter;
+    private final Meter leaseFailureMeter;
+    private int tokens;
+    private long expires;
+
+    /**
+     * Create a budget that leases from a source
+     *
+     * @param source         - the shared budget
+     * @param config         - how tokens are leased
+     * @param metricRegistry - {@link MetricRegistry} for metrics
+     */
+    public RateBudget(TokenSource source, BBClientConfiguration.RateBudgetConfiguration config, MetricRegistry metricRegistry) {
+        this(source, config, metricRegistry, System::nanoTime);
+    }
+
+    RateBudget(TokenSource source, BBClientConfiguration.RateBudgetConfiguration config, MetricRegistry metricRegistry, LongSupplier nanoClock) {
+        this(source, config.getLeaseSize(), config.getLeaseTimeout(), config.getRetryInterval(), new MetricMaker(metricRegistry, RateBudget.class), nanoClock);
+    }
+
+    private RateBudget(TokenSource source, int leaseSize, long leaseTimeoutMillis, long retryIntervalMillis, MetricMaker metricMaker, LongSupplier nanoClock) {
+        this.source = source;
+        this.leaseSize = leaseSize;
+        this.leaseTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(leaseTimeoutMillis);
+        this.retryIntervalMillis = retryIntervalMillis;
+        this.nanoClock = nanoClock;
+        this.lock = new ReentrantLock();
+        this.waitTimer = metricMaker.registerTimer("wait");
+        this.leaseMeter = metricMaker.registerMeter("leases");
+        this.leaseFailureMeter = metricMaker.registerMeter("leaseFailures");
+        metricMaker.registerCachedGauge("leasedTokens", this::getTokens);
+    }
+
+    /**
+     * @return a budget that never makes requests wait
+     */
+    public static RateBudget unlimited() {
+        return new RateBudget(null, 0, 0, 0, new MetricMaker(new MetricRegistry(), RateBudget.class), System::nanoTime);
+    }
+
+    /**
+     * Take a token for a request, waiting until the budget allows it
+     *
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public void acquire() throws InterruptedException {
+        if (source == null) {
+            return;
+        }
+        try (var ignored = waitTimer.time()) {
+            // Only one thread leases at a time, the others wait for the tokens it leases
+            lock.lockInterruptibly();
+            try {
+                while (!takeToken()) {
+                    final int granted = lease();
+                    if (granted > 0) {
+                        tokens = granted;
+                        expires = nanoClock.getAsLong() + leaseTimeoutNanos;
+                    } else {
+                        Thread.sleep(retryIntervalMillis);
+                    }
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    int getTokens() {
+        return tokens;
+    }
+
+    private boolean takeToken() {
+        if (tokens > 0 && nanoClock.getAsLong() - expires < 0) {
+            tokens--;
+            return true;
+        }
+        tokens = 0;
+        return false;
+    }
+
+    private int lease() {
+        try {
+            final int granted = source.lease(leaseSize);
+            leaseMeter.mark();
+            return granted;
+        } catch (Exception e) {
+            leaseFailureMeter.mark();
+            logger.warn("Failed to lease BlueButton request tokens, waiting to retry", e);
+            return 0;
+        }
+    }
+}
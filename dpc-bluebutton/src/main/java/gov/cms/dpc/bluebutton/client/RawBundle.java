@@ -0,0 +1,272 @@
+package gov.cms.dpc.bluebutton.client;
+
+import ca.uhn.fhir.parser.DataFormatException;
+import ca.uhn.fhir.parser.IParser;
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.JsonToken;
+import org.hl7.fhir.dstu3.model.Bundle;
+import org.hl7.fhir.dstu3.model.InstantType;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Optional;
+
+/**
+ * A page of a FHIR search Bundle, holding the JSON of each entry resource rather than a parsed model.
+ * <p>
+ * The Bundle is read with a streaming JSON reader, which copies out each {@code entry[].resource} object as a single line of compact JSON
+ * and picks up the {@code next} link and the {@code meta.lastUpdated} of the Bundle. The resources are never parsed into HAPI models, so they can be passed straight through to an NDJSON file.
+ */
+public class RawBundle {
+
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
+    private static final String RESOURCE_TYPE_FIELD = "resourceType";
+
+    private final List<Entry> entries;
+    private final String nextLink;
+    private final Instant lastUpdated;
+
+    RawBundle(List<Entry> entries, String nextLink) {
+        this(entries, nextLink, null);
+    }
+
+    RawBundle(List<Entry> entries, String nextLink, Instant lastUpdated) {
+        this.entries = Collections.unmodifiableList(entries);
+        this.nextLink = nextLink;
+        this.lastUpdated = lastUpdated;
+    }
+
+    /**
+     * @return the resources of the page, in order
+     */
+    public List<Entry> getEntries() {
+        return entries;
+    }
+
+    /**
+     * @return the URL of the next page, empty if this is the last page
+     */
+    public Optional<String> getNextLink() {
+        return Optional.ofNullable(nextLink);
+    }
+
+    /**
+     * @return the meta.lastUpdated of the Bundle, as set by the server, empty if it has none
+     */
+    public Optional<Instant> getLastUpdated() {
+        return Optional.ofNullable(lastUpdated);
+    }
+
+    /**
+     * @return true if the page has any resources
+     */
+    public boolean hasEntry() {
+        return !entries.isEmpty();
+    }
+
+    /**
+     * Read a JSON Bundle from a stream
+     *
+     * @param input - the stream of the JSON Bundle. It is not closed.
+     * @return the Bundle with the JSON of its entries
+     * @throws IOException if the stream cannot be read
+     * @throws DataFormatException if the stream is not a JSON Bundle
+     */
+    public static RawBundle read(InputStream input) throws IOException {
+        try (JsonParser parser = JSON_FACTORY.createParser(input)) {
+            parser.disable(JsonParser.Feature.AUTO_CLOSE_SOURCE);
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                throw new DataFormatException("Expected a JSON object for the Bundle");
+            }
+
+            final List<Entry> entries = new ArrayList<>();
+            String nextLink = null;
+            Instant lastUpdated = null;
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                final String field = parser.getCurrentName();
+                parser.nextToken();
+                switch (field) {
+                    case RESOURCE_TYPE_FIELD:
+                        if (!"Bundle".equals(parser.getText())) {
+                            throw new DataFormatException(String.format("Expected a Bundle, got: %s", parser.getText()));
+                        }
+                        break;
+                    case "link":
+                        nextLink = readNextLink(parser);
+                        break;
+                    case "entry":
+                        readEntries(parser, entries);
+                        break;
+                    case "meta":
+                        lastUpdated = readLastUpdated(parser);
+                        break;
+                    default:
+                        parser.skipChildren();
+                }
+            }
+            return new RawBundle(entries, nextLink, lastUpdated);
+        } catch (JsonProcessingException e) {
+            throw new DataFormatException("Unable to read the Bundle JSON", e);
+        }
+    }
+
+    /**
+     * Convert a parsed Bundle, for the servers that do not return JSON
+     *
+     * @param bundle - the parsed Bundle
+     * @param jsonParser - the parser to encode the entries with
+     * @return the Bundle with the JSON of its entries
+     */
+    public static RawBundle fromBundle(Bundle bundle, IParser jsonParser) {
+        final List<Entry> entries = new ArrayList<>(bundle.getEntry().size());
+        for (Bundle.BundleEntryComponent entry : bundle.getEntry()) {
+            final var resource = entry.getResource();
+            entries.add(new Entry(resource.getResourceType().name(), jsonParser.encodeResourceToString(resource).getBytes(StandardCharsets.UTF_8)));
+        }
+        final var next = bundle.getLink(Bundle.LINK_NEXT);
+        final var lastUpdated = bundle.getMeta().getLastUpdated();
+        return new RawBundle(entries, next == null ? null : next.getUrl(), lastUpdated == null ? null : lastUpdated.toInstant());
+    }
+
+    private static String readNextLink(JsonParser parser) throws IOException {
+        expect(parser, JsonToken.START_ARRAY, "link");
+        String nextLink = null;
+        while (parser.nextToken() == JsonToken.START_OBJECT) {
+            String relation = null;
+            String url = null;
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                final String field = parser.getCurrentName();
+                parser.nextToken();
+                if ("relation".equals(field)) {
+                    relation = parser.getText();
+                } else if ("url".equals(field)) {
+                    url = parser.getText();
+                } else {
+                    parser.skipChildren();
+                }
+            }
+            if (Bundle.LINK_NEXT.equals(relation)) {
+                nextLink = url;
+            }
+        }
+        return nextLink;
+    }
+
+    private static Instant readLastUpdated(JsonParser parser) throws IOException {
+        expect(parser, JsonToken.START_OBJECT, "meta");
+        Instant lastUpdated = null;
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            final String field = parser.getCurrentName();
+            parser.nextToken();
+            if ("lastUpdated".equals(field)) {
+                // An invalid instant fails with a DataFormatException
+                final Date value = new InstantType(parser.getText()).getValue();
+                lastUpdated = value == null ? null : value.toInstant();
+            } else {
+                parser.skipChildren();
+            }
+        }
+        return lastUpdated;
+    }
+
+    private static void readEntries(JsonParser parser, List<Entry> entries) throws IOException {
+        expect(parser, JsonToken.START_ARRAY, "entry");
+        while (parser.nextToken() == JsonToken.START_OBJECT) {
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                final String field = parser.getCurrentName();
+                parser.nextToken();
+                if ("resource".equals(field)) {
+                    entries.add(copyResource(parser));
+                } else {
+                    parser.skipChildren();
+                }
+            }
+        }
+    }
+
+    /**
+     * Copy the resource object the parser is positioned on, token by token, noting its type on the way
+     */
+    private static Entry copyResource(JsonParser parser) throws IOException {
+        expect(parser, JsonToken.START_OBJECT, "resource");
+        final var json = new ByteArrayOutputStream(4096);
+        String resourceType = null;
+        try (JsonGenerator generator = JSON_FACTORY.createGenerator(json, JsonEncoding.UTF8)) {
+            generator.copyCurrentEvent(parser);
+            int depth = 1;
+            while (depth > 0) {
+                final JsonToken token = parser.nextToken();
+                if (token == null) {
+                    throw new DataFormatException("Unexpected end of the Bundle JSON");
+                }
+                if (token == JsonToken.START_OBJECT || token == JsonToken.START_ARRAY) {
+                    depth++;
+                } else if (token == JsonToken.END_OBJECT || token == JsonToken.END_ARRAY) {
+                    depth--;
+                } else if (depth == 1 && token == JsonToken.VALUE_STRING && RESOURCE_TYPE_FIELD.equals(parser.getCurrentName())) {
+                    resourceType = parser.getText();
+                }
+                copyToken(parser, generator, token);
+            }
+        }
+        if (resourceType == null) {
+            throw new DataFormatException("Bundle entry resource is missing its resourceType");
+        }
+        return new Entry(resourceType, json.toByteArray());
+    }
+
+    /**
+     * Copy a single token. Numbers are copied as written, as re-encoding them would lose the scale of decimals such as {@code 0.00}.
+     */
+    private static void copyToken(JsonParser parser, JsonGenerator generator, JsonToken token) throws IOException {
+        if (token == JsonToken.VALUE_NUMBER_FLOAT || token == JsonToken.VALUE_NUMBER_INT) {
+            generator.writeNumber(parser.getText());
+        } else {
+            generator.copyCurrentEvent(parser);
+        }
+    }
+
+    private static void expect(JsonParser parser, JsonToken expected, String field) {
+        if (parser.currentToken() != expected) {
+            throw new DataFormatException(String.format("Unexpected JSON for Bundle %s: %s", field, parser.currentToken()));
+        }
+    }
+
+    /**
+     * A single resource of a Bundle, as compact JSON without any line breaks
+     */
+    public static class Entry {
+        private final String resourceType;
+        private final byte[] json;
+
+        Entry(String resourceType, byte[] json) {
+            this.resourceType = resourceType;
+            this.json = json;
+        }
+
+        /**
+         * @return the resourceType of the resource, as written in the JSON
+         */
+        public String getResourceType() {
+            return resourceType;
+        }
+
+        /**
+         * @return the UTF-8 JSON of the resource
+         */
+        public byte[] getJson() {
+            return json;
+        }
+    }
+}
@@ -0,0 +1,183 @@
+package gov.cms.dpc.bluebutton.client;
+
+import ca.uhn.fhir.rest.client.exceptions.FhirClientConnectionException;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import gov.cms.dpc.bluebutton.config.BBClientConfiguration;
+import gov.cms.dpc.bluebutton.exceptions.BlueButtonInterruptedException;
+import gov.cms.dpc.common.utils.MetricMaker;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Supplier;
+
+/**
+ * Hedges the requests to BlueButton against its tail latency.
+ * <p>
+ * A request that has not completed by a percentile of the recent latency of its endpoint is duplicated, and whichever
+ * copy succeeds first is used. Only use it for idempotent reads, which all the requests of {@link BlueButtonClient} are.
+ * <p>
+ * Hedges are limited by a budget. Every request earns a fraction of a hedge, the budget percentage, and every hedge
+ * spends a whole one, so hedging never adds more than that percentage of extra requests, apart from a small burst.
+ * The losing copy of a hedged request is left to complete, and its response is dropped.
+ */
+public class RequestHedger {
+
+    // The most hedges that can be saved up while requests are fast
+    private static final double MAX_CREDITS = 10;
+
+    private final boolean enabled;
+    private final double quantile;
+    private final double creditPerRequest;
+    private final long minDelayNanos;
+    private final int minSamples;
+    private final ExecutorService executor;
+    private final MetricMaker metricMaker;
+    private final Map<String, Meter> hedgeMeters;
+    private final Map<String, Meter> winMeters;
+    private final Meter deniedMeter;
+    private double credits;
+
+    /**
+     * Create a hedger
+     *
+     * @param config         - when to hedge and the budget for it
+     * @param metricRegistry - {@link MetricRegistry} for metrics
+     */
+    public RequestHedger(BBClientConfiguration.HedgingConfiguration config, MetricRegistry metricRegistry) {
+        this.enabled = config.isEnabled();
+        this.quantile = config.getPercentile() / 100;
+        this.creditPerRequest = config.getBudgetPercent() / 100;
+        this.minDelayNanos = TimeUnit.MILLISECONDS.toNanos(config.getMinDelay());
+        this.minSamples = config.getMinSamples();
+        final var threadCounter = new AtomicInteger();
+        this.executor = Executors.newCachedThreadPool(runnable -> {
+            final var thread = new Thread(runnable, String.format("bluebutton-hedge-%d", threadCounter.getAndIncrement()));
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.metricMaker = new MetricMaker(metricRegistry, RequestHedger.class);
+        this.hedgeMeters = new ConcurrentHashMap<>();
+        this.winMeters = new ConcurrentHashMap<>();
+        this.deniedMeter = metricMaker.registerMeter("hedgesDenied");
+    }
+
+    /**
+     * Make a request, duplicating it if it is slower than the recent requests to its endpoint
+     *
+     * @param endpoint - the name of the endpoint, for metrics
+     * @param latency  - the recent latency of the endpoint
+     * @param request  - the request to make
+     * @param <T>      - the result of the request
+     * @return the result of the first copy of the request to succeed
+     */
+    public <T> T call(String endpoint, Timer latency, Supplier<T> request) {
+        if (!enabled) {
+            return request.get();
+        }
+        earnCredit();
+        if (latency.getCount() < minSamples) {
+            return request.get();
+        }
+
+        final long delay = Math.max(minDelayNanos, (long) latency.getSnapshot().getValue(quantile));
+        final CompletableFuture<T> primary = CompletableFuture.supplyAsync(request, executor);
+        try {
+            return primary.get(delay, TimeUnit.NANOSECONDS);
+        } catch (TimeoutException e) {
+            // Slower than usual, hedge it below
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new BlueButtonInterruptedException("Interrupted while waiting for a request to BlueButton", e);
+        } catch (ExecutionException e) {
+            throw rethrow(e);
+        }
+
+        if (!spendCredit()) {
+            deniedMeter.mark();
+            return await(primary);
+        }
+        getMeter(hedgeMeters, endpoint, "Hedges").mark();
+        final CompletableFuture<T> hedge = CompletableFuture.supplyAsync(request, executor);
+        if (await(firstSuccess(primary, hedge))) {
+            getMeter(winMeters, endpoint, "HedgeWins").mark();
+            return hedge.join();
+        }
+        return primary.join();
+    }
+
+    /**
+     * @return true when the hedge succeeded first, false when the primary did, and the first failure if both fail
+     */
+    private static CompletableFuture<Boolean> firstSuccess(CompletableFuture<?> primary, CompletableFuture<?> hedge) {
+        final var winner = new CompletableFuture<Boolean>();
+        final var failures = new AtomicInteger();
+        final var firstFailure = new AtomicReference<Throwable>();
+        primary.whenComplete((result, error) -> completeWinner(winner, false, error, failures, firstFailure));
+        hedge.whenComplete((result, error) -> completeWinner(winner, true, error, failures, firstFailure));
+        return winner;
+    }
+
+    private static void completeWinner(CompletableFuture<Boolean> winner, boolean isHedge, Throwable error, AtomicInteger failures, AtomicReference<Throwable> firstFailure) {
+        if (error == null) {
+            winner.complete(isHedge);
+            return;
+        }
+        firstFailure.compareAndSet(null, error);
+        if (failures.incrementAndGet() == 2) {
+            winner.completeExceptionally(firstFailure.get());
+        }
+    }
+
+    private static <T> T await(CompletableFuture<T> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new BlueButtonInterruptedException("Interrupted while waiting for a request to BlueButton", e);
+        } catch (ExecutionException e) {
+            throw rethrow(e);
+        }
+    }
+
+    private static RuntimeException rethrow(ExecutionException e) {
+        // The cause may still be wrapped when it came through the callbacks of another future
+        Throwable cause = e.getCause();
+        while (cause instanceof CompletionException && cause.getCause() != null) {
+            cause = cause.getCause();
+        }
+        if (cause instanceof RuntimeException) {
+            return (RuntimeException) cause;
+        }
+        if (cause instanceof Error) {
+            throw (Error) cause;
+        }
+        return new FhirClientConnectionException(cause);
+    }
+
+    private Meter getMeter(Map<String, Meter> meters, String endpoint, String suffix) {
+        return meters.computeIfAbsent(endpoint, name -> metricMaker.registerMeter(name + suffix));
+    }
+
+    private synchronized void earnCredit() {
+        credits = Math.min(MAX_CREDITS, credits + creditPerRequest);
+    }
+
+    private synchronized boolean spendCredit() {
+        if (credits < 1) {
+            return false;
+        }
+        credits--;
+        return true;
+    }
+}
@@ -4,6 +4,8 @@ import com.fasterxml.jackson.annotation.JsonProperty;
 import org.hibernate.validator.constraints.NotEmpty;
 
 import javax.validation.Valid;
+import javax.validation.constraints.DecimalMax;
+import javax.validation.constraints.DecimalMin;
 import javax.validation.constraints.Max;
 import javax.validation.constraints.Min;
 import javax.validation.constraints.NotNull;
@@ -22,10 +24,40 @@ public class BBClientConfiguration {
     @JsonProperty("timeouts")
     private TimeoutConfiguration timeouts = new TimeoutConfiguration();
 
+    @Valid
+    @NotNull
+    @JsonProperty("connectionPool")
+    private ConnectionPoolConfiguration connectionPool = new ConnectionPoolConfiguration();
+
+    @Valid
+    @NotNull
+    @JsonProperty("concurrencyLimit")
+    private ConcurrencyLimitConfiguration concurrencyLimit = new ConcurrencyLimitConfiguration();
+
+    @Valid
+    @NotNull
+    @JsonProperty("rateBudget")
+    private RateBudgetConfiguration rateBudget = new RateBudgetConfiguration();
+
+    @Valid
+    @NotNull
+    @JsonProperty("resilience")
+    private ResilienceConfiguration resilience = new ResilienceConfiguration();
+
+    @Valid
+    @NotNull
+    @JsonProperty("hedging")
+    private HedgingConfiguration hedging = new HedgingConfiguration();
+
     @Min(10)
     @Max(1000)
     private int resourcesCount = 100;
 
+    // The max number of MBI hashes searched for in a single Patient request, which bounds the length of the URL
+    @Min(1)
+    @Max(100)
+    private int mbiHashesPerRequest = 50;
+
     @Valid
     @NotNull
     @JsonProperty("keyStore")
@@ -41,8 +73,30 @@ public class BBClientConfiguration {
         return timeouts;
     }
 
+    public ConnectionPoolConfiguration getConnectionPool() {
+        return connectionPool;
+    }
+
+    public ConcurrencyLimitConfiguration getConcurrencyLimit() {
+        return concurrencyLimit;
+    }
+
+    public RateBudgetConfiguration getRateBudget() {
+        return rateBudget;
+    }
+
+    public ResilienceConfiguration getResilience() {
+        return resilience;
+    }
+
+    public HedgingConfiguration getHedging() {
+        return hedging;
+    }
+
     public int getResourcesCount() { return resourcesCount; }
 
+    public int getMbiHashesPerRequest() { return mbiHashesPerRequest; }
+
     public KeystoreConfiguration getKeystore() {
         return keystore;
     }
@@ -106,6 +160,380 @@ public class BBClientConfiguration {
         }
     }
 
+    public static class ConnectionPoolConfiguration {
+
+        // Max number of open connections to BlueButton, across all routes
+        @Min(1)
+        private int maxTotal = 50;
+        // Max number of open connections to a single BlueButton host
+        @Min(1)
+        private int maxPerRoute = 20;
+        // How long to keep a connection open when the server does not send a Keep-Alive header (ms)
+        @Min(1)
+        private long keepAlive = 30000;
+        // How long a connection may sit idle in the pool before it is closed (ms)
+        @Min(1)
+        private long idleTimeout = 60000;
+        // How long a connection may sit idle before it is checked for staleness when leased (ms)
+        @Min(1)
+        private int validateAfterInactivity = 2000;
+        // Max number of TLS sessions kept for resumption, 0 is unlimited
+        @Min(0)
+        private int sslSessionCacheSize = 1000;
+        // How long a TLS session may be resumed for (s)
+        @Min(1)
+        private int sslSessionTimeout = 3600;
+
+        ConnectionPoolConfiguration() {
+            // Jackson required
+        }
+
+        public int getMaxTotal() {
+            return maxTotal;
+        }
+
+        public void setMaxTotal(int maxTotal) {
+            this.maxTotal = maxTotal;
+        }
+
+        public int getMaxPerRoute() {
+            return maxPerRoute;
+        }
+
+        public void setMaxPerRoute(int maxPerRoute) {
+            this.maxPerRoute = maxPerRoute;
+        }
+
+        public long getKeepAlive() {
+            return keepAlive;
+        }
+
+        public void setKeepAlive(long keepAlive) {
+            this.keepAlive = keepAlive;
+        }
+
+        public long getIdleTimeout() {
+            return idleTimeout;
+        }
+
+        public void setIdleTimeout(long idleTimeout) {
+            this.idleTimeout = idleTimeout;
+        }
+
+        public int getValidateAfterInactivity() {
+            return validateAfterInactivity;
+        }
+
+        public void setValidateAfterInactivity(int validateAfterInactivity) {
+            this.validateAfterInactivity = validateAfterInactivity;
+        }
+
+        public int getSslSessionCacheSize() {
+            return sslSessionCacheSize;
+        }
+
+        public void setSslSessionCacheSize(int sslSessionCacheSize) {
+            this.sslSessionCacheSize = sslSessionCacheSize;
+        }
+
+        public int getSslSessionTimeout() {
+            return sslSessionTimeout;
+        }
+
+        public void setSslSessionTimeout(int sslSessionTimeout) {
+            this.sslSessionTimeout = sslSessionTimeout;
+        }
+    }
+
+    public static class ConcurrencyLimitConfiguration {
+
+        // The fewest concurrent requests an aggregator may have in flight to BlueButton, however slow it is
+        @Min(1)
+        private int minLimit = 4;
+        // The most concurrent requests an aggregator may have in flight to BlueButton, however healthy it is
+        @Min(1)
+        private int maxLimit = 50;
+        // The number of concurrent requests allowed at startup
+        @Min(1)
+        private int initialLimit = 20;
+        // Requests slower than this count as overload, like throttled and failed requests (ms)
+        @Min(1)
+        private long latencyThreshold = 3000;
+        // The fraction of the limit kept on overload
+        @DecimalMin("0.1")
+        @DecimalMax("0.99")
+        private double backoffRatio = 0.9;
+
+        ConcurrencyLimitConfiguration() {
+            // Jackson required
+        }
+
+        public int getMinLimit() {
+            return minLimit;
+        }
+
+        public void setMinLimit(int minLimit) {
+            this.minLimit = minLimit;
+        }
+
+        public int getMaxLimit() {
+            return maxLimit;
+        }
+
+        public void setMaxLimit(int maxLimit) {
+            this.maxLimit = maxLimit;
+        }
+
+        public int getInitialLimit() {
+            return initialLimit;
+        }
+
+        public void setInitialLimit(int initialLimit) {
+            this.initialLimit = initialLimit;
+        }
+
+        public long getLatencyThreshold() {
+            return latencyThreshold;
+        }
+
+        public void setLatencyThreshold(long latencyThreshold) {
+            this.latencyThreshold = latencyThreshold;
+        }
+
+        public double getBackoffRatio() {
+            return backoffRatio;
+        }
+
+        public void setBackoffRatio(double backoffRatio) {
+            this.backoffRatio = backoffRatio;
+        }
+    }
+
+    public static class RateBudgetConfiguration {
+
+        // The number of requests per second all the aggregators may make to BlueButton together, 0 is unlimited
+        @Min(0)
+        private double requestsPerSecond = 0;
+        // The max number of requests the aggregators may burst to after a quiet period
+        @Min(1)
+        private int burst = 100;
+        // The number of tokens an aggregator leases at a time
+        @Min(1)
+        private int leaseSize = 10;
+        // How long leased tokens may be used for, so an idle aggregator does not hoard them (ms)
+        @Min(1)
+        private long leaseTimeout = 1000;
+        // How long to wait before leasing again when the budget is spent (ms)
+        @Min(1)
+        private long retryInterval = 100;
+
+        RateBudgetConfiguration() {
+            // Jackson required
+        }
+
+        public double getRequestsPerSecond() {
+            return requestsPerSecond;
+        }
+
+        public void setRequestsPerSecond(double requestsPerSecond) {
+            this.requestsPerSecond = requestsPerSecond;
+        }
+
+        public int getBurst() {
+            return burst;
+        }
+
+        public void setBurst(int burst) {
+            this.burst = burst;
+        }
+
+        public int getLeaseSize() {
+            return leaseSize;
+        }
+
+        public void setLeaseSize(int leaseSize) {
+            this.leaseSize = leaseSize;
+        }
+
+        public long getLeaseTimeout() {
+            return leaseTimeout;
+        }
+
+        public void setLeaseTimeout(long leaseTimeout) {
+            this.leaseTimeout = leaseTimeout;
+        }
+
+        public long getRetryInterval() {
+            return retryInterval;
+        }
+
+        public void setRetryInterval(long retryInterval) {
+            this.retryInterval = retryInterval;
+        }
+    }
+
+    public static class ResilienceConfiguration {
+
+        // How long to wait before the first retry of a failed request (ms)
+        @Min(10)
+        private long retryInitialInterval = 250;
+        // The factor the wait grows by for each retry
+        @DecimalMin("1.0")
+        private double retryMultiplier = 2.0;
+        // How far each wait is randomly spread around its value, so aggregators do not retry in lockstep
+        @DecimalMin("0.0")
+        @DecimalMax("1.0")
+        private double retryRandomization = 0.5;
+        // The percentage of failed requests that opens the circuit breaker
+        @DecimalMin("1.0")
+        @DecimalMax("100.0")
+        private float failureRateThreshold = 50;
+        // The number of recent requests the failure rate is calculated over
+        @Min(1)
+        private int slidingWindowSize = 50;
+        // The fewest requests the failure rate is calculated from
+        @Min(1)
+        private int minimumNumberOfCalls = 20;
+        // How long the breaker stays open before it lets trial requests through (ms)
+        @Min(1)
+        private long openDuration = 30000;
+        // The number of trial requests that decide whether the breaker closes again
+        @Min(1)
+        private int halfOpenCalls = 5;
+
+        ResilienceConfiguration() {
+            // Jackson required
+        }
+
+        public long getRetryInitialInterval() {
+            return retryInitialInterval;
+        }
+
+        public void setRetryInitialInterval(long retryInitialInterval) {
+            this.retryInitialInterval = retryInitialInterval;
+        }
+
+        public double getRetryMultiplier() {
+            return retryMultiplier;
+        }
+
+        public void setRetryMultiplier(double retryMultiplier) {
+            this.retryMultiplier = retryMultiplier;
+        }
+
+        public double getRetryRandomization() {
+            return retryRandomization;
+        }
+
+        public void setRetryRandomization(double retryRandomization) {
+            this.retryRandomization = retryRandomization;
+        }
+
+        public float getFailureRateThreshold() {
+            return failureRateThreshold;
+        }
+
+        public void setFailureRateThreshold(float failureRateThreshold) {
+            this.failureRateThreshold = failureRateThreshold;
+        }
+
+        public int getSlidingWindowSize() {
+            return slidingWindowSize;
+        }
+
+        public void setSlidingWindowSize(int slidingWindowSize) {
+            this.slidingWindowSize = slidingWindowSize;
+        }
+
+        public int getMinimumNumberOfCalls() {
+            return minimumNumberOfCalls;
+        }
+
+        public void setMinimumNumberOfCalls(int minimumNumberOfCalls) {
+            this.minimumNumberOfCalls = minimumNumberOfCalls;
+        }
+
+        public long getOpenDuration() {
+            return openDuration;
+        }
+
+        public void setOpenDuration(long openDuration) {
+            this.openDuration = openDuration;
+        }
+
+        public int getHalfOpenCalls() {
+            return halfOpenCalls;
+        }
+
+        public void setHalfOpenCalls(int halfOpenCalls) {
+            this.halfOpenCalls = halfOpenCalls;
+        }
+    }
+
+    public static class HedgingConfiguration {
+
+        // Whether a duplicate of a slow request is sent, and the first response used
+        private boolean enabled = false;
+        // The percentile of the recent latency of an endpoint after which a request is duplicated
+        @DecimalMin("50.0")
+        @DecimalMax("99.99")
+        private double percentile = 95.0;
+        // The most extra requests hedging may add, as a percentage of the requests made
+        @DecimalMin("0.0")
+        @DecimalMax("100.0")
+        private double budgetPercent = 5.0;
+        // The shortest time a request runs before it is duplicated, however fast the endpoint is (ms)
+        @Min(1)
+        private long minDelay = 50;
+        // The fewest requests of an endpoint its latency percentile is calculated from, fewer and nothing is hedged
+        @Min(1)
+        private int minSamples = 100;
+
+        HedgingConfiguration() {
+            // Jackson required
+        }
+
+        public boolean isEnabled() {
+            return enabled;
+        }
+
+        public void setEnabled(boolean enabled) {
+            this.enabled = enabled;
+        }
+
+        public double getPercentile() {
+            return percentile;
+        }
+
+        public void setPercentile(double percentile) {
+            this.percentile = percentile;
+        }
+
+        public double getBudgetPercent() {
+            return budgetPercent;
+        }
+
+        public void setBudgetPercent(double budgetPercent) {
+            this.budgetPercent = budgetPercent;
+        }
+
+        public long getMinDelay() {
+            return minDelay;
+        }
+
+        public void setMinDelay(long minDelay) {
+            this.minDelay = minDelay;
+        }
+
+        public int getMinSamples() {
+            return minSamples;
+        }
+
+        public void setMinSamples(int minSamples) {
+            this.minSamples = minSamples;
+        }
+    }
+
     public static class KeystoreConfiguration {
 
         @NotEmpty
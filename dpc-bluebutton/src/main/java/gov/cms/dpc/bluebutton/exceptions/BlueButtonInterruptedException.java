@@ -0,0 +1,17 @@
+package gov.cms.dpc.bluebutton.exceptions;
+
+/**
+ * Thrown when a thread is interrupted while it waits to make, or for the result of, a request to BlueButton.
+ * The interrupt flag of the thread is restored before it is thrown.
+ * <p>
+ * This is not a failure of BlueButton, so it is not retried, not recorded by the circuit breaker and does not lower the
+ * concurrency limit.
+ */
+public class BlueButtonInterruptedException extends RuntimeException {
+
+    public static final long serialVersionUID = 42L;
+
+    public BlueButtonInterruptedException(String message, InterruptedException cause) {
+        super(message, cause);
+    }
+}
@@ -1,6 +1,8 @@
 package gov.cms.dpc.bluebutton.client;
 
 import ca.uhn.fhir.rest.server.exceptions.ResourceNotFoundException;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.google.inject.Guice;
 import com.google.inject.Injector;
@@ -31,7 +33,9 @@ import java.security.GeneralSecurityException;
 import java.sql.Date;
 import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 import java.util.MissingResourceException;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.TimeUnit;
 
 import static org.junit.jupiter.api.Assertions.*;
@@ -41,6 +45,8 @@ class BlueButtonClientTest {
     // A random example patient (Jane Doe)
     private static final String TEST_PATIENT_ID = "-20140000008325";
     private static final String TEST_PATIENT_MBI_HASH = "6a288931dd0a911809e977093b1257e344fb29df3f5eacb622aadade8adcc581";
+    // The MBI hash identifier of the patient in the test bundle
+    private static final String TEST_PATIENT_BUNDLE_MBI_HASH = "abadf57ff8dc94610ca0d479feadb1743c9cd3c77caf1eafde5719a154379fb6";
     // A patient that only has a single EOB record in bluebutton
     private static final String TEST_SINGLE_EOB_PATIENT_ID = "-20140000009893";
     // A patient id that should not exist in bluebutton
@@ -54,6 +60,8 @@ class BlueButtonClientTest {
     private static final String[] TEST_PATIENT_IDS = {"-20140000008325", "-20140000009893"};
 
     private static BlueButtonClient bbc;
+    private static AsyncBlueButtonClient asyncBbc;
+    private static MetricRegistry registry;
     private static ClientAndServer mockServer;
     private static Config conf;
 
@@ -62,6 +70,8 @@ class BlueButtonClientTest {
         conf = getTestConfig();
         final Injector injector = Guice.createInjector(Stage.DEVELOPMENT, new TestModule(), new BlueButtonClientModule<>(getClientConfig()));
         bbc = injector.getInstance(BlueButtonClient.class);
+        asyncBbc = injector.getInstance(AsyncBlueButtonClient.class);
+        registry = injector.getInstance(MetricRegistry.class);
 
         mockServer = ClientAndServer.startClientAndServer(conf.getInt("test.mockServerPort"));
         createMockServerExpectation("/v1/fhir/metadata", HttpStatus.OK_200, getRawXML(METADATA_PATH), List.of());
@@ -97,6 +107,14 @@ class BlueButtonClientTest {
                 Collections.singletonList(Parameter.param("identifier", DPCIdentifierSystem.MBI_HASH.getSystem() + "|" + TEST_PATIENT_MBI_HASH))
         );
 
+        // A search for several MBI hashes at once
+        createMockServerExpectation(
+                "/v1/fhir/Patient",
+                HttpStatus.OK_200,
+                getRawXML(SAMPLE_PATIENT_PATH_PREFIX + TEST_PATIENT_ID + "-bundle.xml"),
+                Collections.singletonList(Parameter.param("identifier", ".+,.+"))
+        );
+
         // Create mocks for pages of the results
         for(String startIndex: List.of("10", "20", "30")) {
             createMockServerExpectation(
@@ -148,6 +166,17 @@ class BlueButtonClientTest {
         assertEquals(pt.getName().get(0).getGiven().get(0).toString(), "Jane", patientDataCorrupted);
     }
 
+    @Test
+    void shouldGetPatientsFromMbiHashes() {
+        final String unknownHash = "0000000000000000000000000000000000000000000000000000000000000000";
+        final Map<String, List<Patient>> ret = bbc.requestPatientsFromServerByMbiHashes(List.of(TEST_PATIENT_BUNDLE_MBI_HASH, unknownHash));
+
+        assertEquals(2, ret.size(), "Should have a result for each hash");
+        assertEquals(1, ret.get(TEST_PATIENT_BUNDLE_MBI_HASH).size(), "Should match the patient by its MBI hash");
+        assertEquals(TEST_PATIENT_ID, ret.get(TEST_PATIENT_BUNDLE_MBI_HASH).get(0).getIdElement().getIdPart(), "Should have the right patient");
+        assertTrue(ret.get(unknownHash).isEmpty(), "Should not match the unknown hash");
+    }
+
     @Test
     void shouldGetEOBFromPatientID() {
         Bundle response = bbc.requestEOBFromServer(TEST_PATIENT_ID);
@@ -187,6 +216,96 @@ class BlueButtonClientTest {
         ));
     }
 
+    @Test
+    void shouldReusePooledConnections() {
+        bbc.requestEOBFromServer(TEST_PATIENT_ID);
+        bbc.requestCoverageFromServer(TEST_PATIENT_ID);
+
+        final String prefix = MetricRegistry.name(BlueButtonClientImpl.class, "connectionPool");
+        final Gauge<?> leased = registry.getGauges().get(prefix + ".leased");
+        final Gauge<?> available = registry.getGauges().get(prefix + ".available");
+        assertNotNull(leased, "Should have a gauge for the leased connections");
+        assertNotNull(available, "Should have a gauge for the available connections");
+        assertEquals(0, leased.getValue(), "Should have returned the connections to the pool");
+        assertEquals(1, available.getValue(), "Should have reused the single connection to the server");
+    }
+
+    @Test
+    void shouldGetRawEOBFromPatientID() {
+        final RawBundle response = bbc.requestRawEOBFromServer(TEST_PATIENT_ID);
+
+        assertNotNull(response, "The demo patient should have a non-null raw EOB bundle");
+        assertEquals(10, response.getEntries().size(), "Should have the first page of EOBs");
+        assertTrue(response.getEntries().stream().allMatch(entry -> entry.getResourceType().equals(ResourceType.ExplanationOfBenefit.name())), "Should only have EOBs");
+        assertTrue(response.getNextLink().isPresent(), "Should have a next link");
+
+        final RawBundle nextResponse = bbc.requestNextRawBundleFromServer(response);
+        assertEquals(10, nextResponse.getEntries().size(), "Should have the next page of EOBs");
+    }
+
+    @Test
+    void shouldGetRawCoverageFromPatientID() {
+        final RawBundle response = bbc.requestRawCoverageFromServer(TEST_PATIENT_ID);
+
+        assertEquals(3, response.getEntries().size(), "The demo patient should have exactly 3 Coverage");
+        assertTrue(response.getNextLink().isEmpty(), "Should have no next link");
+    }
+
+    @Test
+    void shouldGetEOBFromPatientIDAsync() {
+        final Bundle response = asyncBbc.requestEOBFromServerAsync(TEST_PATIENT_ID).join();
+
+        assertEquals(32, response.getTotal(), "The demo patient should have exactly 32 EOBs");
+        assertEquals(10, response.getEntry().size(), "Should have the first page of EOBs");
+    }
+
+    @Test
+    void shouldStreamEOBPagesAsync() {
+        final List<Bundle> pages = asyncBbc.requestAllPagesAsync(asyncBbc.requestEOBFromServerAsync(TEST_PATIENT_ID))
+                .take(2)
+                .toList()
+                .blockingGet();
+
+        assertEquals(2, pages.size(), "Should have followed the next link");
+        assertTrue(pages.stream().allMatch(page -> page.getEntry().size() == 10), "Should have full pages of EOBs");
+
+        final List<Bundle> singlePage = asyncBbc.requestAllPagesAsync(asyncBbc.requestEOBFromServerAsync(TEST_SINGLE_EOB_PATIENT_ID))
+                .toList()
+                .blockingGet();
+        assertEquals(1, singlePage.size(), "Should complete after the last page");
+    }
+
+    @Test
+    void shouldGetRawCoverageFromPatientIDAsync() {
+        final List<RawBundle> pages = asyncBbc.requestAllRawPagesAsync(asyncBbc.requestRawCoverageFromServerAsync(TEST_PATIENT_ID))
+                .toList()
+                .blockingGet();
+
+        assertEquals(1, pages.size(), "Should have a single page");
+        assertEquals(3, pages.get(0).getEntries().size(), "The demo patient should have exactly 3 Coverage");
+    }
+
+    @Test
+    void shouldFailAsyncWhenResourceNotFound() {
+        final CompletionException patientException = assertThrows(CompletionException.class,
+                () -> asyncBbc.requestPatientFromServerAsync(TEST_NONEXISTENT_PATIENT_ID).join());
+        assertTrue(patientException.getCause() instanceof ResourceNotFoundException, "Should fail with a not found exception");
+
+        final CompletionException eobException = assertThrows(CompletionException.class,
+                () -> asyncBbc.requestEOBFromServerAsync(TEST_NONEXISTENT_PATIENT_ID).join());
+        assertTrue(eobException.getCause() instanceof ResourceNotFoundException, "Should fail with a not found exception");
+    }
+
+    @Test
+    void shouldInstrumentAsyncRequests() {
+        final var timer = registry.timer(MetricRegistry.name(BlueButtonClientImpl.class, "requestCoverageTimer"));
+        final long before = timer.getCount();
+
+        asyncBbc.requestCoverageFromServerAsync(TEST_PATIENT_ID).join();
+
+        assertEquals(before + 1, timer.getCount(), "Should make the request through the same instrumented path as a blocking request");
+    }
+
     @Test
     void shouldGetCoverageFromPatientID() {
         final Bundle response = bbc.requestCoverageFromServer(TEST_PATIENT_ID);
@@ -244,6 +363,15 @@ class BlueButtonClientTest {
         assertEquals("", hash);
     }
 
+    @Test
+    void shouldKeyMbi() throws GeneralSecurityException {
+        final String key = bbc.keyMbi("123456789A");
+        assertAll(() -> assertEquals(64, key.length(), "Should be a hex SHA-256 digest"),
+                () -> assertEquals(key, bbc.keyMbi("123456789A"), "Should be stable"),
+                () -> assertNotEquals(key, bbc.keyMbi("3456789"), "Should differ between MBIs"),
+                () -> assertNotEquals(bbc.hashMbi("123456789A"), key, "Should not be the MBI hash"));
+    }
+
     /**
      * Helper method that configures the mock server to respond to a given GET request
      *
@@ -0,0 +1,98 @@
+package gov.cms.dpc.bluebutton.client;
+
+import ca.uhn.fhir.rest.client.exceptions.FhirClientConnectionException;
+import ca.uhn.fhir.rest.server.exceptions.InternalErrorException;
+import ca.uhn.fhir.rest.server.exceptions.ResourceNotFoundException;
+import com.codahale.metrics.MetricRegistry;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import gov.cms.dpc.bluebutton.config.BBClientConfiguration;
+import gov.cms.dpc.bluebutton.exceptions.BlueButtonInterruptedException;
+import io.github.resilience4j.circuitbreaker.CallNotPermittedException;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class BlueButtonResilienceTest {
+
+    @Test
+    void testOverloadRetried() throws IOException {
+        final var resilience = new BlueButtonResilience(3, getConfig(), new MetricRegistry());
+        final var attempts = new AtomicInteger();
+
+        final String result = resilience.call(() -> {
+            if (attempts.incrementAndGet() < 3) {
+                throw new InternalErrorException("BlueButton failed");
+            }
+            return "done";
+        });
+        assertAll(() -> assertEquals("done", result, "Should return the result of the successful attempt"),
+                () -> assertEquals(3, attempts.get(), "Should retry until the request succeeds"));
+    }
+
+    @Test
+    void testRetriesExhausted() throws IOException {
+        final var resilience = new BlueButtonResilience(2, getConfig(), new MetricRegistry());
+        final var attempts = new AtomicInteger();
+
+        assertThrows(FhirClientConnectionException.class, () -> resilience.call(() -> {
+            attempts.incrementAndGet();
+            throw new FhirClientConnectionException("Timed out");
+        }));
+        assertEquals(3, attempts.get(), "Should make the first attempt and retry it twice");
+    }
+
+    @Test
+    void testClientErrorsNotRetried() throws IOException {
+        final var resilience = new BlueButtonResilience(3, getConfig(), new MetricRegistry());
+        final var attempts = new AtomicInteger();
+
+        for (int i = 0; i < 10; i++) {
+            assertThrows(ResourceNotFoundException.class, () -> resilience.call(() -> {
+                attempts.incrementAndGet();
+                throw new ResourceNotFoundException("No patient");
+            }));
+        }
+        assertAll(() -> assertEquals(10, attempts.get(), "Should not retry a missing resource"),
+                () -> assertTrue(resilience.isAvailable(), "Should not open the breaker for a missing resource"));
+    }
+
+    @Test
+    void testBreakerOpensOnFailures() throws IOException {
+        final var resilience = new BlueButtonResilience(0, getConfig(), new MetricRegistry());
+
+        for (int i = 0; i < 4; i++) {
+            assertThrows(InternalErrorException.class, () -> resilience.call(() -> {
+                throw new InternalErrorException("BlueButton failed");
+            }));
+        }
+        assertFalse(resilience.isAvailable(), "Should open the breaker");
+
+        final var attempts = new AtomicInteger();
+        assertThrows(CallNotPermittedException.class, () -> resilience.call(attempts::incrementAndGet));
+        assertEquals(0, attempts.get(), "Should not make requests while open");
+    }
+
+    @Test
+    void testInterruptsIgnored() throws IOException {
+        final var resilience = new BlueButtonResilience(3, getConfig(), new MetricRegistry());
+        final var attempts = new AtomicInteger();
+
+        for (int i = 0; i < 10; i++) {
+            assertThrows(BlueButtonInterruptedException.class, () -> resilience.call(() -> {
+                attempts.incrementAndGet();
+                throw new BlueButtonInterruptedException("Shutting down", new InterruptedException());
+            }));
+        }
+        assertAll(() -> assertEquals(10, attempts.get(), "Should not retry an interrupt"),
+                () -> assertEquals(0, resilience.getCircuitBreaker().getMetrics().getNumberOfBufferedCalls(), "Should not record an interrupt"),
+                () -> assertTrue(resilience.isAvailable(), "Should not open the breaker for an interrupt"));
+    }
+
+    private static BBClientConfiguration.ResilienceConfiguration getConfig() throws IOException {
+        final String options = "{\"retryInitialInterval\": 10, \"retryMultiplier\": 1.0, \"failureRateThreshold\": 50, \"slidingWindowSize\": 4, \"minimumNumberOfCalls\": 4, \"openDuration\": 60000, \"halfOpenCalls\": 1}";
+        return new ObjectMapper().readValue(options, BBClientConfiguration.ResilienceConfiguration.class);
+    }
+}
@@ -0,0 +1,158 @@
+package gov.cms.dpc.bluebutton.client;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.rest.server.exceptions.BaseServerResponseException;
+import com.codahale.metrics.MetricRegistry;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.inject.Guice;
+import com.google.inject.Stage;
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+import com.typesafe.config.ConfigRenderOptions;
+import gov.cms.dpc.bluebutton.BlueButtonClientModule;
+import gov.cms.dpc.bluebutton.config.BBClientConfiguration;
+import gov.cms.dpc.testing.BlueButtonStub;
+import gov.cms.dpc.testing.BufferedLoggerHandler;
+import org.hl7.fhir.dstu3.model.Bundle;
+import org.hl7.fhir.dstu3.model.ResourceType;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Runs the BlueButton client over HTTP and HTTPS against {@link BlueButtonStub}
+ */
+@ExtendWith(BufferedLoggerHandler.class)
+class BlueButtonStubTest {
+
+    private static final FhirContext fhirContext = FhirContext.forDstu3();
+
+    @Test
+    void testPatientsResolvedByHash() throws IOException {
+        try (final var stub = startStub(new BlueButtonStub.Options())) {
+            final var client = createClient(stub);
+
+            final var patients = client.requestPatientsFromServerByMbiHashes(List.of("hash-1", "hash-2", "hash-3"));
+            assertAll(() -> assertEquals(3, patients.size()),
+                    () -> patients.values().forEach(matched -> assertEquals(1, matched.size(), "Should match a patient to every hash")));
+        }
+    }
+
+    @Test
+    void testEOBsPaged() throws IOException {
+        final var options = new BlueButtonStub.Options();
+        options.setPageSize(3);
+        options.setMinResources(10);
+        options.setMaxResources(10);
+        try (final var stub = startStub(options)) {
+            final var client = createClient(stub);
+
+            Bundle bundle = client.requestEOBFromServer("-1");
+            int resources = bundle.getEntry().size();
+            while (bundle.getLink(Bundle.LINK_NEXT) != null) {
+                bundle = client.requestNextBundleFromServer(bundle);
+                resources += bundle.getEntry().size();
+            }
+            assertEquals(10, resources, "Should page through all the EOBs");
+
+            RawBundle raw = client.requestRawEOBFromServer("-1");
+            int rawResources = raw.getEntries().size();
+            while (raw.getNextLink().isPresent()) {
+                raw = client.requestNextRawBundleFromServer(raw);
+                rawResources += raw.getEntries().size();
+            }
+            assertEquals(10, rawResources, "Should page through all the raw EOBs");
+            assertEquals(ResourceType.ExplanationOfBenefit.name(), raw.getEntries().get(0).getResourceType());
+        }
+    }
+
+    @Test
+    void testFaultsInjected() throws IOException {
+        final var options = new BlueButtonStub.Options();
+        options.setThrottleRate(1);
+        try (final var stub = startStub(options)) {
+            final var client = createClient(stub);
+
+            final var exception = assertThrows(BaseServerResponseException.class, () -> client.requestCoverageFromServer("-1"));
+            assertAll(() -> assertEquals(429, exception.getStatusCode()),
+                    () -> assertTrue(stub.getFaultCount() > 0, "Should count the injected faults"));
+        }
+    }
+
+    @Test
+    void testModuleClientReusesTlsConnections(@TempDir Path tempDir) throws Exception {
+        final var options = new BlueButtonStub.Options();
+        options.setHttps(true);
+        options.setMedianLatency(200);
+        try (final var stub = startStub(options)) {
+            final var client = createModuleClient(stub, tempDir);
+
+            // The first request makes the full TLS handshake
+            client.requestCoverageFromServer("-1");
+            // Two requests at once need a second connection, which resumes the TLS session of the first
+            final ExecutorService executor = Executors.newFixedThreadPool(2);
+            try {
+                final List<Future<Bundle>> requests = List.of(
+                        executor.submit(() -> client.requestEOBFromServer("-1")),
+                        executor.submit(() -> client.requestEOBFromServer("-2")));
+                for (Future<Bundle> request : requests) {
+                    request.get();
+                }
+            } finally {
+                executor.shutdownNow();
+            }
+            // Kept alive in the pool, so no new connection is needed
+            client.requestPatientFromServer("-1");
+
+            assertAll(() -> assertTrue(stub.getBaseURL().startsWith("https://"), "Should serve HTTPS"),
+                    () -> assertEquals(4, stub.getRequestCount()),
+                    () -> assertEquals(2, stub.getConnectionCount(), "Should reuse the pooled connections"),
+                    () -> assertEquals(1, stub.getTlsSessionCount(), "Should resume the TLS session on the second connection"));
+        }
+    }
+
+    private static BlueButtonStub startStub(BlueButtonStub.Options options) throws IOException {
+        final var stub = new BlueButtonStub(options);
+        stub.start();
+        return stub;
+    }
+
+    private static BlueButtonClient createClient(BlueButtonStub stub) throws IOException {
+        final String options = ConfigFactory.load("test.application.conf").getConfig("bbclient").root().render(ConfigRenderOptions.concise());
+        final var config = new ObjectMapper().readValue(options, BBClientConfiguration.class);
+        return new BlueButtonClientImpl(fhirContext.newRestfulGenericClient(stub.getBaseURL()), config, new MetricRegistry());
+    }
+
+    /**
+     * Create the client as {@link BlueButtonClientModule} builds it, with its pooled connections and TLS session cache,
+     * using the test keystore of the stub
+     */
+    private static BlueButtonClient createModuleClient(BlueButtonStub stub, Path tempDir) throws IOException {
+        // The module reads the keystore from a file
+        final Path keyStore = tempDir.resolve("bluebutton-stub.keystore");
+        try (InputStream keyStoreStream = BlueButtonStub.class.getResourceAsStream(BlueButtonStub.TEST_KEYSTORE_RESOURCE)) {
+            Files.copy(keyStoreStream, keyStore);
+        }
+        final Config config = ConfigFactory.parseMap(Map.of(
+                "bbclient.serverBaseUrl", stub.getBaseURL(),
+                "bbclient.keyStore.location", keyStore.toString(),
+                "bbclient.keyStore.defaultPassword", BlueButtonStub.TEST_KEYSTORE_PASSWORD))
+                .withFallback(ConfigFactory.load("test.application.conf"));
+        final String options = config.getConfig("bbclient").root().render(ConfigRenderOptions.concise());
+        final var clientConfig = new ObjectMapper().readValue(options, BBClientConfiguration.class);
+        return Guice.createInjector(Stage.DEVELOPMENT, new TestModule(), new BlueButtonClientModule<>(clientConfig))
+                .getInstance(BlueButtonClient.class);
+    }
+}
@@ -0,0 +1,148 @@
+package gov.cms.dpc.bluebutton.client;
+
+import ca.uhn.fhir.rest.client.exceptions.FhirClientConnectionException;
+import ca.uhn.fhir.rest.server.exceptions.InternalErrorException;
+import ca.uhn.fhir.rest.server.exceptions.ResourceNotFoundException;
+import com.codahale.metrics.MetricRegistry;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import gov.cms.dpc.bluebutton.config.BBClientConfiguration;
+import gov.cms.dpc.bluebutton.exceptions.BlueButtonInterruptedException;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ConcurrencyLimiterTest {
+
+    @Test
+    void testLimitGrowsWhileHealthy() throws IOException, InterruptedException {
+        final var limiter = new ConcurrencyLimiter(getConfig(1, 10, 2), new MetricRegistry(), () -> 0L);
+
+        fillWindows(limiter, 5);
+        assertTrue(limiter.getLimit() > 2, "Should grow the limit");
+
+        fillWindows(limiter, 100);
+        assertEquals(10, limiter.getLimit(), "Should stop at the ceiling");
+    }
+
+    @Test
+    void testIdleLimitDoesNotGrow() throws IOException, InterruptedException {
+        final var limiter = new ConcurrencyLimiter(getConfig(1, 10, 4), new MetricRegistry(), () -> 0L);
+
+        // A single request at a time never uses the limit
+        for (int i = 0; i < 100; i++) {
+            final long acquired = limiter.acquire();
+            limiter.release(acquired, ConcurrencyLimiter.Outcome.SUCCESS);
+        }
+        assertEquals(4, limiter.getLimit(), "Should not grow an unused limit");
+    }
+
+    @Test
+    void testLimitShrinksOnOverload() throws IOException {
+        final var limiter = new ConcurrencyLimiter(getConfig(2, 10, 10), new MetricRegistry(), () -> 0L);
+
+        assertThrows(InternalErrorException.class, () -> limiter.call(() -> {
+            throw new InternalErrorException("BlueButton failed");
+        }));
+        assertEquals(9, limiter.getLimit(), "Should back off on a server error");
+
+        for (int i = 0; i < 100; i++) {
+            assertThrows(FhirClientConnectionException.class, () -> limiter.call(() -> {
+                throw new FhirClientConnectionException("Timed out");
+            }));
+        }
+        assertEquals(2, limiter.getLimit(), "Should stop at the floor");
+    }
+
+    @Test
+    void testSlowRequestsShrinkLimit() throws IOException, InterruptedException {
+        final var clock = new AtomicLong();
+        final var limiter = new ConcurrencyLimiter(getConfig(1, 10, 10), new MetricRegistry(), clock::get);
+
+        final long acquired = limiter.acquire();
+        clock.addAndGet(TimeUnit.SECONDS.toNanos(2));
+        limiter.release(acquired, ConcurrencyLimiter.Outcome.SUCCESS);
+        assertEquals(9, limiter.getLimit(), "Should back off when requests are slower than the threshold");
+    }
+
+    @Test
+    void testClientErrorsIgnored() throws IOException {
+        final var limiter = new ConcurrencyLimiter(getConfig(1, 10, 5), new MetricRegistry(), () -> 0L);
+
+        assertThrows(ResourceNotFoundException.class, () -> limiter.call(() -> {
+            throw new ResourceNotFoundException("No patient");
+        }));
+        assertAll(() -> assertEquals(5, limiter.getLimit(), "Should not change the limit for a missing resource"),
+                () -> assertEquals(0, limiter.getInFlight(), "Should release the slot"));
+    }
+
+    @Test
+    void testRequestsWaitForSlot() throws IOException, InterruptedException {
+        final var limiter = new ConcurrencyLimiter(getConfig(1, 1, 1), new MetricRegistry());
+        final long acquired = limiter.acquire();
+
+        final var done = new CountDownLatch(1);
+        final var waiting = new Thread(() -> {
+            limiter.call(() -> "done");
+            done.countDown();
+        });
+        waiting.start();
+
+        assertFalse(done.await(200, TimeUnit.MILLISECONDS), "Should wait while the limit is reached");
+        limiter.release(acquired, ConcurrencyLimiter.Outcome.IGNORE);
+        assertTrue(done.await(1, TimeUnit.SECONDS), "Should run once a slot is free");
+    }
+
+    @Test
+    void testInterruptIgnored() throws IOException, InterruptedException {
+        final var limiter = new ConcurrencyLimiter(getConfig(1, 1, 1), new MetricRegistry());
+        final long acquired = limiter.acquire();
+
+        final var failure = new AtomicReference<RuntimeException>();
+        final var interrupted = new AtomicBoolean();
+        final var waiting = new Thread(() -> {
+            try {
+                limiter.call(() -> "done");
+            } catch (RuntimeException e) {
+                failure.set(e);
+            }
+            interrupted.set(Thread.currentThread().isInterrupted());
+        });
+        waiting.start();
+        waiting.interrupt();
+        waiting.join(TimeUnit.SECONDS.toMillis(1));
+
+        assertAll(() -> assertTrue(failure.get() instanceof BlueButtonInterruptedException, "Should fail with an interrupt"),
+                () -> assertTrue(interrupted.get(), "Should restore the interrupt flag"),
+                () -> assertFalse(ConcurrencyLimiter.isOverload(failure.get()), "Should not count the interrupt as an overload"));
+        limiter.release(acquired, ConcurrencyLimiter.Outcome.IGNORE);
+        assertAll(() -> assertEquals(1, limiter.getLimit(), "Should not change the limit"),
+                () -> assertEquals(0, limiter.getInFlight(), "Should not take a slot"));
+    }
+
+    /**
+     * Make as many successful requests at once as the limit allows, a number of times
+     */
+    private static void fillWindows(ConcurrencyLimiter limiter, int windows) throws InterruptedException {
+        for (int window = 0; window < windows; window++) {
+            final int limit = limiter.getLimit();
+            for (int i = 0; i < limit; i++) {
+                limiter.acquire();
+            }
+            for (int i = 0; i < limit; i++) {
+                limiter.release(0L, ConcurrencyLimiter.Outcome.SUCCESS);
+            }
+        }
+    }
+
+    private static BBClientConfiguration.ConcurrencyLimitConfiguration getConfig(int minLimit, int maxLimit, int initialLimit) throws IOException {
+        final String options = String.format("{\"minLimit\": %d, \"maxLimit\": %d, \"initialLimit\": %d, \"latencyThreshold\": 1000, \"backoffRatio\": 0.9}", minLimit, maxLimit, initialLimit);
+        return new ObjectMapper().readValue(options, BBClientConfiguration.ConcurrencyLimitConfiguration.class);
+    }
+}
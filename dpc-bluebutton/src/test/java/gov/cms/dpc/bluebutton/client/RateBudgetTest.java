@@ -0,0 +1,87 @@
+package gov.cms.dpc.bluebutton.client;
+
+import com.codahale.metrics.MetricRegistry;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import gov.cms.dpc.bluebutton.config.BBClientConfiguration;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class RateBudgetTest {
+
+    @Test
+    void testTokensLeasedInChunks() throws IOException, InterruptedException {
+        final var leases = new AtomicInteger();
+        final var budget = new RateBudget(requested -> {
+            leases.incrementAndGet();
+            return requested;
+        }, getConfig(5), new MetricRegistry(), () -> 0L);
+
+        for (int i = 0; i < 10; i++) {
+            budget.acquire();
+        }
+        assertEquals(2, leases.get(), "Should lease a chunk for every 5 requests");
+    }
+
+    @Test
+    void testLeasedTokensExpire() throws IOException, InterruptedException {
+        final var clock = new AtomicLong();
+        final var leases = new AtomicInteger();
+        final var budget = new RateBudget(requested -> {
+            leases.incrementAndGet();
+            return requested;
+        }, getConfig(5), new MetricRegistry(), clock::get);
+
+        budget.acquire();
+        clock.addAndGet(TimeUnit.SECONDS.toNanos(2));
+        budget.acquire();
+        assertAll(() -> assertEquals(2, leases.get(), "Should lease again once the tokens expire"),
+                () -> assertEquals(4, budget.getTokens(), "Should drop the expired tokens"));
+    }
+
+    @Test
+    void testWaitsWhenBudgetSpent() throws IOException, InterruptedException {
+        final var available = new AtomicInteger(0);
+        final var budget = new RateBudget(requested -> Math.min(requested, available.getAndSet(0)), getConfig(5), new MetricRegistry());
+
+        final var done = new CountDownLatch(1);
+        final var waiting = new Thread(() -> {
+            try {
+                budget.acquire();
+                done.countDown();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        waiting.start();
+
+        assertFalse(done.await(200, TimeUnit.MILLISECONDS), "Should wait while the budget is spent");
+        available.set(1);
+        assertTrue(done.await(1, TimeUnit.SECONDS), "Should continue once the budget refills");
+    }
+
+    @Test
+    void testWaitsWhenSourceFails() throws IOException, InterruptedException {
+        final var failures = new AtomicInteger();
+        final var budget = new RateBudget(requested -> {
+            if (failures.getAndIncrement() < 2) {
+                throw new IllegalStateException("Queue database is down");
+            }
+            return requested;
+        }, getConfig(5), new MetricRegistry());
+
+        budget.acquire();
+        assertEquals(3, failures.get(), "Should keep leasing until the source recovers");
+    }
+
+    private static BBClientConfiguration.RateBudgetConfiguration getConfig(int leaseSize) throws IOException {
+        final String options = String.format("{\"requestsPerSecond\": 10, \"leaseSize\": %d, \"leaseTimeout\": 1000, \"retryInterval\": 10}", leaseSize);
+        return new ObjectMapper().readValue(options, BBClientConfiguration.RateBudgetConfiguration.class);
+    }
+}
@@ -0,0 +1,77 @@
+package gov.cms.dpc.bluebutton.client;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.DataFormatException;
+import gov.cms.dpc.testing.BufferedLoggerHandler;
+import org.hl7.fhir.dstu3.model.Bundle;
+import org.hl7.fhir.dstu3.model.Coverage;
+import org.hl7.fhir.dstu3.model.ExplanationOfBenefit;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.Date;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@ExtendWith(BufferedLoggerHandler.class)
+class RawBundleTest {
+
+    private static final FhirContext ctx = FhirContext.forDstu3();
+
+    @Test
+    void testReadBundle() throws IOException {
+        final String json = "{\n" +
+                "  \"resourceType\": \"Bundle\",\n" +
+                "  \"meta\": {\"lastUpdated\": \"2020-05-01T12:30:00.000-04:00\"},\n" +
+                "  \"entry\": [\n" +
+                "    {\"fullUrl\": \"first\", \"resource\": {\"id\": \"1\", \"resourceType\": \"ExplanationOfBenefit\", \"text\": {\"div\": \"line\\nbreak\"}}},\n" +
+                "    {\"resource\": {\"resourceType\": \"ExplanationOfBenefit\", \"id\": \"2\", \"item\": [{\"sequence\": 1}]}}\n" +
+                "  ],\n" +
+                "  \"link\": [{\"relation\": \"self\", \"url\": \"http://self\"}, {\"relation\": \"next\", \"url\": \"http://next\"}]\n" +
+                "}";
+
+        final RawBundle bundle = read(json);
+
+        assertAll(() -> assertEquals(2, bundle.getEntries().size(), "Should have both entries"),
+                () -> assertEquals("ExplanationOfBenefit", bundle.getEntries().get(0).getResourceType(), "Should have the resource type"),
+                () -> assertEquals("{\"id\":\"1\",\"resourceType\":\"ExplanationOfBenefit\",\"text\":{\"div\":\"line\\nbreak\"}}", new String(bundle.getEntries().get(0).getJson(), StandardCharsets.UTF_8), "Should have compact resource JSON"),
+                () -> assertEquals("{\"resourceType\":\"ExplanationOfBenefit\",\"id\":\"2\",\"item\":[{\"sequence\":1}]}", new String(bundle.getEntries().get(1).getJson(), StandardCharsets.UTF_8), "Should have compact resource JSON"),
+                () -> assertEquals("http://next", bundle.getNextLink().orElseThrow(), "Should have the next link"),
+                () -> assertEquals(Instant.parse("2020-05-01T16:30:00Z"), bundle.getLastUpdated().orElseThrow(), "Should have the last update of the Bundle"));
+    }
+
+    @Test
+    void testMatchesParsedBundle() throws IOException {
+        final Bundle bundle = new Bundle();
+        bundle.addLink().setRelation(Bundle.LINK_NEXT).setUrl("http://next");
+        bundle.getMeta().setLastUpdated(Date.from(Instant.parse("2020-05-01T16:30:00Z")));
+        bundle.addEntry().setResource(new ExplanationOfBenefit().setStatus(ExplanationOfBenefit.ExplanationOfBenefitStatus.ACTIVE).setId("eob"));
+        bundle.addEntry().setResource(new Coverage().setStatus(Coverage.CoverageStatus.ACTIVE).setId("coverage"));
+        final var parser = ctx.newJsonParser();
+
+        final RawBundle streamed = read(parser.setPrettyPrint(true).encodeResourceToString(bundle));
+        final RawBundle converted = RawBundle.fromBundle(bundle, ctx.newJsonParser());
+
+        assertEquals(converted.getNextLink(), streamed.getNextLink(), "Should have the same next link");
+        assertEquals(converted.getLastUpdated(), streamed.getLastUpdated(), "Should have the same last update");
+        for (int i = 0; i < 2; i++) {
+            assertEquals(converted.getEntries().get(i).getResourceType(), streamed.getEntries().get(i).getResourceType(), "Should have the same type");
+            assertEquals(new String(converted.getEntries().get(i).getJson(), StandardCharsets.UTF_8), new String(streamed.getEntries().get(i).getJson(), StandardCharsets.UTF_8), "Should have the same JSON");
+        }
+    }
+
+    @Test
+    void testNotABundle() {
+        assertThrows(DataFormatException.class, () -> read("{\"resourceType\": \"Patient\"}"), "Should only read Bundles");
+        assertThrows(DataFormatException.class, () -> read("{\"resourceType\": \"Bundle\", \"entry\": [{\"resource\": {\"id\": \"1\"}}]}"), "Should require a resourceType");
+        assertThrows(DataFormatException.class, () -> read("{\"resourceType\": \"Bundle\", \"entry\": [{\"resource\": {\"id\""), "Should fail on truncated JSON");
+    }
+
+    private static RawBundle read(String json) throws IOException {
+        return RawBundle.read(new ByteArrayInputStream(json.getBytes(StandardCharsets.UTF_8)));
+    }
+}
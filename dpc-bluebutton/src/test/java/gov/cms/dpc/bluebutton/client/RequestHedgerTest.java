@@ -0,0 +1,120 @@
+package gov.cms.dpc.bluebutton.client;
+
+import ca.uhn.fhir.rest.server.exceptions.InternalErrorException;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import gov.cms.dpc.bluebutton.config.BBClientConfiguration;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class RequestHedgerTest {
+
+    @Test
+    void testSlowRequestHedged() throws IOException {
+        final var registry = new MetricRegistry();
+        final var hedger = new RequestHedger(getConfig(true, 100), registry);
+        final var attempts = new AtomicInteger();
+
+        final String result = hedger.call("test", getLatency(), slowFirst(attempts));
+        assertAll(() -> assertEquals("hedge", result, "Should use the first response"),
+                () -> assertEquals(2, attempts.get(), "Should send a hedge"),
+                () -> assertEquals(1, registry.meter(MetricRegistry.name(RequestHedger.class, "testHedges")).getCount()),
+                () -> assertEquals(1, registry.meter(MetricRegistry.name(RequestHedger.class, "testHedgeWins")).getCount()));
+    }
+
+    @Test
+    void testFastRequestNotHedged() throws IOException {
+        final var hedger = new RequestHedger(getConfig(true, 100), new MetricRegistry());
+        final var attempts = new AtomicInteger();
+
+        assertEquals(1, (int) hedger.call("test", getLatency(), attempts::incrementAndGet));
+        assertEquals(1, attempts.get(), "Should not hedge a request faster than the percentile");
+    }
+
+    @Test
+    void testHedgesLimitedByBudget() throws IOException {
+        final var hedger = new RequestHedger(getConfig(true, 0), new MetricRegistry());
+        final var attempts = new AtomicInteger();
+
+        assertEquals("primary", hedger.call("test", getLatency(), slowFirst(attempts)));
+        assertEquals(1, attempts.get(), "Should not hedge without budget");
+    }
+
+    @Test
+    void testDisabled() throws IOException {
+        final var hedger = new RequestHedger(getConfig(false, 100), new MetricRegistry());
+        final var attempts = new AtomicInteger();
+
+        assertEquals("primary", hedger.call("test", getLatency(), slowFirst(attempts)));
+        assertEquals(1, attempts.get(), "Should not hedge when disabled");
+    }
+
+    @Test
+    void testFailedHedgeUsesPrimary() throws IOException {
+        final var hedger = new RequestHedger(getConfig(true, 100), new MetricRegistry());
+        final var attempts = new AtomicInteger();
+
+        final String result = hedger.call("test", getLatency(), () -> {
+            if (attempts.incrementAndGet() == 1) {
+                sleep(200);
+                return "primary";
+            }
+            throw new InternalErrorException("BlueButton failed");
+        });
+        assertEquals("primary", result, "Should wait for the primary when the hedge fails");
+    }
+
+    @Test
+    void testBothFail() throws IOException {
+        final var hedger = new RequestHedger(getConfig(true, 100), new MetricRegistry());
+
+        assertThrows(InternalErrorException.class, () -> hedger.call("test", getLatency(), () -> {
+            sleep(100);
+            throw new InternalErrorException("BlueButton failed");
+        }));
+    }
+
+    /**
+     * The first copy of the request is slow, any copy after it is fast
+     */
+    private static Supplier<String> slowFirst(AtomicInteger attempts) {
+        return () -> {
+            if (attempts.incrementAndGet() == 1) {
+                sleep(500);
+                return "primary";
+            }
+            return "hedge";
+        };
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * A timer of requests that all took 10 ms
+     */
+    private static Timer getLatency() {
+        final var timer = new Timer();
+        for (int i = 0; i < 10; i++) {
+            timer.update(10, TimeUnit.MILLISECONDS);
+        }
+        return timer;
+    }
+
+    private static BBClientConfiguration.HedgingConfiguration getConfig(boolean enabled, double budgetPercent) throws IOException {
+        final String options = String.format("{\"enabled\": %b, \"percentile\": 95.0, \"budgetPercent\": %s, \"minDelay\": 20, \"minSamples\": 10}", enabled, budgetPercent);
+        return new ObjectMapper().readValue(options, BBClientConfiguration.HedgingConfiguration.class);
+    }
+}
@@ -1,9 +1,15 @@
 package gov.cms.dpc.bluebutton.client;
 
+import com.codahale.metrics.MetricRegistry;
+import com.fasterxml.jackson.databind.ObjectMapper;
 import com.google.inject.AbstractModule;
 import com.google.inject.Provides;
+import com.google.inject.Singleton;
 import com.typesafe.config.Config;
 import com.typesafe.config.ConfigFactory;
+import gov.cms.dpc.bluebutton.config.BBClientConfiguration;
+
+import java.io.IOException;
 
 public class TestModule extends AbstractModule {
 
@@ -20,4 +26,22 @@ public class TestModule extends AbstractModule {
     Config provideTestConfig() {
         return ConfigFactory.load("test.application.conf").getConfig("dpc.aggregation");
     }
+
+    @Provides
+    @Singleton
+    MetricRegistry provideMetricRegistry() {
+        return new MetricRegistry();
+    }
+
+    @Provides
+    RateBudget provideRateBudget() {
+        return RateBudget.unlimited();
+    }
+
+    @Provides
+    @Singleton
+    BlueButtonResilience provideBlueButtonResilience(MetricRegistry registry) throws IOException {
+        // Failures are not retried, so the tests see them straight away
+        return new BlueButtonResilience(0, new ObjectMapper().readValue("{}", BBClientConfiguration.ResilienceConfiguration.class), registry);
+    }
 }
@@ -22,7 +22,7 @@ public class StringListConverter implements AttributeConverter<List<String>, Str
 
     @Override
     public List<String> convertToEntityAttribute(String dbData) {
-        if (dbData.isEmpty()) {
+        if (dbData == null || dbData.isEmpty()) {
             return List.of();
         }
         return new ArrayList<>(Arrays.asList(dbData.split(LIST_DELIM)));
@@ -5,6 +5,7 @@ import com.codahale.metrics.Timer;
 import gov.cms.dpc.common.hibernate.queue.DPCQueueManagedSessionFactory;
 import gov.cms.dpc.common.utils.MetricMaker;
 import gov.cms.dpc.queue.annotations.QueueBatchSize;
+import gov.cms.dpc.queue.annotations.QueueLeaseDuration;
 import gov.cms.dpc.queue.exceptions.JobQueueFailure;
 import gov.cms.dpc.queue.exceptions.JobQueueUnhealthy;
 import gov.cms.dpc.queue.models.JobQueueBatch;
@@ -13,6 +14,10 @@ import org.hibernate.Session;
 import org.hibernate.SessionFactory;
 import org.hibernate.Transaction;
 import org.hibernate.query.Query;
+import org.hibernate.type.BinaryType;
+import org.hibernate.type.IntegerType;
+import org.hibernate.type.OffsetDateTimeType;
+import org.hibernate.type.PostgresUUIDType;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -22,7 +27,7 @@ import javax.persistence.criteria.CriteriaQuery;
 import javax.persistence.criteria.Root;
 import java.time.Duration;
 import java.time.OffsetDateTime;
-import java.time.ZoneId;
+import java.time.ZoneOffset;
 import java.time.format.DateTimeFormatter;
 import java.util.List;
 import java.util.Optional;
@@ -39,9 +44,14 @@ public class DistributedBatchQueue extends JobQueueCommon {
     private static final Logger logger = LoggerFactory.getLogger(DistributedBatchQueue.class);
     private static final String DB_UNHEALTHY = "Database cluster is not responding";
     private static final String JOB_UNHEALTHY = "Aggregator is not making progress on the queue";
+    // Batches claimed without a lease, by aggregators from before leases, are reclaimed once they have not been updated for this long
+    private static final Duration UNLEASED_TIMEOUT = Duration.ofMinutes(5);
+    // Leases are set and expired by the database clock, so the clocks of the aggregators never decide who owns a batch
+    private static final String LEASE_EXPIRY_SQL = "clock_timestamp() + make_interval(secs => :leaseSeconds)";
 
     // Object variables
     private final SessionFactory factory;
+    private final QueueNotificationListener notificationListener;
 
     // Metrics
     private final Timer waitTimer; // The wait time for a job to start
@@ -50,15 +60,25 @@ public class DistributedBatchQueue extends JobQueueCommon {
     private final Timer failureTimer; // The work time a failed job takes
 
 
+    public DistributedBatchQueue(
+            DPCQueueManagedSessionFactory factory,
+            int batchSize,
+            MetricRegistry metricRegistry
+    ) {
+        this(factory, batchSize, DEFAULT_LEASE_DURATION, metricRegistry);
+    }
+
     @Inject
     public DistributedBatchQueue(
             DPCQueueManagedSessionFactory factory,
             @QueueBatchSize int batchSize,
+            @QueueLeaseDuration Duration leaseDuration,
             MetricRegistry metricRegistry
     ) {
-        super(batchSize);
+        super(batchSize, leaseDuration);
 
         this.factory = factory.getSessionFactory();
+        this.notificationListener = new QueueNotificationListener(this.factory, this.workSignal);
 
         // Metrics
         final var metricBuilder = new MetricMaker(metricRegistry, DistributedBatchQueue.class);
@@ -86,6 +106,7 @@ public class DistributedBatchQueue extends JobQueueCommon {
                 for ( JobQueueBatch batch : jobBatches ) {
                     session.persist(batch);
                 }
+                notifyWork(session);
                 tx.commit();
             } catch (Exception e) {
                 logger.error("Cannot add job batches to database", e);
@@ -154,7 +175,6 @@ public class DistributedBatchQueue extends JobQueueCommon {
         try (final Session session = this.factory.openSession()) {
             final Transaction tx = session.beginTransaction();
             try {
-                this.restartStuckBatches(session);
                 return this.claimBatchFromDatabase(session, aggregatorID);
             } finally {
                 tx.commit();
@@ -162,32 +182,65 @@ public class DistributedBatchQueue extends JobQueueCommon {
         }
     }
 
+    @Override
+    public boolean renewLease(JobQueueBatch job, UUID aggregatorID) {
+        // Taken before the renewal, so the lease the aggregator holds never outlasts the lease in the database
+        final OffsetDateTime leaseExpiry = nextLeaseExpiry();
+        try (final Session session = this.factory.openSession()) {
+            final Transaction tx = session.beginTransaction();
+            try {
+                // Only touch the lease, so the heartbeat never overwrites the progress saved by the batch
+                final int renewed = session.createNativeQuery("UPDATE job_queue_batch SET lease_expiry = " + LEASE_EXPIRY_SQL + " WHERE batch_id = :batchID AND aggregator_id = :aggregatorID AND claim_token = :claimToken AND status = 1")
+                        .setParameter("leaseSeconds", getLeaseSeconds())
+                        .setParameter("batchID", job.getBatchID())
+                        .setParameter("aggregatorID", aggregatorID)
+                        .setParameter("claimToken", job.getClaimToken())
+                        .executeUpdate();
+                if (renewed == 0) {
+                    return false;
+                }
+            } finally {
+                tx.commit();
+            }
+        }
+        // Keep the lease held by the job in step, so the aggregator can tell when the batch may no longer be its own
+        job.renewLease(aggregatorID, leaseExpiry);
+        return true;
+    }
+
     /**
-     * Looks for any job batches that have stopped processing and are stuck in a running state. Restart those batches
-     * so they can be picked up again.
-     *
-     * @param session - The active database session
+     * Looks for running batches whose lease has run out, because their aggregator stopped renewing it. Return those
+     * batches to the queue, so they can be picked up again from their last checkpoint.
      */
     @SuppressWarnings("unchecked")
-    private void restartStuckBatches(Session session) {
-        // Find stuck batches
-        List<String> stuckBatchIDs = session.createNativeQuery("SELECT Cast(batch_id as varchar) batch_id FROM job_queue_batch WHERE status = 1 AND update_time < current_timestamp - interval '5 minutes' FOR UPDATE SKIP LOCKED")
-                .getResultList();
-
-        // Unstick stuck batches
-        if ( stuckBatchIDs != null && !stuckBatchIDs.isEmpty() ) {
-            final CriteriaBuilder builder = session.getCriteriaBuilder();
-            final CriteriaQuery<JobQueueBatch> query = builder.createQuery(JobQueueBatch.class);
-            final Root<JobQueueBatch> root = query.from(JobQueueBatch.class);
-
-            query.select(root);
-            query.where(root.get("batchID").in(stuckBatchIDs.stream().map(UUID::fromString).collect(Collectors.toList())));
-            final List<JobQueueBatch> stuckJobList = session.createQuery(query).getResultList();
-
-            for ( JobQueueBatch stuckJob : stuckJobList ) {
-                logger.warn(String.format("Restarting stuck batch... batchID=%s", stuckJob.getBatchID()));
-                stuckJob.restartBatch();
-                session.merge(stuckJob);
+    @Override
+    public int reclaimExpiredBatches() {
+        try (final Session session = this.factory.openSession()) {
+            final Transaction tx = session.beginTransaction();
+            try {
+                // Find expired batches
+                List<Object[]> expiredBatches = session.createNativeQuery("SELECT Cast(batch_id as varchar) batch_id, Cast(aggregator_id as varchar) aggregator_id FROM job_queue_batch WHERE status = 1 AND (lease_expiry < clock_timestamp() OR (lease_expiry IS NULL AND update_time < clock_timestamp() - make_interval(secs => :unleasedSeconds))) FOR UPDATE SKIP LOCKED")
+                        .setParameter("unleasedSeconds", (double) UNLEASED_TIMEOUT.toSeconds())
+                        .getResultList();
+                if (expiredBatches == null || expiredBatches.isEmpty()) {
+                    return 0;
+                }
+
+                final List<UUID> expiredBatchIDs = expiredBatches.stream().map(row -> UUID.fromString((String) row[0])).collect(Collectors.toList());
+                for (Object[] expiredBatch : expiredBatches) {
+                    logger.warn(String.format("Reclaiming batch with an expired lease... batchID=%s aggregatorID=%s", expiredBatch[0], expiredBatch[1]));
+                }
+
+                // Only the status and lease change, the patient index and files stay as of the last checkpoint
+                final int reclaimed = session.createNativeQuery("UPDATE job_queue_batch SET status = :status, aggregator_id = NULL, lease_expiry = NULL, update_time = :updateTime WHERE batch_id IN (:batchIDs) AND status = 1")
+                        .setParameter("status", JobStatus.QUEUED.ordinal())
+                        .setParameter("updateTime", OffsetDateTime.now(ZoneOffset.UTC), OffsetDateTimeType.INSTANCE)
+                        .setParameterList("batchIDs", expiredBatchIDs, PostgresUUIDType.INSTANCE)
+                        .executeUpdate();
+                notifyWork(session);
+                return reclaimed;
+            } finally {
+                tx.commit();
             }
         }
     }
@@ -208,16 +261,38 @@ public class DistributedBatchQueue extends JobQueueCommon {
 
         if ( batchID.isPresent() ) {
             JobQueueBatch batch = session.get(JobQueueBatch.class, UUID.fromString(batchID.get()));
+            // The claim is saved with targeted updates below, so the changes to the batch must not be flushed as a
+            // rewrite of the whole row, with its list of patients, and of its files
+            session.detach(batch);
             try {
                 batch.setRunningStatus(aggregatorID);
+                batch.renewLease(aggregatorID, nextLeaseExpiry());
             } catch (Exception e) {
                 logger.error("Failed to mark job as running. Marking the job as failed", e);
                 batch.setFailedStatus(aggregatorID);
+                session.createNativeQuery("UPDATE job_queue_batch SET status = :status, aggregator_id = NULL, lease_expiry = NULL, update_time = :updateTime, complete_time = :completeTime WHERE batch_id = :batchID")
+                        .setParameter("status", batch.getStatus().ordinal())
+                        .setParameter("updateTime", batch.getUpdateTime().orElse(null), OffsetDateTimeType.INSTANCE)
+                        .setParameter("completeTime", batch.getCompleteTime().orElse(null), OffsetDateTimeType.INSTANCE)
+                        .setParameter("batchID", batch.getBatchID())
+                        .executeUpdate();
+                session.createNativeQuery("DELETE FROM job_queue_batch_file WHERE batch_id = :batchID")
+                        .setParameter("batchID", batch.getBatchID())
+                        .executeUpdate();
                 return Optional.empty();
-            } finally {
-                session.merge(batch);
             }
 
+            // Start the lease on the database clock, which it is renewed and reclaimed by
+            session.createNativeQuery("UPDATE job_queue_batch SET status = :status, aggregator_id = :aggregatorID, claim_token = :claimToken, start_time = :startTime, update_time = :updateTime, lease_expiry = " + LEASE_EXPIRY_SQL + " WHERE batch_id = :batchID AND status = 0")
+                    .setParameter("status", batch.getStatus().ordinal())
+                    .setParameter("aggregatorID", aggregatorID)
+                    .setParameter("claimToken", batch.getClaimToken())
+                    .setParameter("startTime", batch.getStartTime().orElseThrow(), OffsetDateTimeType.INSTANCE)
+                    .setParameter("updateTime", batch.getUpdateTime().orElseThrow(), OffsetDateTimeType.INSTANCE)
+                    .setParameter("leaseSeconds", getLeaseSeconds())
+                    .setParameter("batchID", batch.getBatchID())
+                    .executeUpdate();
+
             final var delay = Duration.between(batch.getStartTime().orElseThrow(), batch.getUpdateTime().orElseThrow());
             waitTimer.update(delay.toMillis(), TimeUnit.MILLISECONDS);
 
@@ -227,35 +302,40 @@ public class DistributedBatchQueue extends JobQueueCommon {
         }
     }
 
+    private double getLeaseSeconds() {
+        return getLeaseDuration().toMillis() / 1000.0;
+    }
+
+    /**
+     * Let the aggregators listening on the queue know that batches are ready to claim, once the transaction commits
+     *
+     * @param session - The active database session
+     */
+    private static void notifyWork(Session session) {
+        session.createNativeQuery(String.format("NOTIFY %s", QueueNotificationListener.CHANNEL)).executeUpdate();
+    }
+
+    @Override
+    public WorkSignal getWorkSignal() {
+        // Only the aggregators wait on the queue, so only they hold a connection listening for notifications
+        notificationListener.start();
+        return super.getWorkSignal();
+    }
+
     @Override
     public void pauseBatch(JobQueueBatch job, UUID aggregatorID) {
-        try (final Session session = this.factory.openSession()) {
-            final Transaction tx = session.beginTransaction();
-            try {
-                job.setPausedStatus(aggregatorID);
-                session.merge(job);
-            } finally {
-                tx.commit();
-            }
-        }
+        job.setPausedStatus(aggregatorID);
+        saveBatchProgress(job, aggregatorID, false);
     }
 
     @Override
     public void completePartialBatch(JobQueueBatch job, UUID aggregatorID) {
-        try (final Session session = this.factory.openSession()) {
-            final Transaction tx = session.beginTransaction();
-            try {
-                final Optional<OffsetDateTime> lastUpdate = job.getUpdateTime();
+        final Optional<OffsetDateTime> lastUpdate = job.getUpdateTime();
 
-                // We just need to persist the job, as any results will be attached to the job and cascade
-                session.merge(job);
+        saveBatchProgress(job, aggregatorID, false);
 
-                final var delay = Duration.between(lastUpdate.orElseThrow(), job.getUpdateTime().orElseThrow());
-                partialTimer.update(delay.toMillis(), TimeUnit.MILLISECONDS);
-            } finally {
-                tx.commit();
-            }
-        }
+        final var delay = Duration.between(lastUpdate.orElseThrow(), job.getUpdateTime().orElseThrow());
+        partialTimer.update(delay.toMillis(), TimeUnit.MILLISECONDS);
     }
 
     @Override
@@ -264,34 +344,99 @@ public class DistributedBatchQueue extends JobQueueCommon {
             throw new JobQueueFailure("Empty job passed");
         }
 
-        try (final Session session = this.factory.openSession()) {
-            final Transaction tx = session.beginTransaction();
-            try {
-                job.setCompletedStatus(aggregatorID);
-                session.merge(job);
+        job.setCompletedStatus(aggregatorID);
+        saveBatchProgress(job, aggregatorID, false);
 
-                final var delay = Duration.between(job.getStartTime().orElseThrow(), job.getCompleteTime().orElseThrow());
-                successTimer.update(delay.toMillis(), TimeUnit.MILLISECONDS);
-            } finally {
-                tx.commit();
-            }
-        }
+        final var delay = Duration.between(job.getStartTime().orElseThrow(), job.getCompleteTime().orElseThrow());
+        successTimer.update(delay.toMillis(), TimeUnit.MILLISECONDS);
     }
 
     @Override
     public void failBatch(JobQueueBatch job, UUID aggregatorID) {
+        job.setFailedStatus(aggregatorID);
+        saveBatchProgress(job, aggregatorID, true);
+
+        final var delay = Duration.between(job.getStartTime().orElseThrow(), job.getUpdateTime().orElseThrow());
+        failureTimer.update(delay.toMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Save the progress of a running batch, and any change of its status, without merging the whole batch. Only the
+     * progress and status columns of the batch are updated, leaving its list of patients alone, and only the files that
+     * changed since they were last saved are written.
+     * <p>
+     * The update only applies while the batch is still running on the claim it was loaded with, so an aggregator whose
+     * batch has been reclaimed cannot save over the progress of the new owner, even when the new owner is the same
+     * aggregator. A running batch keeps the lease renewed in the database.
+     *
+     * @param job          - the batch to save
+     * @param aggregatorID - the aggregator working the batch
+     * @param deleteFiles  - true to delete the files of the batch, when it has failed
+     * @throws JobQueueFailure if the batch is no longer running on the claim of the aggregator
+     */
+    private void saveBatchProgress(JobQueueBatch job, UUID aggregatorID, boolean deleteFiles) {
+        final List<JobQueueBatchFile> modifiedFiles;
+        synchronized (job) {
+            modifiedFiles = job.getJobQueueBatchFiles().stream().filter(JobQueueBatchFile::isModified).collect(Collectors.toList());
+        }
+
         try (final Session session = this.factory.openSession()) {
             final Transaction tx = session.beginTransaction();
             try {
-                job.setFailedStatus(aggregatorID);
-                session.merge(job);
+                final int updated = session.createNativeQuery("UPDATE job_queue_batch SET status = :status, aggregator_id = :newAggregatorID, lease_expiry = CASE WHEN :status = 1 THEN lease_expiry END, patient_index = :patientIndex, update_time = :updateTime, complete_time = :completeTime WHERE batch_id = :batchID AND aggregator_id = :aggregatorID AND claim_token = :claimToken AND status = 1")
+                        .setParameter("status", job.getStatus().ordinal())
+                        .setParameter("newAggregatorID", job.getAggregatorID().orElse(null), PostgresUUIDType.INSTANCE)
+                        .setParameter("patientIndex", job.getPatientIndex().orElse(null), IntegerType.INSTANCE)
+                        .setParameter("updateTime", job.getUpdateTime().orElse(null), OffsetDateTimeType.INSTANCE)
+                        .setParameter("completeTime", job.getCompleteTime().orElse(null), OffsetDateTimeType.INSTANCE)
+                        .setParameter("batchID", job.getBatchID())
+                        .setParameter("aggregatorID", aggregatorID)
+                        .setParameter("claimToken", job.getClaimToken())
+                        .executeUpdate();
+                if (updated == 0) {
+                    throw new JobQueueFailure(job.getJobID(), job.getBatchID(), String.format("Cannot save batch. It is no longer running on claim %d of aggregator %s", job.getClaimToken(), aggregatorID));
+                }
 
-                final var delay = Duration.between(job.getStartTime().orElseThrow(), job.getUpdateTime().orElseThrow());
-                failureTimer.update(delay.toMillis(), TimeUnit.MILLISECONDS);
-            } finally {
+                if (job.getStatus() == JobStatus.QUEUED) {
+                    // A paused batch is ready to be picked up by another aggregator
+                    notifyWork(session);
+                }
+
+                if (deleteFiles) {
+                    session.createNativeQuery("DELETE FROM job_queue_batch_file WHERE batch_id = :batchID")
+                            .setParameter("batchID", job.getBatchID())
+                            .executeUpdate();
+                } else {
+                    modifiedFiles.forEach(file -> upsertBatchFile(session, file));
+                }
                 tx.commit();
+            } catch (RuntimeException e) {
+                tx.rollback();
+                throw e;
             }
         }
+        modifiedFiles.forEach(JobQueueBatchFile::markSaved);
+    }
+
+    private static void upsertBatchFile(Session session, JobQueueBatchFile file) {
+        session.createNativeQuery("INSERT INTO job_queue_batch_file (batch_id, resource_type, sequence, job_id, file_name, count, checksum, file_length, digest_state, compression, uncompressed_checksum, uncompressed_length, uncompressed_digest_state) " +
+                "VALUES (:batchID, :resourceType, :sequence, :jobID, :fileName, :count, :checksum, :fileLength, :digestState, :compression, :uncompressedChecksum, :uncompressedLength, :uncompressedDigestState) " +
+                "ON CONFLICT (batch_id, resource_type, sequence) DO UPDATE SET count = EXCLUDED.count, checksum = EXCLUDED.checksum, file_length = EXCLUDED.file_length, digest_state = EXCLUDED.digest_state, " +
+                "compression = EXCLUDED.compression, uncompressed_checksum = EXCLUDED.uncompressed_checksum, uncompressed_length = EXCLUDED.uncompressed_length, uncompressed_digest_state = EXCLUDED.uncompressed_digest_state")
+                .setParameter("batchID", file.getBatchID())
+                .setParameter("resourceType", file.getResourceType().ordinal())
+                .setParameter("sequence", file.getSequence())
+                .setParameter("jobID", file.getJobID())
+                .setParameter("fileName", file.getFileName())
+                .setParameter("count", file.getCount())
+                .setParameter("checksum", file.getChecksum(), BinaryType.INSTANCE)
+                .setParameter("fileLength", file.getFileLength())
+                .setParameter("digestState", file.getDigestState(), BinaryType.INSTANCE)
+                .setParameter("compression", file.getCompression().ordinal())
+                .setParameter("uncompressedChecksum", file.getUncompressedChecksum(), BinaryType.INSTANCE)
+                .setParameter("uncompressedLength", file.getUncompressedLength())
+                .setParameter("uncompressedDigestState", file.getUncompressedDigestState(), BinaryType.INSTANCE)
+                .executeUpdate();
     }
 
     @Override
@@ -323,13 +468,12 @@ public class DistributedBatchQueue extends JobQueueCommon {
     public void assertHealthy(UUID aggregatorID) {
         try (final Session session = this.factory.openSession()) {
             try {
-                OffsetDateTime stuckSince = OffsetDateTime.now(ZoneId.systemDefault()).minusMinutes(3);
-
-                logger.debug(String.format("Checking aggregatorID(%s) for stuck jobs since (%s)...", aggregatorID, stuckSince.toString()));
+                logger.debug(String.format("Checking aggregatorID(%s) for batches with expired leases...", aggregatorID));
+                // The update time only moves at each checkpoint, while the lease is renewed for as long as the batch is worked.
+                // Compare against the database clock, which is the one the leases are reclaimed by
                 Long stuckBatchCount = (Long) session
-                        .createQuery("select count(*) from job_queue_batch where aggregatorID = :aggregatorID and status = 1 and updateTime < :updateTime")
+                        .createQuery("select count(*) from job_queue_batch where aggregatorID = :aggregatorID and status = 1 and leaseExpiry < current_timestamp()")
                         .setParameter("aggregatorID", aggregatorID)
-                        .setParameter("updateTime", stuckSince)
                         .uniqueResult();
 
                 logger.debug(String.format("Found (%d) stuck jobs on aggregatorID(%s).", stuckBatchCount, aggregatorID));
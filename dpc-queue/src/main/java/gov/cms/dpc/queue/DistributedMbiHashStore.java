@@ -0,0 +1,131 @@
+package gov.cms.dpc.queue;
+
+import gov.cms.dpc.common.hibernate.queue.DPCQueueManagedSessionFactory;
+import gov.cms.dpc.queue.annotations.MbiHashRetention;
+import org.hibernate.Session;
+import org.hibernate.SessionFactory;
+import org.hibernate.Transaction;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.inject.Inject;
+import java.sql.PreparedStatement;
+import java.time.Duration;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Stores MBI hashes in the queue's Postgres database, keyed by a keyed digest of each MBI.
+ * <p>
+ * Hashes are only kept for the retention, measured from when they were stored on the database clock. Expired hashes
+ * are ignored on lookup, replaced when stored again, and deleted at most once per {@link #PRUNE_INTERVAL}.
+ */
+public class DistributedMbiHashStore implements IMbiHashStore {
+
+    private static final Logger logger = LoggerFactory.getLogger(DistributedMbiHashStore.class);
+    public static final Duration DEFAULT_RETENTION = Duration.ofDays(30);
+    static final Duration PRUNE_INTERVAL = Duration.ofHours(1);
+
+    private static final String EXPIRED_SQL = "clock_timestamp() - make_interval(secs => %s)";
+    private static final String INSERT_HASH = "INSERT INTO mbi_hash (pepper_version, mbi_key, mbi_hash, created_at) VALUES (?, ?, ?, clock_timestamp()) " +
+            "ON CONFLICT (pepper_version, mbi_key) DO UPDATE SET mbi_hash = EXCLUDED.mbi_hash, created_at = EXCLUDED.created_at " +
+            "WHERE mbi_hash.created_at < " + String.format(EXPIRED_SQL, "?");
+
+    private final SessionFactory factory;
+    private final Duration retention;
+    private final AtomicLong nextPruneMillis;
+
+    @Inject
+    public DistributedMbiHashStore(DPCQueueManagedSessionFactory factory, @MbiHashRetention Duration retention) {
+        this.factory = factory.getSessionFactory();
+        this.retention = retention;
+        this.nextPruneMillis = new AtomicLong();
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public Map<String, String> getHashes(String pepperVersion, Collection<String> mbiKeys) {
+        final Map<String, String> hashes = new HashMap<>();
+        if (mbiKeys.isEmpty()) {
+            return hashes;
+        }
+
+        try (final Session session = this.factory.openSession()) {
+            final List<Object[]> rows = session.createNativeQuery("SELECT mbi_key, mbi_hash FROM mbi_hash WHERE pepper_version = :version AND mbi_key IN (:mbiKeys) AND created_at >= " + String.format(EXPIRED_SQL, ":retentionSeconds"))
+                    .setParameter("version", pepperVersion)
+                    .setParameterList("mbiKeys", mbiKeys)
+                    .setParameter("retentionSeconds", getRetentionSeconds())
+                    .getResultList();
+            for (Object[] row : rows) {
+                hashes.put((String) row[0], (String) row[1]);
+            }
+        }
+        return hashes;
+    }
+
+    @Override
+    public void putHashes(String pepperVersion, Map<String, String> hashes) {
+        if (hashes.isEmpty()) {
+            return;
+        }
+
+        try (final Session session = this.factory.openSession()) {
+            final Transaction tx = session.beginTransaction();
+            try {
+                // Insert in a single JDBC batch, rather than a statement round trip per MBI
+                session.doWork(connection -> {
+                    try (PreparedStatement statement = connection.prepareStatement(INSERT_HASH)) {
+                        for (Map.Entry<String, String> entry : hashes.entrySet()) {
+                            statement.setString(1, pepperVersion);
+                            statement.setString(2, entry.getKey());
+                            statement.setString(3, entry.getValue());
+                            statement.setDouble(4, getRetentionSeconds());
+                            statement.addBatch();
+                        }
+                        statement.executeBatch();
+                    }
+                });
+                tx.commit();
+            } catch (Exception e) {
+                tx.rollback();
+                throw e;
+            }
+        }
+        pruneExpiredHashes();
+    }
+
+    /**
+     * Delete the hashes older than the retention, unless another call has done so within the {@link #PRUNE_INTERVAL}
+     *
+     * @return the number of hashes deleted
+     */
+    int pruneExpiredHashes() {
+        final long now = System.currentTimeMillis();
+        final long next = nextPruneMillis.get();
+        if (now < next || !nextPruneMillis.compareAndSet(next, now + PRUNE_INTERVAL.toMillis())) {
+            return 0;
+        }
+
+        try (final Session session = this.factory.openSession()) {
+            final Transaction tx = session.beginTransaction();
+            try {
+                final int deleted = session.createNativeQuery("DELETE FROM mbi_hash WHERE created_at < " + String.format(EXPIRED_SQL, ":retentionSeconds"))
+                        .setParameter("retentionSeconds", getRetentionSeconds())
+                        .executeUpdate();
+                tx.commit();
+                logger.debug("Deleted {} expired MBI hashes", deleted);
+                return deleted;
+            } catch (Exception e) {
+                tx.rollback();
+                throw e;
+            }
+        }
+    }
+
+    private double getRetentionSeconds() {
+        return retention.toMillis() / 1000.0;
+    }
+}
@@ -0,0 +1,57 @@
+package gov.cms.dpc.queue;
+
+import gov.cms.dpc.common.hibernate.queue.DPCQueueManagedSessionFactory;
+import org.hibernate.Session;
+import org.hibernate.SessionFactory;
+import org.hibernate.Transaction;
+
+import javax.inject.Inject;
+
+/**
+ * Token buckets held in the queue's Postgres database, which limit every aggregator sharing the queue.
+ * <p>
+ * A lease locks the row of its bucket, so concurrent leases from different aggregators are serialized. The time is
+ * taken from the database clock, so the refill does not depend on the clocks of the aggregators.
+ */
+public class DistributedTokenBucketStore implements ITokenBucketStore {
+
+    private final SessionFactory factory;
+
+    @Inject
+    public DistributedTokenBucketStore(DPCQueueManagedSessionFactory factory) {
+        this.factory = factory.getSessionFactory();
+    }
+
+    @Override
+    public int leaseTokens(String bucket, int requested, double capacity, double refillPerSecond) {
+        try (final Session session = this.factory.openSession()) {
+            final Transaction tx = session.beginTransaction();
+            try {
+                session.createNativeQuery("INSERT INTO rate_bucket (name, tokens, updated_at) VALUES (:name, :capacity, clock_timestamp()) ON CONFLICT DO NOTHING")
+                        .setParameter("name", bucket)
+                        .setParameter("capacity", capacity)
+                        .executeUpdate();
+
+                // Lock the bucket, and read how long it has been refilling for in the same statement
+                final Object[] row = (Object[]) session.createNativeQuery("SELECT tokens, GREATEST(EXTRACT(EPOCH FROM (clock_timestamp() - updated_at)), 0), clock_timestamp() FROM rate_bucket WHERE name = :name FOR UPDATE")
+                        .setParameter("name", bucket)
+                        .getSingleResult();
+                final double tokens = ((Number) row[0]).doubleValue();
+                final double elapsedSeconds = ((Number) row[1]).doubleValue();
+
+                final double available = Math.min(capacity, tokens + elapsedSeconds * refillPerSecond);
+                final int granted = (int) Math.max(Math.min(requested, Math.floor(available)), 0);
+                session.createNativeQuery("UPDATE rate_bucket SET tokens = :tokens, updated_at = :updated WHERE name = :name")
+                        .setParameter("tokens", available - granted)
+                        .setParameter("updated", row[2])
+                        .setParameter("name", bucket)
+                        .executeUpdate();
+                tx.commit();
+                return granted;
+            } catch (Exception e) {
+                tx.rollback();
+                throw e;
+            }
+        }
+    }
+}
@@ -4,6 +4,7 @@ import gov.cms.dpc.queue.models.JobQueueBatch;
 import gov.cms.dpc.queue.models.JobQueueBatchFile;
 import org.hl7.fhir.dstu3.model.ResourceType;
 
+import java.time.Duration;
 import java.util.List;
 import java.util.Optional;
 import java.util.UUID;
@@ -51,13 +52,46 @@ public interface IJobQueue {
     Optional<JobQueueBatchFile> getJobBatchFile(UUID organizationID, String fileID);
 
     /**
-     * Find the next job that is ready to run. Alter the job's {@link JobStatus} to `RUNNING`.
+     * Find the next job that is ready to run. Alter the job's {@link JobStatus} to `RUNNING`, with a lease for the aggregator.
      *
      * @param aggregatorID - the current aggregator working the job
      * @return The job to work, if present.
      */
     Optional<JobQueueBatch> claimBatch(UUID aggregatorID);
 
+    /**
+     * Extend the lease of the aggregator on a batch it is working. The lease must be renewed before it runs out,
+     * otherwise the batch is reclaimed by {@link #reclaimExpiredBatches()} and handed to another aggregator.
+     *
+     * @param job          - the job to renew the lease of
+     * @param aggregatorID - the current aggregator working the job
+     * @return true if the lease was renewed, false if the aggregator no longer holds the batch
+     */
+    boolean renewLease(JobQueueBatch job, UUID aggregatorID);
+
+    /**
+     * Return the running batches whose lease has run out to the queue, so they can be claimed again. A reclaimed batch
+     * keeps its progress as of its last checkpoint, the same as a paused batch.
+     *
+     * @return the number of batches reclaimed
+     */
+    int reclaimExpiredBatches();
+
+    /**
+     * How long the lease on a claimed batch lasts before it has to be renewed
+     *
+     * @return - {@link Duration} of a lease
+     */
+    Duration getLeaseDuration();
+
+    /**
+     * The signal of batches becoming ready to claim, for an aggregator to wait on while the queue is empty. Polling the
+     * queue is only needed as a fallback, in case a signal is lost.
+     *
+     * @return - {@link WorkSignal} of the queue
+     */
+    WorkSignal getWorkSignal();
+
     /**
      * Pauses the current progress and allows another aggregator to pick up the batch.
      *
@@ -0,0 +1,31 @@
+package gov.cms.dpc.queue;
+
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * Interface for persisting the hashes of MBIs, so they only need to be computed once.
+ * <p>
+ * Hashes are keyed by the version of the pepper they were computed with, as rotating the pepper changes every hash.
+ * Within a version, each hash is stored under a keyed digest of its MBI, so the MBIs themselves are never stored.
+ * A store may drop hashes once they are older than its retention, after which they are computed again.
+ */
+public interface IMbiHashStore {
+
+    /**
+     * Look up the stored hashes of some MBIs
+     *
+     * @param pepperVersion - The version of the pepper the hashes were computed with
+     * @param mbiKeys       - The keyed digests of the MBIs to look up
+     * @return The stored hashes by MBI key. MBIs without a stored hash are left out.
+     */
+    Map<String, String> getHashes(String pepperVersion, Collection<String> mbiKeys);
+
+    /**
+     * Store the hashes of some MBIs. Hashes that are already stored, and not yet expired, are left as is.
+     *
+     * @param pepperVersion - The version of the pepper the hashes were computed with
+     * @param hashes        - The hashes by MBI key
+     */
+    void putHashes(String pepperVersion, Map<String, String> hashes);
+}
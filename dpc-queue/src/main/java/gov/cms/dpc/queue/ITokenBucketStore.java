@@ -0,0 +1,22 @@
+package gov.cms.dpc.queue;
+
+/**
+ * Interface for token buckets shared by the aggregators, which rate limit a resource across all of them.
+ * <p>
+ * A bucket refills at a steady rate up to its capacity. Callers lease chunks of tokens rather than single tokens, so
+ * the store is only consulted every few requests.
+ */
+public interface ITokenBucketStore {
+
+    /**
+     * Take up to a number of tokens from a bucket, refilling it for the time since it was last leased from.
+     * A bucket that does not exist yet is created full.
+     *
+     * @param bucket          - The name of the bucket
+     * @param requested       - The number of tokens wanted
+     * @param capacity        - The max number of tokens the bucket holds
+     * @param refillPerSecond - The number of tokens added to the bucket each second
+     * @return The number of tokens granted, between zero and the number requested
+     */
+    int leaseTokens(String bucket, int requested, double capacity, double refillPerSecond);
+}
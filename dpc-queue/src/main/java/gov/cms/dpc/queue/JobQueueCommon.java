@@ -5,19 +5,32 @@ import gov.cms.dpc.queue.models.JobQueueBatch;
 import io.reactivex.Observable;
 import org.hl7.fhir.dstu3.model.ResourceType;
 
+import java.time.Duration;
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
 import java.util.Collections;
 import java.util.List;
 import java.util.UUID;
 
 public abstract class JobQueueCommon implements IJobQueue {
 
+    // How long a claimed batch is leased for, when not configured
+    public static final Duration DEFAULT_LEASE_DURATION = Duration.ofSeconds(30);
+
     // Object variables
     private final int batchSize;
+    private final Duration leaseDuration;
+    protected final WorkSignal workSignal = new WorkSignal();
 
     public abstract void submitJobBatches(List<JobQueueBatch> jobBatches);
 
     public JobQueueCommon(int batchSize) {
+        this(batchSize, DEFAULT_LEASE_DURATION);
+    }
+
+    public JobQueueCommon(int batchSize, Duration leaseDuration) {
         this.batchSize = batchSize;
+        this.leaseDuration = leaseDuration;
     }
 
     @Override
@@ -51,4 +64,21 @@ public abstract class JobQueueCommon implements IJobQueue {
     public int getBatchSize() {
         return batchSize;
     }
+
+    @Override
+    public Duration getLeaseDuration() {
+        return leaseDuration;
+    }
+
+    @Override
+    public WorkSignal getWorkSignal() {
+        return workSignal;
+    }
+
+    /**
+     * @return the end of a lease that starts now
+     */
+    protected OffsetDateTime nextLeaseExpiry() {
+        return OffsetDateTime.now(ZoneOffset.UTC).plus(leaseDuration);
+    }
 }
@@ -5,22 +5,29 @@ import com.google.inject.Provides;
 import com.google.inject.Scopes;
 import com.hubspot.dropwizard.guicier.DropwizardAwareModule;
 import gov.cms.dpc.queue.annotations.AggregatorID;
+import gov.cms.dpc.queue.annotations.MbiHashRetention;
 import gov.cms.dpc.queue.annotations.QueueBatchSize;
+import gov.cms.dpc.queue.annotations.QueueLeaseDuration;
 import gov.cms.dpc.queue.health.JobQueueHealthCheck;
 import gov.cms.dpc.queue.service.DataService;
 import io.dropwizard.Configuration;
 
+import java.time.Duration;
 import java.util.UUID;
 
 public class JobQueueModule<T extends Configuration & DPCQueueConfig> extends DropwizardAwareModule<T> {
 
     private final boolean inMemory;
     private final int batchSize;
+    private final Duration leaseDuration;
+    private final Duration mbiHashRetention;
     private final UUID aggregatorID;
 
     public JobQueueModule() {
         this.inMemory = false;
         this.batchSize = 100;
+        this.leaseDuration = JobQueueCommon.DEFAULT_LEASE_DURATION;
+        this.mbiHashRetention = DistributedMbiHashStore.DEFAULT_RETENTION;
         this.aggregatorID = UUID.randomUUID();
     }
 
@@ -32,10 +39,22 @@ public class JobQueueModule<T extends Configuration & DPCQueueConfig> extends Dr
             binder.bind(IJobQueue.class)
                     .to(MemoryBatchQueue.class)
                     .in(Scopes.SINGLETON);
+            binder.bind(IMbiHashStore.class)
+                    .to(MemoryMbiHashStore.class)
+                    .in(Scopes.SINGLETON);
+            binder.bind(ITokenBucketStore.class)
+                    .to(MemoryTokenBucketStore.class)
+                    .in(Scopes.SINGLETON);
         } else {
             binder.bind(IJobQueue.class)
                     .to(DistributedBatchQueue.class)
                     .in(Scopes.SINGLETON);
+            binder.bind(IMbiHashStore.class)
+                    .to(DistributedMbiHashStore.class)
+                    .in(Scopes.SINGLETON);
+            binder.bind(ITokenBucketStore.class)
+                    .to(DistributedTokenBucketStore.class)
+                    .in(Scopes.SINGLETON);
         }
 
         // Bind the healthcheck
@@ -49,6 +68,18 @@ public class JobQueueModule<T extends Configuration & DPCQueueConfig> extends Dr
         return batchSize;
     }
 
+    @Provides
+    @QueueLeaseDuration
+    Duration provideLeaseDuration() {
+        return leaseDuration;
+    }
+
+    @Provides
+    @MbiHashRetention
+    Duration provideMbiHashRetention() {
+        return mbiHashRetention;
+    }
+
     @Provides
     @AggregatorID
     UUID provideAggregatorID() {
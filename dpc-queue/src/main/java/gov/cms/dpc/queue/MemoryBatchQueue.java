@@ -6,6 +6,9 @@ import gov.cms.dpc.queue.models.JobQueueBatchFile;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.time.Duration;
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
 import java.util.*;
 import java.util.stream.Collectors;
 
@@ -23,7 +26,11 @@ public class MemoryBatchQueue extends JobQueueCommon {
     }
 
     public MemoryBatchQueue(int batchSize) {
-        super(batchSize);
+        this(batchSize, DEFAULT_LEASE_DURATION);
+    }
+
+    public MemoryBatchQueue(int batchSize, Duration leaseDuration) {
+        super(batchSize, leaseDuration);
         this.queue = new HashMap<>();
     }
 
@@ -34,6 +41,7 @@ public class MemoryBatchQueue extends JobQueueCommon {
             this.queue.put(batch.getBatchID(), batch);
             batch.setUpdateTime();
         });
+        this.workSignal.signal();
     }
 
     @Override
@@ -70,6 +78,7 @@ public class MemoryBatchQueue extends JobQueueCommon {
         if (first.isPresent()) {
             try {
                 first.get().setRunningStatus(aggregatorID);
+                first.get().renewLease(aggregatorID, nextLeaseExpiry());
             } catch (Exception e) {
                 logger.error("Failed to mark job as running. Marking the job as failed", e);
                 first.get().setFailedStatus(aggregatorID);
@@ -80,10 +89,36 @@ public class MemoryBatchQueue extends JobQueueCommon {
         return first;
     }
 
+    @Override
+    public synchronized boolean renewLease(JobQueueBatch job, UUID aggregatorID) {
+        if (job.getStatus() != JobStatus.RUNNING || !job.getAggregatorID().map(aggregatorID::equals).orElse(false)) {
+            return false;
+        }
+        job.renewLease(aggregatorID, nextLeaseExpiry());
+        return true;
+    }
+
+    @Override
+    public synchronized int reclaimExpiredBatches() {
+        final OffsetDateTime now = OffsetDateTime.now(ZoneOffset.UTC);
+        final List<JobQueueBatch> expired = this.queue.values().stream()
+                .filter(batch -> batch.isLeaseExpired(now))
+                .collect(Collectors.toList());
+        expired.forEach(batch -> {
+            logger.warn("Reclaiming batch with an expired lease... batchID={}", batch.getBatchID());
+            batch.reclaimBatch();
+        });
+        if (!expired.isEmpty()) {
+            this.workSignal.signal();
+        }
+        return expired.size();
+    }
+
     @Override
     public synchronized void pauseBatch(JobQueueBatch job, UUID aggregatorID) {
         job.setPausedStatus(aggregatorID);
         job.setUpdateTime();
+        this.workSignal.signal();
     }
 
     @Override
@@ -0,0 +1,37 @@
+package gov.cms.dpc.queue;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Simple in-memory store of MBI hashes
+ */
+public class MemoryMbiHashStore implements IMbiHashStore {
+
+    private final Map<String, Map<String, String>> hashesByVersion;
+
+    public MemoryMbiHashStore() {
+        this.hashesByVersion = new ConcurrentHashMap<>();
+    }
+
+    @Override
+    public Map<String, String> getHashes(String pepperVersion, Collection<String> mbiKeys) {
+        final Map<String, String> stored = hashesByVersion.getOrDefault(pepperVersion, Map.of());
+        final Map<String, String> hashes = new HashMap<>();
+        for (String mbiKey : mbiKeys) {
+            final String hash = stored.get(mbiKey);
+            if (hash != null) {
+                hashes.put(mbiKey, hash);
+            }
+        }
+        return hashes;
+    }
+
+    @Override
+    public void putHashes(String pepperVersion, Map<String, String> hashes) {
+        final Map<String, String> stored = hashesByVersion.computeIfAbsent(pepperVersion, version -> new ConcurrentHashMap<>());
+        hashes.forEach(stored::putIfAbsent);
+    }
+}
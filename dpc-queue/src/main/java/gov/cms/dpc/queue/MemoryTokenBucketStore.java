@@ -0,0 +1,46 @@
+package gov.cms.dpc.queue;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * Token buckets held in memory, which only limit the current process
+ */
+public class MemoryTokenBucketStore implements ITokenBucketStore {
+
+    private final Map<String, Bucket> buckets;
+    private final LongSupplier nanoClock;
+
+    public MemoryTokenBucketStore() {
+        this(System::nanoTime);
+    }
+
+    MemoryTokenBucketStore(LongSupplier nanoClock) {
+        this.buckets = new HashMap<>();
+        this.nanoClock = nanoClock;
+    }
+
+    @Override
+    public synchronized int leaseTokens(String bucket, int requested, double capacity, double refillPerSecond) {
+        final long now = nanoClock.getAsLong();
+        final Bucket state = buckets.computeIfAbsent(bucket, name -> new Bucket(capacity, now));
+        final double elapsedSeconds = (double) Math.max(now - state.updated, 0) / TimeUnit.SECONDS.toNanos(1);
+        final double available = Math.min(capacity, state.tokens + elapsedSeconds * refillPerSecond);
+        final int granted = (int) Math.max(Math.min(requested, Math.floor(available)), 0);
+        state.tokens = available - granted;
+        state.updated = now;
+        return granted;
+    }
+
+    private static class Bucket {
+        private double tokens;
+        private long updated;
+
+        private Bucket(double tokens, long updated) {
+            this.tokens = tokens;
+            this.updated = updated;
+        }
+    }
+}
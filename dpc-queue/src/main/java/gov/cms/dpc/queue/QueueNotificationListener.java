@@ -0,0 +1,122 @@
+package gov.cms.dpc.queue;
+
+import org.hibernate.SessionFactory;
+import org.hibernate.engine.jdbc.connections.spi.ConnectionProvider;
+import org.hibernate.engine.spi.SessionFactoryImplementor;
+import org.postgresql.PGConnection;
+import org.postgresql.PGNotification;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Listens on a Postgres connection of its own for the NOTIFY sent whenever batches are ready to claim, and passes it on
+ * to a {@link WorkSignal}.
+ * <p>
+ * The connection is held by a daemon thread for as long as the queue is in use. If the connection fails, it is opened
+ * again after a delay, and the waiters fall back to polling the queue in the meantime. Notifications sent while the
+ * listener was away are lost, so the waiters are signalled once the listener is back, to check the queue again. The
+ * listener stops when the session factory of the queue is closed.
+ */
+class QueueNotificationListener {
+
+    static final String CHANNEL = "job_queue_batch";
+
+    private static final Logger logger = LoggerFactory.getLogger(QueueNotificationListener.class);
+    // How long to wait for notifications before checking the connection is still alive
+    private static final int NOTIFICATION_TIMEOUT_MILLIS = 10000;
+    private static final int VALID_TIMEOUT_SECONDS = 5;
+    private static final long RECONNECT_DELAY_SECONDS = 5;
+
+    private final SessionFactory factory;
+    private final WorkSignal workSignal;
+    private Thread thread;
+
+    QueueNotificationListener(SessionFactory factory, WorkSignal workSignal) {
+        this.factory = factory;
+        this.workSignal = workSignal;
+    }
+
+    /**
+     * Start listening, unless already started
+     */
+    synchronized void start() {
+        if (thread != null) {
+            return;
+        }
+        thread = new Thread(this::listen, "queue-listener");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void listen() {
+        final ConnectionProvider connectionProvider = factory.unwrap(SessionFactoryImplementor.class)
+                .getServiceRegistry()
+                .getService(ConnectionProvider.class);
+
+        // Stop for good once the queue has shut down
+        while (!Thread.currentThread().isInterrupted() && !factory.isClosed()) {
+            try {
+                final Connection connection = connectionProvider.getConnection();
+                try {
+                    listen(connection);
+                } finally {
+                    connectionProvider.closeConnection(connection);
+                }
+            } catch (UnsupportedOperationException e) {
+                logger.warn("The queue database does not support notifications, polling for batches instead", e);
+                return;
+            } catch (SQLException | RuntimeException e) {
+                logger.warn("Lost the connection listening for queue notifications, polling for batches until it is back", e);
+            }
+
+            try {
+                TimeUnit.SECONDS.sleep(RECONNECT_DELAY_SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private void listen(Connection connection) throws SQLException {
+        final PGConnection pgConnection;
+        try {
+            pgConnection = connection.unwrap(PGConnection.class);
+        } catch (SQLException e) {
+            throw new UnsupportedOperationException("Not a Postgres connection", e);
+        }
+
+        // Notifications are only delivered outside of a transaction
+        final boolean autoCommit = connection.getAutoCommit();
+        connection.setAutoCommit(true);
+        try {
+            try (Statement statement = connection.createStatement()) {
+                statement.execute(String.format("LISTEN %s", CHANNEL));
+            }
+            logger.info("Listening for queue notifications");
+            // Batches may have been submitted while not listening
+            workSignal.signal();
+
+            while (!Thread.currentThread().isInterrupted() && !factory.isClosed()) {
+                final PGNotification[] notifications = pgConnection.getNotifications(NOTIFICATION_TIMEOUT_MILLIS);
+                if (notifications != null && notifications.length > 0) {
+                    logger.trace("Received {} queue notifications", notifications.length);
+                    workSignal.signal();
+                } else if (!connection.isValid(VALID_TIMEOUT_SECONDS)) {
+                    throw new SQLException("The connection listening for queue notifications is no longer valid");
+                }
+            }
+        } finally {
+            if (!connection.isClosed()) {
+                try (Statement statement = connection.createStatement()) {
+                    statement.execute("UNLISTEN *");
+                }
+                connection.setAutoCommit(autoCommit);
+            }
+        }
+    }
+}
@@ -0,0 +1,51 @@
+package gov.cms.dpc.queue;
+
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Wakes the aggregators waiting on an empty queue as soon as batches may be ready to claim, so they do not have to poll
+ * for them.
+ * <p>
+ * A waiter takes the current count of signals before it looks at the queue, and then waits for the count to move on,
+ * so a signal sent while it was looking is never missed.
+ */
+public class WorkSignal {
+
+    private long signals;
+
+    /**
+     * @return the count of signals so far, to wait on after looking at the queue
+     */
+    public synchronized long current() {
+        return signals;
+    }
+
+    /**
+     * Let every waiter know that batches may be ready to claim
+     */
+    public synchronized void signal() {
+        signals++;
+        notifyAll();
+    }
+
+    /**
+     * Wait for a signal
+     *
+     * @param seen    - the count of signals taken before looking at the queue
+     * @param timeout - how long to wait at most
+     * @return true if signalled since the count was taken, false if the timeout passed without a signal
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public synchronized boolean await(long seen, Duration timeout) throws InterruptedException {
+        final long deadline = System.nanoTime() + timeout.toNanos();
+        while (signals == seen) {
+            final long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                return false;
+            }
+            TimeUnit.NANOSECONDS.timedWait(this, remaining);
+        }
+        return true;
+    }
+}
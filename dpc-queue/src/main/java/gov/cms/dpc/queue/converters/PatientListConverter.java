@@ -0,0 +1,26 @@
+package gov.cms.dpc.queue.converters;
+
+import gov.cms.dpc.queue.models.PatientList;
+
+import javax.persistence.AttributeConverter;
+import java.util.List;
+
+/**
+ * {@link AttributeConverter} which stores a {@link List} of patient IDs as a single binary column in the database,
+ * in the compact encoding of {@link PatientList}.
+ */
+public class PatientListConverter implements AttributeConverter<List<String>, byte[]> {
+
+    @Override
+    public byte[] convertToDatabaseColumn(List<String> attribute) {
+        if (attribute == null) {
+            return PatientList.of(List.of()).toBytes();
+        }
+        return PatientList.of(attribute).toBytes();
+    }
+
+    @Override
+    public List<String> convertToEntityAttribute(byte[] dbData) {
+        return PatientList.fromBytes(dbData);
+    }
+}
@@ -0,0 +1,56 @@
+package gov.cms.dpc.queue.models;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Optional;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * The compression of an export file, as stored on disk.
+ * <p>
+ * The ordinal is persisted with each {@link JobQueueBatchFile}, so new values must only be added to the end.
+ */
+public enum ExportCompression {
+    NONE("ndjson", null),
+    GZIP("ndjson.gz", "gzip");
+
+    private final String fileExtension;
+    private final String contentEncoding;
+
+    ExportCompression(String fileExtension, String contentEncoding) {
+        this.fileExtension = fileExtension;
+        this.contentEncoding = contentEncoding;
+    }
+
+    /**
+     * @return the extension of the files stored with this compression
+     */
+    public String getFileExtension() {
+        return fileExtension;
+    }
+
+    /**
+     * @return the HTTP Content-Encoding matching this compression, empty if the files are not compressed
+     */
+    public Optional<String> getContentEncoding() {
+        return Optional.ofNullable(contentEncoding);
+    }
+
+    /**
+     * Wrap a stream of the stored file, so that it returns the uncompressed NDJSON
+     *
+     * @param stored - the stream of the stored file
+     * @return a stream of the uncompressed content
+     * @throws IOException if the stream cannot be read
+     */
+    public InputStream decompress(InputStream stored) throws IOException {
+        switch (this) {
+            case GZIP:
+                // Handles files made up of multiple gzip members
+                return new GZIPInputStream(stored);
+            case NONE:
+            default:
+                return stored;
+        }
+    }
+}
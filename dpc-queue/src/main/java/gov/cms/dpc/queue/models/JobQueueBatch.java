@@ -2,10 +2,12 @@ package gov.cms.dpc.queue.models;
 
 import gov.cms.dpc.common.converters.hibernate.StringListConverter;
 import gov.cms.dpc.queue.JobStatus;
+import gov.cms.dpc.queue.converters.PatientListConverter;
 import gov.cms.dpc.queue.converters.ResourceTypeListConverter;
 import gov.cms.dpc.queue.exceptions.JobQueueFailure;
 import org.apache.commons.lang3.builder.EqualsBuilder;
 import org.apache.commons.lang3.builder.HashCodeBuilder;
+import org.hibernate.annotations.ColumnTransformer;
 import org.hl7.fhir.dstu3.model.ResourceType;
 
 import javax.persistence.*;
@@ -80,12 +82,22 @@ public class JobQueueBatch implements Serializable {
     private Integer priority;
 
     /**
-     * The list of patient-ids for the specified provider from the attribution server
+     * The list of patient-ids for the specified provider from the attribution server, as a {@link PatientList}
      */
-    @Convert(converter = StringListConverter.class)
-    @Column(name = "patients", columnDefinition = "text")
+    @Convert(converter = PatientListConverter.class)
+    @Column(name = "patient_list")
     List<String> patients;
 
+    /**
+     * The patients in the comma-joined column used before patient_list. Still written with new batches, so an API or
+     * aggregator from before patient_list can work them, and only read back for batches written by one.
+     * To be removed along with the column once every API and aggregator reads patient_list.
+     */
+    @Convert(converter = StringListConverter.class)
+    @Column(name = "patients", columnDefinition = "text", updatable = false)
+    @ColumnTransformer(read = "CASE WHEN patient_list IS NULL THEN patients END")
+    private List<String> legacyPatients;
+
     /**
      * The last processed patient index. Null indicates no patients have been processed yet.
      */
@@ -129,6 +141,19 @@ public class JobQueueBatch implements Serializable {
     @Column(name = "complete_time", nullable = true)
     protected OffsetDateTime completeTime;
 
+    /**
+     * The time the lease of the current aggregator on the batch runs out, unless it is renewed. Null when not running.
+     */
+    @Column(name = "lease_expiry", nullable = true)
+    protected OffsetDateTime leaseExpiry;
+
+    /**
+     * The number of times the batch has been claimed. Each claim fences off the saves and lease renewals of the claims
+     * before it, even those by the same aggregator.
+     */
+    @Column(name = "claim_token", nullable = false)
+    protected int claimToken;
+
     /**
      * The list of job results
      * <p>
@@ -150,13 +175,24 @@ public class JobQueueBatch implements Serializable {
         this.jobID = jobID;
         this.orgID = orgID;
         this.providerID = providerID;
-        this.patients = patients;
+        this.patients = patients == null ? null : PatientList.of(patients);
+        this.legacyPatients = this.patients;
         this.resourceTypes = resourceTypes;
         this.status = JobStatus.QUEUED;
         this.submitTime = OffsetDateTime.now(ZoneOffset.UTC);
         this.jobQueueBatchFiles = new ArrayList<>();
     }
 
+    /**
+     * Take the patients of a batch written by an API from before patient_list from the old column
+     */
+    @PostLoad
+    void loadLegacyPatients() {
+        if (legacyPatients != null && !legacyPatients.isEmpty()) {
+            this.patients = PatientList.of(legacyPatients);
+        }
+    }
+
     /**
      * Is the job model fields consistent. Useful before and after serialization.
      *
@@ -236,6 +272,14 @@ public class JobQueueBatch implements Serializable {
         return Optional.ofNullable(completeTime);
     }
 
+    public Optional<OffsetDateTime> getLeaseExpiry() {
+        return Optional.ofNullable(leaseExpiry);
+    }
+
+    public int getClaimToken() {
+        return claimToken;
+    }
+
     public List<JobQueueBatchFile> getJobQueueBatchFiles() {
         return jobQueueBatchFiles;
     }
@@ -279,10 +323,35 @@ public class JobQueueBatch implements Serializable {
         this.verifyAggregatorID(aggregatorID);
         status = JobStatus.RUNNING;
         this.aggregatorID = aggregatorID;
+        this.claimToken++;
         startTime = OffsetDateTime.now(ZoneOffset.UTC);
         this.setUpdateTime();
     }
 
+    /**
+     * Extend the lease of the current aggregator on this running job.
+     *
+     * @param aggregatorID - the current aggregator working the job
+     * @param leaseExpiry  - the new end of the lease
+     */
+    public void renewLease(UUID aggregatorID, OffsetDateTime leaseExpiry) {
+        if (this.status != JobStatus.RUNNING) {
+            throw new JobQueueFailure(jobID, batchID, String.format("Cannot renew lease. JobStatus: %s", this.status));
+        }
+        this.verifyAggregatorID(aggregatorID);
+        this.leaseExpiry = leaseExpiry;
+    }
+
+    /**
+     * Has the lease on this running job run out, so another aggregator may reclaim it
+     *
+     * @param now - the current time
+     * @return true if the job is running without a lease that lasts past now
+     */
+    public boolean isLeaseExpired(OffsetDateTime now) {
+        return this.status == JobStatus.RUNNING && (leaseExpiry == null || !leaseExpiry.isAfter(now));
+    }
+
     /**
      * Fetch the next patient in the batch and increment the patient index.
      * Returns null if at the end of the list.
@@ -305,6 +374,60 @@ public class JobQueueBatch implements Serializable {
         return Optional.empty();
     }
 
+    /**
+     * The patient index and files of a running batch as of a checkpoint, to go back to if the patients after it can't be finished
+     */
+    public static class Progress {
+        private final Integer patientIndex;
+        private final List<JobQueueBatchFile> files;
+
+        Progress(Integer patientIndex, List<JobQueueBatchFile> files) {
+            this.patientIndex = patientIndex;
+            this.files = files;
+        }
+
+        public Optional<Integer> getPatientIndex() {
+            return Optional.ofNullable(patientIndex);
+        }
+    }
+
+    /**
+     * Take a copy of the patient index and files of the batch, to restore with {@link #restoreProgress(UUID, Progress)}
+     *
+     * @return the progress of the batch
+     */
+    public synchronized Progress getProgress() {
+        final List<JobQueueBatchFile> files = new ArrayList<>();
+        for (JobQueueBatchFile file : jobQueueBatchFiles) {
+            files.add(file.copy());
+        }
+        return new Progress(patientIndex, files);
+    }
+
+    /**
+     * Go back to the progress of a checkpoint, dropping the patients and file contents written since. The patients after
+     * the checkpoint are fetched again by the aggregator that continues the batch.
+     *
+     * @param aggregatorID - the current aggregator working the job
+     * @param progress     - the progress of the batch, from {@link #getProgress()}
+     */
+    public synchronized void restoreProgress(UUID aggregatorID, Progress progress) {
+        if (this.status != JobStatus.RUNNING) {
+            throw new JobQueueFailure(jobID, batchID, String.format("Cannot restore progress. JobStatus: %s", this.status));
+        }
+        this.verifyAggregatorID(aggregatorID);
+        this.patientIndex = progress.patientIndex;
+        this.jobQueueBatchFiles.removeIf(file -> progress.files.stream().noneMatch(checkpoint -> checkpoint.equals(file)));
+        for (JobQueueBatchFile checkpoint : progress.files) {
+            this.jobQueueBatchFiles.stream()
+                    .filter(checkpoint::equals)
+                    .findFirst()
+                    .ifPresent(file -> file.restore(checkpoint));
+        }
+
+        this.setUpdateTime();
+    }
+
     /**
      * Pauses the current batch and allows another aggregator to pickup where left off
      *
@@ -317,6 +440,7 @@ public class JobQueueBatch implements Serializable {
         this.verifyAggregatorID(aggregatorID);
         this.status = JobStatus.QUEUED;
         this.aggregatorID = null;
+        this.leaseExpiry = null;
 
         this.setUpdateTime();
     }
@@ -336,6 +460,7 @@ public class JobQueueBatch implements Serializable {
         this.verifyAggregatorID(aggregatorID);
         this.status = JobStatus.COMPLETED;
         this.aggregatorID = null;
+        this.leaseExpiry = null;
         this.patientIndex = null;
         completeTime = OffsetDateTime.now(ZoneOffset.UTC);
 
@@ -350,12 +475,28 @@ public class JobQueueBatch implements Serializable {
     public void setFailedStatus(UUID aggregatorID) {
         this.status = JobStatus.FAILED;
         this.aggregatorID = null;
+        this.leaseExpiry = null;
         completeTime = OffsetDateTime.now(ZoneOffset.UTC);
         this.getJobQueueBatchFiles().clear();
 
         this.setUpdateTime();
     }
 
+    /**
+     * Returns a running batch whose aggregator has lost its lease to the queue. Like a paused batch, it keeps its patient
+     * index and files as of its last checkpoint, so the aggregator that picks it up continues from there.
+     */
+    public void reclaimBatch() {
+        if (this.status != JobStatus.RUNNING) {
+            throw new JobQueueFailure(jobID, batchID, String.format("Cannot reclaim batch. JobStatus: %s", this.status));
+        }
+        this.status = JobStatus.QUEUED;
+        this.aggregatorID = null;
+        this.leaseExpiry = null;
+
+        this.setUpdateTime();
+    }
+
     /**
      * Restarts the batch so it can be freshly picked up by a new aggregator.
      */
@@ -365,6 +506,7 @@ public class JobQueueBatch implements Serializable {
         this.startTime = null;
         this.completeTime = null;
         this.aggregatorID = null;
+        this.leaseExpiry = null;
         this.getJobQueueBatchFiles().clear();
 
         this.setUpdateTime();
@@ -422,6 +564,8 @@ public class JobQueueBatch implements Serializable {
                 .append(submitTime, that.submitTime)
                 .append(startTime, that.startTime)
                 .append(completeTime, that.completeTime)
+                .append(leaseExpiry, that.leaseExpiry)
+                .append(claimToken, that.claimToken)
                 .append(jobQueueBatchFiles, that.jobQueueBatchFiles)
                 .isEquals();
     }
@@ -443,6 +587,8 @@ public class JobQueueBatch implements Serializable {
                 .append(submitTime)
                 .append(startTime)
                 .append(completeTime)
+                .append(leaseExpiry)
+                .append(claimToken)
                 .toHashCode();
     }
 
@@ -463,6 +609,8 @@ public class JobQueueBatch implements Serializable {
                 ", submitTime=" + submitTime +
                 ", startTime=" + startTime +
                 ", completeTime=" + completeTime +
+                ", leaseExpiry=" + leaseExpiry +
+                ", claimToken=" + claimToken +
                 '}';
     }
 }
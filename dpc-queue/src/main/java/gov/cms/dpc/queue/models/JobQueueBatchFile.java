@@ -6,6 +6,7 @@ import javax.persistence.Column;
 import javax.persistence.Embeddable;
 import javax.persistence.EmbeddedId;
 import javax.persistence.Entity;
+import javax.persistence.Transient;
 import java.io.Serializable;
 import java.util.Objects;
 import java.util.UUID;
@@ -107,6 +108,27 @@ public class JobQueueBatchFile implements Serializable {
     @Column(name = "file_length")
     private long fileLength;
 
+    // The intermediate SHA-256 state of the file, as of fileLength bytes. Used to continue the checksum when a batch is resumed.
+    @Column(name = "digest_state")
+    private byte[] digestState;
+
+    // The checksum, length and digest state above are of the file as stored. These are of the uncompressed NDJSON.
+    @Column(name = "compression")
+    private ExportCompression compression = ExportCompression.NONE;
+
+    @Column(name = "uncompressed_checksum")
+    private byte[] uncompressedChecksum;
+
+    @Column(name = "uncompressed_length")
+    private long uncompressedLength;
+
+    @Column(name = "uncompressed_digest_state")
+    private byte[] uncompressedDigestState;
+
+    // Whether the file changed since it was loaded or last saved, so saving the progress of a batch only writes the files it touched
+    @Transient
+    private boolean modified;
+
     public JobQueueBatchFile() {
         // for hibernate
     }
@@ -116,12 +138,23 @@ public class JobQueueBatchFile implements Serializable {
         this.jobID = jobID;
         this.fileName = formOutputFileName(batchID, resourceType, sequence);
         this.count = count;
+        this.modified = true;
     }
 
     public JobQueueBatchFileID getJobQueueBatchFileID() {
         return jobQueueBatchFileID;
     }
 
+    /**
+     * Form the full path of the stored file
+     *
+     * @param exportPath - the directory of the export files
+     * @return the path of the file, with the extension of its compression
+     */
+    public String formOutputFilePath(String exportPath) {
+        return String.format("%s/%s.%s", exportPath, fileName, getCompression().getFileExtension());
+    }
+
     public UUID getBatchID() {
         return jobQueueBatchFileID.getBatchID();
     }
@@ -148,6 +181,7 @@ public class JobQueueBatchFile implements Serializable {
 
     public void appendCount(int count) {
         this.count += count;
+        this.modified = true;
     }
 
     public byte[] getChecksum() {
@@ -156,6 +190,7 @@ public class JobQueueBatchFile implements Serializable {
 
     public void setChecksum(byte[] checksum) {
         this.checksum = checksum;
+        this.modified = true;
     }
 
     public long getFileLength() {
@@ -164,6 +199,98 @@ public class JobQueueBatchFile implements Serializable {
 
     public void setFileLength(long fileLength) {
         this.fileLength = fileLength;
+        this.modified = true;
+    }
+
+    public byte[] getDigestState() {
+        return digestState;
+    }
+
+    public void setDigestState(byte[] digestState) {
+        this.digestState = digestState;
+        this.modified = true;
+    }
+
+    public ExportCompression getCompression() {
+        // Files written before compression was supported have no value
+        return compression == null ? ExportCompression.NONE : compression;
+    }
+
+    public void setCompression(ExportCompression compression) {
+        this.compression = compression;
+        this.modified = true;
+    }
+
+    public byte[] getUncompressedChecksum() {
+        return uncompressedChecksum;
+    }
+
+    public void setUncompressedChecksum(byte[] uncompressedChecksum) {
+        this.uncompressedChecksum = uncompressedChecksum;
+        this.modified = true;
+    }
+
+    public long getUncompressedLength() {
+        return uncompressedLength;
+    }
+
+    public void setUncompressedLength(long uncompressedLength) {
+        this.uncompressedLength = uncompressedLength;
+        this.modified = true;
+    }
+
+    public byte[] getUncompressedDigestState() {
+        return uncompressedDigestState;
+    }
+
+    public void setUncompressedDigestState(byte[] uncompressedDigestState) {
+        this.uncompressedDigestState = uncompressedDigestState;
+        this.modified = true;
+    }
+
+    /**
+     * @return true if the file changed since it was loaded or last saved
+     */
+    public boolean isModified() {
+        return modified;
+    }
+
+    /**
+     * Mark the file as saved, once its changes are committed to the queue
+     */
+    public void markSaved() {
+        this.modified = false;
+    }
+
+    /**
+     * Copy the file, to hold its state as of a checkpoint
+     *
+     * @return a copy of the file
+     */
+    public JobQueueBatchFile copy() {
+        final var copy = new JobQueueBatchFile();
+        copy.jobQueueBatchFileID = this.jobQueueBatchFileID;
+        copy.jobID = this.jobID;
+        copy.fileName = this.fileName;
+        copy.restore(this);
+        return copy;
+    }
+
+    /**
+     * Put the file back to the state of a copy taken at a checkpoint
+     *
+     * @param checkpoint - the copy of the file, from {@link #copy()}
+     */
+    public void restore(JobQueueBatchFile checkpoint) {
+        this.count = checkpoint.count;
+        this.checksum = checkpoint.checksum;
+        this.fileLength = checkpoint.fileLength;
+        this.digestState = checkpoint.digestState;
+        this.compression = checkpoint.compression;
+        this.uncompressedChecksum = checkpoint.uncompressedChecksum;
+        this.uncompressedLength = checkpoint.uncompressedLength;
+        this.uncompressedDigestState = checkpoint.uncompressedDigestState;
+        this.modified = checkpoint.modified;
     }
 
     @Override
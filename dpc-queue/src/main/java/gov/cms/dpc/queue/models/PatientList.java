@@ -0,0 +1,188 @@
+package gov.cms.dpc.queue.models;
+
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+import java.util.RandomAccess;
+
+/**
+ * A read-only list of the patient IDs of a batch, kept in the compact encoding it is stored with in the queue.
+ * <p>
+ * When every ID is an MBI, each one is packed into 6 bytes. The characters allowed at each of the 11 positions of an MBI
+ * are fixed, so an MBI can be read as a mixed-radix number, which fits in 48 bits. Any other IDs, and the batches that
+ * were queued before the packed encoding, are kept as comma-joined UTF-8, indexed by their offsets on first access.
+ * <p>
+ * IDs are only decoded as they are read, so walking through a batch or counting its patients never holds thousands of
+ * Strings.
+ */
+public final class PatientList extends AbstractList<String> implements RandomAccess, Serializable {
+    private static final long serialVersionUID = 1L;
+
+    // The first byte of the encoding is its format
+    static final byte PACKED_MBI = 1;
+    static final byte DELIMITED = 2;
+
+    private static final byte DELIMITER = ',';
+    private static final int PACKED_MBI_BYTES = 6;
+    private static final String NUMERIC = "0123456789";
+    // MBIs never use the letters S, L, O, I, B and Z
+    private static final String ALPHABETIC = "ACDEFGHJKMNPQRTUVWXY";
+    private static final String[] MBI_POSITIONS = {
+            "123456789", ALPHABETIC, NUMERIC + ALPHABETIC, NUMERIC, ALPHABETIC, NUMERIC + ALPHABETIC,
+            NUMERIC, ALPHABETIC, ALPHABETIC, NUMERIC, NUMERIC
+    };
+
+    private final byte[] data;
+    // The start of each DELIMITED entry, plus one past the end of the last entry
+    private transient int[] offsets;
+
+    private PatientList(byte[] data) {
+        this.data = data;
+    }
+
+    /**
+     * Encode a list of patient IDs
+     *
+     * @param patients - the patient IDs, in batch order
+     * @return the encoded list, packed when every ID is an MBI
+     */
+    public static PatientList of(List<String> patients) {
+        if (patients instanceof PatientList) {
+            return (PatientList) patients;
+        }
+        if (patients.stream().allMatch(PatientList::isMBI)) {
+            final byte[] data = new byte[1 + patients.size() * PACKED_MBI_BYTES];
+            data[0] = PACKED_MBI;
+            for (int i = 0; i < patients.size(); i++) {
+                packMBI(patients.get(i), data, 1 + i * PACKED_MBI_BYTES);
+            }
+            return new PatientList(data);
+        }
+
+        final byte[] joined = String.join(",", patients).getBytes(StandardCharsets.UTF_8);
+        final byte[] data = new byte[1 + joined.length];
+        data[0] = DELIMITED;
+        System.arraycopy(joined, 0, data, 1, joined.length);
+        return new PatientList(data);
+    }
+
+    /**
+     * Read a list of patient IDs from its stored encoding
+     *
+     * @param data - the encoded list
+     * @return the list, decoded lazily
+     * @throws IllegalArgumentException if the encoding is not valid
+     */
+    public static PatientList fromBytes(byte[] data) {
+        if (data == null || data.length == 0) {
+            return of(List.of());
+        }
+        if (data[0] == PACKED_MBI && (data.length - 1) % PACKED_MBI_BYTES == 0 || data[0] == DELIMITED) {
+            return new PatientList(data.clone());
+        }
+        throw new IllegalArgumentException(String.format("Unknown patient list encoding: %d", data[0]));
+    }
+
+    /**
+     * @return the encoded list, as stored in the queue
+     */
+    public byte[] toBytes() {
+        return data.clone();
+    }
+
+    @Override
+    public String get(int index) {
+        Objects.checkIndex(index, size());
+        if (data[0] == PACKED_MBI) {
+            return unpackMBI(data, 1 + index * PACKED_MBI_BYTES);
+        }
+        final int[] entryOffsets = getOffsets();
+        return new String(data, entryOffsets[index], entryOffsets[index + 1] - 1 - entryOffsets[index], StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public int size() {
+        if (data[0] == PACKED_MBI) {
+            return (data.length - 1) / PACKED_MBI_BYTES;
+        }
+        return getOffsets().length - 1;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        // Encodings are deterministic, so lists of the same format can be compared without decoding them
+        if (o instanceof PatientList && ((PatientList) o).data[0] == data[0]) {
+            return Arrays.equals(data, ((PatientList) o).data);
+        }
+        return super.equals(o);
+    }
+
+    @Override
+    public int hashCode() {
+        return super.hashCode();
+    }
+
+    private int[] getOffsets() {
+        if (offsets == null) {
+            int count = data.length > 1 ? 1 : 0;
+            for (int i = 1; i < data.length; i++) {
+                if (data[i] == DELIMITER) {
+                    count++;
+                }
+            }
+            final int[] found = new int[count + 1];
+            found[0] = 1;
+            int entry = 1;
+            for (int i = 1; i < data.length; i++) {
+                if (data[i] == DELIMITER) {
+                    found[entry++] = i + 1;
+                }
+            }
+            if (count > 0) {
+                found[count] = data.length + 1;
+            }
+            offsets = found;
+        }
+        return offsets;
+    }
+
+    static boolean isMBI(String patientID) {
+        if (patientID == null || patientID.length() != MBI_POSITIONS.length) {
+            return false;
+        }
+        for (int i = 0; i < MBI_POSITIONS.length; i++) {
+            if (MBI_POSITIONS[i].indexOf(patientID.charAt(i)) < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void packMBI(String mbi, byte[] data, int offset) {
+        long value = 0;
+        for (int i = 0; i < MBI_POSITIONS.length; i++) {
+            value = value * MBI_POSITIONS[i].length() + MBI_POSITIONS[i].indexOf(mbi.charAt(i));
+        }
+        for (int i = PACKED_MBI_BYTES - 1; i >= 0; i--) {
+            data[offset + i] = (byte) value;
+            value >>>= 8;
+        }
+    }
+
+    private static String unpackMBI(byte[] data, int offset) {
+        long value = 0;
+        for (int i = 0; i < PACKED_MBI_BYTES; i++) {
+            value = (value << 8) | (data[offset + i] & 0xFF);
+        }
+        final char[] mbi = new char[MBI_POSITIONS.length];
+        for (int i = MBI_POSITIONS.length - 1; i >= 0; i--) {
+            final int radix = MBI_POSITIONS[i].length();
+            mbi[i] = MBI_POSITIONS[i].charAt((int) (value % radix));
+            value /= radix;
+        }
+        return new String(mbi);
+    }
+}
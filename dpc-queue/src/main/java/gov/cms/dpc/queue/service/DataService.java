@@ -19,6 +19,8 @@ import org.slf4j.LoggerFactory;
 import javax.inject.Inject;
 import java.io.BufferedReader;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
@@ -133,10 +135,7 @@ public class DataService {
                 .map(JobQueueBatch::getJobQueueBatchFiles)
                 .flatMap(List::stream)
                 .filter(bf -> resourceTypes.contains(bf.getResourceType()))
-                .forEach(batchFile -> {
-                    Path path = Paths.get(String.format("%s/%s.ndjson", exportPath, batchFile.getFileName()));
-                    addResourceEntries(Resource.class, path, bundle);
-                });
+                .forEach(batchFile -> addResourceEntries(Resource.class, batchFile, bundle));
 
 
         // set a bundle id here? anything else?
@@ -144,8 +143,8 @@ public class DataService {
         return bundle.setTotal(bundle.getEntry().size());
     }
 
-    private void addResourceEntries(Class<? extends Resource> clazz, Path path, Bundle bundle) {
-        try (BufferedReader br = Files.newBufferedReader(path)) {
+    private void addResourceEntries(Class<? extends Resource> clazz, JobQueueBatchFile batchFile, Bundle bundle) {
+        try (BufferedReader br = openFile(batchFile)) {
             br.lines().forEach(line -> {
                 Resource r = fhirContext.newJsonParser().parseResource(clazz, line);
                 bundle.addEntry().setResource(r);
@@ -166,8 +165,7 @@ public class DataService {
 
         if (batchFile.isPresent()) {
             OperationOutcome outcome = new OperationOutcome();
-            Path path = Paths.get(String.format("%s/%s.ndjson", exportPath, batchFile.get().getFileName()));
-            try (BufferedReader br = Files.newBufferedReader(path)) {
+            try (BufferedReader br = openFile(batchFile.get())) {
                 br.lines()
                         .map(line -> fhirContext.newJsonParser().parseResource(OperationOutcome.class, line))
                         .map(OperationOutcome::getIssue)
@@ -184,4 +182,9 @@ public class DataService {
         LOGGER.error("No batch files found");
         throw new DataRetrievalException("Failed to retrieve operationOutcome");
     }
+
+    private BufferedReader openFile(JobQueueBatchFile batchFile) throws IOException {
+        final Path path = Paths.get(batchFile.formOutputFilePath(exportPath));
+        return new BufferedReader(new InputStreamReader(batchFile.getCompression().decompress(Files.newInputStream(path)), StandardCharsets.UTF_8));
+    }
 }
\ No newline at end of file
@@ -2,6 +2,7 @@ package gov.cms.dpc.queue;
 
 import com.codahale.metrics.MetricRegistry;
 import gov.cms.dpc.common.hibernate.queue.DPCQueueManagedSessionFactory;
+import gov.cms.dpc.queue.exceptions.JobQueueFailure;
 import gov.cms.dpc.queue.exceptions.JobQueueUnhealthy;
 import gov.cms.dpc.queue.models.JobQueueBatch;
 import gov.cms.dpc.testing.BufferedLoggerHandler;
@@ -16,6 +17,7 @@ import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
 
+import java.time.Duration;
 import java.time.OffsetDateTime;
 import java.util.Collections;
 import java.util.List;
@@ -53,15 +55,18 @@ public class DistributedBatchQueueTest {
     }
 
     @Test
-    void handleStuckBatchWithClaim() {
+    void handleStuckBatchWithReclaim() {
         // One organization id for both jobs
         final UUID orgID = UUID.randomUUID();
 
         final UUID firstBatchID = this.buildStuckBatchScenario(orgID);
 
-        // Fix the stuck job during the claim process
+        // Claiming no longer looks for stuck batches
         Optional<JobQueueBatch> stuckBatch = queue.claimBatch(aggregatorID);
-        assertFalse(stuckBatch.isPresent(), "Should have no job, but the stuck batch was released and is ready to be re-claimed");
+        assertFalse(stuckBatch.isPresent(), "Should have no job, the stuck batch is still running");
+
+        // Fix the stuck job, since its lease has run out
+        assertEquals(1, queue.reclaimExpiredBatches(), "Should reclaim the stuck batch");
 
         // Re-claim the batch that was in a stuck state
         stuckBatch = queue.claimBatch(aggregatorID);
@@ -69,15 +74,109 @@ public class DistributedBatchQueueTest {
         final UUID stuckBatchID = stuckBatch.orElseThrow().getBatchID();
         assertEquals(stuckBatchID, firstBatchID, "Stuck batch should be the same as the initial batch");
 
-        // Check that the stuck job is RUNNING with previous files cleared
+        // Check that the stuck job is RUNNING and resumes from its last checkpoint
         final Optional<JobQueueBatch> stuckJobOptional = queue.getBatch(stuckBatchID);
         assertTrue(stuckJobOptional.isPresent(), "Should have a job");
         stuckJobOptional.ifPresent(stuckJob -> {
             assertEquals(JobStatus.RUNNING, stuckJob.getStatus(), "Should be in the RUNNING state");
-            assertEquals(0, stuckJob.getJobQueueBatchFiles().size(), "Should have no files on the stuck job (they should be cleared)");
+            assertEquals(1, stuckJob.getJobQueueBatchFiles().size(), "Should keep the checkpointed files of the stuck job");
         });
     }
 
+    @Test
+    void handleUnleasedStuckBatch() {
+        final UUID orgID = UUID.randomUUID();
+
+        final UUID firstBatchID = this.buildStuckBatchScenario(orgID);
+
+        // Simulate a batch claimed by an aggregator from before leases
+        try (final Session session = sessionFactory.openSession()) {
+            final Transaction tx = session.beginTransaction();
+            try {
+                session.createQuery("update job_queue_batch set leaseExpiry = null where batchID = :batchID")
+                        .setParameter("batchID", firstBatchID)
+                        .executeUpdate();
+            } finally {
+                tx.commit();
+            }
+        }
+
+        assertEquals(1, queue.reclaimExpiredBatches(), "Should reclaim a stuck batch without a lease by its update time");
+        assertEquals(JobStatus.QUEUED, queue.getBatch(firstBatchID).orElseThrow().getStatus());
+    }
+
+    @Test
+    void saveProgressOnlyByOwner() {
+        final UUID firstBatchID = this.buildStuckBatchScenario(UUID.randomUUID());
+        final JobQueueBatch staleBatch = queue.getBatch(firstBatchID).orElseThrow();
+
+        // Another aggregator picks up the batch once its lease has run out
+        assertEquals(1, queue.reclaimExpiredBatches(), "Should reclaim the stuck batch");
+        final UUID otherAggregatorID = UUID.randomUUID();
+        final JobQueueBatch claimedBatch = queue.claimBatch(otherAggregatorID).orElseThrow();
+        claimedBatch.fetchNextPatient(otherAggregatorID);
+        claimedBatch.addJobQueueFile(ResourceType.Patient, 0, 1);
+        queue.completePartialBatch(claimedBatch, otherAggregatorID);
+
+        // The first aggregator can no longer save over the new owner
+        staleBatch.addJobQueueFile(ResourceType.Patient, 0, 5);
+        assertThrows(JobQueueFailure.class, () -> queue.completePartialBatch(staleBatch, aggregatorID), "Should not save a batch owned by another aggregator");
+
+        final JobQueueBatch savedBatch = queue.getBatch(firstBatchID).orElseThrow();
+        assertAll(() -> assertEquals(otherAggregatorID, savedBatch.getAggregatorID().orElseThrow(), "Should still be owned by the new aggregator"),
+                () -> assertEquals(2, savedBatch.getJobQueueFile(ResourceType.Patient).orElseThrow().getCount(), "Should keep the file of the new owner"));
+    }
+
+    @Test
+    void saveProgressOnlyByCurrentClaim() {
+        final UUID firstBatchID = this.buildStuckBatchScenario(UUID.randomUUID());
+        final JobQueueBatch staleBatch = queue.getBatch(firstBatchID).orElseThrow();
+
+        // The same aggregator claims the batch again once its lease has run out
+        assertEquals(1, queue.reclaimExpiredBatches(), "Should reclaim the stuck batch");
+        final JobQueueBatch claimedBatch = queue.claimBatch(aggregatorID).orElseThrow();
+        assertEquals(staleBatch.getClaimToken() + 1, claimedBatch.getClaimToken(), "Should be a new claim of the batch");
+
+        // The earlier claim can neither renew its lease nor save over the new claim
+        assertFalse(queue.renewLease(staleBatch, aggregatorID), "Should not renew the lease of an earlier claim");
+        staleBatch.addJobQueueFile(ResourceType.Patient, 0, 5);
+        assertThrows(JobQueueFailure.class, () -> queue.completePartialBatch(staleBatch, aggregatorID), "Should not save an earlier claim");
+
+        assertTrue(queue.renewLease(claimedBatch, aggregatorID), "Should renew the lease of the current claim");
+        assertEquals(1, queue.getBatch(firstBatchID).orElseThrow().getJobQueueFile(ResourceType.Patient).orElseThrow().getCount(), "Should keep the file of the current claim");
+    }
+
+    @Test
+    void readPatientsWrittenBeforePatientList() {
+        final UUID jobID = queue.createJob(UUID.randomUUID(), "test-provider-1", List.of("test-patient-1", "test-patient-2"), Collections.singletonList(ResourceType.Patient));
+
+        // Simulate a batch submitted by an API from before patient_list
+        try (final Session session = sessionFactory.openSession()) {
+            final Transaction tx = session.beginTransaction();
+            try {
+                session.createNativeQuery("UPDATE job_queue_batch SET patient_list = NULL WHERE job_id = :jobID")
+                        .setParameter("jobID", jobID)
+                        .executeUpdate();
+            } finally {
+                tx.commit();
+            }
+        }
+
+        final JobQueueBatch batch = queue.claimBatch(aggregatorID).orElseThrow();
+        assertEquals(List.of("test-patient-1", "test-patient-2"), batch.getPatients(), "Should read the patients from the old column");
+    }
+
+    @Test
+    void signalSubmittedBatches() throws InterruptedException {
+        final WorkSignal workSignal = queue.getWorkSignal();
+        // The listener signals once it is connected
+        assertTrue(workSignal.await(0, Duration.ofSeconds(10)), "Should start listening for notifications");
+
+        final long seen = workSignal.current();
+        queue.createJob(UUID.randomUUID(), "test-provider-1", List.of("test-patient-1"), Collections.singletonList(ResourceType.Patient));
+        assertTrue(workSignal.await(seen, Duration.ofSeconds(10)), "Should be notified of the submitted batch");
+    }
+
     @Test
     void validateHealthyQueue() {
         // This test is kind of crappy, since there is nothing to assert
@@ -122,13 +221,14 @@ public class DistributedBatchQueueTest {
             assertTrue(runningJob.getJobQueueFile(ResourceType.Patient).isPresent(), "Should have a patient job file");
         });
 
-        // Simulate a stuck job by modifying the update_time
+        // Simulate a stuck job by modifying the update_time, and letting its lease run out
         try (final Session session = sessionFactory.openSession()) {
             final Transaction tx = session.beginTransaction();
             try {
-                session.createQuery("update job_queue_batch set updateTime = :updateTime where jobID = :jobID")
+                session.createQuery("update job_queue_batch set updateTime = :updateTime, leaseExpiry = :leaseExpiry where jobID = :jobID")
                         .setParameter("jobID", jobID)
                         .setParameter("updateTime", OffsetDateTime.now().minusMinutes(15))
+                        .setParameter("leaseExpiry", OffsetDateTime.now().minusMinutes(10))
                         .executeUpdate();
             } finally {
                 tx.commit();
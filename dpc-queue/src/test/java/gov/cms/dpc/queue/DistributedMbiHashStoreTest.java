@@ -0,0 +1,76 @@
+package gov.cms.dpc.queue;
+
+import gov.cms.dpc.common.hibernate.queue.DPCQueueManagedSessionFactory;
+import gov.cms.dpc.testing.BufferedLoggerHandler;
+import org.hibernate.Session;
+import org.hibernate.SessionFactory;
+import org.hibernate.Transaction;
+import org.hibernate.cfg.Configuration;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@ExtendWith(BufferedLoggerHandler.class)
+class DistributedMbiHashStoreTest {
+
+    private static final String VERSION = "test-pepper";
+
+    private SessionFactory sessionFactory;
+    private DistributedMbiHashStore store;
+
+    @BeforeEach
+    void setUp() {
+        final Configuration conf = new Configuration();
+        sessionFactory = conf.configure().buildSessionFactory();
+        store = new DistributedMbiHashStore(new DPCQueueManagedSessionFactory(sessionFactory), Duration.ofDays(1));
+    }
+
+    @AfterEach
+    void shutdown() {
+        executeUpdate("DELETE FROM mbi_hash");
+        sessionFactory.close();
+    }
+
+    @Test
+    void storeHashesByKey() {
+        store.putHashes(VERSION, Map.of("key-1", "hash-1", "key-2", "hash-2"));
+        store.putHashes(VERSION, Map.of("key-1", "other"));
+
+        assertAll(() -> assertEquals(Map.of("key-1", "hash-1", "key-2", "hash-2"), store.getHashes(VERSION, List.of("key-1", "key-2", "key-3")), "Should keep the first stored hashes"),
+                () -> assertTrue(store.getHashes("other-pepper", List.of("key-1")).isEmpty(), "Should not find hashes of another pepper"));
+    }
+
+    @Test
+    void expireHashesAfterRetention() {
+        store.putHashes(VERSION, Map.of("key-1", "hash-1", "key-2", "hash-2"));
+        executeUpdate("UPDATE mbi_hash SET created_at = clock_timestamp() - interval '2 days' WHERE mbi_key = 'key-1'");
+
+        assertEquals(Map.of("key-2", "hash-2"), store.getHashes(VERSION, List.of("key-1", "key-2")), "Should ignore the expired hash");
+
+        store.putHashes(VERSION, Map.of("key-1", "hash-3"));
+        assertEquals(Map.of("key-1", "hash-3"), store.getHashes(VERSION, List.of("key-1")), "Should replace the expired hash");
+
+        executeUpdate("UPDATE mbi_hash SET created_at = clock_timestamp() - interval '2 days' WHERE mbi_key = 'key-2'");
+        final var pruningStore = new DistributedMbiHashStore(new DPCQueueManagedSessionFactory(sessionFactory), Duration.ofDays(1));
+        assertEquals(1, pruningStore.pruneExpiredHashes(), "Should delete the expired hash");
+        assertEquals(0, pruningStore.pruneExpiredHashes(), "Should only prune once per interval");
+    }
+
+    private void executeUpdate(String sql) {
+        try (final Session session = sessionFactory.openSession()) {
+            final Transaction tx = session.beginTransaction();
+            try {
+                session.createNativeQuery(sql).executeUpdate();
+            } finally {
+                tx.commit();
+            }
+        }
+    }
+}
@@ -0,0 +1,44 @@
+package gov.cms.dpc.queue;
+
+import gov.cms.dpc.testing.BufferedLoggerHandler;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+@ExtendWith(BufferedLoggerHandler.class)
+class MemoryTokenBucketStoreTest {
+
+    @Test
+    void testBucketStartsFull() {
+        final var store = new MemoryTokenBucketStore(() -> 0L);
+
+        assertEquals(10, store.leaseTokens("test", 10, 15, 5), "Should grant the requested tokens");
+        assertEquals(5, store.leaseTokens("test", 10, 15, 5), "Should only grant the remaining tokens");
+        assertEquals(0, store.leaseTokens("test", 10, 15, 5), "Should grant nothing from an empty bucket");
+    }
+
+    @Test
+    void testBucketRefills() {
+        final var clock = new AtomicLong();
+        final var store = new MemoryTokenBucketStore(clock::get);
+        store.leaseTokens("test", 10, 10, 5);
+
+        clock.addAndGet(TimeUnit.SECONDS.toNanos(1));
+        assertEquals(5, store.leaseTokens("test", 10, 10, 5), "Should refill at the rate");
+
+        clock.addAndGet(TimeUnit.SECONDS.toNanos(60));
+        assertEquals(10, store.leaseTokens("test", 20, 10, 5), "Should not refill past the capacity");
+    }
+
+    @Test
+    void testBucketsAreSeparate() {
+        final var store = new MemoryTokenBucketStore(() -> 0L);
+        store.leaseTokens("first", 10, 10, 5);
+
+        assertEquals(10, store.leaseTokens("second", 10, 10, 5), "Should have its own tokens");
+    }
+}
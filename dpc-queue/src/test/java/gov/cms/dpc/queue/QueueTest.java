@@ -17,6 +17,8 @@ import org.junit.jupiter.api.DynamicTest;
 import org.junit.jupiter.api.TestFactory;
 import org.junit.jupiter.api.extension.ExtendWith;
 
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
 import java.util.*;
 import java.util.function.BiFunction;
 import java.util.stream.Stream;
@@ -56,7 +58,8 @@ class QueueTest {
                     final DynamicTest second = DynamicTest.dynamicTest(nameGenerator.apply(queue, "Missing Job"), () -> testMissingJob(queue));
                     final DynamicTest third = DynamicTest.dynamicTest(nameGenerator.apply(queue, "EOB Submission"), () -> testPatientAndEOBSubmission(queue));
                     final DynamicTest fourth = DynamicTest.dynamicTest(nameGenerator.apply(queue, "Invalid batch on queue"), () -> testInvalidJobBatch(queue));
-                    return List.of(first, second, third, fourth);
+                    final DynamicTest fifth = DynamicTest.dynamicTest(nameGenerator.apply(queue, "Expired lease"), () -> testExpiredLease(queue));
+                    return List.of(first, second, third, fourth, fifth);
                 })
                 .flatMap(Collection::stream);
     }
@@ -218,4 +221,50 @@ class QueueTest {
         final var failedBatch = queue.getBatch(jobBatch.getBatchID());
         assertEquals(JobStatus.FAILED, failedBatch.get().getStatus());
     }
+
+    void testExpiredLease(JobQueueCommon queue) {
+        final UUID orgID = UUID.randomUUID();
+        queue.createJob(orgID, "test-provider-1", List.of("test-patient-1", "test-patient-2"), Collections.singletonList(ResourceType.Patient));
+
+        // Claiming leases the batch to the aggregator
+        final JobQueueBatch workBatch = queue.claimBatch(aggregatorID).orElseThrow();
+        final OffsetDateTime claimedLease = workBatch.getLeaseExpiry().orElseThrow();
+        assertTrue(claimedLease.isAfter(OffsetDateTime.now(ZoneOffset.UTC)), "Should lease the claimed batch");
+        assertTrue(queue.renewLease(workBatch, aggregatorID), "Should renew the lease of the owner");
+        assertFalse(queue.renewLease(workBatch, UUID.randomUUID()), "Should not renew the lease of another aggregator");
+        assertEquals(0, queue.reclaimExpiredBatches(), "Should not reclaim a leased batch");
+
+        // Let the lease run out
+        workBatch.fetchNextPatient(aggregatorID);
+        queue.completePartialBatch(workBatch, aggregatorID);
+        expireLease(queue, workBatch);
+        assertEquals(1, queue.reclaimExpiredBatches(), "Should reclaim the expired batch");
+        assertFalse(queue.renewLease(workBatch, aggregatorID), "Should not renew the lease of a reclaimed batch");
+
+        final var reclaimed = queue.getBatch(workBatch.getBatchID()).orElseThrow();
+        assertAll(() -> assertEquals(JobStatus.QUEUED, reclaimed.getStatus()),
+                () -> assertTrue(reclaimed.getAggregatorID().isEmpty(), "Should release the batch from the aggregator"),
+                () -> assertTrue(reclaimed.getLeaseExpiry().isEmpty(), "Should clear the lease"),
+                () -> assertEquals(0, reclaimed.getPatientIndex().orElseThrow(), "Should keep the checkpointed progress"));
+        assertEquals(workBatch.getBatchID(), queue.claimBatch(UUID.randomUUID()).orElseThrow().getBatchID(), "Should claim the reclaimed batch again");
+    }
+
+    private void expireLease(JobQueueCommon queue, JobQueueBatch batch) {
+        if (!(queue instanceof DistributedBatchQueue)) {
+            batch.renewLease(aggregatorID, OffsetDateTime.now(ZoneOffset.UTC).minusSeconds(1));
+            return;
+        }
+        // Saving progress leaves the database lease alone, so expire it in the database
+        try (final Session session = sessionFactory.openSession()) {
+            final Transaction tx = session.beginTransaction();
+            try {
+                session.createQuery("update job_queue_batch set leaseExpiry = :leaseExpiry where batchID = :batchID")
+                        .setParameter("batchID", batch.getBatchID())
+                        .setParameter("leaseExpiry", OffsetDateTime.now().minusMinutes(10))
+                        .executeUpdate();
+            } finally {
+                tx.commit();
+            }
+        }
+    }
 }
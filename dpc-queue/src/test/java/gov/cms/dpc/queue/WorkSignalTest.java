@@ -0,0 +1,58 @@
+package gov.cms.dpc.queue;
+
+import gov.cms.dpc.testing.BufferedLoggerHandler;
+import org.hl7.fhir.dstu3.model.ResourceType;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@ExtendWith(BufferedLoggerHandler.class)
+class WorkSignalTest {
+
+    @Test
+    void testSignalWakesWaiter() throws Exception {
+        final var workSignal = new WorkSignal();
+        final long seen = workSignal.current();
+
+        final var waiter = CompletableFuture.supplyAsync(() -> {
+            try {
+                return workSignal.await(seen, Duration.ofSeconds(30));
+            } catch (InterruptedException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        workSignal.signal();
+        assertTrue(waiter.get(10, TimeUnit.SECONDS), "Should be woken by the signal");
+    }
+
+    @Test
+    void testSignalBeforeWaitNotMissed() throws InterruptedException {
+        final var workSignal = new WorkSignal();
+        final long seen = workSignal.current();
+        workSignal.signal();
+
+        assertTrue(workSignal.await(seen, Duration.ZERO), "Should see a signal sent after the count was taken");
+    }
+
+    @Test
+    void testTimeout() throws InterruptedException {
+        final var workSignal = new WorkSignal();
+        assertFalse(workSignal.await(workSignal.current(), Duration.ofMillis(50)), "Should time out without a signal");
+    }
+
+    @Test
+    void testSignalledBySubmission() throws InterruptedException {
+        final var queue = new MemoryBatchQueue(10);
+        final long seen = queue.getWorkSignal().current();
+
+        queue.createJob(UUID.randomUUID(), "test-provider-1", List.of("test-patient-1"), List.of(ResourceType.Patient));
+        assertTrue(queue.getWorkSignal().await(seen, Duration.ZERO), "Should signal submitted batches");
+    }
+}
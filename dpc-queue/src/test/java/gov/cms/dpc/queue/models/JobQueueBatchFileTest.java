@@ -45,4 +45,22 @@ class JobQueueBatchFileTest {
         assertEquals(1, a.getCount());
         assertEquals(new JobQueueBatchFile.JobQueueBatchFileID(batchID, ResourceType.Patient, 0), a.getJobQueueBatchFileID());;
     }
+
+    @Test
+    void testModified() {
+        final var a = new JobQueueBatchFile(UUID.randomUUID(), UUID.randomUUID(), ResourceType.Patient, 0, 1);
+        assertTrue(a.isModified(), "A new file should be saved");
+
+        a.markSaved();
+        assertFalse(a.isModified(), "A saved file should not be saved again");
+
+        a.appendCount(1);
+        assertTrue(a.isModified(), "A file with more resources should be saved");
+
+        a.markSaved();
+        a.setDigestState(new byte[]{1});
+        assertTrue(a.isModified(), "A file with a new checkpoint should be saved");
+
+        assertFalse(new JobQueueBatchFile().isModified(), "A file loaded from the queue should not be saved until it changes");
+    }
 }
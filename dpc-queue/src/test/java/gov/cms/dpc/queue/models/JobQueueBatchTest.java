@@ -77,6 +77,43 @@ public class JobQueueBatchTest {
         }
     }
 
+    @Test
+    void testRenewLease() {
+        final var job = createJobQueueBatch();
+        final var now = OffsetDateTime.now(ZoneOffset.UTC);
+        assertThrows(JobQueueFailure.class, () -> job.renewLease(aggregatorID, now.plusSeconds(30)), "Should only lease a running batch");
+
+        job.setRunningStatus(aggregatorID);
+        assertTrue(job.isLeaseExpired(now), "Should be expired without a lease");
+        job.renewLease(aggregatorID, now.plusSeconds(30));
+        assertAll(() -> assertEquals(now.plusSeconds(30), job.getLeaseExpiry().orElseThrow()),
+                () -> assertFalse(job.isLeaseExpired(now)),
+                () -> assertTrue(job.isLeaseExpired(now.plusSeconds(30))));
+        assertThrows(JobQueueFailure.class, () -> job.renewLease(UUID.randomUUID(), now.plusSeconds(60)), "Should not lease a batch of another aggregator");
+
+        job.setPausedStatus(aggregatorID);
+        assertAll(() -> assertTrue(job.getLeaseExpiry().isEmpty(), "Should drop the lease when paused"),
+                () -> assertFalse(job.isLeaseExpired(now), "Should only expire running batches"));
+    }
+
+    @Test
+    void testReclaimBatch() {
+        final var job = createJobQueueBatch();
+        assertThrows(JobQueueFailure.class, job::reclaimBatch, "Should only reclaim a running batch");
+
+        job.setRunningStatus(aggregatorID);
+        job.renewLease(aggregatorID, OffsetDateTime.now(ZoneOffset.UTC));
+        job.fetchNextPatient(aggregatorID);
+        job.addJobQueueFile(ResourceType.Patient, 0, 1);
+        job.reclaimBatch();
+        assertAll(() -> assertEquals(JobStatus.QUEUED, job.getStatus()),
+                () -> assertTrue(job.getAggregatorID().isEmpty()),
+                () -> assertTrue(job.getLeaseExpiry().isEmpty()),
+                () -> assertEquals(0, job.getPatientIndex().orElseThrow(), "Should keep the progress"),
+                () -> assertEquals(1, job.getJobQueueBatchFiles().size(), "Should keep the files"),
+                () -> assertTrue(job.isValid()));
+    }
+
     @Test
     void testFetchNextBatch() {
         final var job = Mockito.spy(createJobQueueBatch());
@@ -0,0 +1,82 @@
+package gov.cms.dpc.queue.models;
+
+import gov.cms.dpc.queue.converters.PatientListConverter;
+import gov.cms.dpc.testing.BufferedLoggerHandler;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@ExtendWith(BufferedLoggerHandler.class)
+class PatientListTest {
+
+    private static final List<String> MBIS = List.of("1AA0AA0AA00", "9YY9YY9YY99", "4E23TE2KN51", "7YR4E60KR15");
+
+    @Test
+    void testPackedMBIs() {
+        final var mbis = List.of("1AA0AA0AA00", "9YY9YY9YY99", "2CD3EF4GH56");
+        final PatientList patients = PatientList.of(mbis);
+        final byte[] data = patients.toBytes();
+
+        assertAll(() -> assertEquals(PatientList.PACKED_MBI, data[0], "Should pack a list of MBIs"),
+                () -> assertEquals(1 + mbis.size() * 6, data.length, "Should pack each MBI into 6 bytes"),
+                () -> assertEquals(mbis, patients),
+                () -> assertEquals(mbis, PatientList.fromBytes(data)),
+                () -> assertEquals("9YY9YY9YY99", patients.get(1)));
+    }
+
+    @Test
+    void testOtherIDsDelimited() {
+        // An S is never in an MBI
+        final var ids = List.of("test-patient-1", "1SA0AA0AA00", "", "test-patient-2");
+        final PatientList patients = PatientList.of(ids);
+        final byte[] data = patients.toBytes();
+
+        assertAll(() -> assertEquals(PatientList.DELIMITED, data[0], "Should not pack IDs which are not MBIs"),
+                () -> assertEquals(ids, patients),
+                () -> assertEquals(ids, PatientList.fromBytes(data)),
+                () -> assertEquals("test-patient-2", patients.get(3)),
+                () -> assertThrows(IndexOutOfBoundsException.class, () -> patients.get(4)));
+    }
+
+    @Test
+    void testEmpty() {
+        final PatientList patients = PatientList.of(List.of());
+        assertAll(() -> assertTrue(patients.isEmpty()),
+                () -> assertTrue(PatientList.fromBytes(patients.toBytes()).isEmpty()),
+                () -> assertTrue(PatientList.fromBytes(new byte[]{PatientList.DELIMITED}).isEmpty(), "Should read a migrated batch without patients"),
+                () -> assertTrue(PatientList.fromBytes(null).isEmpty()));
+    }
+
+    @Test
+    void testMigratedPatients() {
+        // Batches queued before the packed encoding are migrated as their comma-joined patients
+        final byte[] joined = String.join(",", MBIS).getBytes(StandardCharsets.UTF_8);
+        final byte[] data = new byte[joined.length + 1];
+        data[0] = PatientList.DELIMITED;
+        System.arraycopy(joined, 0, data, 1, joined.length);
+
+        final List<String> patients = new PatientListConverter().convertToEntityAttribute(data);
+        assertAll(() -> assertEquals(MBIS, patients),
+                () -> assertEquals(4, patients.size()),
+                () -> assertEquals(List.of("4E23TE2KN51", "7YR4E60KR15"), patients.subList(2, 4)));
+    }
+
+    @Test
+    void testInvalidEncoding() {
+        assertThrows(IllegalArgumentException.class, () -> PatientList.fromBytes(new byte[]{9, 1, 2}));
+        assertThrows(IllegalArgumentException.class, () -> PatientList.fromBytes(new byte[]{PatientList.PACKED_MBI, 1, 2}), "Should reject a partial MBI");
+    }
+
+    @Test
+    void testMBI() {
+        assertAll(() -> assertTrue(PatientList.isMBI("1EG4TE5MK73")),
+                () -> assertFalse(PatientList.isMBI("0EG4TE5MK73"), "Should not start with a 0"),
+                () -> assertFalse(PatientList.isMBI("1EG4TE5MK7"), "Should be 11 characters"),
+                () -> assertFalse(PatientList.isMBI("1eg4te5mk73"), "Should be upper case"),
+                () -> assertFalse(PatientList.isMBI("1SG4TE5MK73"), "Should not use an S"));
+    }
+}
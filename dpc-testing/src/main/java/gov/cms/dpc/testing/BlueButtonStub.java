@@ -0,0 +1,615 @@
+package gov.cms.dpc.testing;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.IParser;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import com.sun.net.httpserver.HttpsConfigurator;
+import com.sun.net.httpserver.HttpsExchange;
+import com.sun.net.httpserver.HttpsParameters;
+import com.sun.net.httpserver.HttpsServer;
+import org.hl7.fhir.dstu3.model.*;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLParameters;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.IntFunction;
+import java.util.stream.Collectors;
+
+/**
+ * An embeddable HTTP stand-in for BlueButton, for measuring the BlueButton client without access to BFD.
+ * <p>
+ * It answers the requests the BlueButton client makes with synthetic resources, for any patient and any MBI hash:
+ * - GET metadata
+ * - GET Patient/{id}
+ * - GET Patient?identifier={mbi-hash system}|{hash},... (one patient per hash)
+ * - GET ExplanationOfBenefit?patient={id}
+ * - GET Coverage?beneficiary=Patient/{id}[&_lastUpdated=gt{instant}]
+ * <p>
+ * The resources of a patient are generated from the patient ID and the seed, so they are the same on every request.
+ * Searches are paged, with next links the client can follow. Each response is delayed by a latency drawn from a
+ * log-normal distribution, and a share of the responses can be replaced by server errors (500) or throttling (429).
+ * See {@link Options} for the settings.
+ * <p>
+ * It serves plain HTTP, or HTTPS with the self-signed certificate for localhost in {@link #TEST_KEYSTORE_RESOURCE}.
+ * The same keystore can be given to the BlueButton client, which trusts self-signed certificates. The stub counts the
+ * connections and TLS sessions it sees, so the reuse of pooled connections and the resumption of TLS sessions can be checked.
+ * <p>
+ * Run it from a test with {@link #start()} and {@link #close()}, or on its own with {@link #main(String[])}.
+ */
+public class BlueButtonStub implements AutoCloseable {
+
+    private static final Logger logger = LoggerFactory.getLogger(BlueButtonStub.class);
+
+    public static final String BASE_PATH = "/v1/fhir/";
+    public static final String MBI_HASH_SYSTEM = "https://bluebutton.cms.gov/resources/identifier/mbi-hash";
+    public static final String START_INDEX_PARAM = "startIndex";
+    // A JKS keystore with a self-signed certificate for localhost, for HTTPS
+    public static final String TEST_KEYSTORE_RESOURCE = "/bluebutton-stub.keystore";
+    public static final String TEST_KEYSTORE_PASSWORD = "changeit";
+
+    private static final String FHIR_JSON = "application/fhir+json;charset=UTF-8";
+    private static final String EOB_TYPE_SYSTEM = "https://bluebutton.cms.gov/resources/codesystem/eob-type";
+    private static final List<String> COVERAGE_PARTS = List.of("part-a", "part-b", "part-d");
+    // Coverage never changes in the stub, so a revalidation after this time finds nothing
+    private static final Date COVERAGE_LAST_UPDATED = new Date(TimeUnit.DAYS.toMillis(18000));
+    // The z-score of the 99th percentile of a normal distribution
+    private static final double P99_Z_SCORE = 2.326;
+
+    /**
+     * The behavior of the stub
+     */
+    public static class Options {
+
+        private int port = 0;
+        private int pageSize = 0;
+        private int minResources = 1;
+        private int maxResources = 20;
+        private int maxItems = 5;
+        private long medianLatency = 0;
+        private long p99Latency = 0;
+        private double errorRate = 0;
+        private double throttleRate = 0;
+        private long seed = 0;
+        private boolean https = false;
+
+        public int getPort() {
+            return port;
+        }
+
+        /**
+         * @param port - the port to listen on, 0 for any free port
+         */
+        public void setPort(int port) {
+            this.port = port;
+        }
+
+        public int getPageSize() {
+            return pageSize;
+        }
+
+        /**
+         * @param pageSize - the number of resources per page, 0 to use the _count of each request
+         */
+        public void setPageSize(int pageSize) {
+            this.pageSize = pageSize;
+        }
+
+        public int getMinResources() {
+            return minResources;
+        }
+
+        /**
+         * @param minResources - the fewest EOBs of a patient
+         */
+        public void setMinResources(int minResources) {
+            this.minResources = minResources;
+        }
+
+        public int getMaxResources() {
+            return maxResources;
+        }
+
+        /**
+         * @param maxResources - the most EOBs of a patient
+         */
+        public void setMaxResources(int maxResources) {
+            this.maxResources = maxResources;
+        }
+
+        public int getMaxItems() {
+            return maxItems;
+        }
+
+        /**
+         * @param maxItems - the most line items of an EOB, which spreads the size of the responses
+         */
+        public void setMaxItems(int maxItems) {
+            this.maxItems = maxItems;
+        }
+
+        public long getMedianLatency() {
+            return medianLatency;
+        }
+
+        /**
+         * @param medianLatency - the median delay of a response (ms)
+         */
+        public void setMedianLatency(long medianLatency) {
+            this.medianLatency = medianLatency;
+        }
+
+        public long getP99Latency() {
+            return p99Latency;
+        }
+
+        /**
+         * @param p99Latency - the 99th percentile delay of a response (ms), at most the median for a fixed delay
+         */
+        public void setP99Latency(long p99Latency) {
+            this.p99Latency = p99Latency;
+        }
+
+        public double getErrorRate() {
+            return errorRate;
+        }
+
+        /**
+         * @param errorRate - the share of requests answered with a server error (500), from 0 to 1
+         */
+        public void setErrorRate(double errorRate) {
+            this.errorRate = errorRate;
+        }
+
+        public double getThrottleRate() {
+            return throttleRate;
+        }
+
+        /**
+         * @param throttleRate - the share of requests answered with too many requests (429), from 0 to 1
+         */
+        public void setThrottleRate(double throttleRate) {
+            this.throttleRate = throttleRate;
+        }
+
+        public long getSeed() {
+            return seed;
+        }
+
+        /**
+         * @param seed - the seed of the generated resources, latencies and faults
+         */
+        public void setSeed(long seed) {
+            this.seed = seed;
+        }
+
+        public boolean isHttps() {
+            return https;
+        }
+
+        /**
+         * @param https - true to serve HTTPS with the test keystore, rather than plain HTTP
+         */
+        public void setHttps(boolean https) {
+            this.https = https;
+        }
+    }
+
+    private final Options options;
+    private final FhirContext fhirContext;
+    private final Random random;
+    private final double latencySigma;
+    private final AtomicLong requestCount;
+    private final AtomicLong faultCount;
+    private final Set<String> connections;
+    private final Set<String> tlsSessions;
+    private HttpServer server;
+    private ExecutorService executor;
+
+    public BlueButtonStub(Options options) {
+        this.options = options;
+        this.fhirContext = FhirContext.forDstu3();
+        this.random = new Random(options.getSeed());
+        this.latencySigma = options.getP99Latency() > options.getMedianLatency() && options.getMedianLatency() > 0
+                ? Math.log((double) options.getP99Latency() / options.getMedianLatency()) / P99_Z_SCORE
+                : 0;
+        this.requestCount = new AtomicLong();
+        this.faultCount = new AtomicLong();
+        this.connections = ConcurrentHashMap.newKeySet();
+        this.tlsSessions = ConcurrentHashMap.newKeySet();
+    }
+
+    /**
+     * Start listening for requests
+     *
+     * @throws IOException if the port cannot be bound, or the test keystore cannot be loaded
+     */
+    public void start() throws IOException {
+        final var threadCounter = new AtomicInteger();
+        // Every request gets its own thread, so the delayed responses do not hold each other up
+        this.executor = Executors.newCachedThreadPool(runnable -> {
+            final var thread = new Thread(runnable, String.format("bluebutton-stub-%d", threadCounter.getAndIncrement()));
+            thread.setDaemon(true);
+            return thread;
+        });
+        final var address = new InetSocketAddress("localhost", options.getPort());
+        if (options.isHttps()) {
+            final var httpsServer = HttpsServer.create(address, 0);
+            httpsServer.setHttpsConfigurator(new HttpsConfigurator(loadTestSSLContext()) {
+                @Override
+                public void configure(HttpsParameters params) {
+                    // TLS 1.2 keeps the ID of a resumed session, where TLS 1.3 issues a new one, so resumption can be counted
+                    final SSLParameters parameters = getSSLContext().getDefaultSSLParameters();
+                    parameters.setProtocols(new String[]{"TLSv1.2"});
+                    params.setSSLParameters(parameters);
+                }
+            });
+            this.server = httpsServer;
+        } else {
+            this.server = HttpServer.create(address, 0);
+        }
+        this.server.createContext(BASE_PATH, this::handle);
+        this.server.setExecutor(executor);
+        this.server.start();
+        logger.info("BlueButton stub listening at {}", getBaseURL());
+    }
+
+    @Override
+    public void close() {
+        if (server != null) {
+            server.stop(0);
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * @return the base URL of the FHIR server, for the serverBaseUrl of the BlueButton client
+     */
+    public String getBaseURL() {
+        return String.format("%s://localhost:%d%s", options.isHttps() ? "https" : "http", server.getAddress().getPort(), BASE_PATH);
+    }
+
+    /**
+     * @return the number of requests received
+     */
+    public long getRequestCount() {
+        return requestCount.get();
+    }
+
+    /**
+     * @return the number of requests answered with an injected error or throttling
+     */
+    public long getFaultCount() {
+        return faultCount.get();
+    }
+
+    /**
+     * @return the number of client connections that sent requests
+     */
+    public int getConnectionCount() {
+        return connections.size();
+    }
+
+    /**
+     * @return the number of TLS sessions the requests were sent over, which is fewer than the connections when sessions are resumed
+     */
+    public int getTlsSessionCount() {
+        return tlsSessions.size();
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        requestCount.incrementAndGet();
+        connections.add(exchange.getRemoteAddress().toString());
+        if (exchange instanceof HttpsExchange) {
+            tlsSessions.add(Base64.getEncoder().encodeToString(((HttpsExchange) exchange).getSSLSession().getId()));
+        }
+        try {
+            sleep(drawLatency());
+
+            final double fault = nextDouble();
+            if (fault < options.getThrottleRate()) {
+                faultCount.incrementAndGet();
+                exchange.getResponseHeaders().add("Retry-After", "1");
+                respond(exchange, 429, outcome("Too many requests"));
+                return;
+            }
+            if (fault < options.getThrottleRate() + options.getErrorRate()) {
+                faultCount.incrementAndGet();
+                respond(exchange, 500, outcome("Injected server error"));
+                return;
+            }
+
+            if (!"GET".equals(exchange.getRequestMethod())) {
+                respond(exchange, 405, outcome("Only reads are supported"));
+                return;
+            }
+            final URI uri = exchange.getRequestURI();
+            final String path = uri.getPath().substring(BASE_PATH.length());
+            final Map<String, String> params = parseQuery(uri.getRawQuery());
+            respond(exchange, 200, route(path, params));
+        } catch (IllegalArgumentException e) {
+            respond(exchange, 400, outcome(e.getMessage()));
+        } catch (RuntimeException e) {
+            logger.error("BlueButton stub failed to answer {}", exchange.getRequestURI(), e);
+            respond(exchange, 500, outcome(e.getMessage()));
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private IBaseResource route(String path, Map<String, String> params) {
+        if (path.equals("metadata")) {
+            return capabilities();
+        }
+        if (path.startsWith("Patient/")) {
+            return patient(path.substring("Patient/".length()), null);
+        }
+        switch (path) {
+            case "Patient":
+                final List<String> hashes = parseHashes(requireParam(params, "identifier"));
+                return page(path, params, hashes.size(), index -> patient(patientID(hashes.get(index)), hashes.get(index)));
+            case "ExplanationOfBenefit":
+                final String eobPatientID = requireParam(params, "patient");
+                return page(path, params, resourceCount(eobPatientID), index -> eob(eobPatientID, index));
+            case "Coverage":
+                final String coveragePatientID = stripPrefix(requireParam(params, "beneficiary"), "Patient/");
+                final int coverageCount = isUpdatedSince(COVERAGE_LAST_UPDATED, params.get("_lastUpdated")) ? COVERAGE_PARTS.size() : 0;
+                return page(path, params, coverageCount, index -> coverage(coveragePatientID, index));
+            default:
+                throw new IllegalArgumentException("Unsupported request: " + path);
+        }
+    }
+
+    /**
+     * Form a page of a search, with a next link when there are more resources
+     */
+    private Bundle page(String path, Map<String, String> params, int total, IntFunction<Resource> resource) {
+        final int start = Integer.parseInt(params.getOrDefault(START_INDEX_PARAM, "0"));
+        final int pageSize = options.getPageSize() > 0 ? options.getPageSize() : Integer.parseInt(params.getOrDefault("_count", "10"));
+        final int end = Math.min(total, start + pageSize);
+
+        final var bundle = new Bundle();
+        bundle.setType(Bundle.BundleType.SEARCHSET);
+        bundle.setTotal(total);
+        bundle.addLink().setRelation(Bundle.LINK_SELF).setUrl(formURL(path, params, start));
+        if (end < total) {
+            bundle.addLink().setRelation(Bundle.LINK_NEXT).setUrl(formURL(path, params, end));
+        }
+        for (int index = start; index < end; index++) {
+            bundle.addEntry().setResource(resource.apply(index));
+        }
+        return bundle;
+    }
+
+    private String formURL(String path, Map<String, String> params, int startIndex) {
+        final Map<String, String> query = new LinkedHashMap<>(params);
+        query.put(START_INDEX_PARAM, String.valueOf(startIndex));
+        return getBaseURL() + path + "?" + query.entrySet()
+                .stream()
+                .map(entry -> URLEncoder.encode(entry.getKey(), StandardCharsets.UTF_8) + "=" + URLEncoder.encode(entry.getValue(), StandardCharsets.UTF_8))
+                .collect(Collectors.joining("&"));
+    }
+
+    private CapabilityStatement capabilities() {
+        final var capabilities = new CapabilityStatement();
+        capabilities.setStatus(Enumerations.PublicationStatus.ACTIVE);
+        capabilities.setKind(CapabilityStatement.CapabilityStatementKind.INSTANCE);
+        capabilities.setFhirVersion(fhirContext.getVersion().getVersion().getFhirVersionString());
+        capabilities.setPublisher("DPC BlueButton stub");
+        return capabilities;
+    }
+
+    private static Patient patient(String patientID, String mbiHash) {
+        final var patient = new Patient();
+        patient.setId(patientID);
+        if (mbiHash != null) {
+            patient.addIdentifier().setSystem(MBI_HASH_SYSTEM).setValue(mbiHash);
+        }
+        patient.addName().setFamily("Stub").addGiven(patientID);
+        patient.setGender(Enumerations.AdministrativeGender.UNKNOWN);
+        patient.setBirthDate(new Date(0));
+        return patient;
+    }
+
+    private ExplanationOfBenefit eob(String patientID, int index) {
+        final var eob = new ExplanationOfBenefit();
+        eob.setId(String.format("carrier-%s-%d", patientID, index));
+        eob.setStatus(ExplanationOfBenefit.ExplanationOfBenefitStatus.ACTIVE);
+        eob.setPatient(new Reference("Patient/" + patientID));
+        eob.getType().addCoding().setSystem(EOB_TYPE_SYSTEM).setCode("CARRIER");
+        final var serviceDate = new Date(TimeUnit.DAYS.toMillis(18000L + index));
+        eob.getBillablePeriod().setStart(serviceDate).setEnd(serviceDate);
+
+        final var generator = new Random(options.getSeed() ^ eob.getId().hashCode());
+        final int items = 1 + generator.nextInt(Math.max(1, options.getMaxItems()));
+        for (int item = 1; item <= items; item++) {
+            final var amount = new Money();
+            amount.setValue(generator.nextInt(100000) / 100.0);
+            eob.addItem()
+                    .setSequence(item)
+                    .setService(new CodeableConcept().addCoding(new Coding("https://bluebutton.cms.gov/resources/codesystem/hcpcs", String.format("9%04d", generator.nextInt(10000)), null)))
+                    .setServiced(new DateType(serviceDate))
+                    .addAdjudication()
+                    .setCategory(new CodeableConcept().addCoding(new Coding("https://bluebutton.cms.gov/resources/codesystem/adjudication", "https://bluebutton.cms.gov/resources/variables/line_nch_pmt_amt", null)))
+                    .setAmount(amount);
+        }
+        return eob;
+    }
+
+    private static Coverage coverage(String patientID, int index) {
+        final var coverage = new Coverage();
+        coverage.setId(String.format("%s-%s", COVERAGE_PARTS.get(index), patientID));
+        coverage.getMeta().setLastUpdated(COVERAGE_LAST_UPDATED);
+        coverage.setStatus(Coverage.CoverageStatus.ACTIVE);
+        coverage.setBeneficiary(new Reference("Patient/" + patientID));
+        coverage.getGrouping().setSubPlan(COVERAGE_PARTS.get(index));
+        return coverage;
+    }
+
+    private static OperationOutcome outcome(String message) {
+        final var outcome = new OperationOutcome();
+        outcome.addIssue()
+                .setSeverity(OperationOutcome.IssueSeverity.ERROR)
+                .setCode(OperationOutcome.IssueType.EXCEPTION)
+                .setDiagnostics(message);
+        return outcome;
+    }
+
+    /**
+     * The number of EOBs of a patient, which is the same on every request
+     */
+    private int resourceCount(String patientID) {
+        final int spread = Math.max(0, options.getMaxResources() - options.getMinResources());
+        return options.getMinResources() + new Random(options.getSeed() ^ patientID.hashCode()).nextInt(spread + 1);
+    }
+
+    /**
+     * Form a patient ID from an MBI hash, which is a valid FHIR ID and the same on every request
+     */
+    private static String patientID(String mbiHash) {
+        return "-" + Math.abs((long) mbiHash.hashCode());
+    }
+
+    private static List<String> parseHashes(String identifiers) {
+        // Several identifiers are OR'ed together, each with its system
+        return Arrays.stream(identifiers.split(","))
+                .map(identifier -> identifier.substring(identifier.lastIndexOf('|') + 1))
+                .filter(hash -> !hash.isEmpty())
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * @param lastUpdated - when the resource was last updated
+     * @param filter      - the _lastUpdated parameter, only the gt prefix is supported
+     * @return whether the resource matches the filter
+     */
+    private static boolean isUpdatedSince(Date lastUpdated, String filter) {
+        if (filter == null) {
+            return true;
+        }
+        if (!filter.startsWith("gt")) {
+            throw new IllegalArgumentException("Unsupported _lastUpdated: " + filter);
+        }
+        return lastUpdated.after(new InstantType(filter.substring(2)).getValue());
+    }
+
+    private static Map<String, String> parseQuery(String rawQuery) {
+        final Map<String, String> params = new LinkedHashMap<>();
+        if (rawQuery == null || rawQuery.isEmpty()) {
+            return params;
+        }
+        for (String pair : rawQuery.split("&")) {
+            final int split = pair.indexOf('=');
+            final String name = URLDecoder.decode(split < 0 ? pair : pair.substring(0, split), StandardCharsets.UTF_8);
+            final String value = split < 0 ? "" : URLDecoder.decode(pair.substring(split + 1), StandardCharsets.UTF_8);
+            params.put(name, value);
+        }
+        return params;
+    }
+
+    private static String requireParam(Map<String, String> params, String name) {
+        final String value = params.get(name);
+        if (value == null || value.isEmpty()) {
+            throw new IllegalArgumentException("Missing search parameter: " + name);
+        }
+        return value;
+    }
+
+    private static String stripPrefix(String value, String prefix) {
+        return value.startsWith(prefix) ? value.substring(prefix.length()) : value;
+    }
+
+    private long drawLatency() {
+        if (options.getMedianLatency() <= 0) {
+            return 0;
+        }
+        final double gaussian;
+        synchronized (random) {
+            gaussian = random.nextGaussian();
+        }
+        return (long) (options.getMedianLatency() * Math.exp(latencySigma * gaussian));
+    }
+
+    private double nextDouble() {
+        synchronized (random) {
+            return random.nextDouble();
+        }
+    }
+
+    private void respond(HttpExchange exchange, int status, IBaseResource resource) throws IOException {
+        // Parsers are not thread safe, so each response gets its own
+        final IParser parser = fhirContext.newJsonParser();
+        final byte[] body = parser.encodeResourceToString(resource).getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", FHIR_JSON);
+        exchange.sendResponseHeaders(status, body.length);
+        try (OutputStream output = exchange.getResponseBody()) {
+            output.write(body);
+        }
+    }
+
+    private static SSLContext loadTestSSLContext() throws IOException {
+        try (InputStream keyStoreStream = BlueButtonStub.class.getResourceAsStream(TEST_KEYSTORE_RESOURCE)) {
+            if (keyStoreStream == null) {
+                throw new IOException("Cannot find the test keystore " + TEST_KEYSTORE_RESOURCE);
+            }
+            final KeyStore keyStore = KeyStore.getInstance("JKS");
+            keyStore.load(keyStoreStream, TEST_KEYSTORE_PASSWORD.toCharArray());
+            final KeyManagerFactory keyManagers = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+            keyManagers.init(keyStore, TEST_KEYSTORE_PASSWORD.toCharArray());
+            final SSLContext sslContext = SSLContext.getInstance("TLS");
+            sslContext.init(keyManagers.getKeyManagers(), null, null);
+            return sslContext;
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Cannot load the test keystore", e);
+        }
+    }
+
+    private static void sleep(long millis) {
+        if (millis <= 0) {
+            return;
+        }
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Run the stub on its own, for load tests of an aggregator pointed at it.
+     * The arguments are optional: the port, the median and p99 latency (ms), the error rate, the throttle rate and https.
+     *
+     * @param args - the command line arguments
+     * @throws IOException if the port cannot be bound
+     */
+    public static void main(String[] args) throws IOException {
+        final var options = new Options();
+        options.setPort(args.length > 0 ? Integer.parseInt(args[0]) : 8083);
+        options.setMedianLatency(args.length > 1 ? Long.parseLong(args[1]) : 100);
+        options.setP99Latency(args.length > 2 ? Long.parseLong(args[2]) : 1000);
+        options.setErrorRate(args.length > 3 ? Double.parseDouble(args[3]) : 0);
+        options.setThrottleRate(args.length > 4 ? Double.parseDouble(args[4]) : 0);
+        options.setHttps(args.length > 5 && Boolean.parseBoolean(args[5]));
+        new BlueButtonStub(options).start();
+    }
+}